@@ -0,0 +1,212 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates of the active logins in the UserLoginTracker, which are updated as each login is added and removed, so
+ * that they can be read without iterating over the active logins.  The scheme, user, and IP address of each login
+ * are those at the time of login.  The last activity of each login is tracked to the minute, and is updated at most
+ * once a minute for each login.  This is registered as an MXBean named
+ * `org.openmrs.module.authentication:type=ActiveLoginStatistics` while the module is started.
+ * Logins are added, removed, and updated without locking, as this is done by the threads handling requests.  Each
+ * count is incremented before the login is published to, and decremented after it is claimed from, the UserLogin, so
+ * the aggregates may briefly count a login that is being added or updated twice, but never lose a count.
+ */
+public class ActiveLoginStatistics implements ActiveLoginStatisticsMXBean {
+
+    public static final String OBJECT_NAME = AuthenticationMetrics.MBEAN_DOMAIN + ":type=ActiveLoginStatistics";
+
+    static final long ACTIVITY_BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final long[] SESSION_AGE_BUCKET_MINUTES = {5, 15, 30, 60, 120, 240, 480, 720, 1440};
+    static final String NO_SCHEME = "none";
+
+    // The activity bucket of an entry once its login has been removed, which is never replaced by a later bucket
+    private static final long REMOVED = Long.MAX_VALUE;
+
+    private static final AtomicReferenceFieldUpdater<UserLogin, Entry> ENTRY =
+            AtomicReferenceFieldUpdater.newUpdater(UserLogin.class, Entry.class, "activeLoginEntry");
+    private static final AtomicLongFieldUpdater<Entry> ACTIVITY_BUCKET =
+            AtomicLongFieldUpdater.newUpdater(Entry.class, "activityBucket");
+
+    private final LongAdder activeLogins = new LongAdder();
+    private final Map<String, Integer> loginsBySchemeId = new ConcurrentHashMap<>();
+    private final Map<Object, Integer> loginsByUser = new ConcurrentHashMap<>();
+    private final Map<String, Integer> loginsByIpAddress = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> loginsByLoginMinute = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> loginsByActivityBucket = new ConcurrentHashMap<>();
+
+    /**
+     * Adds the given login to the aggregates, if it has not already been added
+     */
+    void loginAdded(UserLogin userLogin) {
+        if (userLogin.activeLoginEntry != null) {
+            return;
+        }
+        Entry entry = new Entry(userLogin);
+        activeLogins.increment();
+        for (String schemeId : entry.schemeIds) {
+            increment(loginsBySchemeId, schemeId);
+        }
+        increment(loginsByUser, entry.user);
+        increment(loginsByIpAddress, entry.ipAddress);
+        increment(loginsByLoginMinute, entry.loginMinute);
+        increment(loginsByActivityBucket, entry.activityBucket);
+        if (!ENTRY.compareAndSet(userLogin, null, entry)) {
+            // Added concurrently by another thread, so this entry is not counted
+            remove(entry, entry.activityBucket);
+        }
+    }
+
+    /**
+     * Removes the given login from the aggregates, if it has been added
+     */
+    void loginRemoved(UserLogin userLogin) {
+        Entry entry = ENTRY.getAndSet(userLogin, null);
+        if (entry != null) {
+            remove(entry, ACTIVITY_BUCKET.getAndSet(entry, REMOVED));
+        }
+    }
+
+    /**
+     * Moves the given login to the activity bucket of its last activity time, if it has been added
+     */
+    void activityUpdated(UserLogin userLogin) {
+        Entry entry = userLogin.activeLoginEntry;
+        if (entry == null) {
+            return;
+        }
+        long bucket = getActivityBucket(userLogin.getLastActivityTime());
+        long current = entry.activityBucket;
+        while (bucket > current && current != REMOVED) {
+            increment(loginsByActivityBucket, bucket);
+            if (ACTIVITY_BUCKET.compareAndSet(entry, current, bucket)) {
+                decrement(loginsByActivityBucket, current);
+                return;
+            }
+            decrement(loginsByActivityBucket, bucket);
+            current = entry.activityBucket;
+        }
+    }
+
+    private void remove(Entry entry, long activityBucket) {
+        activeLogins.decrement();
+        for (String schemeId : entry.schemeIds) {
+            decrement(loginsBySchemeId, schemeId);
+        }
+        decrement(loginsByUser, entry.user);
+        decrement(loginsByIpAddress, entry.ipAddress);
+        decrement(loginsByLoginMinute, entry.loginMinute);
+        decrement(loginsByActivityBucket, activityBucket);
+    }
+
+    @Override
+    public int getActiveLogins() {
+        return activeLogins.intValue();
+    }
+
+    @Override
+    public Map<String, Integer> getActiveLoginsBySchemeId() {
+        return new TreeMap<>(loginsBySchemeId);
+    }
+
+    @Override
+    public int getUniqueUsers() {
+        return loginsByUser.size();
+    }
+
+    @Override
+    public int getUniqueIpAddresses() {
+        return loginsByIpAddress.size();
+    }
+
+    @Override
+    public long getOldestIdleSeconds() {
+        long oldestBucket = REMOVED;
+        for (Long bucket : loginsByActivityBucket.keySet()) {
+            oldestBucket = Math.min(oldestBucket, bucket);
+        }
+        if (oldestBucket == REMOVED) {
+            return 0;
+        }
+        long idleMillis = System.currentTimeMillis() - oldestBucket * ACTIVITY_BUCKET_MILLIS;
+        return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(idleMillis));
+    }
+
+    @Override
+    public long[] getSessionAgeBucketMinutes() {
+        return SESSION_AGE_BUCKET_MINUTES.clone();
+    }
+
+    @Override
+    public int[] getSessionAgeCounts() {
+        long nowMinute = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+        int[] counts = new int[SESSION_AGE_BUCKET_MINUTES.length + 1];
+        for (Map.Entry<Long, Integer> e : loginsByLoginMinute.entrySet()) {
+            long ageMinutes = nowMinute - e.getKey();
+            int bucket = 0;
+            while (bucket < SESSION_AGE_BUCKET_MINUTES.length && ageMinutes >= SESSION_AGE_BUCKET_MINUTES[bucket]) {
+                bucket++;
+            }
+            counts[bucket] += e.getValue();
+        }
+        return counts;
+    }
+
+    static long getActivityBucket(long time) {
+        return time / ACTIVITY_BUCKET_MILLIS;
+    }
+
+    private static <K> void increment(Map<K, Integer> counts, K key) {
+        if (key != null) {
+            counts.merge(key, 1, Integer::sum);
+        }
+    }
+
+    private static <K> void decrement(Map<K, Integer> counts, K key) {
+        if (key != null) {
+            counts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * The values of an active login that it was counted under, so that it can be removed from the same counts
+     */
+    static class Entry {
+
+        private final List<String> schemeIds;
+        private final Object user;
+        private final String ipAddress;
+        private final long loginMinute;
+        volatile long activityBucket;
+
+        Entry(UserLogin userLogin) {
+            schemeIds = new ArrayList<>(userLogin.getValidatedCredentials());
+            if (schemeIds.isEmpty()) {
+                schemeIds.add(NO_SCHEME);
+            }
+            user = userLogin.getUserId() != null ? userLogin.getUserId() : userLogin.getUsername();
+            ipAddress = userLogin.getIpAddress();
+            long loginTime = userLogin.getLoginDate() != null ? userLogin.getLoginDate().getTime() : System.currentTimeMillis();
+            loginMinute = TimeUnit.MILLISECONDS.toMinutes(loginTime);
+            long lastActivityTime = userLogin.getLastActivityTime();
+            activityBucket = getActivityBucket(lastActivityTime != 0 ? lastActivityTime : loginTime);
+        }
+    }
+}
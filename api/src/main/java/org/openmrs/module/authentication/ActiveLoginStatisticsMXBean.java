@@ -0,0 +1,54 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import java.util.Map;
+
+/**
+ * The attributes of the ActiveLoginStatistics that are exposed over JMX
+ */
+public interface ActiveLoginStatisticsMXBean {
+
+    /**
+     * @return the number of active logins
+     */
+    int getActiveLogins();
+
+    /**
+     * @return the number of active logins that were authenticated with each schemeId
+     */
+    Map<String, Integer> getActiveLoginsBySchemeId();
+
+    /**
+     * @return the number of distinct users with an active login
+     */
+    int getUniqueUsers();
+
+    /**
+     * @return the number of distinct IP addresses that active logins were made from
+     */
+    int getUniqueIpAddresses();
+
+    /**
+     * @return the number of seconds since the least recent activity of any active login, to the minute
+     */
+    long getOldestIdleSeconds();
+
+    /**
+     * @return the upper bounds, in minutes, of the session age buckets, in order
+     */
+    long[] getSessionAgeBucketMinutes();
+
+    /**
+     * @return the number of active logins whose age is within each session age bucket, followed by the number
+     * older than the last bucket
+     */
+    int[] getSessionAgeCounts();
+}
@@ -19,8 +19,10 @@ import org.openmrs.util.OpenmrsUtil;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class provides access to all authentication configuration settings
@@ -83,6 +85,33 @@ public class AuthenticationConfig implements Serializable {
      */
     public static final String PASSWORD_CHANGE_WHITE_LIST = "authentication.passwordChangeWhiteList";
 
+    /**
+     * Comma-delimited list of IP address ranges, in CIDR notation (eg. `10.0.0.0/8`), from which requests are
+     * allowed.  If configured, requests from any other IP address are rejected by the AuthenticationFilter.
+     * This can also be configured for a particular scheme, see SCHEME_IP_ALLOW_LIST_TEMPLATE, in which case
+     * requests are allowed if they are within either list.
+     */
+    public static final String IP_ALLOW_LIST = "authentication.ipAllowList";
+
+    /**
+     * Comma-delimited list of IP address ranges, in CIDR notation (eg. `203.0.113.0/24`), from which requests are
+     * rejected by the AuthenticationFilter.  This takes precedence over `authentication.ipAllowList`.
+     * This can also be configured for a particular scheme, see SCHEME_IP_DENY_LIST_TEMPLATE, in which case
+     * requests are rejected if they are within either list.
+     */
+    public static final String IP_DENY_LIST = "authentication.ipDenyList";
+
+    /**
+     * If the configured `authentication.scheme` has this property, it is added to the `authentication.ipAllowList`
+     * Eg `authentication.scheme.apikey.ipAllowList = 10.10.0.0/16`
+     */
+    public static final String SCHEME_IP_ALLOW_LIST_TEMPLATE = "authentication.scheme.{schemeId}.ipAllowList";
+
+    /**
+     * If the configured `authentication.scheme` has this property, it is added to the `authentication.ipDenyList`
+     */
+    public static final String SCHEME_IP_DENY_LIST_TEMPLATE = "authentication.scheme.{schemeId}.ipDenyList";
+
     /**
      * All AuthenticationScheme instances must be configured with, at minimum, a property that maps a particular
      * {schemeId} to a particular AuthenticationScheme class fully-specified name
@@ -97,10 +126,72 @@ public class AuthenticationConfig implements Serializable {
      */
     public static final String SCHEME_CONFIG_PREFIX_TEMPLATE = "authentication.scheme.{schemeId}.config.";
 
+    /**
+     * Comma-separated list of the schemeIds, other than the configured authentication scheme, whose login locations
+     * may be requested from the LoginLocationsServlet with a `schemeId` parameter.  Defaults to none.
+     */
+    public static final String LOGIN_LOCATIONS_SCHEMES = "authentication.loginLocations.schemes";
+
+    /**
+     * Comma-separated list of the IP address ranges, in CIDR notation, from which the AuthenticationMetricsServlet may
+     * be scraped.  If set, requests from any other address are rejected, even if the user has the privilege to view
+     * metrics.  Defaults to any address.
+     * Eg `authentication.metrics.ipAllowList = 127.0.0.1/32, 10.20.0.0/16`
+     */
+    public static final String METRICS_IP_ALLOW_LIST = "authentication.metrics.ipAllowList";
+
+    /**
+     * If set to true, the time taken by each stage of each login attempt handled by the AuthenticationFilter is
+     * recorded, as an event of the UserLogin and in the AuthenticationMetrics.  Defaults to false.
+     */
+    public static final String STAGE_TIMING_ENABLED = "authentication.stageTiming.enabled";
+
+    /**
+     * If stage timing is enabled, login attempts that take longer than this number of milliseconds are logged with
+     * the time taken by each stage.  Defaults to 2000.
+     */
+    public static final String SLOW_LOGIN_THRESHOLD_MS = "authentication.stageTiming.slowLoginThresholdMs";
+
+    /**
+     * If stage timing is enabled, at most one slow login attempt is logged in each interval of this number of
+     * seconds, so that many slow logins do not flood the log.  Defaults to 60.
+     */
+    public static final String SLOW_LOGIN_LOG_INTERVAL_SECONDS = "authentication.stageTiming.slowLoginLogIntervalSeconds";
+
+    /**
+     * If set to true, spans are recorded for the authentication of each request and exported by the configured
+     * exporter.  Defaults to false.
+     */
+    public static final String TRACING_ENABLED = "authentication.tracing.enabled";
+
+    /**
+     * The fully-qualified class name of the AuthenticationSpanExporter used to export spans.
+     * Defaults to org.openmrs.module.authentication.OtlpJsonFileSpanExporter
+     */
+    public static final String TRACING_EXPORTER = "authentication.tracing.exporter";
+
+    /**
+     * The file that the OtlpJsonFileSpanExporter appends spans to.
+     * Defaults to authentication/traces.jsonl in the application data directory
+     */
+    public static final String TRACING_FILE = "authentication.tracing.file";
+
+    /**
+     * The url that the OtlpHttpSpanExporter posts spans to.  Defaults to http://localhost:4318/v1/traces
+     */
+    public static final String TRACING_ENDPOINT = "authentication.tracing.endpoint";
+
+    /**
+     * The service.name that exported spans are attributed to.  Defaults to openmrs
+     */
+    public static final String TRACING_SERVICE_NAME = "authentication.tracing.serviceName";
+
     private static Properties config;
 
     private static final List<ClassLoader> classLoaders = new ArrayList<>();
 
+    private static final Map<String, Map<String, String>> schemePropertyNames = new ConcurrentHashMap<>();
+
     /**
      * @return the configured properties, loading from runtime properties if necessary
      */
@@ -260,6 +351,54 @@ public class AuthenticationConfig implements Serializable {
         return getConfig().getProperty(PASSWORD_CHANGE_URL);
     }
 
+    /**
+     * @return a CidrMatcher for the IP address ranges from which requests are allowed, including those configured
+     * for the configured authentication scheme.  If empty, requests are allowed from any IP address.
+     * @throws IllegalArgumentException if any of the configured ranges are not valid, which is logged once
+     */
+    public static CidrMatcher getIpAllowList() {
+        return getIpRanges(IP_ALLOW_LIST, SCHEME_IP_ALLOW_LIST_TEMPLATE);
+    }
+
+    /**
+     * @return a CidrMatcher for the IP address ranges from which requests are rejected, including those configured
+     * for the configured authentication scheme
+     * @throws IllegalArgumentException if any of the configured ranges are not valid, which is logged once
+     */
+    public static CidrMatcher getIpDenyList() {
+        return getIpRanges(IP_DENY_LIST, SCHEME_IP_DENY_LIST_TEMPLATE);
+    }
+
+    private static CidrMatcher getIpRanges(String property, String schemePropertyTemplate) {
+        String ranges = getProperty(property, "");
+        String scheme = getProperty(SCHEME);
+        if (StringUtils.isNotBlank(scheme)) {
+            String schemeRanges = getProperty(getSchemePropertyName(schemePropertyTemplate, scheme));
+            if (StringUtils.isNotBlank(schemeRanges)) {
+                ranges = StringUtils.isBlank(ranges) ? schemeRanges : ranges + "," + schemeRanges;
+            }
+        }
+        return CidrMatcher.getInstance(ranges);
+    }
+
+    /**
+     * @return the given property template with the given schemeId substituted, which is retained as this is needed
+     * to check the configured IP address ranges on every request
+     */
+    private static String getSchemePropertyName(String template, String schemeId) {
+        Map<String, String> names = schemePropertyNames.get(template);
+        if (names == null) {
+            schemePropertyNames.putIfAbsent(template, new ConcurrentHashMap<>());
+            names = schemePropertyNames.get(template);
+        }
+        String name = names.get(schemeId);
+        if (name == null) {
+            name = template.replace(SCHEME_ID, schemeId);
+            names.put(schemeId, name);
+        }
+        return name;
+    }
+
 
     /**
      * @return the configured authentication scheme, defaulting to a UsernamePasswordAuthenticationScheme if not found
@@ -19,23 +19,31 @@ public class AuthenticationEvent implements Serializable {
 
     public static final String AUTHENTICATION_SUCCEEDED = "AUTHENTICATION_SUCCEEDED";
     public static final String AUTHENTICATION_FAILED = "AUTHENTICATION_FAILED";
+    public static final String AUTHENTICATION_TRUSTED_DEVICE = "AUTHENTICATION_TRUSTED_DEVICE";
     public static final String LOGIN_SUCCEEDED = "LOGIN_SUCCEEDED";
     public static final String LOGIN_FAILED = "LOGIN_FAILED";
     public static final String LOGIN_EXPIRED = "LOGIN_EXPIRED";
     public static final String LOGOUT_SUCCEEDED = "LOGOUT_SUCCEEDED";
     public static final String LOGOUT_FAILED = "LOGOUT_FAILED";
+    public static final String AUTHENTICATION_STAGE_TIMING = "AUTHENTICATION_STAGE_TIMING";
 
     private final String event;
     private final Date eventDate;
+    private final String details;
 
     public AuthenticationEvent(String event) {
+        this(event, null);
+    }
+
+    public AuthenticationEvent(String event, String details) {
         this.event = event;
         this.eventDate = new Date();
+        this.details = details;
     }
 
     @Override
     public String toString() {
-        return event + " - " + AuthenticationUtil.formatIsoDate(eventDate);
+        return event + " - " + AuthenticationUtil.formatIsoDate(eventDate) + (details == null ? "" : " - " + details);
     }
 
     public String getEvent() {
@@ -45,4 +53,11 @@ public class AuthenticationEvent implements Serializable {
     public Date getEventDate() {
         return eventDate;
     }
+
+    /**
+     * @return any further information about this event, eg. the time taken by each stage, or null if none
+     */
+    public String getDetails() {
+        return details;
+    }
 }
@@ -0,0 +1,179 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class maintains the counts and latencies of authentication across the application, for each stage of
+ * authentication, authentication scheme, and outcome.  The stages recorded are:
+ * <ul>
+ *     <li>filter - each request handled by the AuthenticationFilter, excluding the time taken by the rest of the
+ *     filter chain</li>
+ *     <li>session - each call to AuthenticationSession.authenticate, including the hooks of the scheme</li>
+ *     <li>scheme - each call to WebAuthenticationScheme.authenticate</li>
+ * </ul>
+ * If `authentication.stageTiming.enabled` is true, each stage of a login attempt handled by the AuthenticationFilter
+ * is also recorded, as a stage named `login.` followed by the name of the stage, eg. `login.regenerateHttpSession`.
+ * Recording is lock-free and does not allocate once a scheme has been seen, so it can be done on every request.
+ * Each AuthenticationTimer is registered as an MBean when first recorded, with an ObjectName such as
+ * `org.openmrs.module.authentication:type=AuthenticationTimer,stage=filter,schemeId=basic,outcome=success`
+ */
+public class AuthenticationMetrics {
+
+    private static final Logger log = LogManager.getLogger(AuthenticationMetrics.class);
+
+    public static final String STAGE_FILTER = "filter";
+    public static final String STAGE_SESSION = "session";
+    public static final String STAGE_SCHEME = "scheme";
+
+    public static final String MBEAN_DOMAIN = "org.openmrs.module.authentication";
+
+    /**
+     * The outcome of a stage of authentication
+     */
+    public enum Outcome {
+
+        SUCCESS, FAILURE, REDIRECT, WHITELISTED;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+
+        /**
+         * @return the name of this outcome as used in metric labels and MBean names
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    // Timers for each outcome, indexed by Outcome ordinal, keyed on stage and then on schemeId
+    private static final Map<String, Map<String, AuthenticationTimer[]>> timers = new ConcurrentHashMap<>();
+
+    /**
+     * @param stage the stage of authentication
+     * @param schemeId the schemeId of the authentication scheme, or null if there is none
+     * @param outcome the outcome of the stage
+     * @param startNanos the value of System.nanoTime when the stage started
+     */
+    public static void record(String stage, String schemeId, Outcome outcome, long startNanos) {
+        getTimer(stage, schemeId, outcome).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the timer for the given stage, scheme, and outcome, which is created if it does not yet exist
+     */
+    public static AuthenticationTimer getTimer(String stage, String schemeId, Outcome outcome) {
+        if (schemeId == null) {
+            schemeId = "";
+        }
+        Map<String, AuthenticationTimer[]> stageTimers = timers.get(stage);
+        if (stageTimers == null) {
+            timers.putIfAbsent(stage, new ConcurrentHashMap<>());
+            stageTimers = timers.get(stage);
+        }
+        AuthenticationTimer[] schemeTimers = stageTimers.get(schemeId);
+        if (schemeTimers == null) {
+            schemeTimers = createTimers(stageTimers, stage, schemeId);
+        }
+        return schemeTimers[outcome.ordinal()];
+    }
+
+    private static AuthenticationTimer[] createTimers(Map<String, AuthenticationTimer[]> stageTimers, String stage,
+                                                      String schemeId) {
+        synchronized (stageTimers) {
+            AuthenticationTimer[] schemeTimers = stageTimers.get(schemeId);
+            if (schemeTimers == null) {
+                schemeTimers = new AuthenticationTimer[Outcome.values().length];
+                for (Outcome outcome : Outcome.values()) {
+                    schemeTimers[outcome.ordinal()] = new AuthenticationTimer(stage, schemeId, outcome);
+                    registerMBean(schemeTimers[outcome.ordinal()]);
+                }
+                stageTimers.put(schemeId, schemeTimers);
+            }
+            return schemeTimers;
+        }
+    }
+
+    /**
+     * @return all timers that have been created, ordered by stage, then schemeId, then outcome.  The filter, session
+     * and scheme stages are first, followed by any other stages in order of name.
+     */
+    public static List<AuthenticationTimer> getTimers() {
+        List<AuthenticationTimer> ret = new ArrayList<>();
+        List<String> stages = new ArrayList<>(timers.keySet());
+        stages.removeAll(Arrays.asList(STAGE_FILTER, STAGE_SESSION, STAGE_SCHEME));
+        stages.sort(null);
+        stages.addAll(0, Arrays.asList(STAGE_FILTER, STAGE_SESSION, STAGE_SCHEME));
+        for (String stage : stages) {
+            Map<String, AuthenticationTimer[]> stageTimers = timers.get(stage);
+            if (stageTimers != null) {
+                List<String> schemeIds = new ArrayList<>(stageTimers.keySet());
+                schemeIds.sort(null);
+                for (String schemeId : schemeIds) {
+                    for (AuthenticationTimer timer : stageTimers.get(schemeId)) {
+                        ret.add(timer);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Removes all timers, and unregisters their MBeans.  This is called when the module is stopped.
+     */
+    public static void reset() {
+        for (AuthenticationTimer timer : getTimers()) {
+            unregisterMBean(timer);
+        }
+        timers.clear();
+    }
+
+    /**
+     * @return the name that the given timer is registered with as an MBean
+     */
+    public static ObjectName getObjectName(AuthenticationTimer timer) throws Exception {
+        return new ObjectName(MBEAN_DOMAIN + ":type=AuthenticationTimer"
+                + ",stage=" + timer.getStage()
+                + ",schemeId=" + quoteIfNecessary(timer.getSchemeId())
+                + ",outcome=" + timer.getOutcome());
+    }
+
+    private static String quoteIfNecessary(String value) {
+        return value.isEmpty() || value.matches(".*[,=:*?\"\\\\\\n].*") ? ObjectName.quote(value) : value;
+    }
+
+    private static void registerMBean(AuthenticationTimer timer) {
+        try {
+            AuthenticationUtil.registerMBean(timer, getObjectName(timer));
+        }
+        catch (Exception e) {
+            log.warn("Unable to register MBean for authentication timer", e);
+        }
+    }
+
+    private static void unregisterMBean(AuthenticationTimer timer) {
+        try {
+            AuthenticationUtil.unregisterMBean(getObjectName(timer));
+        }
+        catch (Exception e) {
+            log.warn("Unable to unregister MBean for authentication timer", e);
+        }
+    }
+}
@@ -13,6 +13,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openmrs.module.BaseModuleActivator;
 
+import javax.management.ObjectName;
+
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
  */
@@ -22,11 +24,26 @@ public class AuthenticationModuleActivator extends BaseModuleActivator {
 	
 	@Override
 	public void started() {
+		try {
+			AuthenticationUtil.registerMBean(UserLoginTracker.getActiveLoginStatistics(),
+					new ObjectName(ActiveLoginStatistics.OBJECT_NAME));
+		}
+		catch (Exception e) {
+			log.warn("Unable to register MBean for active login statistics", e);
+		}
 		log.info("Authentication Module Started");
 	}
 	
 	@Override
 	public void stopped() {
+		AuthenticationMetrics.reset();
+		AuthenticationTracer.reset();
+		try {
+			AuthenticationUtil.unregisterMBean(new ObjectName(ActiveLoginStatistics.OBJECT_NAME));
+		}
+		catch (Exception e) {
+			log.warn("Unable to unregister MBean for active login statistics", e);
+		}
 		log.info("Authentication Module Stopped");
 	}
 }
@@ -0,0 +1,184 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import org.openmrs.module.authentication.AuthenticationMetrics.Outcome;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A span of authentication work, with the trace and span ids and attributes of an OpenTelemetry span.
+ * Spans are started with AuthenticationTracer, and must be ended so that they are exported.
+ * Attributes must never include credentials.
+ * @see AuthenticationTracer
+ */
+public class AuthenticationSpan {
+
+    /**
+     * The span returned by AuthenticationTracer when tracing is not enabled, which records nothing
+     */
+    public static final AuthenticationSpan NOOP = new AuthenticationSpan();
+
+    private final String name;
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final long startEpochNanos;
+    private final AuthenticationSpan previous;
+    private final Map<String, String> attributes;
+    private volatile long endEpochNanos;
+    private volatile boolean error;
+
+    private AuthenticationSpan() {
+        this(null, null, null, null, 0, null);
+    }
+
+    AuthenticationSpan(String name, String traceId, String spanId, String parentSpanId, long startEpochNanos,
+                       AuthenticationSpan previous) {
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.startEpochNanos = startEpochNanos;
+        this.previous = previous;
+        this.attributes = name == null ? Collections.emptyMap() : new LinkedHashMap<>();
+    }
+
+    /**
+     * @return true if this span is recorded, false if this is the NOOP span
+     */
+    public boolean isRecording() {
+        return this != NOOP;
+    }
+
+    /**
+     * Sets an attribute of this span.  Null values are ignored.
+     * @param key the name of the attribute, eg. authentication.scheme_id
+     * @param value the value of the attribute
+     */
+    public void setAttribute(String key, String value) {
+        if (this != NOOP && value != null) {
+            synchronized (attributes) {
+                attributes.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Sets the outcome attribute of this span, and marks the span as an error if the outcome is failure
+     * @param outcome the outcome of the work that this span represents
+     */
+    public void setOutcome(Outcome outcome) {
+        if (this != NOOP) {
+            setAttribute(AuthenticationTracer.ATTRIBUTE_OUTCOME, outcome.getLabel());
+            error = outcome == Outcome.FAILURE;
+        }
+    }
+
+    /**
+     * Ends this span, and queues it for export.  Subsequent calls have no effect.
+     */
+    public void end() {
+        if (this != NOOP) {
+            AuthenticationTracer.end(this);
+        }
+    }
+
+    /**
+     * @return the W3C traceparent that identifies this span, which can be used as the parent of spans in other
+     * requests, or null if this is the NOOP span
+     */
+    public String getTraceParent() {
+        return this == NOOP ? null : "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    /**
+     * @return the name of this span, eg. authentication.filter
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the id of the trace of this span, as 32 lowercase hex characters
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return the id of this span, as 16 lowercase hex characters
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return the span id of the parent of this span, or null if this is a root span
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     * @return the time that this span started, in nanoseconds since the epoch
+     */
+    public long getStartEpochNanos() {
+        return startEpochNanos;
+    }
+
+    /**
+     * @return the time that this span ended, in nanoseconds since the epoch, or 0 if it has not ended
+     */
+    public long getEndEpochNanos() {
+        return endEpochNanos;
+    }
+
+    /**
+     * @return true if this span has been marked as an error
+     */
+    public boolean isError() {
+        return error;
+    }
+
+    /**
+     * @return a copy of the attributes of this span, in the order they were first set
+     */
+    public Map<String, String> getAttributes() {
+        synchronized (attributes) {
+            return new LinkedHashMap<>(attributes);
+        }
+    }
+
+    /**
+     * @return the span that was current on the thread when this span was started
+     */
+    AuthenticationSpan getPrevious() {
+        return previous;
+    }
+
+    /**
+     * @return true if this span was ended by this call, false if it had already been ended
+     */
+    synchronized boolean markEnded(long epochNanos) {
+        if (endEpochNanos != 0) {
+            return false;
+        }
+        endEpochNanos = epochNanos;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + getTraceParent();
+    }
+}
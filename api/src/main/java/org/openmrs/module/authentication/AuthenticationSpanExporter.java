@@ -0,0 +1,27 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import java.util.List;
+
+/**
+ * Exports ended spans from the AuthenticationTracer.  The default implementation, OtlpJsonFileSpanExporter, appends
+ * spans to a local file in the OTLP JSON format, from which they can be read by a local OpenTelemetry collector.
+ * OtlpHttpSpanExporter sends them to the OTLP/HTTP endpoint of a local collector instead.
+ * Implementations must have a public no-argument constructor.  Export is called from a single background thread.
+ */
+public interface AuthenticationSpanExporter {
+
+    /**
+     * @param spans the ended spans to export, in the order that they ended
+     * @throws Exception if the spans could not be exported, in which case they are dropped
+     */
+    void export(List<AuthenticationSpan> spans) throws Exception;
+}
@@ -0,0 +1,91 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts, and records the latency of, a stage of authentication for a particular scheme and outcome
+ * @see AuthenticationMetrics
+ */
+public class AuthenticationTimer implements AuthenticationTimerMBean {
+
+    private final String stage;
+    private final String schemeId;
+    private final AuthenticationMetrics.Outcome outcome;
+    private final LongAdder count = new LongAdder();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    public AuthenticationTimer(String stage, String schemeId, AuthenticationMetrics.Outcome outcome) {
+        this.stage = stage;
+        this.schemeId = schemeId;
+        this.outcome = outcome;
+    }
+
+    /**
+     * @param nanos the time taken, in nanoseconds
+     */
+    public void record(long nanos) {
+        count.increment();
+        histogram.record(nanos);
+    }
+
+    /**
+     * @return a copy of the latencies recorded so far
+     */
+    public LatencyHistogram.Snapshot getSnapshot() {
+        return histogram.getSnapshot();
+    }
+
+    @Override
+    public String getStage() {
+        return stage;
+    }
+
+    @Override
+    public String getSchemeId() {
+        return schemeId;
+    }
+
+    @Override
+    public String getOutcome() {
+        return outcome.getLabel();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return LatencyHistogram.Snapshot.toMillis(Math.round(getSnapshot().getMean()));
+    }
+
+    @Override
+    public double getP50Millis() {
+        return getSnapshot().getMillisAtPercentile(50);
+    }
+
+    @Override
+    public double getP90Millis() {
+        return getSnapshot().getMillisAtPercentile(90);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return getSnapshot().getMillisAtPercentile(99);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return LatencyHistogram.Snapshot.toMillis(getSnapshot().getMax());
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class records spans of authentication work, which are compatible with OpenTelemetry traces, so that the
+ * latency of authentication can be seen within end-to-end request traces.  Spans started on a thread are children of
+ * the span that is current on that thread, or of the W3C traceparent that they are started with.  Ended spans are
+ * queued, and exported in batches each second on a background thread by the configured AuthenticationSpanExporter.
+ * If the queue is full, spans are dropped rather than blocking the request.
+ * Unless `authentication.tracing.enabled` is true, startSpan returns AuthenticationSpan.NOOP, and nothing is
+ * allocated or recorded.
+ */
+public class AuthenticationTracer {
+
+    private static final Logger log = LogManager.getLogger(AuthenticationTracer.class);
+
+    public static final String TRACEPARENT_HEADER = "traceparent";
+
+    public static final String SPAN_FILTER = "authentication.filter";
+    public static final String SPAN_SESSION = "authentication.session";
+    public static final String SPAN_SCHEME = "authentication.scheme";
+    public static final String SPAN_GET_CREDENTIALS = "authentication.getCredentials";
+
+    public static final String ATTRIBUTE_SCHEME_ID = "authentication.scheme_id";
+    public static final String ATTRIBUTE_SCHEME_TYPE = "authentication.scheme_type";
+    public static final String ATTRIBUTE_OUTCOME = "authentication.outcome";
+    public static final String ATTRIBUTE_LOGIN_ID = "authentication.login_id";
+
+    public static final String SCOPE_NAME = "org.openmrs.module.authentication";
+
+    static final int QUEUE_CAPACITY = 2048;
+    static final int MAX_BATCH_SIZE = 512;
+    static final long EXPORT_INTERVAL_MILLIS = 1000;
+
+    private static final ThreadLocal<AuthenticationSpan> currentSpan = new ThreadLocal<>();
+    private static final BlockingQueue<AuthenticationSpan> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong droppedSpans = new AtomicLong();
+    private static final long epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+    private static final Object exportLock = new Object();
+
+    private static AuthenticationSpanExporter exporter;
+    private static volatile ScheduledExecutorService exportExecutor;
+
+    /**
+     * @return true if `authentication.tracing.enabled` is true
+     */
+    public static boolean isEnabled() {
+        return AuthenticationConfig.getBoolean(AuthenticationConfig.TRACING_ENABLED, false);
+    }
+
+    /**
+     * Starts a span that is a child of the span that is current on this thread, if any, and makes it current
+     * @param name the name of the span
+     * @return the started span, or AuthenticationSpan.NOOP if tracing is not enabled
+     */
+    public static AuthenticationSpan startSpan(String name) {
+        return startSpan(name, null);
+    }
+
+    /**
+     * Starts a span and makes it current on this thread.  If the given traceparent is valid, the span is a child of
+     * the span that it identifies, otherwise the span is a child of the span that is current on this thread, if any.
+     * @param name the name of the span
+     * @param traceParent the W3C traceparent of the parent span, or null
+     * @return the started span, or AuthenticationSpan.NOOP if tracing is not enabled
+     */
+    public static AuthenticationSpan startSpan(String name, String traceParent) {
+        if (!isEnabled()) {
+            return AuthenticationSpan.NOOP;
+        }
+        AuthenticationSpan previous = currentSpan.get();
+        String traceId;
+        String parentSpanId = null;
+        if (isValidTraceParent(traceParent)) {
+            traceId = traceParent.substring(3, 35);
+            parentSpanId = traceParent.substring(36, 52);
+        }
+        else if (previous != null) {
+            traceId = previous.getTraceId();
+            parentSpanId = previous.getSpanId();
+        }
+        else {
+            traceId = toHex(ThreadLocalRandom.current().nextLong()) + newSpanId();
+        }
+        AuthenticationSpan span = new AuthenticationSpan(name, traceId, newSpanId(), parentSpanId, now(), previous);
+        currentSpan.set(span);
+        return span;
+    }
+
+    /**
+     * @return the span that is current on this thread, or AuthenticationSpan.NOOP if there is none
+     */
+    public static AuthenticationSpan getCurrentSpan() {
+        AuthenticationSpan span = currentSpan.get();
+        return span == null ? AuthenticationSpan.NOOP : span;
+    }
+
+    /**
+     * Ends the given span, restores the span that was current when it started, and queues it for export
+     */
+    static void end(AuthenticationSpan span) {
+        if (!span.markEnded(now())) {
+            return;
+        }
+        if (currentSpan.get() == span) {
+            if (span.getPrevious() == null) {
+                currentSpan.remove();
+            }
+            else {
+                currentSpan.set(span.getPrevious());
+            }
+        }
+        if (queue.offer(span)) {
+            if (exportExecutor == null) {
+                startExporting();
+            }
+        }
+        else {
+            droppedSpans.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of spans that have been dropped because the export queue was full
+     */
+    public static long getDroppedSpans() {
+        return droppedSpans.get();
+    }
+
+    /**
+     * Exports all queued spans on this thread, in batches of at most MAX_BATCH_SIZE
+     */
+    public static void flush() {
+        List<AuthenticationSpan> batch = new ArrayList<>();
+        while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+            export(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops exporting in the background, exports any queued spans, and discards the exporter so that it is
+     * configured again when next needed.  This is called when the module is stopped.
+     */
+    public static void reset() {
+        ScheduledExecutorService executor;
+        synchronized (AuthenticationTracer.class) {
+            executor = exportExecutor;
+            exportExecutor = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        synchronized (exportLock) {
+            exporter = null;
+        }
+        droppedSpans.set(0);
+        currentSpan.remove();
+    }
+
+    /**
+     * @param traceParent the value to check
+     * @return true if the given value is a valid W3C traceparent, with a non-zero trace id and parent id
+     */
+    public static boolean isValidTraceParent(String traceParent) {
+        if (traceParent == null || traceParent.length() < 55 || traceParent.startsWith("ff")) {
+            return false;
+        }
+        if (traceParent.charAt(2) != '-' || traceParent.charAt(35) != '-' || traceParent.charAt(52) != '-') {
+            return false;
+        }
+        if (traceParent.length() > 55 && (traceParent.startsWith("00") || traceParent.charAt(55) != '-')) {
+            return false;
+        }
+        boolean nonZeroTraceId = false;
+        boolean nonZeroSpanId = false;
+        for (int i = 0; i < 55; i++) {
+            char c = traceParent.charAt(i);
+            if (i == 2 || i == 35 || i == 52) {
+                continue;
+            }
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+            if (c != '0') {
+                nonZeroTraceId |= i > 2 && i < 35;
+                nonZeroSpanId |= i > 35 && i < 52;
+            }
+        }
+        return nonZeroTraceId && nonZeroSpanId;
+    }
+
+    /**
+     * @param spans the spans to include
+     * @return the given spans as an OTLP ExportTraceServiceRequest, in the OTLP JSON encoding
+     */
+    public static String toOtlpJson(List<AuthenticationSpan> spans) {
+        String serviceName = AuthenticationConfig.getProperty(AuthenticationConfig.TRACING_SERVICE_NAME, "openmrs");
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        appendAttribute(sb, "service.name", serviceName);
+        sb.append("]},\"scopeSpans\":[{\"scope\":{\"name\":");
+        appendString(sb, SCOPE_NAME);
+        sb.append("},\"spans\":[");
+        for (int i = 0; i < spans.size(); i++) {
+            AuthenticationSpan span = spans.get(i);
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append("{\"traceId\":\"").append(span.getTraceId());
+            sb.append("\",\"spanId\":\"").append(span.getSpanId()).append("\"");
+            if (span.getParentSpanId() != null) {
+                sb.append(",\"parentSpanId\":\"").append(span.getParentSpanId()).append("\"");
+            }
+            sb.append(",\"name\":");
+            appendString(sb, span.getName());
+            sb.append(",\"kind\":1");
+            sb.append(",\"startTimeUnixNano\":\"").append(span.getStartEpochNanos());
+            sb.append("\",\"endTimeUnixNano\":\"").append(span.getEndEpochNanos());
+            sb.append("\",\"attributes\":[");
+            boolean first = true;
+            for (Map.Entry<String, String> attribute : span.getAttributes().entrySet()) {
+                if (!first) {
+                    sb.append(",");
+                }
+                appendAttribute(sb, attribute.getKey(), attribute.getValue());
+                first = false;
+            }
+            sb.append("],\"status\":{\"code\":").append(span.isError() ? 2 : 0).append("}}");
+        }
+        return sb.append("]}]}]}").toString();
+    }
+
+    private static void appendAttribute(StringBuilder sb, String key, String value) {
+        sb.append("{\"key\":");
+        appendString(sb, key);
+        sb.append(",\"value\":{\"stringValue\":");
+        appendString(sb, value);
+        sb.append("}}");
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static synchronized void startExporting() {
+        if (exportExecutor == null) {
+            exportExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "authentication-span-exporter");
+                t.setDaemon(true);
+                return t;
+            });
+            exportExecutor.scheduleWithFixedDelay(
+                    AuthenticationTracer::flush, EXPORT_INTERVAL_MILLIS, EXPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    private static void export(List<AuthenticationSpan> batch) {
+        synchronized (exportLock) {
+            try {
+                if (exporter == null) {
+                    exporter = AuthenticationConfig.getClassInstance(AuthenticationConfig.TRACING_EXPORTER,
+                            AuthenticationSpanExporter.class);
+                    if (exporter == null) {
+                        exporter = new OtlpJsonFileSpanExporter();
+                    }
+                }
+                exporter.export(batch);
+            }
+            catch (Exception e) {
+                log.warn("Unable to export " + batch.size() + " authentication spans", e);
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() + epochOffsetNanos;
+    }
+
+    private static String newSpanId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        }
+        while (id == 0);
+        return toHex(id);
+    }
+
+    private static String toHex(long value) {
+        String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+}
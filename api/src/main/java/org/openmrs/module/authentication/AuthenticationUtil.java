@@ -11,6 +11,10 @@ package org.openmrs.module.authentication;
 
 import org.apache.commons.lang.StringUtils;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -90,4 +94,28 @@ public class AuthenticationUtil {
         }
         return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss,SSS").format(date);
     }
+
+    /**
+     * Registers the given MBean with the platform MBeanServer, replacing any MBean already registered with the name
+     * @param mbean the MBean to register
+     * @param name the name to register the MBean with
+     */
+    public static void registerMBean(Object mbean, ObjectName name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(mbean, name);
+    }
+
+    /**
+     * Unregisters the MBean with the given name from the platform MBeanServer, if registered
+     * @param name the name of the MBean to unregister
+     */
+    public static void unregisterMBean(ObjectName name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
 }
@@ -0,0 +1,269 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches IP addresses against a set of CIDR ranges, eg. `10.0.0.0/8`, `192.168.1.25`, or `fd00::/8`.
+ * The ranges are compiled into a binary trie, held in flat arrays, with one path for each bit of the network prefix.
+ * Matching an address walks at most 32 (IPv4) or 128 (IPv6) nodes, and IPv4 addresses are parsed without any
+ * allocation.  IPv6 addresses, including IPv4-mapped IPv6 addresses, are parsed with InetAddress.
+ * Instances are immutable and thread-safe.
+ */
+public class CidrMatcher {
+
+    private static final Logger log = LogManager.getLogger(CidrMatcher.class);
+
+    private static final int NONE = -1;
+    private static final int IPV4_ROOT = 0;
+    private static final int IPV6_ROOT = 1;
+
+    // Compiled matchers, keyed on the configuration value they were compiled from
+    private static final Map<String, CidrMatcher> compiled = new ConcurrentHashMap<>();
+    // Configuration values that could not be compiled, with the reason, so that they are only parsed and logged once
+    private static final Map<String, String> invalid = new ConcurrentHashMap<>();
+    private static final int MAX_COMPILED = 100;
+
+    private int[] zero = new int[64];
+    private int[] one = new int[64];
+    private boolean[] terminal = new boolean[64];
+    private int size = 2;
+    private boolean empty = true;
+
+    /**
+     * @param ranges the CIDR ranges to match
+     * @throws IllegalArgumentException if any of the ranges are not valid
+     */
+    public CidrMatcher(Collection<String> ranges) {
+        Arrays.fill(zero, NONE);
+        Arrays.fill(one, NONE);
+        for (String range : ranges) {
+            if (StringUtils.isNotBlank(range)) {
+                add(range.trim());
+            }
+        }
+    }
+
+    /**
+     * @param ranges a comma-delimited list of CIDR ranges
+     * @return a CidrMatcher for the given ranges, which is compiled once and shared for the same ranges
+     * @throws IllegalArgumentException if any of the ranges are not valid.  This is logged the first time that the
+     * given ranges fail to compile, and the failure is retained so that they are not parsed again.
+     */
+    public static CidrMatcher getInstance(String ranges) {
+        String key = ranges == null ? "" : ranges;
+        CidrMatcher matcher = compiled.get(key);
+        if (matcher == null) {
+            String error = invalid.get(key);
+            if (error != null) {
+                throw new IllegalArgumentException(error);
+            }
+            try {
+                matcher = new CidrMatcher(AuthenticationUtil.getStringList(key, ","));
+            }
+            catch (IllegalArgumentException e) {
+                if (invalid.size() >= MAX_COMPILED) {
+                    invalid.clear();
+                }
+                invalid.put(key, e.getMessage());
+                log.error("Unable to compile IP address ranges '" + key + "': " + e.getMessage());
+                throw e;
+            }
+            if (compiled.size() >= MAX_COMPILED) {
+                compiled.clear();
+            }
+            compiled.put(key, matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * @return true if there are no ranges to match
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @param ipAddress the address to check
+     * @return true if the given address is within any of the ranges.  Returns false if the address is not valid.
+     */
+    public boolean matches(String ipAddress) {
+        if (empty || ipAddress == null) {
+            return false;
+        }
+        long ipv4 = parseIpv4(ipAddress);
+        if (ipv4 != NONE) {
+            return matches(IPV4_ROOT, ipv4);
+        }
+        byte[] address = parseIpv6(ipAddress);
+        if (address == null) {
+            return false;
+        }
+        if (address.length == 4) {
+            return matches(IPV4_ROOT, toLong(address));
+        }
+        int node = IPV6_ROOT;
+        for (int bit = 0; bit < 128; bit++) {
+            if (terminal[node]) {
+                return true;
+            }
+            node = ((address[bit / 8] >> (7 - bit % 8)) & 1) == 0 ? zero[node] : one[node];
+            if (node == NONE) {
+                return false;
+            }
+        }
+        return terminal[node];
+    }
+
+    private boolean matches(int root, long ipv4) {
+        int node = root;
+        for (int bit = 31; bit >= 0; bit--) {
+            if (terminal[node]) {
+                return true;
+            }
+            node = ((ipv4 >> bit) & 1) == 0 ? zero[node] : one[node];
+            if (node == NONE) {
+                return false;
+            }
+        }
+        return terminal[node];
+    }
+
+    private void add(String range) {
+        int slash = range.indexOf('/');
+        String address = slash < 0 ? range : range.substring(0, slash);
+        long ipv4 = parseIpv4(address);
+        byte[] bytes;
+        if (ipv4 != NONE) {
+            bytes = new byte[] {(byte) (ipv4 >> 24), (byte) (ipv4 >> 16), (byte) (ipv4 >> 8), (byte) ipv4};
+        }
+        else {
+            bytes = parseIpv6(address);
+            if (bytes == null) {
+                throw new IllegalArgumentException("Invalid IP address range: " + range);
+            }
+        }
+        int maxBits = bytes.length * 8;
+        int prefixLength = maxBits;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(range.substring(slash + 1));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid IP address range: " + range);
+            }
+            if (prefixLength < 0 || prefixLength > maxBits) {
+                throw new IllegalArgumentException("Invalid IP address range: " + range);
+            }
+        }
+        int node = bytes.length == 4 ? IPV4_ROOT : IPV6_ROOT;
+        for (int bit = 0; bit < prefixLength; bit++) {
+            boolean isOne = ((bytes[bit / 8] >> (7 - bit % 8)) & 1) == 1;
+            int next = isOne ? one[node] : zero[node];
+            if (next == NONE) {
+                next = newNode();
+                if (isOne) {
+                    one[node] = next;
+                }
+                else {
+                    zero[node] = next;
+                }
+            }
+            node = next;
+        }
+        terminal[node] = true;
+        empty = false;
+    }
+
+    private int newNode() {
+        if (size == terminal.length) {
+            int newLength = size * 2;
+            zero = Arrays.copyOf(zero, newLength);
+            one = Arrays.copyOf(one, newLength);
+            terminal = Arrays.copyOf(terminal, newLength);
+            Arrays.fill(zero, size, newLength, NONE);
+            Arrays.fill(one, size, newLength, NONE);
+        }
+        return size++;
+    }
+
+    /**
+     * @return the given IPv4 address as an unsigned value, or -1 if not a valid address
+     */
+    private static long parseIpv4(String s) {
+        long result = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return NONE;
+                }
+            }
+            else if (c == '.' && value >= 0 && octets < 3) {
+                result = (result << 8) | value;
+                octets++;
+                value = -1;
+            }
+            else {
+                return NONE;
+            }
+        }
+        if (value < 0 || octets != 3) {
+            return NONE;
+        }
+        return (result << 8) | value;
+    }
+
+    /**
+     * @return the bytes of the given IPv6 literal, or null if not valid.  IPv4-mapped addresses return 4 bytes.
+     */
+    private static byte[] parseIpv6(String s) {
+        if (s.indexOf(':') < 0) {
+            return null;
+        }
+        String address = s;
+        if (address.startsWith("[") && address.endsWith("]")) {
+            address = address.substring(1, address.length() - 1);
+        }
+        int zone = address.indexOf('%');
+        if (zone >= 0) {
+            address = address.substring(0, zone);
+        }
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (Character.digit(c, 16) < 0 && c != ':' && c != '.') {
+                return null; // Ensure that InetAddress never attempts a hostname lookup
+            }
+        }
+        try {
+            return InetAddress.getByName(address).getAddress();
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static long toLong(byte[] bytes) {
+        return ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16) | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+    }
+}
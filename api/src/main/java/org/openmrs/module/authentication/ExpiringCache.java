@@ -0,0 +1,182 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A small, thread-safe, size-bounded cache in which each entry expires at a given point in time.
+ * AuthenticationScheme instances are created each time they are retrieved from AuthenticationConfig, so any data
+ * that a scheme wishes to retain across requests is expected to be held in a static instance of this class.
+ * Entries are held in access order, so when the cache is full the least recently used entry is evicted.
+ * Expired entries are removed when they are accessed, and all expired entries are purged at most once for every
+ * maxSize entries added, so adding an entry takes constant time on average.  onRemoval is called exactly once for
+ * each value that is removed, outside of the lock that guards the cache.
+ */
+public class ExpiringCache<K, V> {
+
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxSize;
+    private int putsSincePurge = 0;
+
+    /**
+     * @param maxSize the maximum number of entries to retain in the cache
+     */
+    public ExpiringCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param key the key to retrieve
+     * @return the value for the given key, or null if there is no value or the value has expired
+     */
+    public V get(K key) {
+        Entry<V> expired;
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (!entry.isExpired(System.currentTimeMillis())) {
+                return entry.value;
+            }
+            entries.remove(key);
+            expired = entry;
+        }
+        onRemoval(expired.value);
+        return null;
+    }
+
+    /**
+     * @param key the key to add
+     * @param value the value to add
+     * @param expiresAt the time, in epoch milliseconds, after which this value should no longer be returned
+     */
+    public void put(K key, V value, long expiresAt) {
+        List<V> removed = new ArrayList<>(1);
+        synchronized (entries) {
+            Entry<V> existing = entries.put(key, new Entry<>(value, expiresAt));
+            if (existing != null && existing.value != value) {
+                removed.add(existing.value);
+            }
+            if (entries.size() > maxSize) {
+                if (++putsSincePurge >= maxSize) {
+                    purgeExpired(removed);
+                }
+                for (Iterator<Entry<V>> i = entries.values().iterator(); i.hasNext() && entries.size() > maxSize; ) {
+                    removed.add(i.next().value);
+                    i.remove();
+                }
+            }
+        }
+        notifyRemoved(removed);
+    }
+
+    /**
+     * @param key the key to remove
+     */
+    public void remove(K key) {
+        Entry<V> existing;
+        synchronized (entries) {
+            existing = entries.remove(key);
+        }
+        if (existing != null) {
+            onRemoval(existing.value);
+        }
+    }
+
+    /**
+     * @param keyFilter returns true for each key that should be removed
+     */
+    public void removeAll(Predicate<K> keyFilter) {
+        List<V> removed = new ArrayList<>();
+        synchronized (entries) {
+            for (Iterator<Map.Entry<K, Entry<V>>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<K, Entry<V>> entry = i.next();
+                if (keyFilter.test(entry.getKey())) {
+                    removed.add(entry.getValue().value);
+                    i.remove();
+                }
+            }
+        }
+        notifyRemoved(removed);
+    }
+
+    /**
+     * Removes all entries from the cache
+     */
+    public void clear() {
+        List<V> removed = new ArrayList<>();
+        synchronized (entries) {
+            for (Entry<V> entry : entries.values()) {
+                removed.add(entry.value);
+            }
+            entries.clear();
+        }
+        notifyRemoved(removed);
+    }
+
+    /**
+     * @return the number of entries currently in the cache, including any that have expired but not yet been removed
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Subclasses can override this to release any resources held by a value once it is no longer in the cache
+     * @param value the value that has been removed from the cache
+     */
+    protected void onRemoval(V value) {
+    }
+
+    /**
+     * Removes all expired entries, adding their values to the given list.  This must be called holding the lock.
+     */
+    private void purgeExpired(List<V> removed) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry<V>> i = entries.values().iterator(); i.hasNext(); ) {
+            Entry<V> entry = i.next();
+            if (entry.isExpired(now)) {
+                removed.add(entry.value);
+                i.remove();
+            }
+        }
+        putsSincePurge = 0;
+    }
+
+    private void notifyRemoved(List<V> removed) {
+        for (V value : removed) {
+            onRemoval(value);
+        }
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now > expiresAt;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets laid out as in an HDR histogram: values below 16 have a
+ * bucket each, and each power of two above that is divided into 16 equal buckets, so any recorded value is known to
+ * within about 6%.  Values of more than about 36 minutes are counted in the last bucket.
+ * Recording is lock-free and does not allocate, so this can be recorded on every request.  Buckets are only copied
+ * when read, with getSnapshot, and the snapshot may not include values recorded while it is being taken.
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_SHIFT = 36;
+    static final int BUCKETS = SUB_BUCKETS + (MAX_SHIFT + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos the latency to record, in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(getBucket(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * @return a copy of the values recorded so far
+     */
+    public Snapshot getSnapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, sum.sum(), max.get());
+    }
+
+    /**
+     * @return the index of the bucket that the given value is counted in
+     */
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the highest value that is counted in the bucket with the given index
+     */
+    static long getBucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * An immutable copy of the values recorded in a LatencyHistogram
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of values recorded
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the values recorded, in nanoseconds
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the largest value recorded, in nanoseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the mean of the values recorded, in nanoseconds, or 0 if none have been recorded
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile the percentile, from 0 to 100
+         * @return the value at or below which the given percentage of recorded values fall, in nanoseconds, to the
+         * precision of the buckets, or 0 if no values have been recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(getBucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * @param nanos the upper bound, in nanoseconds
+         * @return the number of recorded values that are counted in buckets entirely at or below the given value
+         */
+        public long getCountAtOrBelow(long nanos) {
+            long total = 0;
+            for (int i = 0; i < counts.length && getBucketUpperBound(i) <= nanos; i++) {
+                total += counts[i];
+            }
+            return total;
+        }
+
+        /**
+         * @return the value at the given percentile, in milliseconds
+         */
+        public double getMillisAtPercentile(double percentile) {
+            return toMillis(getValueAtPercentile(percentile));
+        }
+
+        static double toMillis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.hibernate.type.Type;
+import org.openmrs.Location;
+import org.openmrs.LocationTag;
+import org.springframework.stereotype.Component;
+
+import java.io.Serializable;
+
+/**
+ * Hibernate interceptor, registered with the OpenMRS session factory, that invalidates all LocationIndex snapshots
+ * once a transaction that saves, modifies, or deletes a Location or LocationTag has been committed
+ */
+@Component("authentication.locationChangeInterceptor")
+public class LocationChangeInterceptor extends EmptyInterceptor {
+
+    private static final ThreadLocal<Boolean> locationsChanged = new ThreadLocal<>();
+
+    @Override
+    public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+                                String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+    }
+
+    @Override
+    public void onCollectionRecreate(Object collection, Serializable key) {
+        checkCollection(collection);
+    }
+
+    @Override
+    public void onCollectionRemove(Object collection, Serializable key) {
+        checkCollection(collection);
+    }
+
+    @Override
+    public void onCollectionUpdate(Object collection, Serializable key) {
+        checkCollection(collection);
+    }
+
+    @Override
+    public void afterTransactionCompletion(Transaction tx) {
+        if (locationsChanged.get() != null) {
+            locationsChanged.remove();
+            if (tx == null || tx.getStatus() == TransactionStatus.COMMITTED) {
+                LocationIndex.invalidate();
+            }
+        }
+    }
+
+    private void checkEntity(Object entity) {
+        if (entity instanceof Location || entity instanceof LocationTag) {
+            locationsChanged.set(Boolean.TRUE);
+        }
+    }
+
+    private void checkCollection(Object collection) {
+        if (collection instanceof PersistentCollection) {
+            checkEntity(((PersistentCollection) collection).getOwner());
+        }
+    }
+}
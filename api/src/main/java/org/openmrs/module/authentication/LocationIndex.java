@@ -0,0 +1,170 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import org.openmrs.Location;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * An immutable snapshot of the locations that are valid for login, indexed by locationId and uuid.
+ * Snapshots are shared, keyed on the location tag that valid locations are restricted to, and are rebuilt once they
+ * expire, or once any Location or LocationTag is changed, as notified by the LocationChangeInterceptor.
+ * Only the id, uuid, and name of each location are retained, rather than the Location itself, so that snapshots
+ * do not hold on to entities beyond the Hibernate session they were loaded in.
+ */
+public class LocationIndex {
+
+    private static final AtomicLong currentVersion = new AtomicLong();
+    private static final ExpiringCache<String, LocationIndex> indexes = new ExpiringCache<>(50);
+
+    private final long version;
+    private final Map<Integer, Entry> locationsById = new LinkedHashMap<>();
+    private final Map<String, Entry> locationsByUuid = new HashMap<>();
+
+    /**
+     * @param version the version of location data that this index is built from
+     * @param locations the locations to index
+     */
+    public LocationIndex(long version, List<Location> locations) {
+        this.version = version;
+        for (Location location : locations) {
+            Entry entry = new Entry(location.getLocationId(), location.getUuid(), location.getName());
+            locationsById.put(entry.getLocationId(), entry);
+            locationsByUuid.put(entry.getUuid(), entry);
+        }
+    }
+
+    /**
+     * @param tag the tag that locations are restricted to, or null if all locations are valid
+     * @param expirySeconds the number of seconds that a snapshot is retained for
+     * @param loader the source of valid locations, used if there is no current snapshot
+     * @return the current snapshot of valid locations for the given tag, loading a new snapshot if needed
+     */
+    public static LocationIndex getInstance(String tag, int expirySeconds, Supplier<List<Location>> loader) {
+        String key = tag == null ? "" : tag;
+        LocationIndex index = indexes.get(key);
+        long version = currentVersion.get();
+        if (index == null || index.version != version) {
+            index = new LocationIndex(version, loader.get());
+            indexes.put(key, index, System.currentTimeMillis() + expirySeconds * 1000L);
+        }
+        return index;
+    }
+
+    /**
+     * Invalidates all snapshots, so that they are rebuilt the next time they are requested
+     */
+    public static void invalidate() {
+        currentVersion.incrementAndGet();
+        indexes.clear();
+    }
+
+    /**
+     * @param lookup a locationId or uuid
+     * @return the locationId of the valid location matching the given lookup, or null if there is none
+     */
+    public Integer getLocationId(String lookup) {
+        if (lookup == null || lookup.isEmpty()) {
+            return null;
+        }
+        Entry entry = null;
+        int locationId = parseLocationId(lookup);
+        if (locationId >= 0) {
+            entry = locationsById.get(locationId);
+        }
+        if (entry == null) {
+            entry = locationsByUuid.get(lookup);
+        }
+        return entry == null ? null : entry.getLocationId();
+    }
+
+    /**
+     * @param locationId the locationId to check
+     * @return true if the location with the given locationId is valid
+     */
+    public boolean contains(Integer locationId) {
+        return locationsById.containsKey(locationId);
+    }
+
+    /**
+     * @return the locationId of the only valid location, or null if there is not exactly one valid location
+     */
+    public Integer getSingleLocationId() {
+        return locationsById.size() == 1 ? locationsById.keySet().iterator().next() : null;
+    }
+
+    /**
+     * @return all valid locations, in the order they were loaded
+     */
+    public List<Entry> getLocations() {
+        return Collections.unmodifiableList(new ArrayList<>(locationsById.values()));
+    }
+
+    /**
+     * @return the version of location data that this index was built from
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the given lookup as a non-negative int, or -1 if it is not a number
+     */
+    private static int parseLocationId(String lookup) {
+        if (lookup.length() > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < lookup.length(); i++) {
+            char c = lookup.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * The details retained for each indexed location
+     */
+    public static class Entry {
+
+        private final Integer locationId;
+        private final String uuid;
+        private final String name;
+
+        public Entry(Integer locationId, String uuid, String name) {
+            this.locationId = locationId;
+            this.uuid = uuid;
+            this.name = name;
+        }
+
+        public Integer getLocationId() {
+            return locationId;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Sends each batch of spans to the OTLP/HTTP traces endpoint of an OpenTelemetry collector, in the OTLP JSON
+ * encoding.  The endpoint is configured with `authentication.tracing.endpoint`, and defaults to a collector on the
+ * same host, at http://localhost:4318/v1/traces
+ */
+public class OtlpHttpSpanExporter implements AuthenticationSpanExporter {
+
+    public static final String DEFAULT_ENDPOINT = "http://localhost:4318/v1/traces";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    private final String endpoint;
+
+    public OtlpHttpSpanExporter() {
+        this(AuthenticationConfig.getProperty(AuthenticationConfig.TRACING_ENDPOINT, DEFAULT_ENDPOINT));
+    }
+
+    public OtlpHttpSpanExporter(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public void export(List<AuthenticationSpan> spans) throws IOException {
+        if (spans.isEmpty()) {
+            return;
+        }
+        byte[] body = AuthenticationTracer.toOtlpJson(spans).getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            int status = connection.getResponseCode();
+            if (status < 200 || status >= 300) {
+                throw new IOException("Export of " + spans.size() + " spans to " + endpoint + " failed with " + status);
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the url that spans are sent to
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends each batch of spans to a file as a line of OTLP JSON, which is the format written by the file exporter of
+ * the OpenTelemetry collector, and read by its otlpjsonfile receiver.  The file is configured with
+ * `authentication.tracing.file`, and defaults to authentication/traces.jsonl in the application data directory.
+ * Rotation of the file is left to the collector or to the operating system.
+ */
+public class OtlpJsonFileSpanExporter implements AuthenticationSpanExporter {
+
+    private final File file;
+
+    public OtlpJsonFileSpanExporter() {
+        String path = AuthenticationConfig.getProperty(AuthenticationConfig.TRACING_FILE);
+        if (StringUtils.isBlank(path)) {
+            file = new File(new File(OpenmrsUtil.getApplicationDataDirectory(), "authentication"), "traces.jsonl");
+        }
+        else {
+            file = new File(path);
+        }
+    }
+
+    public OtlpJsonFileSpanExporter(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void export(List<AuthenticationSpan> spans) throws IOException {
+        if (spans.isEmpty()) {
+            return;
+        }
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(AuthenticationTracer.toOtlpJson(spans));
+            writer.write("\n");
+        }
+    }
+
+    /**
+     * @return the file that spans are appended to
+     */
+    public File getFile() {
+        return file;
+    }
+}
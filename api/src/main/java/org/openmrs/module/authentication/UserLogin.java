@@ -25,16 +25,18 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a particular User Login session and used to track a user's status in the authentication
  * workflow and throughout their usage of the application.  This would typically be stored in the HttpSession
  * in a web-based context.  This needs to be serializable and kept relatively light-weight.
+ * Concurrent requests within the same session may read and update a UserLogin at the same time, so the
+ * collections it exposes are safe to iterate while other threads modify them.
  */
 public class UserLogin implements Serializable {
 
@@ -48,14 +50,20 @@ public class UserLogin implements Serializable {
     private final Date dateCreated;
     private Date loginDate;
     private Date logoutDate;
-    private Date lastActivityDate;
+    private volatile long lastActivityTime;
     private String httpSessionId;
     private String ipAddress;
     private String username;
+    private String traceParent;
     private List<AuthenticationEvent> events = new ArrayList<>();
     protected User user;
-    private final Map<String, AuthenticationCredentials> unvalidatedCredentials = Collections.synchronizedMap(new HashMap<>());
-    private final Set<String> validatedCredentials = Collections.synchronizedSet(new HashSet<>());
+    private final Map<String, AuthenticationCredentials> unvalidatedCredentials = new ConcurrentHashMap<>();
+    private final Set<String> validatedCredentials = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> failedAuthentications = new ConcurrentHashMap<>();
+    private transient Map<String, Object> attributes;
+
+    // The entry under which this is counted in the ActiveLoginStatistics, or null if this is not an active login
+    transient volatile ActiveLoginStatistics.Entry activeLoginEntry;
 
     /**
      * Constructs a new instance with a new login id
@@ -102,14 +110,34 @@ public class UserLogin implements Serializable {
      * @return the last activity date associated with this
      */
     public Date getLastActivityDate() {
-        return lastActivityDate;
+        long time = lastActivityTime;
+        return time == 0 ? null : new Date(time);
     }
 
     /**
      * @param lastActivityDate the last activity date associated with this
      */
-    public synchronized void setLastActivityDate(Date lastActivityDate) {
-        this.lastActivityDate = lastActivityDate;
+    public void setLastActivityDate(Date lastActivityDate) {
+        setLastActivityTime(lastActivityDate == null ? 0 : lastActivityDate.getTime());
+    }
+
+    /**
+     * @return the last activity time associated with this, in milliseconds since the epoch, or 0 if none
+     */
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    /**
+     * Records the last activity time without allocating a Date, as this is updated on every request
+     * @param lastActivityTime the last activity time associated with this, in milliseconds since the epoch
+     */
+    public void setLastActivityTime(long lastActivityTime) {
+        this.lastActivityTime = lastActivityTime;
+        ActiveLoginStatistics.Entry entry = activeLoginEntry;
+        if (entry != null && entry.activityBucket != ActiveLoginStatistics.getActivityBucket(lastActivityTime)) {
+            UserLoginTracker.getActiveLoginStatistics().activityUpdated(this);
+        }
     }
 
     /**
@@ -140,6 +168,21 @@ public class UserLogin implements Serializable {
         this.ipAddress = ipAddress;
     }
 
+    /**
+     * @return the W3C traceparent of the first traced request of this login, which requests that continue the login
+     * flow, such as a second factor submitted in a later request, are traced as children of
+     */
+    public String getTraceParent() {
+        return traceParent;
+    }
+
+    /**
+     * @param traceParent the W3C traceparent of the first traced request of this login
+     */
+    public synchronized void setTraceParent(String traceParent) {
+        this.traceParent = traceParent;
+    }
+
     /**
      * @return the username associated with this login.  If a user (candidate or otherwise) has been associated
      * with the request, return the username of this user, or their systemId if they do not have a username,
@@ -180,26 +223,54 @@ public class UserLogin implements Serializable {
     }
 
     /**
-     * Records a successful authentication
+     * Records a successful authentication.  If this is the first credential validated during this login, this also
+     * resets the count of failed authentications for each scheme.
      * @param schemeId the id of the authentication scheme
      * @param authenticated the resulting Authenticated user
      */
     public synchronized void authenticationSuccessful(String schemeId, Authenticated authenticated) {
+        validateCredential(schemeId, authenticated);
+        recordEvent(AuthenticationEvent.AUTHENTICATION_SUCCEEDED, schemeId);
+    }
+
+    /**
+     * Records that authentication with the given scheme was not required, as the candidate user is logging in on a
+     * device that they have previously trusted.  The credential is considered validated, as for a successful
+     * authentication, but a distinct event is recorded so that these logins can be audited separately.
+     * @param schemeId the id of the authentication scheme that was not required
+     * @param authenticated the candidate user, authenticated on their trusted device
+     */
+    public synchronized void authenticationTrustedDevice(String schemeId, Authenticated authenticated) {
+        validateCredential(schemeId, authenticated);
+        recordEvent(AuthenticationEvent.AUTHENTICATION_TRUSTED_DEVICE, schemeId);
+    }
+
+    private void validateCredential(String schemeId, Authenticated authenticated) {
         if (authenticated.getUser() == null || (user != null && !user.equals(authenticated.getUser()))) {
             throw new ContextAuthenticationException("authentication.error.userDiffersFromCandidateUser");
         }
+        if (validatedCredentials.isEmpty()) {
+            // The first factor has been validated, so failures of each scheme are counted again from zero
+            failedAuthentications.clear();
+        }
         setUser(authenticated.getUser());
-        validatedCredentials.add(schemeId);
-        unvalidatedCredentials.remove(schemeId);
-        recordEvent(AuthenticationEvent.AUTHENTICATION_SUCCEEDED, schemeId);
+        if (schemeId != null) {
+            validatedCredentials.add(schemeId);
+            unvalidatedCredentials.remove(schemeId);
+        }
     }
 
     /**
-     * Records a failed authentication with the given scheme
+     * Records a failed authentication with the given scheme, both on this login and against the username
+     * in the UserLoginTracker, so that failures can be counted across logins
      * @param schemeId the id of the authentication scheme that failed
      */
     public synchronized void authenticationFailed(String schemeId) {
-        unvalidatedCredentials.remove(schemeId);
+        if (schemeId != null) {
+            unvalidatedCredentials.remove(schemeId);
+            failedAuthentications.merge(schemeId, 1, Integer::sum);
+        }
+        UserLoginTracker.addFailedAuthentication(getUsername());
         if (validatedCredentials.isEmpty()) {
             setUser(null);
         }
@@ -207,11 +278,25 @@ public class UserLogin implements Serializable {
     }
 
     /**
-     * Records a successful login into the system
+     * Discards all credentials validated during this login, and the candidate user, so that authentication must
+     * start again from the first factor.  Schemes use this to stop accepting further attempts for the candidate user,
+     * eg. once too many incorrect answers have been submitted.
+     */
+    public synchronized void restartAuthentication() {
+        validatedCredentials.clear();
+        unvalidatedCredentials.clear();
+        setUser(null);
+    }
+
+    /**
+     * Records a successful login into the system, and clears any recent failed authentications for the user, and any
+     * attributes that were derived during the login
      */
     public synchronized void loginSuccessful() {
         this.loginDate = new Date();
+        this.attributes = null;
         UserLoginTracker.addActiveLogin(this);
+        UserLoginTracker.removeFailedAuthentications(getUsername());
         recordEvent(AuthenticationEvent.LOGIN_SUCCEEDED, null);
     }
 
@@ -270,11 +355,25 @@ public class UserLogin implements Serializable {
      * @param schemeId the schemeId that the event refers to, if this corresponds to a specific authentication scheme
      */
     public synchronized void recordEvent(String event, String schemeId) {
-        events.add(new AuthenticationEvent(event));
+        recordEvent(event, schemeId, null);
+    }
+
+    /**
+     * Adds an authentication event with the given name and details, and logs it as for recordEvent(String, String)
+     * The details are available in the logging context as %X{details}
+     * @param event the event to log
+     * @param schemeId the schemeId that the event refers to, if this corresponds to a specific authentication scheme
+     * @param details any further information about the event, or null if none
+     */
+    public synchronized void recordEvent(String event, String schemeId, String details) {
+        events.add(new AuthenticationEvent(event, details));
         if (log.isInfoEnabled()) {
             try {
                 ThreadContext.put("event", event);
                 ThreadContext.put("schemeId", schemeId);
+                if (details != null) {
+                    ThreadContext.put("details", details);
+                }
                 ThreadContext.put("loginId", getLoginId());
                 ThreadContext.put("httpSessionId", getHttpSessionId());
                 ThreadContext.put("ipAddress", getIpAddress());
@@ -290,18 +389,71 @@ public class UserLogin implements Serializable {
     }
 
     /**
-     * @return the list of AuthenticationEvents associated with this UserLogin
+     * @param schemeId the id of the authentication scheme
+     * @return the number of times that authentication with the given scheme has failed during this UserLogin, since
+     * the first credential of this UserLogin was last validated
+     */
+    public int getFailedAuthentications(String schemeId) {
+        return schemeId == null ? 0 : failedAuthentications.getOrDefault(schemeId, 0);
+    }
+
+    /**
+     * @return the number of times that authentication with any scheme has failed during this UserLogin, since
+     * the first credential of this UserLogin was last validated
+     */
+    public int getFailedAuthentications() {
+        int failures = 0;
+        for (Integer count : failedAuthentications.values()) {
+            failures += count;
+        }
+        return failures;
+    }
+
+    /**
+     * Attributes hold state that authentication schemes derive during a login, and reuse across the requests
+     * that make up that login.  These are not serialized, and are removed once the login is successful, so schemes
+     * must be able to recompute any attribute that is not present.
+     * @param key the key of the attribute
+     * @return the attribute with the given key, or null if there is none
+     */
+    public synchronized Object getAttribute(String key) {
+        return attributes == null ? null : attributes.get(key);
+    }
+
+    /**
+     * @param key the key of the attribute
+     * @param value the value to set for the attribute, or null to remove the attribute
+     */
+    public synchronized void setAttribute(String key, Object value) {
+        if (value == null) {
+            if (attributes != null) {
+                attributes.remove(key);
+            }
+        }
+        else {
+            if (attributes == null) {
+                attributes = new HashMap<>();
+            }
+            attributes.put(key, value);
+        }
+    }
+
+    /**
+     * This previously returned the live list of events.  It now returns an unmodifiable snapshot, which can be
+     * iterated while further events are recorded, so events must be added with recordEvent.
+     * As this copies the list, callers that only need a count of failures should use getFailedAuthentications.
+     * @return an unmodifiable copy of the list of AuthenticationEvents associated with this UserLogin, in order
      */
-    public List<AuthenticationEvent> getEvents() {
-        return events;
+    public synchronized List<AuthenticationEvent> getEvents() {
+        return Collections.unmodifiableList(new ArrayList<>(events));
     }
 
     /**
      * @param event the event to check
      * @return true if this contains an event with the given name
      */
-    public boolean containsEvent(String event) {
-        for (AuthenticationEvent e : getEvents()) {
+    public synchronized boolean containsEvent(String event) {
+        for (AuthenticationEvent e : events) {
             if (e.getEvent().equalsIgnoreCase(event)) {
                 return true;
             }
@@ -320,14 +472,17 @@ public class UserLogin implements Serializable {
      * @return the AuthenticationCredentials for the given authentication schemeId
      */
     public AuthenticationCredentials getUnvalidatedCredentials(String schemeId) {
-        return unvalidatedCredentials.get(schemeId);
+        return schemeId == null ? null : unvalidatedCredentials.get(schemeId);
     }
 
     /**
      * @param authenticationCredentials the AuthenticationCredentials for the given authentication schemeId
      */
     public synchronized void addUnvalidatedCredentials(AuthenticationCredentials authenticationCredentials) {
-        unvalidatedCredentials.put(authenticationCredentials.getAuthenticationScheme(), authenticationCredentials);
+        String schemeId = authenticationCredentials.getAuthenticationScheme();
+        if (schemeId != null) {
+            unvalidatedCredentials.put(schemeId, authenticationCredentials);
+        }
     }
 
     /**
@@ -335,7 +490,7 @@ public class UserLogin implements Serializable {
      * @return true if the credentials for the given schemeId have already been validated
      */
     public boolean isCredentialValidated(String schemeId) {
-        return validatedCredentials.contains(schemeId);
+        return schemeId != null && validatedCredentials.contains(schemeId);
     }
 
     /**
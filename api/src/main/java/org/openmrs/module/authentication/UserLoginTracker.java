@@ -9,20 +9,30 @@
  */
 package org.openmrs.module.authentication;
 
+import org.apache.commons.lang3.StringUtils;
+
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class maintains a UserLogins that are tracked across the application.  The primary purpose is to
  * maintain a collection of active UserLogin instances that represent the currently logged-in users, and to
  * maintain a ThreadLocal of UserLogin instances to enable tracking a particular UserLogin throughout the
- * lifetime of a thread
+ * lifetime of a thread.  It also records recent failed authentication attempts for each username, across logins.
  */
 public class UserLoginTracker {
 
     private static final ThreadLocal<UserLogin> threadLogins = new ThreadLocal<>();
-    private static final Map<String, UserLogin> activeLogins = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static final Map<String, UserLogin> activeLogins = new ConcurrentHashMap<>();
+    private static final ActiveLoginStatistics activeLoginStatistics = new ActiveLoginStatistics();
+
+    /**
+     * Failed authentication attempts are retained for at most this long after the most recent failure for a username
+     */
+    public static final long FAILED_AUTHENTICATION_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final ExpiringCache<String, RecentFailures> failedAuthentications = new ExpiringCache<>(10000);
 
     /**
      * This method should be called in order to register the given UserLogin on the current thread
@@ -55,6 +65,7 @@ public class UserLoginTracker {
      */
     public static void addActiveLogin(UserLogin userLogin) {
         activeLogins.put(userLogin.getLoginId(), userLogin);
+        activeLoginStatistics.loginAdded(userLogin);
     }
 
     /**
@@ -64,14 +75,93 @@ public class UserLoginTracker {
      */
     public static void removeActiveLogin(UserLogin userLogin) {
         activeLogins.remove(userLogin.getLoginId());
+        activeLoginStatistics.loginRemoved(userLogin);
     }
 
     /**
      * @return a Collection of UserLogins, defined as those that have been logged in and not logged out or expired
-     * The Map returned is keyed on the loginId of the UserLogin
+     * The Map returned is keyed on the loginId of the UserLogin.  It can be iterated while logins are added and
+     * removed on other threads, and reflects some or all of the changes made during the iteration.  Logins are
+     * iterated in no particular order, and not in the order in which they were added, as they previously were.
      */
     public static Map<String, UserLogin> getActiveLogins() {
         return Collections.unmodifiableMap(activeLogins);
     }
 
+    /**
+     * @return aggregates of the active logins, which are maintained as logins are added and removed
+     */
+    public static ActiveLoginStatistics getActiveLoginStatistics() {
+        return activeLoginStatistics;
+    }
+
+    /**
+     * Records a failed authentication attempt for the given username, at the current time
+     * @param username the username that failed authentication
+     */
+    public static void addFailedAuthentication(String username) {
+        if (StringUtils.isBlank(username)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        RecentFailures failures;
+        synchronized (failedAuthentications) {
+            failures = failedAuthentications.get(username);
+            if (failures == null) {
+                failures = new RecentFailures();
+            }
+            failedAuthentications.put(username, failures, now + FAILED_AUTHENTICATION_RETENTION_MILLIS);
+        }
+        failures.add(now);
+    }
+
+    /**
+     * @param username the username to check
+     * @param sinceMillis the epoch milliseconds from which to count failures
+     * @return the number of failed authentication attempts for the given username since the given time, across all
+     * logins.  At most the {@link RecentFailures#MAX_FAILURES} most recent failures within the last 24 hours are counted.
+     */
+    public static int getFailedAuthentications(String username, long sinceMillis) {
+        if (StringUtils.isBlank(username)) {
+            return 0;
+        }
+        RecentFailures failures = failedAuthentications.get(username);
+        return failures == null ? 0 : failures.countSince(sinceMillis);
+    }
+
+    /**
+     * Removes all failed authentication attempts recorded for the given username, typically after a successful login
+     * @param username the username for which to remove failed authentication attempts
+     */
+    public static void removeFailedAuthentications(String username) {
+        if (StringUtils.isNotBlank(username)) {
+            failedAuthentications.remove(username);
+        }
+    }
+
+    /**
+     * The times of the most recent failed authentication attempts for a username, held in a ring buffer
+     */
+    static class RecentFailures {
+
+        static final int MAX_FAILURES = 32;
+
+        private final long[] times = new long[MAX_FAILURES];
+        private int next = 0;
+
+        synchronized void add(long time) {
+            times[next] = time;
+            next = (next + 1) % MAX_FAILURES;
+        }
+
+        synchronized int countSince(long sinceMillis) {
+            int count = 0;
+            for (long time : times) {
+                if (time != 0 && time >= sinceMillis) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
 }
@@ -0,0 +1,171 @@
+package org.openmrs.module.authentication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.User;
+import org.openmrs.api.context.BasicAuthenticated;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+
+public class ActiveLoginStatisticsTest {
+
+	private static final int THREADS = 8;
+
+	private static final int ITERATIONS = 2000;
+
+	ActiveLoginStatistics statistics = UserLoginTracker.getActiveLoginStatistics();
+
+	@AfterEach
+	public void teardown() {
+		for (UserLogin userLogin : new ArrayList<>(UserLoginTracker.getActiveLogins().values())) {
+			UserLoginTracker.removeActiveLogin(userLogin);
+		}
+	}
+
+	@Test
+	public void shouldMaintainAggregatesAsLoginsAreAddedAndRemoved() {
+		UserLogin login1 = login(1, "10.0.0.1", "basic", "totp");
+		UserLogin login2 = login(1, "10.0.0.2", "basic");
+		UserLogin login3 = login(2, "10.0.0.2", "apiKey");
+		assertThat(statistics.getActiveLogins(), equalTo(3));
+		assertThat(statistics.getUniqueUsers(), equalTo(2));
+		assertThat(statistics.getUniqueIpAddresses(), equalTo(2));
+		assertThat(statistics.getActiveLoginsBySchemeId().toString(), equalTo("{apiKey=1, basic=2, totp=1}"));
+		assertThat(statistics.getSessionAgeCounts()[0], equalTo(3));
+
+		login1.logoutSucceeded();
+		assertThat(statistics.getActiveLogins(), equalTo(2));
+		assertThat(statistics.getUniqueUsers(), equalTo(2));
+		assertThat(statistics.getUniqueIpAddresses(), equalTo(1));
+		assertThat(statistics.getActiveLoginsBySchemeId().toString(), equalTo("{apiKey=1, basic=1}"));
+
+		login1.logoutSucceeded();
+		login2.loginExpired();
+		login3.loginExpired();
+		assertThat(statistics.getActiveLogins(), equalTo(0));
+		assertThat(statistics.getUniqueUsers(), equalTo(0));
+		assertThat(statistics.getUniqueIpAddresses(), equalTo(0));
+		assertThat(statistics.getActiveLoginsBySchemeId().isEmpty(), equalTo(true));
+		assertThat(statistics.getSessionAgeCounts()[0], equalTo(0));
+	}
+
+	@Test
+	public void shouldTrackOldestIdleLogin() {
+		long now = System.currentTimeMillis();
+		UserLogin idleLogin = new UserLogin();
+		idleLogin.setLastActivityTime(now - TimeUnit.MINUTES.toMillis(30));
+		idleLogin.loginSuccessful();
+		UserLogin activeLogin = login(1, "10.0.0.1", "basic");
+		activeLogin.setLastActivityTime(now);
+		assertThat(statistics.getOldestIdleSeconds(), greaterThanOrEqualTo(TimeUnit.MINUTES.toSeconds(30)));
+
+		idleLogin.setLastActivityTime(now);
+		assertThat(statistics.getOldestIdleSeconds(), lessThan(TimeUnit.MINUTES.toSeconds(2)));
+
+		idleLogin.logoutSucceeded();
+		activeLogin.logoutSucceeded();
+		assertThat(statistics.getOldestIdleSeconds(), equalTo(0L));
+	}
+
+	@Test
+	public void shouldMatchActiveLoginsAfterConcurrentLoginsAndLogouts() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++) {
+				int thread = i;
+				results.add(executor.submit(() -> {
+					for (int j = 0; j < ITERATIONS; j++) {
+						UserLogin userLogin = login(j % 50, "10.0." + thread + "." + (j % 20), j % 3 == 0 ? "totp" : "basic");
+						userLogin.setLastActivityTime(System.currentTimeMillis());
+						if (j % 4 != 0) {
+							userLogin.logoutSucceeded();
+						}
+					}
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get(1, TimeUnit.MINUTES);
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		Map<String, Integer> bySchemeId = new HashMap<>();
+		List<Integer> users = new ArrayList<>();
+		List<String> ipAddresses = new ArrayList<>();
+		for (UserLogin userLogin : UserLoginTracker.getActiveLogins().values()) {
+			for (String schemeId : userLogin.getValidatedCredentials()) {
+				bySchemeId.merge(schemeId, 1, Integer::sum);
+			}
+			if (!users.contains(userLogin.getUserId())) {
+				users.add(userLogin.getUserId());
+			}
+			if (!ipAddresses.contains(userLogin.getIpAddress())) {
+				ipAddresses.add(userLogin.getIpAddress());
+			}
+		}
+		assertThat(statistics.getActiveLogins(), equalTo(THREADS * ITERATIONS / 4));
+		assertThat(statistics.getActiveLoginsBySchemeId(), equalTo(bySchemeId));
+		assertThat(statistics.getUniqueUsers(), equalTo(users.size()));
+		assertThat(statistics.getUniqueIpAddresses(), equalTo(ipAddresses.size()));
+	}
+
+	@Test
+	public void shouldRemoveActivityOfLoginsUpdatedWhileTheyAreRemoved() throws Exception {
+		long start = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ITERATIONS);
+		List<UserLogin> userLogins = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			UserLogin userLogin = login(i, "10.0.0." + i, "basic");
+			userLogin.setLastActivityTime(start);
+			userLogins.add(userLogin);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS * 2);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (UserLogin userLogin : userLogins) {
+				results.add(executor.submit(() -> {
+					for (int j = 1; j <= ITERATIONS; j++) {
+						userLogin.setLastActivityTime(start + TimeUnit.MINUTES.toMillis(j));
+					}
+				}));
+				results.add(executor.submit(() -> {
+					Thread.yield();
+					userLogin.logoutSucceeded();
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get(1, TimeUnit.MINUTES);
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		assertThat(statistics.getActiveLogins(), equalTo(0));
+		assertThat(statistics.getOldestIdleSeconds(), equalTo(0L));
+		assertThat(statistics.getSessionAgeCounts()[0], equalTo(0));
+	}
+
+	private UserLogin login(int userId, String ipAddress, String... schemeIds) {
+		User user = new User(userId);
+		UserLogin userLogin = new UserLogin();
+		userLogin.setIpAddress(ipAddress);
+		for (String schemeId : schemeIds) {
+			userLogin.authenticationSuccessful(schemeId, new BasicAuthenticated(user, schemeId));
+		}
+		userLogin.loginSuccessful();
+		return userLogin;
+	}
+}
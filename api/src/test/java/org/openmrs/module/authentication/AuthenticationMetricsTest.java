@@ -0,0 +1,84 @@
+package org.openmrs.module.authentication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.module.authentication.AuthenticationMetrics.Outcome;
+
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class AuthenticationMetricsTest {
+
+	@BeforeEach
+	public void setup() {
+		AuthenticationMetrics.reset();
+	}
+
+	@AfterEach
+	public void teardown() {
+		AuthenticationMetrics.reset();
+	}
+
+	@Test
+	public void shouldRecordCountsForEachStageSchemeAndOutcome() {
+		long start = System.nanoTime();
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.SUCCESS, start);
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.SUCCESS, start);
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.REDIRECT, start);
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_SESSION, "basic", Outcome.FAILURE, start);
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_SCHEME, null, Outcome.FAILURE, start);
+
+		assertThat(getCount(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.SUCCESS), equalTo(2L));
+		assertThat(getCount(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.REDIRECT), equalTo(1L));
+		assertThat(getCount(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.FAILURE), equalTo(0L));
+		assertThat(getCount(AuthenticationMetrics.STAGE_SESSION, "basic", Outcome.FAILURE), equalTo(1L));
+		assertThat(getCount(AuthenticationMetrics.STAGE_SCHEME, "", Outcome.FAILURE), equalTo(1L));
+		assertThat(AuthenticationMetrics.getTimers(), hasSize(3 * Outcome.values().length));
+		AuthenticationTimer timer = AuthenticationMetrics.getTimer(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.SUCCESS);
+		assertThat(timer.getSnapshot().getCount(), equalTo(2L));
+	}
+
+	@Test
+	public void shouldOrderTimersByStageThenSchemeThenOutcome() {
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_SCHEME, "totp", Outcome.SUCCESS, System.nanoTime());
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_FILTER, "totp", Outcome.SUCCESS, System.nanoTime());
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.SUCCESS, System.nanoTime());
+		List<String> names = new ArrayList<>();
+		for (AuthenticationTimer timer : AuthenticationMetrics.getTimers()) {
+			if (timer.getOutcome().equals("success")) {
+				names.add(timer.getStage() + ":" + timer.getSchemeId());
+			}
+		}
+		assertThat(names.toString(), equalTo("[filter:basic, filter:totp, scheme:totp]"));
+	}
+
+	@Test
+	public void shouldRegisterAndUnregisterMBeans() throws Exception {
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.WHITELISTED, System.nanoTime());
+		AuthenticationTimer timer = AuthenticationMetrics.getTimer(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.WHITELISTED);
+		assertThat(AuthenticationMetrics.getTimer(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.WHITELISTED), sameInstance(timer));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertThat(AuthenticationMetrics.getObjectName(timer).toString(), equalTo(
+				"org.openmrs.module.authentication:type=AuthenticationTimer,stage=filter,schemeId=basic,outcome=whitelisted"));
+		assertThat(server.getAttribute(AuthenticationMetrics.getObjectName(timer), "Count"), equalTo(1L));
+		AuthenticationMetrics.reset();
+		assertThat(server.isRegistered(AuthenticationMetrics.getObjectName(timer)), equalTo(false));
+	}
+
+	private long getCount(String stage, String schemeId, Outcome outcome) {
+		for (AuthenticationTimer timer : AuthenticationMetrics.getTimers()) {
+			if (timer.getStage().equals(stage) && timer.getSchemeId().equals(schemeId) && timer.getOutcome().equals(outcome.getLabel())) {
+				return timer.getCount();
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,143 @@
+package org.openmrs.module.authentication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openmrs.module.authentication.AuthenticationMetrics.Outcome;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class AuthenticationTracerTest {
+
+	@TempDir
+	File tempDir;
+
+	File traceFile;
+
+	@BeforeEach
+	public void setup() {
+		traceFile = new File(tempDir, "traces.jsonl");
+		Properties config = new Properties();
+		config.setProperty(AuthenticationConfig.TRACING_ENABLED, "true");
+		config.setProperty(AuthenticationConfig.TRACING_FILE, traceFile.getAbsolutePath());
+		config.setProperty(AuthenticationConfig.TRACING_SERVICE_NAME, "test");
+		AuthenticationConfig.setConfig(config);
+	}
+
+	@AfterEach
+	public void teardown() {
+		AuthenticationTracer.reset();
+		AuthenticationConfig.setConfig(new Properties());
+	}
+
+	@Test
+	public void shouldReturnNoopSpanIfTracingIsNotEnabled() {
+		AuthenticationConfig.setProperty(AuthenticationConfig.TRACING_ENABLED, "false");
+		AuthenticationSpan span = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_FILTER);
+		assertThat(span, sameInstance(AuthenticationSpan.NOOP));
+		span.setAttribute(AuthenticationTracer.ATTRIBUTE_SCHEME_ID, "basic");
+		span.setOutcome(Outcome.FAILURE);
+		span.end();
+		assertThat(span.getTraceParent(), nullValue());
+		assertThat(span.getAttributes().size(), equalTo(0));
+		assertThat(AuthenticationTracer.getCurrentSpan(), sameInstance(AuthenticationSpan.NOOP));
+		AuthenticationTracer.flush();
+		assertThat(traceFile.exists(), equalTo(false));
+	}
+
+	@Test
+	public void shouldStartChildSpansOfTheCurrentSpan() {
+		AuthenticationSpan parent = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_FILTER);
+		assertThat(parent.getParentSpanId(), nullValue());
+		assertThat(parent.getTraceId().length(), equalTo(32));
+		assertThat(parent.getSpanId().length(), equalTo(16));
+		assertThat(AuthenticationTracer.getCurrentSpan(), sameInstance(parent));
+		AuthenticationSpan child = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_SESSION);
+		assertThat(child.getTraceId(), equalTo(parent.getTraceId()));
+		assertThat(child.getParentSpanId(), equalTo(parent.getSpanId()));
+		assertThat(AuthenticationTracer.getCurrentSpan(), sameInstance(child));
+		child.end();
+		assertThat(AuthenticationTracer.getCurrentSpan(), sameInstance(parent));
+		parent.end();
+		assertThat(AuthenticationTracer.getCurrentSpan(), sameInstance(AuthenticationSpan.NOOP));
+		assertThat(child.getEndEpochNanos(), greaterThanOrEqualTo(child.getStartEpochNanos()));
+	}
+
+	@Test
+	public void shouldStartSpanAsChildOfTraceParent() {
+		String traceParent = "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01";
+		AuthenticationSpan span = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_FILTER, traceParent);
+		assertThat(span.getTraceId(), equalTo("0af7651916cd43dd8448eb211c80319c"));
+		assertThat(span.getParentSpanId(), equalTo("b7ad6b7169203331"));
+		assertThat(span.getTraceParent(), equalTo("00-0af7651916cd43dd8448eb211c80319c-" + span.getSpanId() + "-01"));
+		span.end();
+		AuthenticationSpan invalid = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_FILTER, "invalid");
+		assertThat(invalid.getTraceId(), not(equalTo(span.getTraceId())));
+		assertThat(invalid.getParentSpanId(), nullValue());
+		invalid.end();
+	}
+
+	@Test
+	public void shouldValidateTraceParent() {
+		assertThat(AuthenticationTracer.isValidTraceParent("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01"), equalTo(true));
+		assertThat(AuthenticationTracer.isValidTraceParent("01-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01-x"), equalTo(true));
+		assertThat(AuthenticationTracer.isValidTraceParent("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01-x"), equalTo(false));
+		assertThat(AuthenticationTracer.isValidTraceParent("ff-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01"), equalTo(false));
+		assertThat(AuthenticationTracer.isValidTraceParent("00-00000000000000000000000000000000-b7ad6b7169203331-01"), equalTo(false));
+		assertThat(AuthenticationTracer.isValidTraceParent("00-0af7651916cd43dd8448eb211c80319c-0000000000000000-01"), equalTo(false));
+		assertThat(AuthenticationTracer.isValidTraceParent("00-0AF7651916CD43DD8448EB211C80319C-b7ad6b7169203331-01"), equalTo(false));
+		assertThat(AuthenticationTracer.isValidTraceParent(null), equalTo(false));
+	}
+
+	@Test
+	public void shouldExportEndedSpansAsOtlpJson() throws Exception {
+		AuthenticationSpan parent = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_FILTER);
+		parent.setAttribute(AuthenticationTracer.ATTRIBUTE_LOGIN_ID, "login-1");
+		AuthenticationSpan child = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_SCHEME);
+		child.setAttribute(AuthenticationTracer.ATTRIBUTE_SCHEME_ID, "a\"b");
+		child.setOutcome(Outcome.FAILURE);
+		child.end();
+		parent.setOutcome(Outcome.SUCCESS);
+		parent.end();
+		parent.end();
+		AuthenticationTracer.flush();
+		assertThat(traceFile.exists(), equalTo(true));
+		List<String> lines = Files.readAllLines(traceFile.toPath(), StandardCharsets.UTF_8);
+		assertThat(lines, hasSize(1));
+		String json = lines.get(0);
+		assertThat(json, containsString("{\"key\":\"service.name\",\"value\":{\"stringValue\":\"test\"}}"));
+		assertThat(json, containsString("\"scope\":{\"name\":\"org.openmrs.module.authentication\"}"));
+		assertThat(json, containsString("\"spanId\":\"" + child.getSpanId() + "\",\"parentSpanId\":\"" + parent.getSpanId() + "\""));
+		assertThat(json, containsString("\"name\":\"authentication.scheme\""));
+		assertThat(json, containsString("{\"key\":\"authentication.scheme_id\",\"value\":{\"stringValue\":\"a\\\"b\"}}"));
+		assertThat(json, containsString("{\"key\":\"authentication.outcome\",\"value\":{\"stringValue\":\"failure\"}}],\"status\":{\"code\":2}"));
+		assertThat(json, containsString("{\"key\":\"authentication.login_id\",\"value\":{\"stringValue\":\"login-1\"}}"));
+		assertThat(json, containsString("\"endTimeUnixNano\":\"" + parent.getEndEpochNanos() + "\""));
+	}
+
+	@Test
+	public void shouldSerializeSpansInOrder() {
+		AuthenticationSpan first = AuthenticationTracer.startSpan("first");
+		first.end();
+		AuthenticationSpan second = AuthenticationTracer.startSpan("second");
+		second.end();
+		String json = AuthenticationTracer.toOtlpJson(Arrays.asList(first, second));
+		assertThat(json.indexOf("\"name\":\"first\"") < json.indexOf("\"name\":\"second\""), equalTo(true));
+		assertThat(json, containsString("\"status\":{\"code\":0}"));
+	}
+}
@@ -0,0 +1,110 @@
+package org.openmrs.module.authentication;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CidrMatcherTest {
+
+	@Test
+	public void shouldMatchIpv4Ranges() {
+		CidrMatcher matcher = new CidrMatcher(Arrays.asList("10.0.0.0/8", "192.168.1.0/24", "172.16.5.4"));
+		assertThat(matcher.matches("10.0.0.1"), equalTo(true));
+		assertThat(matcher.matches("10.255.255.255"), equalTo(true));
+		assertThat(matcher.matches("11.0.0.1"), equalTo(false));
+		assertThat(matcher.matches("192.168.1.200"), equalTo(true));
+		assertThat(matcher.matches("192.168.2.1"), equalTo(false));
+		assertThat(matcher.matches("172.16.5.4"), equalTo(true));
+		assertThat(matcher.matches("172.16.5.5"), equalTo(false));
+	}
+
+	@Test
+	public void shouldMatchAllAddressesWithZeroLengthPrefix() {
+		CidrMatcher matcher = new CidrMatcher(Collections.singletonList("0.0.0.0/0"));
+		assertThat(matcher.matches("1.2.3.4"), equalTo(true));
+		assertThat(matcher.matches("255.255.255.255"), equalTo(true));
+		assertThat(matcher.matches("::1"), equalTo(false));
+	}
+
+	@Test
+	public void shouldMatchIpv6Ranges() {
+		CidrMatcher matcher = new CidrMatcher(Arrays.asList("fd00::/8", "2001:db8::/32", "::1"));
+		assertThat(matcher.matches("fd12:3456:789a::1"), equalTo(true));
+		assertThat(matcher.matches("fe80::1"), equalTo(false));
+		assertThat(matcher.matches("2001:db8:1234::5"), equalTo(true));
+		assertThat(matcher.matches("2001:db9::5"), equalTo(false));
+		assertThat(matcher.matches("0:0:0:0:0:0:0:1"), equalTo(true));
+		assertThat(matcher.matches("[::1]"), equalTo(true));
+		assertThat(matcher.matches("10.0.0.1"), equalTo(false));
+	}
+
+	@Test
+	public void shouldMatchIpv4MappedIpv6AddressesAgainstIpv4Ranges() {
+		CidrMatcher matcher = new CidrMatcher(Collections.singletonList("10.0.0.0/8"));
+		assertThat(matcher.matches("::ffff:10.1.2.3"), equalTo(true));
+		assertThat(matcher.matches("::ffff:11.1.2.3"), equalTo(false));
+	}
+
+	@Test
+	public void shouldNotMatchInvalidAddresses() {
+		CidrMatcher matcher = new CidrMatcher(Collections.singletonList("0.0.0.0/0"));
+		assertThat(matcher.matches(null), equalTo(false));
+		assertThat(matcher.matches(""), equalTo(false));
+		assertThat(matcher.matches("256.1.1.1"), equalTo(false));
+		assertThat(matcher.matches("1.2.3"), equalTo(false));
+		assertThat(matcher.matches("1.2.3.4.5"), equalTo(false));
+		assertThat(matcher.matches("1..2.3"), equalTo(false));
+		assertThat(matcher.matches("localhost"), equalTo(false));
+		assertThat(matcher.matches("example.org:80"), equalTo(false));
+	}
+
+	@Test
+	public void shouldRejectInvalidRanges() {
+		assertThrows(IllegalArgumentException.class, () -> new CidrMatcher(Collections.singletonList("10.0.0.0/33")));
+		assertThrows(IllegalArgumentException.class, () -> new CidrMatcher(Collections.singletonList("10.0.0.0/x")));
+		assertThrows(IllegalArgumentException.class, () -> new CidrMatcher(Collections.singletonList("fd00::/129")));
+		assertThrows(IllegalArgumentException.class, () -> new CidrMatcher(Collections.singletonList("hospital.org")));
+	}
+
+	@Test
+	public void shouldRejectInvalidRangesEachTimeWithoutCompilingThemAgain() {
+		IllegalArgumentException first = assertThrows(IllegalArgumentException.class,
+				() -> CidrMatcher.getInstance("10.0.0.0/8, 10.0.0.0/x"));
+		IllegalArgumentException second = assertThrows(IllegalArgumentException.class,
+				() -> CidrMatcher.getInstance("10.0.0.0/8, 10.0.0.0/x"));
+		assertThat(second.getMessage(), equalTo(first.getMessage()));
+	}
+
+	@Test
+	public void shouldBeEmptyIfNoRangesConfigured() {
+		CidrMatcher matcher = CidrMatcher.getInstance("");
+		assertThat(matcher.isEmpty(), equalTo(true));
+		assertThat(matcher.matches("10.0.0.1"), equalTo(false));
+	}
+
+	@Test
+	public void shouldShareCompiledInstancesForTheSameRanges() {
+		CidrMatcher matcher = CidrMatcher.getInstance("10.0.0.0/8, 192.168.0.0/16");
+		assertThat(CidrMatcher.getInstance("10.0.0.0/8, 192.168.0.0/16"), sameInstance(matcher));
+		assertThat(matcher.matches("192.168.10.10"), equalTo(true));
+	}
+
+	@Test
+	public void shouldGrowToHoldManyRanges() {
+		List<String> ranges = new ArrayList<>();
+		for (int i = 0; i < 256; i++) {
+			ranges.add("10." + i + ".0.0/16");
+		}
+		CidrMatcher matcher = new CidrMatcher(ranges);
+		assertThat(matcher.matches("10.200.1.1"), equalTo(true));
+		assertThat(matcher.matches("11.200.1.1"), equalTo(false));
+	}
+}
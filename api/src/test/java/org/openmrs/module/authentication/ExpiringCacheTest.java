@@ -0,0 +1,112 @@
+package org.openmrs.module.authentication;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ExpiringCacheTest {
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedEntryWhenFull() {
+		RecordingCache cache = new RecordingCache(2);
+		long expiresAt = System.currentTimeMillis() + 60000;
+		cache.put("a", "1", expiresAt);
+		cache.put("b", "2", expiresAt);
+		assertThat(cache.get("a"), equalTo("1"));
+		cache.put("c", "3", expiresAt);
+		assertThat(cache.size(), equalTo(2));
+		assertThat(cache.get("b"), nullValue());
+		assertThat(cache.get("a"), equalTo("1"));
+		assertThat(cache.get("c"), equalTo("3"));
+		assertThat(cache.removed, equalTo(Collections.singletonList("2")));
+	}
+
+	@Test
+	public void shouldPeriodicallyPurgeExpiredEntriesWhenFull() {
+		RecordingCache cache = new RecordingCache(2);
+		long now = System.currentTimeMillis();
+		cache.put("a", "1", now + 60000);
+		cache.put("b", "2", now - 1);
+		cache.put("c", "3", now + 60000);
+		cache.put("d", "4", now + 60000);
+		assertThat(cache.size(), equalTo(2));
+		assertThat(cache.get("c"), equalTo("3"));
+		assertThat(cache.get("d"), equalTo("4"));
+		assertThat(cache.removed, equalTo(Arrays.asList("1", "2")));
+	}
+
+	@Test
+	public void shouldRemoveExpiredEntriesWhenAccessed() {
+		RecordingCache cache = new RecordingCache(10);
+		cache.put("a", "1", System.currentTimeMillis() - 1);
+		assertThat(cache.get("a"), nullValue());
+		assertThat(cache.get("a"), nullValue());
+		assertThat(cache.size(), equalTo(0));
+		assertThat(cache.removed, equalTo(Collections.singletonList("1")));
+	}
+
+	@Test
+	public void shouldCallOnRemovalOnceForEachReplacedOrRemovedValue() {
+		RecordingCache cache = new RecordingCache(10);
+		long expiresAt = System.currentTimeMillis() + 60000;
+		String value = "1";
+		cache.put("a", value, expiresAt);
+		cache.put("a", value, expiresAt);
+		assertThat(cache.removed.size(), equalTo(0));
+		cache.put("a", "2", expiresAt);
+		cache.remove("a");
+		cache.remove("a");
+		cache.put("b", "3", expiresAt);
+		cache.put("c", "4", expiresAt);
+		cache.removeAll("b"::equals);
+		cache.clear();
+		assertThat(cache.removed, equalTo(Arrays.asList("1", "2", "3", "4")));
+		assertThat(cache.size(), equalTo(0));
+	}
+
+	@Test
+	public void shouldCallOnRemovalOnceForEachValueUnderConcurrentPuts() throws Exception {
+		RecordingCache cache = new RecordingCache(8);
+		long expiresAt = System.currentTimeMillis() + 60000;
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			int threadNum = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					cache.put("key" + (i % 16), threadNum + "-" + i, expiresAt);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		int remaining = cache.size();
+		cache.clear();
+		assertThat(cache.removed.size(), equalTo(4000));
+		assertThat(remaining, equalTo(8));
+	}
+
+	private static class RecordingCache extends ExpiringCache<String, String> {
+
+		private final List<String> removed = Collections.synchronizedList(new ArrayList<>());
+
+		RecordingCache(int maxSize) {
+			super(maxSize);
+		}
+
+		@Override
+		protected void onRemoval(String value) {
+			removed.add(value);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.openmrs.module.authentication;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void shouldCountEachValueInABucketThatContainsIt() {
+		for (long value = 0; value < 1_000_000; value = value * 3 / 2 + 1) {
+			int bucket = LatencyHistogram.getBucket(value);
+			assertThat(LatencyHistogram.getBucketUpperBound(bucket), greaterThanOrEqualTo(value));
+			if (bucket > 0) {
+				assertThat(LatencyHistogram.getBucketUpperBound(bucket - 1), lessThanOrEqualTo(value - 1));
+			}
+		}
+		assertThat(LatencyHistogram.getBucket(Long.MAX_VALUE), equalTo(LatencyHistogram.BUCKETS - 1));
+	}
+
+	@Test
+	public void shouldReportPercentilesWithinBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long millis = 1; millis <= 100; millis++) {
+			histogram.record(millis * 1_000_000);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		assertThat(snapshot.getCount(), equalTo(100L));
+		assertThat(snapshot.getSum(), equalTo(5050 * 1_000_000L));
+		assertThat(snapshot.getMax(), equalTo(100 * 1_000_000L));
+		assertWithinPrecision(snapshot.getValueAtPercentile(50), 50 * 1_000_000L);
+		assertWithinPrecision(snapshot.getValueAtPercentile(90), 90 * 1_000_000L);
+		assertThat(snapshot.getValueAtPercentile(100), equalTo(100 * 1_000_000L));
+		assertThat(snapshot.getCountAtOrBelow(10 * 1_000_000L), lessThanOrEqualTo(10L));
+		assertThat(snapshot.getCountAtOrBelow(10 * 1_000_000L), greaterThanOrEqualTo(9L));
+	}
+
+	@Test
+	public void shouldReturnZeroForEmptyHistogram() {
+		LatencyHistogram.Snapshot snapshot = new LatencyHistogram().getSnapshot();
+		assertThat(snapshot.getCount(), equalTo(0L));
+		assertThat(snapshot.getValueAtPercentile(99), equalTo(0L));
+		assertThat(snapshot.getMean(), equalTo(0.0));
+	}
+
+	private void assertWithinPrecision(long actual, long expected) {
+		assertThat(actual, greaterThanOrEqualTo(expected));
+		assertThat(actual, lessThanOrEqualTo(expected + expected / 16));
+	}
+}
@@ -0,0 +1,87 @@
+package org.openmrs.module.authentication;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.Location;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class LocationIndexTest {
+
+	int loads;
+
+	@BeforeEach
+	public void setup() {
+		LocationIndex.invalidate();
+		loads = 0;
+	}
+
+	protected Location newLocation(Integer locationId, String uuid, String name) {
+		Location location = new Location(locationId);
+		location.setUuid(uuid);
+		location.setName(name);
+		return location;
+	}
+
+	protected List<Location> load(Location... locations) {
+		loads++;
+		return new ArrayList<>(Arrays.asList(locations));
+	}
+
+	@Test
+	public void shouldLookupValidLocationsByIdOrUuid() {
+		LocationIndex index = new LocationIndex(0, Arrays.asList(
+				newLocation(1, "uuid-1", "Clinic"), newLocation(22, "uuid-22", "Ward")));
+		assertThat(index.getLocationId("1"), equalTo(1));
+		assertThat(index.getLocationId("22"), equalTo(22));
+		assertThat(index.getLocationId("uuid-22"), equalTo(22));
+		assertThat(index.getLocationId("3"), nullValue());
+		assertThat(index.getLocationId("uuid-3"), nullValue());
+		assertThat(index.getLocationId("99999999999"), nullValue());
+		assertThat(index.getLocationId(""), nullValue());
+		assertThat(index.getLocationId(null), nullValue());
+		assertThat(index.contains(22), equalTo(true));
+		assertThat(index.contains(3), equalTo(false));
+		assertThat(index.getLocations().size(), equalTo(2));
+		assertThat(index.getLocations().get(1).getName(), equalTo("Ward"));
+	}
+
+	@Test
+	public void shouldReturnSingleLocationOnlyIfExactlyOneIsValid() {
+		Location clinic = newLocation(1, "uuid-1", "Clinic");
+		assertThat(new LocationIndex(0, Collections.singletonList(clinic)).getSingleLocationId(), equalTo(1));
+		assertThat(new LocationIndex(0, Collections.emptyList()).getSingleLocationId(), nullValue());
+		Location ward = newLocation(2, "uuid-2", "Ward");
+		assertThat(new LocationIndex(0, Arrays.asList(clinic, ward)).getSingleLocationId(), nullValue());
+	}
+
+	@Test
+	public void shouldShareSnapshotUntilInvalidated() {
+		Location clinic = newLocation(1, "uuid-1", "Clinic");
+		LocationIndex index = LocationIndex.getInstance("Login Location", 60, () -> load(clinic));
+		assertThat(LocationIndex.getInstance("Login Location", 60, () -> load(clinic)), sameInstance(index));
+		assertThat(loads, equalTo(1));
+		LocationIndex.getInstance(null, 60, () -> load(clinic));
+		assertThat(loads, equalTo(2));
+		LocationIndex.invalidate();
+		LocationIndex rebuilt = LocationIndex.getInstance("Login Location", 60, () -> load(clinic));
+		assertThat(loads, equalTo(3));
+		assertThat(rebuilt.getVersion(), equalTo(index.getVersion() + 1));
+	}
+
+	@Test
+	public void shouldRebuildSnapshotOnceExpired() {
+		Location clinic = newLocation(1, "uuid-1", "Clinic");
+		LocationIndex.getInstance("Login Location", -1, () -> load(clinic));
+		LocationIndex.getInstance("Login Location", -1, () -> load(clinic));
+		assertThat(loads, equalTo(2));
+	}
+}
@@ -5,6 +5,8 @@ import org.junit.jupiter.api.Test;
 import org.openmrs.User;
 import org.openmrs.api.context.BasicAuthenticated;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -69,6 +71,51 @@ public class UserLoginTest extends BaseAuthenticationTest {
 		}
 	}
 
+	@Test
+	public void shouldCountFailedAuthenticationsForEachScheme() {
+		UserLogin ctx = new UserLogin();
+		assertThat(ctx.getFailedAuthentications("scheme1"), equalTo(0));
+		ctx.authenticationFailed("scheme1");
+		ctx.authenticationFailed("scheme1");
+		ctx.authenticationFailed("scheme2");
+		assertThat(ctx.getFailedAuthentications("scheme1"), equalTo(2));
+		assertThat(ctx.getFailedAuthentications("scheme2"), equalTo(1));
+		assertThat(ctx.getFailedAuthentications(), equalTo(3));
+	}
+
+	@Test
+	public void shouldSetAndRemoveAttributesWithoutSerializingThem() throws Exception {
+		UserLogin ctx = new UserLogin();
+		assertThat(ctx.getAttribute("plan"), nullValue());
+		Object plan = new Object();
+		ctx.setAttribute("plan", plan);
+		assertThat(ctx.getAttribute("plan"), equalTo(plan));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(ctx);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			UserLogin deserialized = (UserLogin) in.readObject();
+			assertThat(deserialized.getAttribute("plan"), nullValue());
+		}
+		ctx.setAttribute("plan", null);
+		assertThat(ctx.getAttribute("plan"), nullValue());
+	}
+
+	@Test
+	public void shouldRemoveAttributesWhenLoginSucceeds() {
+		UserLogin ctx = new UserLogin();
+		ctx.setUsername("tester");
+		ctx.setAttribute("plan", new Object());
+		ctx.loginSuccessful();
+		try {
+			assertThat(ctx.getAttribute("plan"), nullValue());
+		}
+		finally {
+			ctx.logoutSucceeded();
+		}
+	}
+
 	@Test
 	public void shouldAddGetAndRemoveCredentials() {
 		UserLogin ctx = new UserLogin();
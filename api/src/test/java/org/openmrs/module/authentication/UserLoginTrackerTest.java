@@ -0,0 +1,178 @@
+package org.openmrs.module.authentication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.User;
+import org.openmrs.api.context.BasicAuthenticated;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class UserLoginTrackerTest {
+
+	private static final int THREADS = 16;
+
+	private static final int ITERATIONS = 2000;
+
+	@AfterEach
+	public void teardown() {
+		for (UserLogin userLogin : new ArrayList<>(UserLoginTracker.getActiveLogins().values())) {
+			UserLoginTracker.removeActiveLogin(userLogin);
+		}
+	}
+
+	@Test
+	public void shouldAddAndRemoveActiveLogins() {
+		UserLogin login1 = new UserLogin();
+		UserLogin login2 = new UserLogin();
+		login1.loginSuccessful();
+		login2.loginSuccessful();
+		assertThat(UserLoginTracker.getActiveLogins().size(), equalTo(2));
+		assertThat(UserLoginTracker.getActiveLogins().get(login1.getLoginId()), equalTo(login1));
+		login1.logoutSucceeded();
+		login2.loginExpired();
+		assertThat(UserLoginTracker.getActiveLogins().size(), equalTo(0));
+	}
+
+	@Test
+	public void shouldCountFailedAuthenticationsForUsernameAcrossLogins() {
+		long start = System.currentTimeMillis();
+		UserLogin login1 = new UserLogin();
+		login1.setUsername("failing-user");
+		login1.authenticationFailed("basic");
+		UserLogin login2 = new UserLogin();
+		login2.setUsername("failing-user");
+		login2.authenticationFailed("basic");
+		login2.authenticationFailed("secret");
+		assertThat(UserLoginTracker.getFailedAuthentications("failing-user", start), equalTo(3));
+		assertThat(UserLoginTracker.getFailedAuthentications("failing-user", System.currentTimeMillis() + 1), equalTo(0));
+		assertThat(UserLoginTracker.getFailedAuthentications("other-user", start), equalTo(0));
+		for (int i = 0; i < 100; i++) {
+			UserLoginTracker.addFailedAuthentication("failing-user");
+		}
+		assertThat(UserLoginTracker.getFailedAuthentications("failing-user", start), equalTo(32));
+		UserLoginTracker.removeFailedAuthentications("failing-user");
+		assertThat(UserLoginTracker.getFailedAuthentications("failing-user", start), equalTo(0));
+	}
+
+	@Test
+	public void shouldIterateActiveLoginsWhileLoginsAreAddedAndRemoved() throws Exception {
+		AtomicBoolean running = new AtomicBoolean(true);
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			tasks.add(() -> {
+				for (int j = 0; j < ITERATIONS; j++) {
+					UserLogin userLogin = new UserLogin();
+					userLogin.loginSuccessful();
+					userLogin.setLastActivityDate(new Date());
+					if (j % 2 == 0) {
+						userLogin.logoutSucceeded();
+					}
+					else {
+						userLogin.loginExpired();
+					}
+				}
+				return ITERATIONS;
+			});
+		}
+		Callable<Integer> iterator = () -> {
+			int iterations = 0;
+			while (running.get()) {
+				for (Map.Entry<String, UserLogin> entry : UserLoginTracker.getActiveLogins().entrySet()) {
+					assertThat(entry.getKey(), equalTo(entry.getValue().getLoginId()));
+				}
+				iterations++;
+			}
+			return iterations;
+		};
+		runConcurrently(tasks, iterator, running);
+		assertThat(UserLoginTracker.getActiveLogins().size(), equalTo(0));
+	}
+
+	@Test
+	public void shouldRecordConcurrentUpdatesToTheSameLogin() throws Exception {
+		UserLogin userLogin = new UserLogin();
+		User user = new User();
+		user.setUsername("admin");
+		AtomicBoolean running = new AtomicBoolean(true);
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			String schemeId = "scheme" + i;
+			tasks.add(() -> {
+				for (int j = 0; j < ITERATIONS; j++) {
+					userLogin.setLastActivityDate(new Date());
+					userLogin.addUnvalidatedCredentials(new TestAuthenticationCredentials(schemeId, user));
+					userLogin.authenticationSuccessful(schemeId, new BasicAuthenticated(user, schemeId));
+				}
+				return ITERATIONS;
+			});
+		}
+		Callable<Integer> iterator = () -> {
+			int iterations = 0;
+			while (running.get()) {
+				userLogin.containsEvent(AuthenticationEvent.LOGIN_SUCCEEDED);
+				for (AuthenticationEvent event : userLogin.getEvents()) {
+					assertThat(event.getEvent(), equalTo(AuthenticationEvent.AUTHENTICATION_SUCCEEDED));
+				}
+				new ArrayList<>(userLogin.getValidatedCredentials());
+				new ArrayList<>(userLogin.getUnvalidatedCredentials());
+				iterations++;
+			}
+			return iterations;
+		};
+		runConcurrently(tasks, iterator, running);
+		assertThat(userLogin.getEvents().size(), equalTo(THREADS * ITERATIONS));
+		assertThat(userLogin.getValidatedCredentials().size(), equalTo(THREADS));
+		assertThat(userLogin.getUnvalidatedCredentials().size(), equalTo(0));
+	}
+
+	/**
+	 * Starts the given tasks and the given iterator together, and waits for all tasks to complete before stopping
+	 * the iterator.  Any exception thrown by a task or the iterator, such as a ConcurrentModificationException, fails
+	 * the test.
+	 */
+	private void runConcurrently(List<Callable<Integer>> tasks, Callable<Integer> iterator, AtomicBoolean running)
+			throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size() + 1);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			Future<Integer> iteratorResult = executor.submit(awaiting(start, iterator));
+			List<Future<Integer>> results = new ArrayList<>();
+			for (Callable<Integer> task : tasks) {
+				results.add(executor.submit(awaiting(start, task)));
+			}
+			start.countDown();
+			try {
+				for (Future<Integer> result : results) {
+					assertThat(result.get(60, TimeUnit.SECONDS), equalTo(ITERATIONS));
+				}
+			}
+			finally {
+				running.set(false);
+			}
+			iteratorResult.get(60, TimeUnit.SECONDS);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Callable<Integer> awaiting(CountDownLatch start, Callable<Integer> task) {
+		return () -> {
+			start.await();
+			return task.call();
+		};
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.User;
+import org.openmrs.api.context.BasicAuthenticated;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.web.AuthenticationSession;
+import org.openmrs.module.authentication.web.TwoFactorAuthenticationScheme;
+import org.openmrs.module.authentication.web.mocks.MockAuthenticationFilter;
+import org.openmrs.module.authentication.web.mocks.MockAuthenticationSession;
+import org.openmrs.module.authentication.web.mocks.MockBasicWebAuthenticationScheme;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.mock.web.MockServletContext;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures AuthenticationFilter.doFilter for the common kinds of request, using the mock servlet objects and mock
+ * authentication schemes from the omod tests.  Each invocation creates its own request, response, and session, as
+ * the filter does for a real request, so the scores include the cost of creating these mock objects.
+ * Run with `-prof gc` to report the allocation rate, eg:
+ * <pre>
+ *     java -jar benchmarks/target/benchmarks.jar AuthenticationFilterBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AuthenticationFilterBenchmark {
+
+    private BenchmarkEnvironment environment;
+    private MockServletContext servletContext;
+    private MockAuthenticationFilter filter;
+    private User user;
+    private User secondaryUser;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Properties p = new Properties();
+        p.setProperty("authentication.scheme", "2fa");
+        p.setProperty("authentication.whiteList", "/login.htm,/secondary.htm,*.js,*.css,*.png,/ms/legacyui/loginServlet");
+        p.setProperty("authentication.scheme.2fa.type", TwoFactorAuthenticationScheme.class.getName());
+        p.setProperty("authentication.scheme.2fa.config.primaryOptions", "primary");
+        p.setProperty("authentication.scheme.2fa.config.secondaryOptions", "secondary");
+        p.setProperty("authentication.scheme.primary.type", MockBasicWebAuthenticationScheme.class.getName());
+        p.setProperty("authentication.scheme.primary.config.loginPage", "/login.htm");
+        p.setProperty("authentication.scheme.primary.config.users", "admin,tester");
+        p.setProperty("authentication.scheme.primary.config.users.admin.password", "adminPassword");
+        p.setProperty("authentication.scheme.primary.config.users.tester.password", "primaryPw");
+        p.setProperty("authentication.scheme.primary.config.users.tester.secondaryType", "secondary");
+        p.setProperty("authentication.scheme.secondary.type", MockBasicWebAuthenticationScheme.class.getName());
+        p.setProperty("authentication.scheme.secondary.config.loginPage", "/secondary.htm");
+        p.setProperty("authentication.scheme.secondary.config.usernameParam", "uname2");
+        p.setProperty("authentication.scheme.secondary.config.passwordParam", "pw2");
+        p.setProperty("authentication.scheme.secondary.config.users", "tester");
+        p.setProperty("authentication.scheme.secondary.config.users.tester.password", "secondaryPw");
+        environment = new BenchmarkEnvironment();
+        environment.configure(p);
+        servletContext = new MockServletContext();
+        filter = new MockAuthenticationFilter(new MockFilterConfig(servletContext, "authenticationFilter"));
+        user = new User();
+        user.setUserId(1);
+        user.setUsername("admin");
+        secondaryUser = getPrimaryAuthenticatedUser("tester", "primaryPw");
+    }
+
+    /**
+     * @return the candidate user following primary authentication with the given credentials
+     */
+    private User getPrimaryAuthenticatedUser(String username, String password) {
+        try {
+            MockHttpSession session = new MockHttpSession(servletContext);
+            MockHttpServletRequest request = newRequest("POST", "/ms/legacyui/loginServlet", session);
+            request.addParameter("username", username);
+            request.addParameter("password", password);
+            doFilter(request, null);
+            UserLogin userLogin = (UserLogin) session.getAttribute(AuthenticationSession.AUTHENTICATION_USER_LOGIN);
+            if (userLogin == null || userLogin.getUser() == null) {
+                throw new IllegalStateException("Primary authentication failed for " + username);
+            }
+            return userLogin.getUser();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to authenticate " + username, e);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        filter.destroy();
+        environment.close();
+    }
+
+    private MockHttpServletResponse doFilter(MockHttpServletRequest request, User authenticatedUser) throws Exception {
+        request.setRemoteAddr("192.168.1.1");
+        request.setContextPath("/openmrs");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockAuthenticationSession session = new MockAuthenticationSession(request, response);
+        session.setAuthenticatedUser(authenticatedUser);
+        filter.setAuthenticationSession(session);
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+    private MockHttpServletRequest newRequest(String method, String path, MockHttpSession session) {
+        MockHttpServletRequest request = new MockHttpServletRequest(servletContext, method, "/openmrs" + path);
+        request.setServletPath(path);
+        request.setSession(session);
+        return request;
+    }
+
+    /**
+     * A request from a user who is already authenticated, which passes straight through to the chain
+     */
+    @Benchmark
+    public MockHttpServletResponse authenticatedRequest() throws Exception {
+        return doFilter(newRequest("GET", "/patientDashboard.htm", new MockHttpSession(servletContext)), user);
+    }
+
+    /**
+     * An unauthenticated request for an asset that matches a whitelist pattern
+     */
+    @Benchmark
+    public MockHttpServletResponse whiteListedAsset() throws Exception {
+        return doFilter(newRequest("GET", "/scripts/jquery/jquery.min.js", new MockHttpSession(servletContext)), null);
+    }
+
+    /**
+     * An unauthenticated request for a protected page, which is redirected to the login page
+     */
+    @Benchmark
+    public MockHttpServletResponse unauthenticatedRedirect() throws Exception {
+        return doFilter(newRequest("GET", "/patientDashboard.htm", new MockHttpSession(servletContext)), null);
+    }
+
+    /**
+     * A successful login by a user with no secondary scheme, including session regeneration and success redirect
+     */
+    @Benchmark
+    public MockHttpServletResponse successfulBasicLogin() throws Exception {
+        MockHttpServletRequest request = newRequest("POST", "/ms/legacyui/loginServlet", new MockHttpSession(servletContext));
+        request.addParameter("username", "admin");
+        request.addParameter("password", "adminPassword");
+        request.addParameter("redirect", "/index.htm");
+        return doFilter(request, null);
+    }
+
+    /**
+     * Submission of secondary credentials by a user who has already completed primary authentication in this login
+     */
+    @Benchmark
+    public MockHttpServletResponse twoFactorStep() throws Exception {
+        MockHttpSession session = new MockHttpSession(servletContext);
+        UserLogin userLogin = new UserLogin();
+        userLogin.authenticationSuccessful("primary", new BasicAuthenticated(secondaryUser, "primary"));
+        session.setAttribute(AuthenticationSession.AUTHENTICATION_USER_LOGIN, userLogin);
+        MockHttpServletRequest request = newRequest("POST", "/secondary.htm", session);
+        request.addParameter("uname2", "tester");
+        request.addParameter("pw2", "secondaryPw");
+        request.addParameter("redirect", "/index.htm");
+        return doFilter(request, null);
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.benchmarks;
+
+import org.openmrs.api.context.AuthenticationScheme;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Configures the module outside a running OpenMRS instance, in the same way as the unit tests do, so that
+ * benchmarks can drive the web layer with mock servlet objects.  Each benchmark state calls configure from its
+ * trial-level setup, and close from its trial-level teardown.
+ */
+public class BenchmarkEnvironment {
+
+    private final File appDataDir;
+    private final File runtimePropertiesFile;
+
+    public BenchmarkEnvironment() {
+        try {
+            appDataDir = Files.createTempDirectory("authentication-benchmarks").toFile();
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        runtimePropertiesFile = new File(appDataDir, "openmrs-runtime.properties");
+    }
+
+    /**
+     * Sets the given properties as the runtime properties, reloads the authentication configuration from these,
+     * and sets the configured authentication scheme on the Context
+     * @param p the runtime properties to configure
+     */
+    public void configure(Properties p) {
+        p.setProperty(OpenmrsConstants.APPLICATION_DATA_DIRECTORY_RUNTIME_PROPERTY, appDataDir.getAbsolutePath());
+        OpenmrsUtil.storeProperties(p, runtimePropertiesFile, "benchmark");
+        Context.setRuntimeProperties(p);
+        AuthenticationConfig.reloadConfigFromRuntimeProperties("openmrs");
+        try {
+            AuthenticationScheme scheme = AuthenticationConfig.getAuthenticationScheme();
+            Field field = Context.class.getDeclaredField("authenticationScheme");
+            field.setAccessible(true);
+            field.set(null, scheme);
+            Context.setUserContext(new UserContext(scheme));
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Removes the temporary files created by this environment
+     */
+    public void close() {
+        runtimePropertiesFile.delete();
+        appDataDir.delete();
+    }
+}
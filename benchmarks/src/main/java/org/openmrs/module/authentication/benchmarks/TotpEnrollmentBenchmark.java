@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.authentication.web.TotpAuthenticationScheme;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work done when a user sets up TOTP: TotpAuthenticationScheme.generateSecret, for each secret length,
+ * and generateQrCodeUriForSecret, for each QR code format.  With a qrCodeCacheSeconds of 0, each QR code is rendered,
+ * as when a user first views the setup page.  Otherwise, the QR code is served from the cache, as when the page is
+ * reloaded.  Run with `-prof gc` to report the bytes allocated per operation, eg:
+ * <pre>
+ *     java -jar benchmarks/target/benchmarks.jar TotpEnrollmentBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TotpEnrollmentBenchmark {
+
+    @State(Scope.Thread)
+    public static class SecretState {
+
+        @Param({"32", "64"})
+        public int secretLength;
+
+        private TotpAuthenticationScheme scheme;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Properties config = new Properties();
+            config.setProperty(TotpAuthenticationScheme.SECRET_LENGTH, Integer.toString(secretLength));
+            scheme = new TotpAuthenticationScheme();
+            scheme.configure("totp", config);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class QrCodeState {
+
+        @Param({"png", "svg"})
+        public String qrCodeFormat;
+
+        @Param({"0", "60"})
+        public int qrCodeCacheSeconds;
+
+        private TotpAuthenticationScheme scheme;
+        private String secret;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Properties config = new Properties();
+            config.setProperty(TotpAuthenticationScheme.QR_CODE_FORMAT, qrCodeFormat);
+            config.setProperty(TotpAuthenticationScheme.QR_CODE_CACHE_SECONDS, Integer.toString(qrCodeCacheSeconds));
+            scheme = new TotpAuthenticationScheme();
+            scheme.configure("totp", config);
+            secret = scheme.generateSecret();
+        }
+    }
+
+    @Benchmark
+    public String generateSecret(SecretState state) {
+        return state.scheme.generateSecret();
+    }
+
+    @Benchmark
+    public String generateQrCodeUriForSecret(QrCodeState state) {
+        return state.scheme.generateQrCodeUriForSecret(state.secret, "admin");
+    }
+}
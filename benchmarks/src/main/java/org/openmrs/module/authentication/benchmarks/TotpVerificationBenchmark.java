@@ -0,0 +1,105 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.benchmarks;
+
+import dev.samstevens.totp.code.DefaultCodeGenerator;
+import dev.samstevens.totp.code.DefaultCodeVerifier;
+import dev.samstevens.totp.code.HashingAlgorithm;
+import dev.samstevens.totp.time.SystemTimeProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.authentication.web.TotpAuthenticationScheme;
+import org.openmrs.module.authentication.web.TotpVerifier;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures TotpAuthenticationScheme.verifyCode for each hashing algorithm, code length, and allowed discrepancy, so
+ * that TOTP settings can be chosen from the cost of verifying a code at the expected peak login rate.  The verifier
+ * checks every time step in the window whether or not a step matches, so a code that does not match costs the same
+ * as one that does, and a fixed non-matching code is used so that results do not depend on when codes expire.
+ * verifyCode decodes the Base32 secret on each call, whereas a login verifies against the decoded secret that the
+ * scheme caches for each user, which is measured by verifyDecodedSecret.
+ * The DefaultCodeVerifier of the totp library, which the TotpVerifier replaced, is measured with the same settings
+ * as a baseline.  Run with `-prof gc` to report the bytes allocated per verification, eg:
+ * <pre>
+ *     java -jar benchmarks/target/benchmarks.jar TotpVerificationBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TotpVerificationBenchmark {
+
+    @Param({"SHA1", "SHA256", "SHA512"})
+    public String hashingAlgorithm;
+
+    @Param({"6", "8"})
+    public int codeLength;
+
+    @Param({"0", "1", "2"})
+    public int allowedDiscrepancy;
+
+    private TotpAuthenticationScheme scheme;
+    private DefaultCodeVerifier libraryVerifier;
+    private String secret;
+    private byte[] key;
+    private String code;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Properties config = new Properties();
+        config.setProperty(TotpAuthenticationScheme.HASHING_ALGORITHM, hashingAlgorithm);
+        config.setProperty(TotpAuthenticationScheme.CODE_LENGTH, Integer.toString(codeLength));
+        config.setProperty(TotpAuthenticationScheme.ALLOWED_DISCREPANCY, Integer.toString(allowedDiscrepancy));
+        scheme = new TotpAuthenticationScheme();
+        scheme.configure("totp", config);
+        secret = scheme.generateSecret();
+        key = TotpVerifier.decodeSecret(secret);
+        char[] digits = new char[codeLength];
+        Arrays.fill(digits, '1');
+        code = new String(digits);
+
+        HashingAlgorithm algorithm = HashingAlgorithm.valueOf(hashingAlgorithm);
+        libraryVerifier = new DefaultCodeVerifier(new DefaultCodeGenerator(algorithm, codeLength), new SystemTimeProvider());
+        libraryVerifier.setTimePeriod(scheme.getVerifier().getTimePeriod());
+        libraryVerifier.setAllowedTimePeriodDiscrepancy(allowedDiscrepancy);
+    }
+
+    @Benchmark
+    public boolean verifyCode() {
+        return scheme.verifyCode(secret, code);
+    }
+
+    @Benchmark
+    public long verifyDecodedSecret() {
+        return scheme.getVerifier().verify(key, code);
+    }
+
+    @Benchmark
+    public boolean libraryVerifier() {
+        return libraryVerifier.isValidCode(secret, code);
+    }
+}
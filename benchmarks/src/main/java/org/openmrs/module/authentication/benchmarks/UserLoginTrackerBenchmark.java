@@ -0,0 +1,126 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmrs.User;
+import org.openmrs.api.context.BasicAuthenticated;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.UserLoginTracker;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures contention on the shared state updated by every login: the active logins held by the UserLoginTracker,
+ * and a UserLogin that is updated by concurrent requests within the same session.  The number of threads is set
+ * with `-t`, so scaling is measured by comparing runs at increasing thread counts, eg:
+ * <pre>
+ *     for t in 1 2 4 8 16 32 64; do java -jar benchmarks/target/benchmarks.jar UserLoginTrackerBenchmark -t $t; done
+ * </pre>
+ * The `tracker` group always runs one thread that iterates the active logins alongside three threads that log in
+ * and out, and is scaled with `-tg`, eg. `-tg 3,1` or `-tg 48,16`.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserLoginTrackerBenchmark {
+
+    @Param({"1000"})
+    public int activeLogins;
+
+    private final List<UserLogin> existingLogins = new ArrayList<>();
+    private User user;
+    private UserLogin sharedLogin;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        user = new User();
+        user.setUsername("admin");
+        for (int i = 0; i < activeLogins; i++) {
+            UserLogin userLogin = new UserLogin();
+            UserLoginTracker.addActiveLogin(userLogin);
+            existingLogins.add(userLogin);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        sharedLogin = new UserLogin();
+        sharedLogin.authenticationSuccessful("primary", new BasicAuthenticated(user, "primary"));
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        for (UserLogin userLogin : existingLogins) {
+            UserLoginTracker.removeActiveLogin(userLogin);
+        }
+        existingLogins.clear();
+    }
+
+    /**
+     * A complete login by a new user, which is added to and then removed from the active logins
+     */
+    @Benchmark
+    public UserLogin loginAndLogout() {
+        UserLogin userLogin = new UserLogin();
+        userLogin.authenticationSuccessful("primary", new BasicAuthenticated(user, "primary"));
+        userLogin.loginSuccessful();
+        userLogin.setLastActivityDate(new Date());
+        userLogin.logoutSucceeded();
+        return userLogin;
+    }
+
+    /**
+     * The per-request updates made to a UserLogin that is shared by all threads, as for concurrent requests in
+     * the same session
+     */
+    @Benchmark
+    public boolean sharedLoginActivity() {
+        sharedLogin.setLastActivityDate(new Date());
+        return sharedLogin.isCredentialValidated("primary") && sharedLogin.getUnvalidatedCredentials("2fa") == null;
+    }
+
+    @Benchmark
+    @Group("tracker")
+    @GroupThreads(3)
+    public UserLogin trackerLogin() {
+        return loginAndLogout();
+    }
+
+    @Benchmark
+    @Group("tracker")
+    @GroupThreads(1)
+    public void trackerIterate(Blackhole blackhole) {
+        for (UserLogin userLogin : UserLoginTracker.getActiveLogins().values()) {
+            blackhole.consume(userLogin.getLastActivityDate());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.web.AuthenticationFilter;
+import org.openmrs.module.authentication.web.WebUtil;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of checking a request against whitelists of increasing size, configured as
+ * `authentication.whiteList`, comparing the AntPathMatcher loop in WebUtil.isWhiteListed, as the filter previously
+ * ran it with the whitelist split from the configuration on each request, with AuthenticationFilter.isWhiteListed,
+ * which checks the WhiteListMatcher the filter compiled when it was initialized.
+ * Whitelists start with the patterns typically needed by the login pages, and are padded with a mix of extension,
+ * prefix, and exact patterns.  Each benchmark checks a set of request paths that either all match, typically
+ * against one of the last patterns in the list, or all miss.  Run with `-prof gc` to report allocation per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WhiteListBenchmark {
+
+    private static final List<String> LOGIN_PATTERNS = Arrays.asList(
+            "/login.htm", "/ms/legacyui/loginServlet", "/csrfguard", "*.js", "*.css", "*.gif", "*.jpg", "*.png"
+    );
+
+    @Param({"10", "50", "200"})
+    public int whiteListSize;
+
+    @Param({"hit", "miss"})
+    public String paths;
+
+    private List<String> whiteList;
+    private WhiteListFilter filter;
+    private MockHttpServletRequest[] requests;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        whiteList = new ArrayList<>(LOGIN_PATTERNS);
+        String lastExtension = null;
+        String lastPrefix = null;
+        String lastExactPath = null;
+        for (int i = 0; whiteList.size() < whiteListSize; i++) {
+            switch (i % 3) {
+                case 0:
+                    lastExtension = ".ext" + i;
+                    whiteList.add("*" + lastExtension);
+                    break;
+                case 1:
+                    lastPrefix = "/module" + i;
+                    whiteList.add(lastPrefix + "/**");
+                    break;
+                default:
+                    lastExactPath = "/module" + i + "/page.htm";
+                    whiteList.add(lastExactPath);
+            }
+        }
+        List<String> requestPaths = new ArrayList<>();
+        if ("hit".equals(paths)) {
+            requestPaths.add("/login.htm");
+            requestPaths.add("/scripts/jquery/jquery.min.js");
+            requestPaths.add("/images/logo.PNG");
+            requestPaths.add("/resources/file" + lastExtension);
+            requestPaths.add(lastPrefix + "/resources/page.htm");
+            requestPaths.add(lastExactPath);
+        }
+        else {
+            requestPaths.add("/patientDashboard.htm");
+            requestPaths.add("/coreapps/clinicianfacing/patient.page");
+            requestPaths.add("/ws/rest/v1/patient/abc123");
+            requestPaths.add("/module/page.htm");
+            requestPaths.add("/modules/index.htm");
+            requestPaths.add("/referenceapplication/home.page");
+        }
+        requests = new MockHttpServletRequest[requestPaths.size()];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new MockHttpServletRequest("GET", "/openmrs" + requestPaths.get(i));
+            requests[i].setContextPath("/openmrs");
+            requests[i].setServletPath(requestPaths.get(i));
+        }
+        Properties config = new Properties();
+        config.setProperty(AuthenticationConfig.WHITE_LIST, String.join(",", whiteList));
+        AuthenticationConfig.setConfig(config);
+        filter = new WhiteListFilter();
+        filter.init(null);
+    }
+
+    private MockHttpServletRequest nextRequest() {
+        index = (index + 1) % requests.length;
+        return requests[index];
+    }
+
+    @Benchmark
+    public boolean antPathMatcher() {
+        return WebUtil.isWhiteListed(nextRequest(), AuthenticationConfig.getWhiteList());
+    }
+
+    @Benchmark
+    public boolean filter() {
+        return filter.isWhiteListed(nextRequest());
+    }
+
+    /**
+     * Exposes the whitelist check of the AuthenticationFilter to this benchmark
+     */
+    private static class WhiteListFilter extends AuthenticationFilter {
+
+        @Override
+        protected boolean isWhiteListed(HttpServletRequest request) {
+            return super.isWhiteListed(request);
+        }
+    }
+}
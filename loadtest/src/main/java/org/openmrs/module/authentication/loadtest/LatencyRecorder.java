@@ -0,0 +1,102 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.loadtest;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records the latency of each request made during a load test, grouped by the step of the scenario that made the
+ * request, and reports the percentile latencies and error count of each step
+ */
+public class LatencyRecorder {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_LABELS = {"p50", "p90", "p99", "p99.9"};
+
+    private final Map<String, Samples> steps = new LinkedHashMap<>();
+
+    /**
+     * @param step the step of the scenario
+     * @param nanos the time taken, in nanoseconds
+     * @param success false if the response was not the response expected at this step
+     */
+    public void record(String step, long nanos, boolean success) {
+        Samples samples;
+        synchronized (steps) {
+            samples = steps.computeIfAbsent(step, k -> new Samples());
+        }
+        samples.add(nanos, success);
+    }
+
+    /**
+     * Prints a table of the number of requests, errors, and percentile latencies in milliseconds of each step
+     * @param out the stream to print to
+     */
+    public void report(PrintStream out) {
+        StringBuilder header = new StringBuilder(String.format("%-16s %9s %7s", "Step", "Requests", "Errors"));
+        for (String label : PERCENTILE_LABELS) {
+            header.append(String.format(" %9s", label));
+        }
+        header.append(String.format(" %9s", "max"));
+        out.println(header);
+        synchronized (steps) {
+            for (Map.Entry<String, Samples> entry : steps.entrySet()) {
+                long[] sorted = entry.getValue().sorted();
+                StringBuilder row = new StringBuilder(String.format("%-16s %9d %7d", entry.getKey(), sorted.length, entry.getValue().errors));
+                for (double percentile : PERCENTILES) {
+                    row.append(String.format(" %9.2f", toMillis(percentile(sorted, percentile))));
+                }
+                row.append(String.format(" %9.2f", toMillis(sorted.length == 0 ? 0 : sorted[sorted.length - 1])));
+                out.println(row);
+            }
+        }
+    }
+
+    /**
+     * @return the value at the given percentile of the given sorted values, using the nearest-rank method
+     */
+    static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static class Samples {
+
+        private long[] values = new long[1024];
+        private int count;
+        private long errors;
+
+        private synchronized void add(long nanos, boolean success) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[count++] = nanos;
+            if (!success) {
+                errors++;
+            }
+        }
+
+        private synchronized long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.loadtest;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.web.WebConstants;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+
+/**
+ * Does the work of the OpenmrsFilter and the open session in view filter of the OpenMRS web application, which
+ * depend on the web application having started.  For each request, this sets the UserContext held in the HTTP
+ * session on the thread, creating it if necessary, and opens an OpenMRS session, so that the filters of this module
+ * authenticate against the OpenMRS Context and database.
+ */
+public class LoadTestOpenmrsFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        HttpSession httpSession = ((HttpServletRequest) servletRequest).getSession();
+        UserContext userContext = (UserContext) httpSession.getAttribute(WebConstants.OPENMRS_USER_CONTEXT_HTTPSESSION_ATTR);
+        if (userContext == null) {
+            userContext = new UserContext(Context.getAuthenticationScheme());
+            httpSession.setAttribute(WebConstants.OPENMRS_USER_CONTEXT_HTTPSESSION_ATTR, userContext);
+        }
+        Context.setUserContext(userContext);
+        Context.openSession();
+        try {
+            chain.doFilter(servletRequest, servletResponse);
+        }
+        finally {
+            Context.closeSession();
+            Context.clearUserContext();
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.loadtest;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.openmrs.module.authentication.web.AuthenticationFilter;
+import org.openmrs.module.authentication.web.AuthenticationHttpSessionListener;
+import org.openmrs.module.authentication.web.ForcePasswordChangeFilter;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An embedded Jetty server with the filters and session listener of this module wired as in config.xml, ie. the
+ * authenticationFilter followed by the forcePasswordChangeFilter on all urls.  These are preceded by a
+ * LoadTestOpenmrsFilter, which sets up the OpenMRS Context for each request as the OpenMRS web application does, so
+ * the server must be started within an initialized OpenMRS Context.  Requests that pass through the filters are
+ * served by a servlet that returns a short response, in place of the pages and REST resources of OpenMRS.
+ */
+public class LoadTestServer {
+
+    public static final String CONTEXT_PATH = "/openmrs";
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final AtomicLong sessionsCreated = new AtomicLong();
+    private final AtomicLong sessionsDestroyed = new AtomicLong();
+
+    /**
+     * @param port the port to listen on, or 0 to use any free port
+     * @param maxThreads the maximum number of threads used to serve requests
+     * @param sessionTimeoutSeconds the number of seconds after which an inactive session expires
+     */
+    public LoadTestServer(int port, int maxThreads, int sessionTimeoutSeconds) {
+        server = new Server(new QueuedThreadPool(maxThreads));
+        connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(port);
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath(CONTEXT_PATH);
+        context.getSessionHandler().setMaxInactiveInterval(sessionTimeoutSeconds);
+        context.addEventListener(new AuthenticationHttpSessionListener());
+        context.addEventListener(new HttpSessionListener() {
+            @Override
+            public void sessionCreated(HttpSessionEvent event) {
+                sessionsCreated.incrementAndGet();
+            }
+
+            @Override
+            public void sessionDestroyed(HttpSessionEvent event) {
+                sessionsDestroyed.incrementAndGet();
+            }
+        });
+        EnumSet<DispatcherType> dispatch = EnumSet.of(DispatcherType.REQUEST);
+        context.addFilter(new FilterHolder(new LoadTestOpenmrsFilter()), "/*", dispatch);
+        context.addFilter(new FilterHolder(new AuthenticationFilter()), "/*", dispatch);
+        context.addFilter(new FilterHolder(new ForcePasswordChangeFilter()), "/*", dispatch);
+        context.addServlet(new ServletHolder(new PageServlet()), "/*");
+        server.setHandler(context);
+    }
+
+    public void start() throws Exception {
+        server.start();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return the url of the OpenMRS context path on this server
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + connector.getLocalPort() + CONTEXT_PATH;
+    }
+
+    /**
+     * @return the number of HTTP sessions created since the server started, including regenerated sessions
+     */
+    public long getSessionsCreated() {
+        return sessionsCreated.get();
+    }
+
+    /**
+     * @return the number of HTTP sessions that have been created and not yet invalidated or expired
+     */
+    public long getActiveSessions() {
+        return sessionsCreated.get() - sessionsDestroyed.get();
+    }
+
+    /**
+     * Serves any page or REST resource with a short response
+     */
+    private static class PageServlet extends HttpServlet {
+
+        @Override
+        protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            if (request.getRequestURI().startsWith(CONTEXT_PATH + "/ws/rest/")) {
+                response.setContentType("application/json");
+                response.getWriter().write("{\"authenticated\":true}");
+            }
+            else {
+                response.setContentType("text/html");
+                response.getWriter().write("<html><body>OK</body></html>");
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A client that makes requests as a single user would with a browser, retaining the cookies set by the server
+ * between requests, and not following redirects, so that each request is timed separately.  The latency of each
+ * request is recorded under the step of the scenario that made it.
+ */
+public class VirtualUser {
+
+    private final String baseUrl;
+    private final LatencyRecorder recorder;
+    private final Map<String, String> cookies = new LinkedHashMap<>();
+
+    /**
+     * @param baseUrl the url of the OpenMRS context path, which request paths are relative to
+     * @param recorder the recorder to record the latency of each request to
+     */
+    public VirtualUser(String baseUrl, LatencyRecorder recorder) {
+        this.baseUrl = baseUrl;
+        this.recorder = recorder;
+    }
+
+    /**
+     * @param step the step of the scenario making this request
+     * @param path the path to request
+     * @param authorization the value of the Authorization header to send, or null to send none
+     * @return the response
+     */
+    public Response get(String step, String path, String authorization) throws IOException {
+        return request(step, "GET", path, authorization, null);
+    }
+
+    /**
+     * @param step the step of the scenario making this request
+     * @param path the path to post to
+     * @param params the form parameters to post
+     * @return the response
+     */
+    public Response post(String step, String path, Map<String, String> params) throws IOException {
+        StringBuilder form = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            form.append(form.length() == 0 ? "" : "&").append(URLEncoder.encode(param.getKey(), "UTF-8"));
+            form.append("=").append(URLEncoder.encode(param.getValue(), "UTF-8"));
+        }
+        return request(step, "POST", path, null, form.toString());
+    }
+
+    /**
+     * Discards all cookies, as a browser does when it is closed
+     */
+    public void clearCookies() {
+        cookies.clear();
+    }
+
+    private Response request(String step, String method, String path, String authorization, String form)
+            throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            if (!cookies.isEmpty()) {
+                StringBuilder cookieHeader = new StringBuilder();
+                for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+                    cookieHeader.append(cookieHeader.length() == 0 ? "" : "; ");
+                    cookieHeader.append(cookie.getKey()).append("=").append(cookie.getValue());
+                }
+                connection.setRequestProperty("Cookie", cookieHeader.toString());
+            }
+            if (authorization != null) {
+                connection.setRequestProperty("Authorization", authorization);
+            }
+            if (form != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(form.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = connection.getResponseCode();
+            drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+            List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+            if (setCookies != null) {
+                for (String setCookie : setCookies) {
+                    for (HttpCookie cookie : HttpCookie.parse(setCookie)) {
+                        if (cookie.hasExpired()) {
+                            cookies.remove(cookie.getName());
+                        }
+                        else {
+                            cookies.put(cookie.getName(), cookie.getValue());
+                        }
+                    }
+                }
+            }
+            return new Response(step, status, connection.getHeaderField("Location"), System.nanoTime() - start);
+        }
+        catch (IOException e) {
+            recorder.record(step, System.nanoTime() - start, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the rest of the given response body, so that the connection can be reused
+     */
+    private void drain(InputStream in) throws IOException {
+        if (in != null) {
+            try (InputStream body = in) {
+                byte[] buffer = new byte[1024];
+                while (body.read(buffer) >= 0) {
+                    // Discard
+                }
+            }
+        }
+    }
+
+    /**
+     * The status and redirect location of a response, which is recorded once the scenario has checked it
+     */
+    public class Response {
+
+        private final String step;
+        private final int status;
+        private final String location;
+        private final long nanos;
+
+        private Response(String step, int status, String location, long nanos) {
+            this.step = step;
+            this.status = status;
+            this.location = location;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Records the latency of this response, as a success if it has the given status
+         * @param expectedStatus the status expected at this step
+         * @return true if this response has the given status
+         */
+        public boolean expect(int expectedStatus) {
+            return record(status == expectedStatus);
+        }
+
+        /**
+         * Records the latency of this response, as a success if it redirects to the given path
+         * @param path the path that the response is expected to redirect to
+         * @return true if this response redirects to the given path
+         */
+        public boolean expectRedirect(String path) {
+            return record(status == HttpURLConnection.HTTP_MOVED_TEMP && location != null && location.endsWith(path));
+        }
+
+        private boolean record(boolean success) {
+            recorder.record(step, nanos, success);
+            return success;
+        }
+    }
+}
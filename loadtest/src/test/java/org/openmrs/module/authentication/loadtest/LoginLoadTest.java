@@ -0,0 +1,290 @@
+package org.openmrs.module.authentication.loadtest;
+
+import dev.samstevens.totp.code.DefaultCodeGenerator;
+import dev.samstevens.totp.code.HashingAlgorithm;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.jupiter.api.Test;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.UserLoginTracker;
+import org.openmrs.module.authentication.web.BasicWebAuthenticationScheme;
+import org.openmrs.module.authentication.web.TotpAuthenticationScheme;
+import org.openmrs.module.authentication.web.TwoFactorAuthenticationScheme;
+import org.openmrs.test.jupiter.BaseModuleContextSensitiveTest;
+import org.openmrs.util.Security;
+import org.springframework.test.context.transaction.TestTransaction;
+
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Drives a number of virtual users through a login scenario against a LoadTestServer, and reports the percentile
+ * latency of each step of the scenario, along with the number of sessions and active logins that result.  The server
+ * runs within the OpenMRS test context, on an in-memory database with the standard test dataset, so each login is
+ * authenticated by the OpenMRS Context against users saved in the database.  Each virtual user logs in once, as a
+ * distinct user, and then makes a number of authenticated requests.  Options are passed as system properties:
+ * <ul>
+ *     <li>loadtest.scenario - `basic` (form login), `totp` (form login followed by a TOTP code), or `rest` (an
+ *     Authorization header on each request, without a session cookie).  Default `basic`.</li>
+ *     <li>loadtest.users - the number of virtual users.  Default 1000.</li>
+ *     <li>loadtest.concurrency - the number of virtual users that are active at the same time.  Default 100.</li>
+ *     <li>loadtest.requests - the number of authenticated requests each user makes after logging in.  Default 5.</li>
+ *     <li>loadtest.port - the port for the server to listen on.  Default 0, ie. any free port.</li>
+ *     <li>loadtest.serverThreads - the maximum number of threads the server uses to serve requests.  Default 200.</li>
+ *     <li>loadtest.sessionTimeout - the number of seconds after which an inactive session expires.  Default 1800.</li>
+ * </ul>
+ */
+public class LoginLoadTest extends BaseModuleContextSensitiveTest {
+
+	public static final String PASSWORD = "Test1234";
+	public static final String PROTECTED_PAGE = "/index.htm";
+
+	private static final String LOGIN_PAGE = "/login.htm";
+	private static final String LOGIN_SERVLET = "/ms/legacyui/loginServlet";
+	private static final String TOTP_PAGE = "/loginTotp.htm";
+	private static final String REST_RESOURCE = "/ws/rest/v1/session";
+	private static final String TOTP_SCHEME = "totp";
+
+	/**
+	 * The sequence of requests that a virtual user makes to log in, and then to make authenticated requests
+	 */
+	public enum Scenario {
+
+		BASIC {
+			@Override
+			boolean run(VirtualUser client, Account account, int requests) throws Exception {
+				Map<String, String> params = new LinkedHashMap<>();
+				params.put("username", account.username);
+				params.put("password", PASSWORD);
+				params.put("redirect", PROTECTED_PAGE);
+				return client.get("challenge", PROTECTED_PAGE, null).expectRedirect(LOGIN_PAGE)
+						&& client.post("login", LOGIN_SERVLET, params).expectRedirect(PROTECTED_PAGE)
+						&& authenticatedRequests(client, requests);
+			}
+		},
+
+		TOTP {
+			@Override
+			boolean run(VirtualUser client, Account account, int requests) throws Exception {
+				Map<String, String> params = new LinkedHashMap<>();
+				params.put("username", account.username);
+				params.put("password", PASSWORD);
+				if (!client.get("challenge", PROTECTED_PAGE, null).expectRedirect(LOGIN_PAGE)
+						|| !client.post("primary", LOGIN_SERVLET, params).expect(HttpURLConnection.HTTP_OK)) {
+					return false;
+				}
+				long counter = System.currentTimeMillis() / 1000 / 30;
+				params.clear();
+				params.put("code", new DefaultCodeGenerator(HashingAlgorithm.SHA1, 6).generate(account.secret, counter));
+				params.put("redirect", PROTECTED_PAGE);
+				return client.post("secondary", TOTP_PAGE, params).expectRedirect(PROTECTED_PAGE)
+						&& authenticatedRequests(client, requests);
+			}
+		},
+
+		REST {
+			@Override
+			boolean run(VirtualUser client, Account account, int requests) throws Exception {
+				String credentials = account.username + ":" + PASSWORD;
+				String authorization = "Basic " + Base64.encodeBase64String(credentials.getBytes(StandardCharsets.UTF_8));
+				for (int i = 0; i < requests; i++) {
+					client.clearCookies();
+					if (!client.get("rest", REST_RESOURCE, authorization).expect(HttpURLConnection.HTTP_OK)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		};
+
+		/**
+		 * @param client the client to make requests with
+		 * @param account the account to log in as
+		 * @param requests the number of authenticated requests to make after logging in
+		 * @return true if all requests received the expected response
+		 */
+		abstract boolean run(VirtualUser client, Account account, int requests) throws Exception;
+
+		private static boolean authenticatedRequests(VirtualUser client, int requests) throws Exception {
+			for (int i = 0; i < requests; i++) {
+				if (!client.get("authenticated", PROTECTED_PAGE, null).expect(HttpURLConnection.HTTP_OK)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The credentials that a virtual user logs in with
+	 */
+	static class Account {
+
+		private final String username;
+		private final String secret;
+
+		Account(String username, String secret) {
+			this.username = username;
+			this.secret = secret;
+		}
+	}
+
+	/**
+	 * Adds the authentication configuration of the scenario to the runtime properties of the test context
+	 */
+	@Override
+	public Properties getRuntimeProperties() {
+		Properties p = super.getRuntimeProperties();
+		p.putAll(getConfig(getScenario()));
+		return p;
+	}
+
+	@Test
+	public void shouldLogInAllVirtualUsers() throws Exception {
+		Scenario scenario = getScenario();
+		int users = getOption("users", 1000);
+		int concurrency = getOption("concurrency", 100);
+		int requests = getOption("requests", 5);
+
+		AuthenticationConfig.reloadConfigFromRuntimeProperties("openmrs");
+		List<Account> accounts = createUsers(users, scenario == Scenario.TOTP);
+
+		// Commit the standard test dataset and the users, so that they can be read by the threads of the server
+		TestTransaction.flagForCommit();
+		TestTransaction.end();
+
+		LoadTestServer server = new LoadTestServer(
+				getOption("port", 0),
+				getOption("serverThreads", 200),
+				getOption("sessionTimeout", 1800)
+		);
+		int succeeded = 0;
+		try {
+			server.start();
+			System.out.println("Server started at " + server.getBaseUrl());
+			System.out.println("Scenario: " + scenario.name().toLowerCase() + ", users: " + users
+					+ ", concurrency: " + concurrency + ", requests per user: " + requests);
+
+			LatencyRecorder recorder = new LatencyRecorder();
+			ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+			long start = System.nanoTime();
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (Account account : accounts) {
+				results.add(executor.submit(() -> {
+					VirtualUser client = new VirtualUser(server.getBaseUrl(), recorder);
+					long loginStart = System.nanoTime();
+					boolean success;
+					try {
+						success = scenario.run(client, account, requests);
+					}
+					catch (Exception e) {
+						success = false;
+					}
+					recorder.record("total", System.nanoTime() - loginStart, success);
+					return success;
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				succeeded += result.get() ? 1 : 0;
+			}
+			double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+
+			System.out.println();
+			System.out.println(String.format("Completed in %.1f s: %d users succeeded, %d failed (%.1f users/s)",
+					seconds, succeeded, users - succeeded, users / seconds));
+			recorder.report(System.out);
+			System.out.println();
+			System.out.println("Sessions created: " + server.getSessionsCreated()
+					+ ", active sessions: " + server.getActiveSessions()
+					+ ", active logins: " + UserLoginTracker.getActiveLogins().size());
+			Runtime runtime = Runtime.getRuntime();
+			System.out.println("Heap used: " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + " MB");
+		}
+		finally {
+			server.stop();
+			// Remove the committed data, in a transaction that is committed once the test completes
+			TestTransaction.start();
+			deleteAllData();
+			TestTransaction.flagForCommit();
+		}
+		assertThat(succeeded, equalTo(users));
+	}
+
+	/**
+	 * @return the authentication configuration for the given scenario
+	 */
+	static Properties getConfig(Scenario scenario) {
+		Properties p = new Properties();
+		p.setProperty(AuthenticationConfig.WHITE_LIST, LOGIN_PAGE + "," + TOTP_PAGE + "," + LOGIN_SERVLET + ",*.js,*.css,*.png");
+		p.setProperty("authentication.scheme.basic.type", BasicWebAuthenticationScheme.class.getName());
+		p.setProperty("authentication.scheme.basic.config.loginPage", LOGIN_PAGE);
+		if (scenario == Scenario.TOTP) {
+			p.setProperty(AuthenticationConfig.SCHEME, "2fa");
+			p.setProperty("authentication.scheme.2fa.type", TwoFactorAuthenticationScheme.class.getName());
+			p.setProperty("authentication.scheme.2fa.config.primaryOptions", "basic");
+			p.setProperty("authentication.scheme.2fa.config.secondaryOptions", TOTP_SCHEME);
+			p.setProperty("authentication.scheme.totp.type", TotpAuthenticationScheme.class.getName());
+			p.setProperty("authentication.scheme.totp.config.loginPage", TOTP_PAGE);
+		}
+		else {
+			p.setProperty(AuthenticationConfig.SCHEME, "basic");
+		}
+		return p;
+	}
+
+	/**
+	 * Saves the given number of users, each with a TOTP secret if required, which is encrypted as the
+	 * TotpAuthenticationScheme does when a user configures TOTP
+	 * @return the account of each user, including the unencrypted TOTP secret if required
+	 */
+	List<Account> createUsers(int count, boolean withTotp) {
+		TotpAuthenticationScheme totpScheme = null;
+		if (withTotp) {
+			totpScheme = (TotpAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme(TOTP_SCHEME);
+		}
+		List<Account> accounts = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Person person = new Person();
+			person.addName(new PersonName("Load", "Test", "User" + i));
+			person.setGender("F");
+			User user = new User(person);
+			user.setUsername("loadtest" + i);
+			String secret = null;
+			if (totpScheme != null) {
+				secret = totpScheme.generateSecret();
+				user.setUserProperty(TwoFactorAuthenticationScheme.USER_PROPERTY_SECONDARY_TYPE, TOTP_SCHEME);
+				user.setUserProperty(totpScheme.getSecretUserPropertyName(), Security.encrypt(secret));
+			}
+			Context.getUserService().createUser(user, PASSWORD);
+			accounts.add(new Account(user.getUsername(), secret));
+		}
+		Context.flushSession();
+		return accounts;
+	}
+
+	private static Scenario getScenario() {
+		return Scenario.valueOf(System.getProperty("loadtest.scenario", "basic").toUpperCase());
+	}
+
+	private static int getOption(String name, int defaultValue) {
+		String value = System.getProperty("loadtest." + name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Authenticated;
+import org.openmrs.api.context.BasicAuthenticated;
+import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.AuthenticationUtil;
+import org.openmrs.module.authentication.ConfigurableAuthenticationScheme;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.web.ApiKeyStore.ApiKey;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * This is an implementation of a WebAuthenticationScheme that supports authentication with an API key, and is
+ * intended for service-to-service integrations that would otherwise need to use a username and password.
+ * API keys are passed in a request header, by default `X-API-Key`, or in an Authorization header in the format
+ * `ApiKey ${key}`.  Each key has the format `${prefix}.${secret}`.  The prefix is not secret, and is used to look up
+ * the stored key, which holds only a hash of the secret.  The hash is an HMAC-SHA256, keyed with a `pepper` that is
+ * configured in runtime properties rather than stored in the database, of a random per-key salt and the secret.
+ * Since keys are long and random, this avoids the cost of an adaptive password hash on each request.
+ * <p>
+ * Keys can be created with an optional expiry date and can be revoked, see createApiKey and revokeApiKey.
+ */
+public class ApiKeyAuthenticationScheme extends WebAuthenticationScheme {
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    public static final String LOGIN_PAGE = "loginPage";
+    public static final String HEADER_NAME = "headerName";
+    public static final String PEPPER = "pepper";
+    public static final String LAST_USED_FLUSH_INTERVAL = "lastUsedFlushInterval";
+
+    public static final String AUTHORIZATION_HEADER = "Authorization";
+    public static final String API_KEY_PREFIX = "ApiKey ";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final SecureRandom random = new SecureRandom();
+
+    protected String loginPage;
+    protected String headerName;
+    protected String pepper;
+    protected int lastUsedFlushInterval;
+
+    /**
+     * @see ConfigurableAuthenticationScheme#configure(String, Properties)
+     */
+    @Override
+    public void configure(String schemeId, Properties config) {
+        super.configure(schemeId, config);
+        loginPage = config.getProperty(LOGIN_PAGE, BasicWebAuthenticationScheme.DEFAULT_LOGIN_PAGE);
+        headerName = config.getProperty(HEADER_NAME, "X-API-Key");
+        pepper = config.getProperty(PEPPER);
+        lastUsedFlushInterval = AuthenticationUtil.getInteger(config.getProperty(LAST_USED_FLUSH_INTERVAL), 300);
+    }
+
+    /**
+     * @see WebAuthenticationScheme#isUserConfigurationRequired(User)
+     */
+    @Override
+    public boolean isUserConfigurationRequired(User user) {
+        return false;
+    }
+
+    /**
+     * @see WebAuthenticationScheme#getChallengeUrl(AuthenticationSession)
+     */
+    @Override
+    public String getChallengeUrl(AuthenticationSession session) {
+        return loginPage;
+    }
+
+    /**
+     * @see WebAuthenticationScheme#getCredentials(AuthenticationSession)
+     */
+    @Override
+    public AuthenticationCredentials getCredentials(AuthenticationSession session) {
+        AuthenticationCredentials credentials = session.getUserLogin().getUnvalidatedCredentials(getSchemeId());
+        if (credentials != null) {
+            return credentials;
+        }
+        String apiKey = session.getRequestHeader(headerName);
+        if (StringUtils.isBlank(apiKey)) {
+            String authHeader = session.getRequestHeader(AUTHORIZATION_HEADER);
+            if (authHeader != null && authHeader.regionMatches(true, 0, API_KEY_PREFIX, 0, API_KEY_PREFIX.length())) {
+                apiKey = authHeader.substring(API_KEY_PREFIX.length());
+            }
+        }
+        if (StringUtils.isNotBlank(apiKey)) {
+            credentials = new ApiKeyCredentials(apiKey.trim());
+            session.getUserLogin().addUnvalidatedCredentials(credentials);
+        }
+        return credentials;
+    }
+
+    /**
+     * @see WebAuthenticationScheme#authenticate(AuthenticationCredentials, UserLogin)
+     */
+    @Override
+    protected Authenticated authenticate(AuthenticationCredentials credentials, UserLogin userLogin) {
+        // Ensure the credentials provided are of the expected type
+        if (!(credentials instanceof ApiKeyCredentials)) {
+            throw new ContextAuthenticationException("authentication.error.incorrectCredentialsForScheme");
+        }
+        ApiKeyCredentials c = (ApiKeyCredentials) credentials;
+        int separator = c.apiKey.indexOf('.');
+        if (separator <= 0 || separator == c.apiKey.length() - 1) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        String prefix = c.apiKey.substring(0, separator);
+        String secret = c.apiKey.substring(separator + 1);
+
+        ApiKeyStore store = getApiKeyStore();
+        ApiKey apiKey = store.getApiKey(prefix);
+        long now = System.currentTimeMillis();
+        if (apiKey == null || apiKey.isExpired(now)) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        byte[] expected = hash(apiKey.getSalt(), secret).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, apiKey.getHash().getBytes(StandardCharsets.US_ASCII))) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        if (userLogin.getUser() != null && !apiKey.getUsername().equals(userLogin.getUser().getUsername())) {
+            throw new ContextAuthenticationException("authentication.error.userDiffersFromCandidateUser");
+        }
+        userLogin.setUsername(apiKey.getUsername());
+        User user = getUserByUsername(apiKey.getUsername());
+        if (user == null) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        store.recordUsage(prefix, now);
+        store.scheduleFlush(lastUsedFlushInterval * 1000L);
+        return new BasicAuthenticated(user, getSchemeId());
+    }
+
+    /**
+     * Creates and stores a new API key for the given user.  The returned key is not stored, and cannot be retrieved
+     * again, so it must be provided to the client at this point.
+     * @param user the user that the key authenticates
+     * @param expiresAt the date after which the key is no longer valid, or null if the key does not expire
+     * @return the new API key, in the format `${prefix}.${secret}`
+     */
+    public String createApiKey(User user, Date expiresAt) {
+        String prefix = Hex.encodeHexString(randomBytes(6));
+        String secret = Base64.getUrlEncoder().withoutPadding().encodeToString(randomBytes(32));
+        String salt = Base64.getUrlEncoder().withoutPadding().encodeToString(randomBytes(16));
+        Long expiry = expiresAt == null ? null : expiresAt.getTime();
+        ApiKey apiKey = new ApiKey(prefix, user.getUsername(), salt, hash(salt, secret), expiry, null);
+        getApiKeyStore().saveApiKey(apiKey);
+        return prefix + "." + secret;
+    }
+
+    /**
+     * Revokes the API key with the given prefix, so that it can no longer be used to authenticate
+     * @param prefix the prefix of the key to revoke
+     */
+    public void revokeApiKey(String prefix) {
+        getApiKeyStore().revokeApiKey(prefix);
+    }
+
+    /**
+     * @return the ApiKeyStore for this scheme
+     */
+    protected ApiKeyStore getApiKeyStore() {
+        return ApiKeyStore.getInstance(getSchemeId());
+    }
+
+    /**
+     * Method to retrieve the user with the given username.
+     * This is separated out in a separate method to allow easier mocking
+     */
+    protected User getUserByUsername(String username) {
+        return getContextDAO().getUserByUsername(username);
+    }
+
+    /**
+     * @return the hex-encoded HMAC-SHA256 of the salt and secret, keyed with the configured pepper
+     */
+    protected String hash(String salt, String secret) {
+        if (StringUtils.isBlank(pepper)) {
+            throw new ContextAuthenticationException("authentication.error.invalidConfiguration");
+        }
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(pepper.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+            mac.update(salt.getBytes(StandardCharsets.US_ASCII));
+            return Hex.encodeHexString(mac.doFinal(secret.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to hash API key", e);
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Credentials inner class, to enable access and visibility of credential details to be limited to scheme
+     */
+    public class ApiKeyCredentials implements AuthenticationCredentials {
+
+        private final String apiKey;
+
+        @Override
+        public String getAuthenticationScheme() {
+            return getSchemeId();
+        }
+
+        protected ApiKeyCredentials(String apiKey) {
+            this.apiKey = apiKey;
+        }
+
+        @Override
+        public String getClientName() {
+            return null;
+        }
+    }
+}
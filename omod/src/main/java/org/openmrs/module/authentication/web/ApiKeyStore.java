@@ -0,0 +1,461 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.PrivilegeConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stores the API keys for a particular ApiKeyAuthenticationScheme.  Keys are persisted as global properties named
+ * `authentication.apiKey.{schemeId}.{prefix}`, and only the salted and peppered hash of each key is stored.
+ * All keys are loaded into an in-memory index, keyed on prefix, when first accessed, so that verifying a key requires
+ * only a map lookup and a single HMAC.  Changes to these global properties, including revocation, are applied to
+ * the index as they are saved, via a GlobalPropertyListener.
+ * The time at which each key was last used is held in memory and written to the database in batches, rather than
+ * on every request, on a background thread scheduled by scheduleFlush.  Only keys whose global property still exists
+ * are written, and revoking a key is mutually exclusive with writing, so that a revoked key is never restored.
+ */
+public class ApiKeyStore implements GlobalPropertyListener {
+
+    private static final Log log = LogFactory.getLog(ApiKeyStore.class);
+
+    public static final String GLOBAL_PROPERTY_PREFIX = "authentication.apiKey.";
+
+    private static final Map<String, ApiKeyStore> stores = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService flushExecutor;
+
+    private final String propertyPrefix;
+    private final Map<String, ApiKey> keys = new ConcurrentHashMap<>();
+    private final Map<String, Long> pendingLastUsed = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean loaded = false;
+
+    /**
+     * @param schemeId the schemeId of the ApiKeyAuthenticationScheme whose keys are stored
+     */
+    protected ApiKeyStore(String schemeId) {
+        this.propertyPrefix = GLOBAL_PROPERTY_PREFIX + schemeId + ".";
+    }
+
+    /**
+     * @param schemeId the schemeId of the ApiKeyAuthenticationScheme whose keys are stored
+     * @return the shared ApiKeyStore for the given schemeId
+     */
+    public static ApiKeyStore getInstance(String schemeId) {
+        return stores.computeIfAbsent(schemeId, ApiKeyStore::new);
+    }
+
+    /**
+     * Removes all shared stores, so that they are reloaded from the database when next accessed
+     */
+    public static void clearInstances() {
+        for (ApiKeyStore store : stores.values()) {
+            store.unregisterListener();
+        }
+        stores.clear();
+    }
+
+    /**
+     * Stops all background writing, and writes any pending last-used times of the shared stores.
+     * This is expected to be called on shutdown.
+     */
+    public static void stopFlushing() {
+        synchronized (ApiKeyStore.class) {
+            if (flushExecutor != null) {
+                flushExecutor.shutdownNow();
+                flushExecutor = null;
+            }
+        }
+        for (ApiKeyStore store : stores.values()) {
+            store.flushLastUsedInSession();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getFlushExecutor() {
+        if (flushExecutor == null) {
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "authentication-apikey-flush");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return flushExecutor;
+    }
+
+    /**
+     * @param prefix the non-secret prefix of the API key
+     * @return the ApiKey with the given prefix, or null if no such key exists or if it has been revoked
+     */
+    public ApiKey getApiKey(String prefix) {
+        ensureLoaded();
+        return keys.get(prefix);
+    }
+
+    /**
+     * Persists the given key and adds it to the index
+     * @param apiKey the key to save
+     */
+    public synchronized void saveApiKey(ApiKey apiKey) {
+        ensureLoaded();
+        persist(propertyPrefix + apiKey.getPrefix(), apiKey.toPropertyValue());
+        keys.put(apiKey.getPrefix(), apiKey);
+    }
+
+    /**
+     * Removes the key with the given prefix from the index and from the database.  This is synchronized with
+     * flushLastUsed, so that a flush that is in progress cannot write the revoked key back to the database.
+     * @param prefix the prefix of the key to revoke
+     */
+    public synchronized void revokeApiKey(String prefix) {
+        ensureLoaded();
+        keys.remove(prefix);
+        pendingLastUsed.remove(prefix);
+        delete(propertyPrefix + prefix);
+    }
+
+    /**
+     * Records that the key with the given prefix was used at the given time.  This is not persisted until flushed.
+     * @param prefix the prefix of the key that was used
+     * @param time the time, in epoch milliseconds, at which the key was used
+     */
+    public void recordUsage(String prefix, long time) {
+        ApiKey apiKey = keys.get(prefix);
+        if (apiKey != null) {
+            apiKey.setLastUsed(time);
+            pendingLastUsed.put(prefix, time);
+        }
+    }
+
+    /**
+     * Schedules pending last-used times to be written to the database on a background thread after the given delay,
+     * unless a write is already scheduled.  This does not block the calling thread.
+     * @param delayMillis the number of milliseconds after which to write
+     */
+    public void scheduleFlush(long delayMillis) {
+        if (!pendingLastUsed.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+            getFlushExecutor().schedule(this::flushLastUsedInSession, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes all pending last-used times to the database in a single batch.  Only keys that are still in the index
+     * and whose global property still exists are written, and any key whose global property no longer exists, for
+     * example because it was revoked on another server, is removed from the index.
+     */
+    public synchronized void flushLastUsed() {
+        flushScheduled.set(false);
+        if (pendingLastUsed.isEmpty()) {
+            return;
+        }
+        Map<String, String> updates = new HashMap<>();
+        for (String prefix : pendingLastUsed.keySet()) {
+            pendingLastUsed.remove(prefix);
+            ApiKey apiKey = keys.get(prefix);
+            if (apiKey != null) {
+                updates.put(propertyPrefix + prefix, apiKey.toPropertyValue());
+            }
+        }
+        try {
+            for (String propertyName : updateExisting(updates)) {
+                keys.remove(propertyName.substring(propertyPrefix.length()));
+            }
+        }
+        catch (Exception e) {
+            log.warn("Unable to save last used time for " + updates.size() + " API keys", e);
+        }
+    }
+
+    /**
+     * Calls flushLastUsed within a new session, as is needed when not on a request thread
+     */
+    protected void flushLastUsedInSession() {
+        try {
+            Context.openSession();
+            flushLastUsed();
+        }
+        catch (Exception e) {
+            log.warn("Unable to save last used time of API keys", e);
+        }
+        finally {
+            Context.closeSession();
+        }
+    }
+
+    /**
+     * @return the number of keys currently in the index
+     */
+    public int size() {
+        ensureLoaded();
+        return keys.size();
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    for (Map.Entry<String, String> e : loadAll(propertyPrefix).entrySet()) {
+                        index(e.getKey(), e.getValue());
+                    }
+                    registerListener();
+                    loaded = true;
+                }
+            }
+        }
+    }
+
+    private void index(String propertyName, String propertyValue) {
+        String prefix = propertyName.substring(propertyPrefix.length());
+        try {
+            keys.put(prefix, ApiKey.fromPropertyValue(prefix, propertyValue));
+        }
+        catch (Exception e) {
+            keys.remove(prefix);
+            log.warn("Ignoring invalid API key in global property " + propertyName);
+        }
+    }
+
+    /**
+     * @see GlobalPropertyListener#supportsPropertyName(String)
+     */
+    @Override
+    public boolean supportsPropertyName(String propertyName) {
+        return propertyName != null && propertyName.startsWith(propertyPrefix);
+    }
+
+    /**
+     * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+     */
+    @Override
+    public void globalPropertyChanged(GlobalProperty globalProperty) {
+        if (StringUtils.isBlank(globalProperty.getPropertyValue())) {
+            keys.remove(globalProperty.getProperty().substring(propertyPrefix.length()));
+        }
+        else {
+            index(globalProperty.getProperty(), globalProperty.getPropertyValue());
+        }
+    }
+
+    /**
+     * @see GlobalPropertyListener#globalPropertyDeleted(String)
+     */
+    @Override
+    public void globalPropertyDeleted(String propertyName) {
+        keys.remove(propertyName.substring(propertyPrefix.length()));
+    }
+
+    // Persistence methods, separated out to allow easier mocking
+
+    /**
+     * @param prefix the global property prefix to load
+     * @return a Map of property name to property value for all global properties with the given prefix
+     */
+    protected Map<String, String> loadAll(String prefix) {
+        Map<String, String> ret = new HashMap<>();
+        try {
+            Context.addProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+            for (GlobalProperty gp : getAdministrationService().getGlobalPropertiesByPrefix(prefix)) {
+                ret.put(gp.getProperty(), gp.getPropertyValue());
+            }
+        }
+        finally {
+            Context.removeProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+        }
+        return ret;
+    }
+
+    /**
+     * @param propertyName the name of the global property to save
+     * @param propertyValue the value of the global property to save
+     */
+    protected void persist(String propertyName, String propertyValue) {
+        Map<String, String> values = new HashMap<>();
+        values.put(propertyName, propertyValue);
+        persistAll(values);
+    }
+
+    /**
+     * @param values a Map of property name to property value for all global properties to save
+     */
+    protected void persistAll(Map<String, String> values) {
+        try {
+            Context.addProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+            Context.addProxyPrivilege(PrivilegeConstants.MANAGE_GLOBAL_PROPERTIES);
+            AdministrationService as = getAdministrationService();
+            for (Map.Entry<String, String> e : values.entrySet()) {
+                GlobalProperty gp = as.getGlobalPropertyObject(e.getKey());
+                if (gp == null) {
+                    gp = new GlobalProperty(e.getKey(), e.getValue());
+                }
+                else {
+                    gp.setPropertyValue(e.getValue());
+                }
+                as.saveGlobalProperty(gp);
+            }
+        }
+        finally {
+            Context.removeProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+            Context.removeProxyPrivilege(PrivilegeConstants.MANAGE_GLOBAL_PROPERTIES);
+        }
+    }
+
+    /**
+     * Updates the given global properties, without creating any that do not exist
+     * @param values a Map of property name to property value for all global properties to update
+     * @return the names of the given global properties that do not exist, and so were not updated
+     */
+    protected List<String> updateExisting(Map<String, String> values) {
+        List<String> missing = new ArrayList<>();
+        try {
+            Context.addProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+            Context.addProxyPrivilege(PrivilegeConstants.MANAGE_GLOBAL_PROPERTIES);
+            AdministrationService as = getAdministrationService();
+            for (Map.Entry<String, String> e : values.entrySet()) {
+                GlobalProperty gp = as.getGlobalPropertyObject(e.getKey());
+                if (gp == null) {
+                    missing.add(e.getKey());
+                }
+                else {
+                    gp.setPropertyValue(e.getValue());
+                    as.saveGlobalProperty(gp);
+                }
+            }
+        }
+        finally {
+            Context.removeProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+            Context.removeProxyPrivilege(PrivilegeConstants.MANAGE_GLOBAL_PROPERTIES);
+        }
+        return missing;
+    }
+
+    /**
+     * @param propertyName the name of the global property to delete
+     */
+    protected void delete(String propertyName) {
+        try {
+            Context.addProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+            Context.addProxyPrivilege(PrivilegeConstants.PURGE_GLOBAL_PROPERTIES);
+            AdministrationService as = getAdministrationService();
+            GlobalProperty gp = as.getGlobalPropertyObject(propertyName);
+            if (gp != null) {
+                as.purgeGlobalProperty(gp);
+            }
+        }
+        finally {
+            Context.removeProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+            Context.removeProxyPrivilege(PrivilegeConstants.PURGE_GLOBAL_PROPERTIES);
+        }
+    }
+
+    protected void registerListener() {
+        getAdministrationService().addGlobalPropertyListener(this);
+    }
+
+    protected void unregisterListener() {
+        if (loaded) {
+            getAdministrationService().removeGlobalPropertyListener(this);
+        }
+    }
+
+    protected AdministrationService getAdministrationService() {
+        return Context.getAdministrationService();
+    }
+
+    /**
+     * Represents a stored API key.  The secret portion of the key is never stored, only its hash.
+     */
+    public static class ApiKey {
+
+        private final String prefix;
+        private final String username;
+        private final String salt;
+        private final String hash;
+        private final Long expiresAt;
+        private volatile Long lastUsed;
+
+        public ApiKey(String prefix, String username, String salt, String hash, Long expiresAt, Long lastUsed) {
+            this.prefix = prefix;
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+            this.expiresAt = expiresAt;
+            this.lastUsed = lastUsed;
+        }
+
+        /**
+         * Stored in the format salt:hash:expiresAt:lastUsed:username, as the username may itself contain a colon
+         */
+        protected String toPropertyValue() {
+            return salt + ":" + hash + ":" + (expiresAt == null ? "" : expiresAt) + ":" +
+                    (lastUsed == null ? "" : lastUsed) + ":" + username;
+        }
+
+        protected static ApiKey fromPropertyValue(String prefix, String value) {
+            String[] parts = value.split(":", 5);
+            if (parts.length != 5 || StringUtils.isBlank(parts[0]) || StringUtils.isBlank(parts[1])) {
+                throw new IllegalArgumentException("Invalid API key");
+            }
+            Long expiresAt = StringUtils.isBlank(parts[2]) ? null : Long.parseLong(parts[2]);
+            Long lastUsed = StringUtils.isBlank(parts[3]) ? null : Long.parseLong(parts[3]);
+            return new ApiKey(prefix, parts[4], parts[0], parts[1], expiresAt, lastUsed);
+        }
+
+        /**
+         * @param time the time, in epoch milliseconds, to check
+         * @return true if this key has an expiry date that is before the given time
+         */
+        public boolean isExpired(long time) {
+            return expiresAt != null && expiresAt < time;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getSalt() {
+            return salt;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public Long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public Long getLastUsed() {
+            return lastUsed;
+        }
+
+        protected void setLastUsed(Long lastUsed) {
+            this.lastUsed = lastUsed;
+        }
+    }
+}
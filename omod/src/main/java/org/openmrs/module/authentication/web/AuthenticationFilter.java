@@ -16,9 +16,16 @@ import org.openmrs.api.context.AuthenticationScheme;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.authentication.AuthenticationConfig;
 import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.AuthenticationMetrics;
+import org.openmrs.module.authentication.AuthenticationMetrics.Outcome;
+import org.openmrs.module.authentication.AuthenticationSpan;
+import org.openmrs.module.authentication.AuthenticationTracer;
+import org.openmrs.module.authentication.AuthenticationUtil;
+import org.openmrs.module.authentication.CidrMatcher;
 import org.openmrs.module.authentication.DelegatingAuthenticationScheme;
 import org.openmrs.module.authentication.UserLogin;
 import org.openmrs.module.authentication.UserLoginTracker;
+import org.openmrs.module.authentication.web.AuthenticationStageTimer.Stage;
 import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.web.WebConstants;
 import org.springframework.util.AntPathMatcher;
@@ -32,7 +39,7 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Date;
+import java.util.List;
 
 /**
  * This servlet filter checks whether the user is authenticated, and if not, redirects to the configured login page.
@@ -40,6 +47,8 @@ import java.util.Date;
  * <p>
  * authentication.scheme = schemeId
  * authentication.whiteList = comma-delimited list of url patterns that should not require authentication
+ * authentication.ipAllowList = comma-delimited list of CIDR ranges from which requests are allowed
+ * authentication.ipDenyList = comma-delimited list of CIDR ranges from which requests are rejected
  * <p>
  * If `authentication.scheme` references a `WebAuthenticationScheme`, then this filter will activate.
  * If this is not configured, or does not implement `WebAuthenticationScheme`, no filtering will occur
@@ -49,12 +58,16 @@ import java.util.Date;
  * indicated pattern In order to load the login page and successfully login on a 1.x system using
  * legacyui, the following unprotectedUrls configuration can be used:
  * /login.htm,/ms/legacyui/loginServlet,/csrfguard,*.js,*.css,*.gif,*.jpg,*.png
+ * <p>
+ * The login locations listing served by the LoginLocationsServlet is always whitelisted
  */
 public class AuthenticationFilter implements Filter {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 
 	private AntPathMatcher matcher;
+
+	private volatile CompiledWhiteList compiledWhiteList;
 	
 	public AuthenticationFilter() {
 	}
@@ -69,6 +82,7 @@ public class AuthenticationFilter implements Filter {
 		matcher = new AntPathMatcher();
 		matcher.setCaseSensitive(false);
 		matcher.setTrimTokens(true);
+		compiledWhiteList = new CompiledWhiteList(AuthenticationConfig.getProperty(AuthenticationConfig.WHITE_LIST));
 	}
 
 	/**
@@ -77,6 +91,9 @@ public class AuthenticationFilter implements Filter {
 	@Override
 	public void destroy() {
 		matcher = null;
+		compiledWhiteList = null;
+		JsonWebKeySet.stopRefreshing();
+		ApiKeyStore.stopFlushing();
 	}
 
 	/**
@@ -105,13 +122,25 @@ public class AuthenticationFilter implements Filter {
 		
 		HttpServletRequest request = (HttpServletRequest) servletRequest;
 		HttpServletResponse response = (HttpServletResponse) servletResponse;
+		long startNanos = System.nanoTime();
+
+		// Reject requests from disallowed IP addresses before any session or credentials are created
+		if (!isIpAddressAllowed(request)) {
+			log.debug("Request rejected from IP address: " + request.getRemoteAddr());
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			recordMetrics(null, Outcome.FAILURE, startNanos);
+			return;
+		}
 
 		AuthenticationSession session = getAuthenticationSession(request, response);
 		UserLogin userLogin = session.getUserLogin();
+		String schemeId = null;
+		Outcome outcome = Outcome.SUCCESS;
+		AuthenticationSpan span = startSpan(request, session);
 
 		try {
 			UserLoginTracker.setLoginOnThread(userLogin);
-			userLogin.setLastActivityDate(new Date());
+			userLogin.setLastActivityTime(System.currentTimeMillis());
 
 			if (!session.isUserAuthenticated()) {
 
@@ -124,16 +153,25 @@ public class AuthenticationFilter implements Filter {
 				if (authenticationScheme instanceof WebAuthenticationScheme) {
 
 					WebAuthenticationScheme webScheme = (WebAuthenticationScheme) authenticationScheme;
+					schemeId = webScheme.getSchemeId();
+
+					AuthenticationStageTimer stageTimer = AuthenticationStageTimer.newInstance();
+					session.setStageTimer(stageTimer);
 
 					// If any credentials were passed in the request or session attempt to authentication with them
+					stageTimer.begin(Stage.GET_CREDENTIALS);
 					AuthenticationCredentials credentials = webScheme.getCredentials(session);
+					stageTimer.end();
 					String challengeUrl = WebUtil.contextualizeUrl(request, webScheme.getChallengeUrl(session));
 					if (credentials != null) {
 						try {
 							session.removeErrorMessage();
 							session.authenticate(webScheme, credentials);
+							stageTimer.begin(Stage.REGENERATE_HTTP_SESSION);
 							session.regenerateHttpSession();  // Guard against session fixation attacks
+							stageTimer.begin(Stage.REFRESH_DEFAULT_LOCALE);
 							session.refreshDefaultLocale(); // Refresh context locale after authentication
+							stageTimer.begin(Stage.REDIRECT);
 							String successUrl = determineSuccessRedirectUrl(request);
 							if (successUrl != null) {
 								response.sendRedirect(successUrl);
@@ -142,28 +180,130 @@ public class AuthenticationFilter implements Filter {
 						// If authentication fails, redirect back to re-initiate auth
 						catch (Exception e) {
 							log.debug("Authentication failed: " + request.getRequestURI());
+							stageTimer.begin(Stage.REDIRECT);
 							session.sendRedirect(challengeUrl);
+							outcome = Outcome.FAILURE;
 						}
+						stageTimer.complete(userLogin, schemeId, outcome);
 					}
 					// If no credentials were found, redirect to challenge url unless whitelisted
 					else {
-						if (!WebUtil.isWhiteListed(request, AuthenticationConfig.getWhiteList())) {
+						if (!isWhiteListed(request)) {
 							log.trace("Authentication required: " + request.getRequestURI());
 							session.sendRedirect(challengeUrl);
+							outcome = Outcome.REDIRECT;
+						}
+						else {
+							outcome = Outcome.WHITELISTED;
 						}
 					}
 				}
 			}
 
+			// Recorded before the rest of the filter chain, so that only the time taken by this filter is included
+			recordMetrics(schemeId, outcome, startNanos);
+			span.setAttribute(AuthenticationTracer.ATTRIBUTE_SCHEME_ID, schemeId);
+			span.setOutcome(outcome);
+			span.end();
+
 			if (!response.isCommitted()) {
 				chain.doFilter(servletRequest, servletResponse);
 			}
 		}
 		finally {
+			span.end();
 			UserLoginTracker.removeLoginFromThread();
 		}
 	}
+
+	/**
+	 * If tracing is enabled, starts a span for this request.  The span is a child of the traceparent header of the
+	 * request, if present.  Otherwise, while the user is not yet authenticated, it is a child of the first traced
+	 * request of the UserLogin, so that the requests of a multi-request login flow are part of the same trace.
+	 * @param request the request to trace
+	 * @param session the AuthenticationSession of the request
+	 * @return the started span, or AuthenticationSpan.NOOP if tracing is not enabled
+	 */
+	protected AuthenticationSpan startSpan(HttpServletRequest request, AuthenticationSession session) {
+		if (!AuthenticationTracer.isEnabled()) {
+			return AuthenticationSpan.NOOP;
+		}
+		UserLogin userLogin = session.getUserLogin();
+		boolean loginInProgress = !session.isUserAuthenticated();
+		String traceParent = request.getHeader(AuthenticationTracer.TRACEPARENT_HEADER);
+		if (traceParent == null && loginInProgress) {
+			traceParent = userLogin.getTraceParent();
+		}
+		AuthenticationSpan span = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_FILTER, traceParent);
+		span.setAttribute(AuthenticationTracer.ATTRIBUTE_LOGIN_ID, userLogin.getLoginId());
+		if (loginInProgress && userLogin.getTraceParent() == null) {
+			userLogin.setTraceParent(span.getTraceParent());
+		}
+		return span;
+	}
 	
+	/**
+	 * Records the count and latency of this request in the AuthenticationMetrics
+	 * @param schemeId the schemeId of the scheme that handled this request, or null to use the configured scheme
+	 * @param outcome success if the request is passed on to the filter chain as or after authenticating the user,
+	 * failure if it is rejected or authentication fails, redirect if it is redirected to the challenge url, or
+	 * whitelisted if it is passed on to the filter chain without authentication
+	 * @param startNanos the value of System.nanoTime when this filter started handling the request
+	 */
+	protected void recordMetrics(String schemeId, Outcome outcome, long startNanos) {
+		if (schemeId == null) {
+			schemeId = AuthenticationConfig.getProperty(AuthenticationConfig.SCHEME);
+		}
+		AuthenticationMetrics.record(AuthenticationMetrics.STAGE_FILTER, schemeId, outcome, startNanos);
+	}
+
+	/**
+	 * @param request the request to check
+	 * @return true if the request is for a url that is configured in `authentication.whiteList`, or is always allowed
+	 */
+	protected boolean isWhiteListed(HttpServletRequest request) {
+		return getWhiteListMatcher().matches(request);
+	}
+
+	/**
+	 * The whitelist is compiled when this filter is initialized, and is only compiled again if the configured
+	 * `authentication.whiteList` changes, eg. when the configuration is reloaded from the runtime properties
+	 * @return the WhiteListMatcher compiled from the configured `authentication.whiteList`, and the path of the
+	 * LoginLocationsServlet, which is always whitelisted
+	 */
+	protected WhiteListMatcher getWhiteListMatcher() {
+		String whiteList = AuthenticationConfig.getProperty(AuthenticationConfig.WHITE_LIST);
+		CompiledWhiteList compiled = compiledWhiteList;
+		if (compiled == null || !StringUtils.equals(compiled.whiteList, whiteList)) {
+			compiled = new CompiledWhiteList(whiteList);
+			compiledWhiteList = compiled;
+		}
+		return compiled.matcher;
+	}
+
+	/**
+	 * Checks the IP address of the request against the configured `authentication.ipDenyList` and
+	 * `authentication.ipAllowList`.  Requests from an address in the deny list are not allowed.  If an allow list
+	 * is configured, only requests from an address in the allow list are allowed.  If either list is not valid,
+	 * no requests are allowed.
+	 * @param request the request to check
+	 * @return true if requests are allowed from the IP address of the given request
+	 */
+	protected boolean isIpAddressAllowed(HttpServletRequest request) {
+		String ipAddress = request.getRemoteAddr();
+		try {
+			if (AuthenticationConfig.getIpDenyList().matches(ipAddress)) {
+				return false;
+			}
+			CidrMatcher allowList = AuthenticationConfig.getIpAllowList();
+			return allowList.isEmpty() || allowList.matches(ipAddress);
+		}
+		catch (IllegalArgumentException e) {
+			// The configured ranges are not valid, which is logged when first compiled, so reject rather than fail
+			return false;
+		}
+	}
+
 	/**
 	 * Returns the configured authentication scheme.
 	 * If this is a DelegatingAuthenticationScheme, returns the AuthenticationScheme that this delegates to
@@ -204,4 +344,20 @@ public class AuthenticationFilter implements Filter {
 	protected AuthenticationSession getAuthenticationSession(HttpServletRequest request, HttpServletResponse response) {
 		return new AuthenticationSession(request, response);
 	}
+
+	/**
+	 * A WhiteListMatcher, together with the configured value of `authentication.whiteList` it was compiled from
+	 */
+	private static class CompiledWhiteList {
+
+		private final String whiteList;
+		private final WhiteListMatcher matcher;
+
+		private CompiledWhiteList(String whiteList) {
+			this.whiteList = whiteList;
+			List<String> patterns = AuthenticationUtil.getStringList(whiteList, ",");
+			patterns.add(LoginLocationsServlet.PATH);
+			this.matcher = new WhiteListMatcher(patterns);
+		}
+	}
 }
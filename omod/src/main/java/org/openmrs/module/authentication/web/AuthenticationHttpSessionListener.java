@@ -53,6 +53,9 @@ public class AuthenticationHttpSessionListener implements HttpSessionListener {
 		if (!session.isSessionRegenerating() && login.getLoginDate() != null && login.getLogoutDate() == null) {
 			login.loginExpired();
 		}
+		if (!session.isSessionRegenerating()) {
+			TotpAuthenticationScheme.removeCachedSecrets(login.getUser());
+		}
 		UserLoginTracker.removeLoginFromThread();
 	}
 }
\ No newline at end of file
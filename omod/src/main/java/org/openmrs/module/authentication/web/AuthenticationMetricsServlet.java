@@ -0,0 +1,130 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.AuthenticationMetrics;
+import org.openmrs.module.authentication.AuthenticationTimer;
+import org.openmrs.module.authentication.CidrMatcher;
+import org.openmrs.module.authentication.LatencyHistogram;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the AuthenticationMetrics in the Prometheus text exposition format, as a counter of requests and a
+ * histogram of latencies in seconds, each labelled with the stage, scheme and outcome.  This is not whitelisted, so
+ * requests must be authenticated as for any other page, and the authenticated user must also have the
+ * `Get Authentication Metrics` privilege.  If `authentication.metrics.ipAllowList` is configured, requests must also
+ * come from one of its IP address ranges.
+ */
+public class AuthenticationMetricsServlet extends HttpServlet {
+
+    public static final String PATH = "/ms/authenticationMetrics";
+    public static final String PRIVILEGE = "Get Authentication Metrics";
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    static final String COUNTER = "openmrs_authentication_requests_total";
+    static final String HISTOGRAM = "openmrs_authentication_duration_seconds";
+
+    // Upper bounds of the histogram buckets, in seconds
+    static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!isIpAddressAllowed(request.getRemoteAddr()) || !hasPrivilege(PRIVILEGE)) {
+            log.debug("Request for authentication metrics rejected from IP address: " + request.getRemoteAddr());
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache");
+        writeMetrics(response.getWriter(), AuthenticationMetrics.getTimers());
+    }
+
+    /**
+     * @return true if the given IP address is within the configured `authentication.metrics.ipAllowList`, or if this
+     * is not configured
+     */
+    protected boolean isIpAddressAllowed(String ipAddress) {
+        try {
+            CidrMatcher allowList = CidrMatcher.getInstance(
+                    AuthenticationConfig.getProperty(AuthenticationConfig.METRICS_IP_ALLOW_LIST));
+            return allowList.isEmpty() || allowList.matches(ipAddress);
+        }
+        catch (IllegalArgumentException e) {
+            // The configured ranges are not valid, which is logged when first compiled, so reject rather than fail
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the authenticated user has the given privilege
+     */
+    protected boolean hasPrivilege(String privilege) {
+        return Context.hasPrivilege(privilege);
+    }
+
+    /**
+     * Writes the given timers in the Prometheus text exposition format
+     */
+    static void writeMetrics(PrintWriter out, List<AuthenticationTimer> timers) {
+        List<LatencyHistogram.Snapshot> snapshots = new ArrayList<>();
+        for (AuthenticationTimer timer : timers) {
+            snapshots.add(timer.getSnapshot());
+        }
+        out.println("# HELP " + COUNTER + " Authentication requests by stage, scheme and outcome");
+        out.println("# TYPE " + COUNTER + " counter");
+        for (int i = 0; i < timers.size(); i++) {
+            out.println(COUNTER + getLabels(timers.get(i), null) + " " + snapshots.get(i).getCount());
+        }
+        out.println("# HELP " + HISTOGRAM + " Authentication latency by stage, scheme and outcome");
+        out.println("# TYPE " + HISTOGRAM + " histogram");
+        for (int i = 0; i < timers.size(); i++) {
+            AuthenticationTimer timer = timers.get(i);
+            LatencyHistogram.Snapshot snapshot = snapshots.get(i);
+            for (double bucket : BUCKETS) {
+                long count = snapshot.getCountAtOrBelow((long) (bucket * TimeUnit.SECONDS.toNanos(1)));
+                out.println(HISTOGRAM + "_bucket" + getLabels(timer, Double.toString(bucket)) + " " + count);
+            }
+            out.println(HISTOGRAM + "_bucket" + getLabels(timer, "+Inf") + " " + snapshot.getCount());
+            out.println(HISTOGRAM + "_sum" + getLabels(timer, null) + " "
+                    + (double) snapshot.getSum() / TimeUnit.SECONDS.toNanos(1));
+            out.println(HISTOGRAM + "_count" + getLabels(timer, null) + " " + snapshot.getCount());
+        }
+        out.flush();
+    }
+
+    private static String getLabels(AuthenticationTimer timer, String le) {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("stage=\"").append(escape(timer.getStage())).append("\"");
+        sb.append(",scheme=\"").append(escape(timer.getSchemeId())).append("\"");
+        sb.append(",outcome=\"").append(escape(timer.getOutcome())).append("\"");
+        if (le != null) {
+            sb.append(",le=\"").append(le).append("\"");
+        }
+        return sb.append("}").toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
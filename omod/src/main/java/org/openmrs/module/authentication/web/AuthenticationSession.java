@@ -9,6 +9,7 @@
  */
 package org.openmrs.module.authentication.web;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.User;
@@ -18,8 +19,13 @@ import org.openmrs.api.context.ContextAuthenticationException;
 import org.openmrs.api.context.Credentials;
 import org.openmrs.module.authentication.AuthenticationConfig;
 import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.AuthenticationMetrics;
+import org.openmrs.module.authentication.AuthenticationMetrics.Outcome;
+import org.openmrs.module.authentication.AuthenticationSpan;
+import org.openmrs.module.authentication.AuthenticationTracer;
 import org.openmrs.module.authentication.UserLogin;
 import org.openmrs.module.authentication.UserLoginTracker;
+import org.openmrs.module.authentication.web.AuthenticationStageTimer.Stage;
 import org.springframework.web.servlet.i18n.CookieLocaleResolver;
 
 import javax.servlet.http.Cookie;
@@ -59,6 +65,7 @@ public class AuthenticationSession {
     private HttpServletRequest request;
     private HttpServletResponse response;
     private UserLogin userLogin;
+    private AuthenticationStageTimer stageTimer = AuthenticationStageTimer.DISABLED;
 
     /**
      * This constructor should be used in cases where there is an HttpSession available but not an
@@ -104,6 +111,21 @@ public class AuthenticationSession {
         return userLogin;
     }
 
+    /**
+     * @return the timer of the stages of the login attempt handled by this session, which does nothing unless stage
+     * timing is enabled
+     */
+    public AuthenticationStageTimer getStageTimer() {
+        return stageTimer;
+    }
+
+    /**
+     * @param stageTimer the timer of the stages of the login attempt handled by this session
+     */
+    public void setStageTimer(AuthenticationStageTimer stageTimer) {
+        this.stageTimer = stageTimer;
+    }
+
     @Override
     public String toString() {
         return "sessionId="+session.getId()+",loginId="+ userLogin.getLoginId();
@@ -159,22 +181,39 @@ public class AuthenticationSession {
      */
     public Authenticated authenticate(WebAuthenticationScheme scheme, AuthenticationCredentials credentials) {
         Authenticated authenticated;
+        String schemeId = scheme.getSchemeId();
+        long startNanos = System.nanoTime();
+        AuthenticationSpan span = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_SESSION);
+        span.setAttribute(AuthenticationTracer.ATTRIBUTE_SCHEME_ID, schemeId);
+        span.setAttribute(AuthenticationTracer.ATTRIBUTE_LOGIN_ID, userLogin.getLoginId());
         try {
-            String schemeId = scheme.getSchemeId();
+            stageTimer.begin(Stage.BEFORE_AUTHENTICATION);
             scheme.beforeAuthentication(this);
+            stageTimer.begin(Stage.AUTHENTICATE);
             if (schemeId.equals(AuthenticationConfig.getProperty(AuthenticationConfig.SCHEME))) {
                 authenticated = Context.authenticate(credentials);
             }
             else {
                 authenticated = scheme.authenticate(credentials);
             }
+            stageTimer.begin(Stage.AFTER_AUTHENTICATION);
             scheme.afterAuthenticationSuccess(this);
+            stageTimer.end();
+            AuthenticationMetrics.record(AuthenticationMetrics.STAGE_SESSION, schemeId, Outcome.SUCCESS, startNanos);
+            span.setOutcome(Outcome.SUCCESS);
         }
         catch (Exception e) {
             setErrorMessage(e.getMessage());
+            stageTimer.begin(Stage.AFTER_AUTHENTICATION);
             scheme.afterAuthenticationFailure(this);
+            stageTimer.end();
+            AuthenticationMetrics.record(AuthenticationMetrics.STAGE_SESSION, schemeId, Outcome.FAILURE, startNanos);
+            span.setOutcome(Outcome.FAILURE);
             throw new ContextAuthenticationException(e.getMessage(), e);
         }
+        finally {
+            span.end();
+        }
         return authenticated;
     }
 
@@ -264,6 +303,41 @@ public class AuthenticationSession {
         }
     }
 
+    /**
+     * Sets a cookie value on the response, if present, that is only accessible to the server and expires after the
+     * given number of seconds.  The cookie is marked as secure if the request was made over a secure connection.
+     * @param key the cookie name
+     * @param value the cookie value
+     * @param maxAge the maximum age of the cookie, in seconds
+     */
+    public void setCookieValue(String key, String value, int maxAge) {
+        if (response != null) {
+            Cookie cookie = new Cookie(key, value);
+            cookie.setMaxAge(maxAge);
+            cookie.setHttpOnly(true);
+            if (request != null) {
+                cookie.setPath(StringUtils.defaultIfEmpty(request.getContextPath(), "/"));
+                cookie.setSecure(request.isSecure());
+            }
+            response.addCookie(cookie);
+        }
+    }
+
+    /**
+     * @param key the cookie name
+     * @return the value of the cookie with the given name in the request, or null if not found
+     */
+    public String getCookieValue(String key) {
+        if (request != null && request.getCookies() != null) {
+            for (Cookie cookie : request.getCookies()) {
+                if (cookie.getName().equals(key)) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Redirects to the given url
      * @param url the url to redirect to
@@ -0,0 +1,219 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.AuthenticationEvent;
+import org.openmrs.module.authentication.AuthenticationMetrics;
+import org.openmrs.module.authentication.AuthenticationMetrics.Outcome;
+import org.openmrs.module.authentication.AuthenticationUtil;
+import org.openmrs.module.authentication.UserLogin;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times each stage of a login attempt handled by the AuthenticationFilter, so that the cause of a slow login can be
+ * identified.  A stage is timed from a call to begin until the next call to begin, end, or complete.  The times are
+ * held in an array allocated when the attempt starts.  When the attempt completes, the times are recorded as an
+ * event of the UserLogin and in the AuthenticationMetrics, and the attempt is logged if it is slower than the
+ * configured threshold.
+ * Unless `authentication.stageTiming.enabled` is true, newInstance returns a timer that does nothing, so that the
+ * filter can time each stage unconditionally.
+ */
+public class AuthenticationStageTimer {
+
+    private static final Log log = LogFactory.getLog(AuthenticationStageTimer.class);
+
+    /**
+     * A timer that records nothing, which is used when stage timing is not enabled
+     */
+    public static final AuthenticationStageTimer DISABLED = new AuthenticationStageTimer(false);
+
+    public static final String METRICS_STAGE_PREFIX = "login.";
+
+    // The value of System.nanoTime after which the next slow login may be logged
+    private static final AtomicLong nextSlowLoginLog = new AtomicLong(System.nanoTime());
+
+    /**
+     * The stages of a login attempt
+     */
+    public enum Stage {
+
+        GET_CREDENTIALS("getCredentials"),
+        BEFORE_AUTHENTICATION("beforeAuthentication"),
+        AUTHENTICATE("authenticate"),
+        AFTER_AUTHENTICATION("afterAuthentication"),
+        REGENERATE_HTTP_SESSION("regenerateHttpSession"),
+        REFRESH_DEFAULT_LOCALE("refreshDefaultLocale"),
+        REDIRECT("redirect");
+
+        private final String name;
+        private final String metricsStage;
+
+        Stage(String name) {
+            this.name = name;
+            this.metricsStage = METRICS_STAGE_PREFIX + name;
+        }
+
+        /**
+         * @return the name of this stage, as used in the breakdown
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final boolean enabled;
+    private final long[] stageNanos;
+    private final long startNanos;
+    private Stage currentStage;
+    private long currentStageStartNanos;
+
+    private AuthenticationStageTimer(boolean enabled) {
+        this.enabled = enabled;
+        this.stageNanos = enabled ? new long[Stage.values().length] : null;
+        this.startNanos = enabled ? System.nanoTime() : 0;
+        if (enabled) {
+            Arrays.fill(stageNanos, -1);
+        }
+    }
+
+    /**
+     * @return a new timer, started now, if stage timing is enabled, or the DISABLED timer if not
+     */
+    public static AuthenticationStageTimer newInstance() {
+        if (AuthenticationConfig.getBoolean(AuthenticationConfig.STAGE_TIMING_ENABLED, false)) {
+            return new AuthenticationStageTimer(true);
+        }
+        return DISABLED;
+    }
+
+    /**
+     * @return true if this timer records the stages that it times
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing the given stage, ending any stage that is currently being timed
+     * @param stage the stage to time
+     */
+    public void begin(Stage stage) {
+        if (enabled) {
+            long now = System.nanoTime();
+            end(now);
+            currentStage = stage;
+            currentStageStartNanos = now;
+        }
+    }
+
+    /**
+     * Ends the stage that is currently being timed, if any
+     */
+    public void end() {
+        if (enabled) {
+            end(System.nanoTime());
+        }
+    }
+
+    private void end(long now) {
+        if (currentStage != null) {
+            int i = currentStage.ordinal();
+            stageNanos[i] = Math.max(stageNanos[i], 0) + now - currentStageStartNanos;
+            currentStage = null;
+        }
+    }
+
+    /**
+     * @param stage the stage
+     * @return the time taken by the given stage, in nanoseconds, or -1 if the stage was not timed
+     */
+    public long getStageNanos(Stage stage) {
+        return enabled ? stageNanos[stage.ordinal()] : -1;
+    }
+
+    /**
+     * @return the time since this timer was started, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return enabled ? System.nanoTime() - startNanos : 0;
+    }
+
+    /**
+     * @param totalNanos the total time taken by the login attempt, in nanoseconds
+     * @return the time taken by each stage that was timed, and the total, in milliseconds,
+     * eg. `getCredentials=0.05ms, authenticate=812.40ms, total=815.10ms`
+     */
+    public String getBreakdown(long totalNanos) {
+        StringBuilder sb = new StringBuilder();
+        if (enabled) {
+            for (Stage stage : Stage.values()) {
+                long nanos = stageNanos[stage.ordinal()];
+                if (nanos >= 0) {
+                    sb.append(stage.getName()).append("=").append(formatMillis(nanos)).append(", ");
+                }
+            }
+        }
+        return sb.append("total=").append(formatMillis(totalNanos)).toString();
+    }
+
+    /**
+     * Ends the stage that is currently being timed, and records the time taken by each stage of this login attempt
+     * as an AUTHENTICATION_STAGE_TIMING event of the given UserLogin and in the AuthenticationMetrics.  If the
+     * attempt took longer than the configured threshold, this also logs the breakdown, at most once per interval.
+     * @param userLogin the UserLogin of the login attempt
+     * @param schemeId the schemeId of the scheme that handled the login attempt
+     * @param outcome the outcome of the login attempt
+     */
+    public void complete(UserLogin userLogin, String schemeId, Outcome outcome) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        end(now);
+        long totalNanos = now - startNanos;
+        for (Stage stage : Stage.values()) {
+            long nanos = stageNanos[stage.ordinal()];
+            if (nanos >= 0) {
+                AuthenticationMetrics.getTimer(stage.metricsStage, schemeId, outcome).record(nanos);
+            }
+        }
+        String breakdown = getBreakdown(totalNanos);
+        userLogin.recordEvent(AuthenticationEvent.AUTHENTICATION_STAGE_TIMING, schemeId, breakdown);
+        long thresholdMs = AuthenticationUtil.getInteger(
+                AuthenticationConfig.getProperty(AuthenticationConfig.SLOW_LOGIN_THRESHOLD_MS), 2000);
+        if (totalNanos > TimeUnit.MILLISECONDS.toNanos(thresholdMs) && isSlowLoginLogDue(now)) {
+            log.warn("Slow login of " + userLogin.getUsername() + " with " + schemeId + " (" + outcome.getLabel()
+                    + "): " + breakdown);
+        }
+    }
+
+    /**
+     * @return true if no slow login has been logged within the configured interval before the given time
+     */
+    static boolean isSlowLoginLogDue(long nowNanos) {
+        long next = nextSlowLoginLog.get();
+        if (nowNanos - next < 0) {
+            return false;
+        }
+        long intervalSeconds = AuthenticationUtil.getInteger(
+                AuthenticationConfig.getProperty(AuthenticationConfig.SLOW_LOGIN_LOG_INTERVAL_SECONDS), 60);
+        return nextSlowLoginLog.compareAndSet(next, nowNanos + TimeUnit.SECONDS.toNanos(intervalSeconds));
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.2fms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -18,6 +18,8 @@ import org.openmrs.Location;
 import org.openmrs.LocationTag;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.module.authentication.AuthenticationUtil;
+import org.openmrs.module.authentication.LocationIndex;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList;
@@ -36,12 +38,14 @@ public class BasicWithLocationAuthenticationScheme extends BasicWebAuthenticatio
 	public static final String LOCATION_REQUIRED = "locationRequired";
 	public static final String LOCATION_SESSION_ATTRIBUTE_NAME = "locationSessionAttributeName";
 	public static final String LAST_LOCATION_COOKIE_NAME = "lastLocationCookieName";
+	public static final String LOCATION_CACHE_SECONDS = "locationCacheSeconds";
 
 	private String locationParamName = "sessionLocation";
 	private String onlyLocationsWithTag = null;
 	private boolean locationRequired = false;
 	private String locationSessionAttributeName = "emrContext.sessionLocationId";
 	private String lastLocationCookieName = "emr.lastSessionLocation";
+	private int locationCacheSeconds = 300;
 
 	@Override
 	public void configure(String schemeId, Properties config) {
@@ -51,6 +55,7 @@ public class BasicWithLocationAuthenticationScheme extends BasicWebAuthenticatio
 		locationRequired = getBoolean(config.getProperty(LOCATION_REQUIRED), false);
 		locationSessionAttributeName = config.getProperty(LOCATION_SESSION_ATTRIBUTE_NAME, "emrContext.sessionLocationId");
 		lastLocationCookieName = config.getProperty(LAST_LOCATION_COOKIE_NAME, "emr.lastSessionLocation");
+		locationCacheSeconds = AuthenticationUtil.getInteger(config.getProperty(LOCATION_CACHE_SECONDS), 300);
 	}
 
 	@Override
@@ -86,21 +91,26 @@ public class BasicWithLocationAuthenticationScheme extends BasicWebAuthenticatio
 	 * is set in the system, return the one tagged location
 	 */
 	protected Location getLoginLocation(HttpServletRequest request) {
-		Location loginLocation = null;
+		LocationIndex locationIndex = getLocationIndex();
+		Integer loginLocationId;
 		String locationIdStr = request.getParameter(locationParamName);
 		if (StringUtils.isNotBlank(locationIdStr)) {
-			loginLocation = getLocation(locationIdStr);
-			if (loginLocation == null || !isValidLocation(loginLocation)) {
+			loginLocationId = locationIndex.getLocationId(locationIdStr);
+			if (loginLocationId == null) {
 				throw new IllegalArgumentException("authentication.error.invalidLocation");
 			}
 		}
-		if (loginLocation == null) {
-			List<Location> validLocations = getValidLocations();
-			if (validLocations.size() == 1) {
-				loginLocation = validLocations.get(0);
-			}
+		else {
+			loginLocationId = locationIndex.getSingleLocationId();
 		}
-		return loginLocation;
+		return loginLocationId == null ? null : Context.getLocationService().getLocation(loginLocationId);
+	}
+
+	/**
+	 * @return the index of all valid locations, which is shared across requests and rebuilt if locations change
+	 */
+	public LocationIndex getLocationIndex() {
+		return LocationIndex.getInstance(onlyLocationsWithTag, locationCacheSeconds, this::getValidLocations);
 	}
 
 	/**
@@ -109,9 +119,10 @@ public class BasicWithLocationAuthenticationScheme extends BasicWebAuthenticatio
 	protected Location getLocation(String lookup) {
 		Location l = null;
 		if (StringUtils.isNotBlank(lookup)) {
-			try {
+			if (StringUtils.isNumeric(lookup)) {
 				l = Context.getLocationService().getLocation(Integer.parseInt(lookup));
-			} catch (Exception e) {
+			}
+			if (l == null) {
 				l = Context.getLocationService().getLocationByUuid(lookup);
 			}
 		}
@@ -154,6 +165,6 @@ public class BasicWithLocationAuthenticationScheme extends BasicWebAuthenticatio
 	 * @return true if the passed location is a valid location to set as the login location
 	 */
 	protected boolean isValidLocation(Location location) {
-		return StringUtils.isBlank(onlyLocationsWithTag) || location.hasTag(onlyLocationsWithTag);
+		return getLocationIndex().contains(location.getLocationId());
 	}
 }
@@ -0,0 +1,188 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The compiled form of a factor expression, which defines the steps that must be completed to authenticate with a
+ * MultiFactorAuthenticationScheme.  An expression is a sequence of steps, separated by `->`.  Each step is either a
+ * single schemeId, or a choice of schemeIds in parentheses, separated by `|`.  A step may be followed by `?` to
+ * indicate that it is only required for users who have one of its schemes configured.  For example:
+ * <pre>
+ *     password -> (totp | secret)?
+ * </pre>
+ * The first step identifies the candidate user, and so cannot be optional.
+ * Compiled graphs are immutable, and are shared between all schemes configured with the same expression.
+ */
+public class FactorGraph {
+
+    private static final Map<String, FactorGraph> graphs = new ConcurrentHashMap<>();
+
+    private final String expression;
+    private final Step[] steps;
+
+    private FactorGraph(String expression, Step[] steps) {
+        this.expression = expression;
+        this.steps = steps;
+    }
+
+    /**
+     * @param expression the factor expression to compile
+     * @return the compiled graph for the given expression, compiling it only if it has not previously been compiled
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static FactorGraph getInstance(String expression) {
+        if (expression == null) {
+            throw new IllegalArgumentException("A factor expression is required");
+        }
+        return graphs.computeIfAbsent(expression.trim(), FactorGraph::compile);
+    }
+
+    /**
+     * @param expression the factor expression to compile
+     * @return a new compiled graph for the given expression
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static FactorGraph compile(String expression) {
+        List<Step> steps = new ArrayList<>();
+        for (String stepExpression : expression.split("->", -1)) {
+            String s = stepExpression.trim();
+            boolean optional = s.endsWith("?");
+            if (optional) {
+                s = s.substring(0, s.length() - 1).trim();
+            }
+            boolean choice = s.startsWith("(") && s.endsWith(")");
+            if (choice) {
+                s = s.substring(1, s.length() - 1);
+            }
+            List<String> schemeIds = new ArrayList<>();
+            for (String schemeId : s.split("\\|", -1)) {
+                schemeId = schemeId.trim();
+                if (!isValidSchemeId(schemeId)) {
+                    throw new IllegalArgumentException("Invalid step '" + stepExpression.trim() + "' in " + expression);
+                }
+                if (schemeIds.contains(schemeId)) {
+                    throw new IllegalArgumentException("Duplicate scheme '" + schemeId + "' in " + expression);
+                }
+                schemeIds.add(schemeId);
+            }
+            if (!choice && schemeIds.size() > 1) {
+                throw new IllegalArgumentException("Choices must be in parentheses in " + expression);
+            }
+            steps.add(new Step(schemeIds.toArray(new String[0]), optional));
+        }
+        if (steps.get(0).isOptional()) {
+            throw new IllegalArgumentException("The first step cannot be optional in " + expression);
+        }
+        return new FactorGraph(expression, steps.toArray(new Step[0]));
+    }
+
+    private static boolean isValidSchemeId(String schemeId) {
+        if (schemeId.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < schemeId.length(); i++) {
+            char c = schemeId.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the expression this graph was compiled from
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return the number of steps in this graph
+     */
+    public int size() {
+        return steps.length;
+    }
+
+    /**
+     * @param index the index of the step
+     * @return the step at the given index
+     */
+    public Step getStep(int index) {
+        return steps[index];
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * A single step in a FactorGraph, which is completed by authenticating with any one of its schemes
+     */
+    public static class Step {
+
+        private final String[] schemeIds;
+        private final boolean optional;
+
+        private Step(String[] schemeIds, boolean optional) {
+            this.schemeIds = schemeIds;
+            this.optional = optional;
+        }
+
+        /**
+         * @return the number of schemes that can be used to complete this step
+         */
+        public int getSchemeCount() {
+            return schemeIds.length;
+        }
+
+        /**
+         * @param index the index of the scheme within this step
+         * @return the schemeId at the given index
+         */
+        public String getSchemeId(int index) {
+            return schemeIds[index];
+        }
+
+        /**
+         * @return the schemeIds that can be used to complete this step, in the order they were configured
+         */
+        public List<String> getSchemeIds() {
+            return Collections.unmodifiableList(Arrays.asList(schemeIds));
+        }
+
+        /**
+         * @param schemeId the schemeId to find
+         * @return the index of the given schemeId within this step, or -1 if it cannot be used to complete this step
+         */
+        public int indexOf(String schemeId) {
+            for (int i = 0; i < schemeIds.length; i++) {
+                if (schemeIds[i].equals(schemeId)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return true if this step is only required for users who have one of its schemes configured
+         */
+        public boolean isOptional() {
+            return optional;
+        }
+    }
+}
@@ -5,6 +5,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.User;
 import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.UserLoginTracker;
 import org.openmrs.util.OpenmrsConstants;
 
 import javax.servlet.Filter;
@@ -16,7 +18,6 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.List;
 
 /**
  * This filter checks if an authenticated user has been flagged to change his password on first/subsequent login.
@@ -25,7 +26,7 @@ import java.util.List;
 public class ForcePasswordChangeFilter implements Filter {
 
 	private boolean supportForcedPasswordChange;
-	private List<String> whiteList;
+	private WhiteListMatcher whiteListMatcher;
 	String changePasswordUrl;
 
 	private final Log log = LogFactory.getLog(getClass());
@@ -39,7 +40,8 @@ public class ForcePasswordChangeFilter implements Filter {
 				log.error("Authentication Config is set to support force password change, but url to change password has not been set, ignoring");
 				supportForcedPasswordChange = false;
 			}
-			whiteList = AuthenticationConfig.getPasswordChangeWhiteList();
+			// Compiled once here, rather than sharing the cached matcher for the authentication whitelist on each request
+			whiteListMatcher = new WhiteListMatcher(AuthenticationConfig.getPasswordChangeWhiteList());
 		}
 	}
 
@@ -47,7 +49,7 @@ public class ForcePasswordChangeFilter implements Filter {
 	public void destroy() {
 		supportForcedPasswordChange = false;
 		changePasswordUrl = null;
-		whiteList = null;
+		whiteListMatcher = null;
 	}
 
 	@Override
@@ -55,7 +57,7 @@ public class ForcePasswordChangeFilter implements Filter {
 		HttpServletRequest request = (HttpServletRequest) servletRequest;
 		HttpServletResponse response = (HttpServletResponse) servletResponse;
 
-		if (supportForcedPasswordChange && !WebUtil.isWhiteListed(request, whiteList)) {
+		if (supportForcedPasswordChange && !whiteListMatcher.matches(request)) {
 			User user = getAuthenticatedUser(request, response);
 			if (user != null) {
 				if (Boolean.parseBoolean(user.getUserProperty(OpenmrsConstants.USER_PROPERTY_CHANGE_PASSWORD))) {
@@ -71,11 +73,15 @@ public class ForcePasswordChangeFilter implements Filter {
 
 	/**
 	 * Return the current authenticated user, if present, or null if no user is currently authenticated
+	 * This uses the UserLogin already set on the thread by the AuthenticationFilter, if available
 	 */
 	protected User getAuthenticatedUser(HttpServletRequest request, HttpServletResponse response) {
-		AuthenticationSession session = new AuthenticationSession(request, response);
-		if (session.isUserAuthenticated()) {
-			return session.getUserLogin().getUser();
+		UserLogin userLogin = UserLoginTracker.getLoginOnThread();
+		if (userLogin == null) {
+			userLogin = new AuthenticationSession(request, response).getUserLogin();
+		}
+		if (userLogin.isUserAuthenticated()) {
+			return userLogin.getUser();
 		}
 		return null;
 	}
@@ -0,0 +1,75 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TotpUsedCodeStore that holds the last accepted time step for each user in memory.
+ * Only a single entry is held per user, and each entry is removed once its time step has passed out of the allowed
+ * discrepancy window, so the memory used is proportional to the number of users who have recently logged in.
+ */
+public class InMemoryTotpUsedCodeStore implements TotpUsedCodeStore {
+
+    private static final long PURGE_INTERVAL = 60 * 1000;
+
+    private final Map<String, UsedStep> usedSteps = new ConcurrentHashMap<>();
+    private volatile long nextPurge = 0;
+
+    @Override
+    public boolean markUsed(String schemeId, Integer userId, long timeStep, long expiresAt) {
+        long now = System.currentTimeMillis();
+        purgeExpiredIfDue(now);
+        UsedStep candidate = new UsedStep(timeStep, expiresAt);
+        UsedStep result = usedSteps.compute(schemeId + ":" + userId, (key, existing) -> {
+            if (existing != null && existing.expiresAt >= now && existing.timeStep >= timeStep) {
+                return existing;
+            }
+            return candidate;
+        });
+        return result == candidate;
+    }
+
+    /**
+     * @return the number of users with an entry in this store, including any that have expired but not yet been removed
+     */
+    public int size() {
+        return usedSteps.size();
+    }
+
+    /**
+     * Removes all expired entries, at most once per PURGE_INTERVAL
+     */
+    protected void purgeExpiredIfDue(long now) {
+        if (now >= nextPurge) {
+            nextPurge = now + PURGE_INTERVAL;
+            purgeExpired(now);
+        }
+    }
+
+    /**
+     * Removes all entries that expired before the given time
+     */
+    protected void purgeExpired(long now) {
+        usedSteps.values().removeIf(usedStep -> usedStep.expiresAt < now);
+    }
+
+    private static class UsedStep {
+
+        private final long timeStep;
+        private final long expiresAt;
+
+        private UsedStep(long timeStep, long expiresAt) {
+            this.timeStep = timeStep;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
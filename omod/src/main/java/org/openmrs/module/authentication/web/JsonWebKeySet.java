@@ -0,0 +1,192 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represents a JSON Web Key Set (JWKS), loaded from either a local file or a URL, and indexed by key id (kid)
+ * Key sets are shared by all scheme instances that refer to the same location, and are periodically reloaded
+ * in the background so that key rotation at the identity provider is picked up without a restart.
+ * If a reload fails, the previously loaded keys are retained, so that a key set can continue to operate offline.
+ */
+public class JsonWebKeySet {
+
+    private static final Log log = LogFactory.getLog(JsonWebKeySet.class);
+
+    private static final Map<String, JsonWebKeySet> keySets = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService refreshExecutor;
+
+    // Minimum time between reloads triggered by a request for an unknown key id
+    private static final long MIN_ON_DEMAND_RELOAD_MILLIS = 30000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    private final String location;
+    private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+    private volatile long lastLoaded = 0;
+    private ScheduledFuture<?> refreshTask;
+
+    /**
+     * @param location a URL (http, https or file) or a file path from which to load the key set
+     */
+    protected JsonWebKeySet(String location) {
+        this.location = location;
+    }
+
+    /**
+     * @param location a URL (http, https or file) or a file path from which to load the key set
+     * @param refreshIntervalSeconds the interval at which to reload the key set in the background, if greater than 0
+     * @return the shared JsonWebKeySet for the given location, loading it if it has not already been loaded
+     */
+    public static JsonWebKeySet getInstance(String location, int refreshIntervalSeconds) {
+        return keySets.computeIfAbsent(location, l -> {
+            JsonWebKeySet keySet = new JsonWebKeySet(l);
+            keySet.reload();
+            if (refreshIntervalSeconds > 0) {
+                keySet.refreshTask = getRefreshExecutor().scheduleWithFixedDelay(
+                        keySet::reload, refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS
+                );
+            }
+            return keySet;
+        });
+    }
+
+    /**
+     * Stops all background reloading and removes all shared key sets.  This is expected to be called on shutdown.
+     */
+    public static synchronized void stopRefreshing() {
+        for (JsonWebKeySet keySet : keySets.values()) {
+            if (keySet.refreshTask != null) {
+                keySet.refreshTask.cancel(false);
+            }
+        }
+        keySets.clear();
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "authentication-jwks-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return refreshExecutor;
+    }
+
+    /**
+     * @param keyId the key id (kid) from the header of a token.  If null, the only key in the set is returned.
+     * @return the PublicKey with the given key id, reloading the key set if the key id is not yet known
+     */
+    public PublicKey getKey(String keyId) {
+        PublicKey key = lookup(keyId);
+        if (key == null && System.currentTimeMillis() - lastLoaded > MIN_ON_DEMAND_RELOAD_MILLIS) {
+            reload();
+            key = lookup(keyId);
+        }
+        return key;
+    }
+
+    private PublicKey lookup(String keyId) {
+        Map<String, PublicKey> currentKeys = keys;
+        if (keyId == null) {
+            return currentKeys.size() == 1 ? currentKeys.values().iterator().next() : null;
+        }
+        return currentKeys.get(keyId);
+    }
+
+    /**
+     * @return the number of keys currently loaded
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Reloads the key set from its location.  If this fails, the existing keys are retained.
+     */
+    public synchronized void reload() {
+        try (InputStream in = openStream()) {
+            keys = parse(in);
+            log.debug("Loaded " + keys.size() + " keys from " + location);
+        }
+        catch (Exception e) {
+            log.warn("Unable to load JSON Web Key Set from " + location + ", retaining existing keys", e);
+        }
+        finally {
+            lastLoaded = System.currentTimeMillis();
+        }
+    }
+
+    protected InputStream openStream() throws Exception {
+        if (location.startsWith("http://") || location.startsWith("https://") || location.startsWith("file:")) {
+            URLConnection connection = new URL(location).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            return connection.getInputStream();
+        }
+        return new FileInputStream(new File(location));
+    }
+
+    /**
+     * Parses the RSA signing keys from the given JWKS document.  Keys that are not RSA keys or that are marked for
+     * use other than signatures are ignored.
+     * @param in the input stream containing the JWKS document
+     * @return a Map of key id to PublicKey
+     */
+    protected Map<String, PublicKey> parse(InputStream in) throws Exception {
+        Map<String, PublicKey> ret = new HashMap<>();
+        JsonNode jwks = new ObjectMapper().readTree(in);
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        Base64.Decoder decoder = Base64.getUrlDecoder();
+        int index = 0;
+        for (JsonNode jwk : jwks.path("keys")) {
+            String use = jwk.path("use").asText("sig");
+            if ("RSA".equals(jwk.path("kty").asText()) && "sig".equals(use)) {
+                BigInteger modulus = new BigInteger(1, decoder.decode(jwk.path("n").asText()));
+                BigInteger exponent = new BigInteger(1, decoder.decode(jwk.path("e").asText()));
+                PublicKey key = keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent));
+                String keyId = jwk.path("kid").asText();
+                ret.put(StringUtils.isNotBlank(keyId) ? keyId : Integer.toString(index), key);
+            }
+            index++;
+        }
+        return ret;
+    }
+}
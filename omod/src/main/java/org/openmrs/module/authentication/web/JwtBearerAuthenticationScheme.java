@@ -0,0 +1,314 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Authenticated;
+import org.openmrs.api.context.BasicAuthenticated;
+import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.AuthenticationUtil;
+import org.openmrs.module.authentication.ConfigurableAuthenticationScheme;
+import org.openmrs.module.authentication.ExpiringCache;
+import org.openmrs.module.authentication.UserLogin;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This is an implementation of a WebAuthenticationScheme that supports authentication with a JSON Web Token (JWT)
+ * passed in an Authorization header in the format `Bearer ${token}`.  This is intended for API clients that obtain
+ * tokens from an external identity provider, so that they do not need to authenticate with a username and password.
+ * <p>
+ * Token signatures are verified against a JSON Web Key Set, which can be loaded from a local file or from a URL,
+ * and which is periodically reloaded in the background.  Only RSA signatures (RS256, RS384, RS512) are supported.
+ * Once a token has been verified, the result is cached, keyed on a hash of the token, until the token expires, so
+ * that subsequent requests with the same token do not need to repeat the signature verification.
+ * <p>
+ * The user is identified by the claim configured in `usernameClaim`, which must match the username of a User.
+ */
+public class JwtBearerAuthenticationScheme extends WebAuthenticationScheme {
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    public static final String LOGIN_PAGE = "loginPage";
+    public static final String JWKS_LOCATION = "jwksLocation";
+    public static final String JWKS_REFRESH_INTERVAL = "jwksRefreshInterval";
+    public static final String ISSUER = "issuer";
+    public static final String AUDIENCE = "audience";
+    public static final String USERNAME_CLAIM = "usernameClaim";
+    public static final String ALLOWED_CLOCK_SKEW = "allowedClockSkew";
+    public static final String TOKEN_CACHE_SIZE = "tokenCacheSize";
+
+    public static final String AUTHORIZATION_HEADER = "Authorization";
+    public static final String BEARER_PREFIX = "Bearer ";
+
+    private static final Map<String, String> SIGNATURE_ALGORITHMS = new HashMap<>();
+    static {
+        SIGNATURE_ALGORITHMS.put("RS256", "SHA256withRSA");
+        SIGNATURE_ALGORITHMS.put("RS384", "SHA384withRSA");
+        SIGNATURE_ALGORITHMS.put("RS512", "SHA512withRSA");
+    }
+
+    // Verified tokens, for each schemeId, keyed on the SHA-256 hash of the token
+    private static final Map<String, ExpiringCache<String, String>> verifiedTokens = new ConcurrentHashMap<>();
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    protected String loginPage;
+    protected String jwksLocation;
+    protected int jwksRefreshInterval;
+    protected String issuer;
+    protected String audience;
+    protected String usernameClaim;
+    protected int allowedClockSkew;
+    protected int tokenCacheSize;
+
+    /**
+     * @see ConfigurableAuthenticationScheme#configure(String, Properties)
+     */
+    @Override
+    public void configure(String schemeId, Properties config) {
+        super.configure(schemeId, config);
+        loginPage = config.getProperty(LOGIN_PAGE, BasicWebAuthenticationScheme.DEFAULT_LOGIN_PAGE);
+        jwksLocation = config.getProperty(JWKS_LOCATION);
+        jwksRefreshInterval = AuthenticationUtil.getInteger(config.getProperty(JWKS_REFRESH_INTERVAL), 3600);
+        issuer = config.getProperty(ISSUER);
+        audience = config.getProperty(AUDIENCE);
+        usernameClaim = config.getProperty(USERNAME_CLAIM, "sub");
+        allowedClockSkew = AuthenticationUtil.getInteger(config.getProperty(ALLOWED_CLOCK_SKEW), 60);
+        tokenCacheSize = AuthenticationUtil.getInteger(config.getProperty(TOKEN_CACHE_SIZE), 10000);
+    }
+
+    /**
+     * @see WebAuthenticationScheme#isUserConfigurationRequired(User)
+     */
+    @Override
+    public boolean isUserConfigurationRequired(User user) {
+        return false;
+    }
+
+    /**
+     * @see WebAuthenticationScheme#getChallengeUrl(AuthenticationSession)
+     */
+    @Override
+    public String getChallengeUrl(AuthenticationSession session) {
+        return loginPage;
+    }
+
+    /**
+     * @see WebAuthenticationScheme#getCredentials(AuthenticationSession)
+     */
+    @Override
+    public AuthenticationCredentials getCredentials(AuthenticationSession session) {
+        AuthenticationCredentials credentials = session.getUserLogin().getUnvalidatedCredentials(getSchemeId());
+        if (credentials != null) {
+            return credentials;
+        }
+        String authHeader = session.getRequestHeader(AUTHORIZATION_HEADER);
+        if (authHeader != null && authHeader.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+            String token = authHeader.substring(BEARER_PREFIX.length()).trim();
+            if (StringUtils.isNotBlank(token)) {
+                credentials = new JwtCredentials(token);
+                session.getUserLogin().addUnvalidatedCredentials(credentials);
+            }
+        }
+        return credentials;
+    }
+
+    /**
+     * @see WebAuthenticationScheme#authenticate(AuthenticationCredentials, UserLogin)
+     */
+    @Override
+    protected Authenticated authenticate(AuthenticationCredentials credentials, UserLogin userLogin) {
+        // Ensure the credentials provided are of the expected type
+        if (!(credentials instanceof JwtCredentials)) {
+            throw new ContextAuthenticationException("authentication.error.incorrectCredentialsForScheme");
+        }
+        JwtCredentials c = (JwtCredentials) credentials;
+        String username = getVerifiedUsername(c.token);
+        if (userLogin.getUser() != null && !username.equals(userLogin.getUser().getUsername())) {
+            throw new ContextAuthenticationException("authentication.error.userDiffersFromCandidateUser");
+        }
+        userLogin.setUsername(username);
+        User user = getUserByUsername(username);
+        if (user == null) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        return new BasicAuthenticated(user, getSchemeId());
+    }
+
+    /**
+     * Returns the username from a previously verified token if one is cached, otherwise verifies the token and
+     * caches the result until the token expires
+     * @param token the encoded JWT
+     * @return the username claimed by the token, if the token is valid
+     * @throws ContextAuthenticationException if the token is not valid
+     */
+    protected String getVerifiedUsername(String token) {
+        ExpiringCache<String, String> cache = getVerifiedTokenCache();
+        String tokenHash = hash(token);
+        String username = cache.get(tokenHash);
+        if (username == null) {
+            JsonNode claims = verifyToken(token);
+            username = claims.path(usernameClaim).asText(null);
+            if (StringUtils.isBlank(username)) {
+                throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+            }
+            cache.put(tokenHash, username, claims.path("exp").asLong() * 1000);
+        }
+        return username;
+    }
+
+    /**
+     * Verifies the signature and the registered claims (exp, nbf, iss, aud) of the given token
+     * @param token the encoded JWT
+     * @return the claims of the token, if valid
+     * @throws ContextAuthenticationException if the token is not valid
+     */
+    protected JsonNode verifyToken(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        JsonNode header;
+        JsonNode claims;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            header = objectMapper.readTree(decoder.decode(parts[0]));
+            claims = objectMapper.readTree(decoder.decode(parts[1]));
+            String algorithm = SIGNATURE_ALGORITHMS.get(header.path("alg").asText());
+            if (algorithm == null) {
+                throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+            }
+            PublicKey key = getKeySet().getKey(header.path("kid").asText(null));
+            if (key == null) {
+                throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+            }
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initVerify(key);
+            signature.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+            if (!signature.verify(decoder.decode(parts[2]))) {
+                throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+            }
+        }
+        catch (ContextAuthenticationException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            log.debug("Unable to verify token", e);
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials", e);
+        }
+
+        long now = System.currentTimeMillis() / 1000;
+        if (!claims.has("exp") || claims.path("exp").asLong() + allowedClockSkew < now) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        if (claims.has("nbf") && claims.path("nbf").asLong() - allowedClockSkew > now) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        if (StringUtils.isNotBlank(issuer) && !issuer.equals(claims.path("iss").asText())) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        if (StringUtils.isNotBlank(audience) && !hasAudience(claims.path("aud"), audience)) {
+            throw new ContextAuthenticationException("authentication.error.invalidCredentials");
+        }
+        return claims;
+    }
+
+    private boolean hasAudience(JsonNode aud, String expected) {
+        if (aud.isArray()) {
+            for (JsonNode a : aud) {
+                if (expected.equals(a.asText())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return expected.equals(aud.asText());
+    }
+
+    /**
+     * @return the JsonWebKeySet configured for this scheme
+     */
+    protected JsonWebKeySet getKeySet() {
+        if (StringUtils.isBlank(jwksLocation)) {
+            throw new ContextAuthenticationException("authentication.error.invalidConfiguration");
+        }
+        return JsonWebKeySet.getInstance(jwksLocation, jwksRefreshInterval);
+    }
+
+    /**
+     * @return the cache of verified tokens for this scheme
+     */
+    protected ExpiringCache<String, String> getVerifiedTokenCache() {
+        return verifiedTokens.computeIfAbsent(getSchemeId(), k -> new ExpiringCache<>(tokenCacheSize));
+    }
+
+    /**
+     * Removes all cached tokens for all schemes
+     */
+    public static void clearVerifiedTokens() {
+        verifiedTokens.clear();
+    }
+
+    /**
+     * Method to retrieve the user with the given username.
+     * This is separated out in a separate method to allow easier mocking
+     */
+    protected User getUserByUsername(String username) {
+        return getContextDAO().getUserByUsername(username);
+    }
+
+    private String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Hex.encodeHexString(digest.digest(token.getBytes(StandardCharsets.US_ASCII)));
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to hash token", e);
+        }
+    }
+
+    /**
+     * Credentials inner class, to enable access and visibility of credential details to be limited to scheme
+     */
+    public class JwtCredentials implements AuthenticationCredentials {
+
+        private final String token;
+
+        @Override
+        public String getAuthenticationScheme() {
+            return getSchemeId();
+        }
+
+        protected JwtCredentials(String token) {
+            this.token = token;
+        }
+
+        @Override
+        public String getClientName() {
+            return null;
+        }
+    }
+}
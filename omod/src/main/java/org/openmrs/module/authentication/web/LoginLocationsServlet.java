@@ -0,0 +1,163 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.AuthenticationScheme;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.LocationIndex;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves the valid login locations of a BasicWithLocationAuthenticationScheme as JSON, so that login pages can
+ * render a location picker without querying locations themselves.  This is whitelisted by the AuthenticationFilter.
+ * By default, this uses the configured authentication scheme, or its primary scheme if it is a
+ * TwoFactorAuthenticationScheme.  Another scheme can be requested with a `schemeId` parameter only if it is listed in
+ * the `authentication.loginLocations.schemes` property, as this is served to unauthenticated clients.
+ * The response is rendered once from the scheme's LocationIndex, and is served with a strong ETag, so that clients
+ * that already have the current listing receive a 304 response.  It may only be cached privately, by the client.
+ */
+public class LoginLocationsServlet extends HttpServlet {
+
+    public static final String PATH = "/ms/authenticationLoginLocations";
+    public static final String SCHEME_ID_PARAM = "schemeId";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Rendered responses, keyed on schemeId, which are replaced whenever the LocationIndex is rebuilt
+    private static final Map<String, Listing> listings = new ConcurrentHashMap<>();
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String schemeId = request.getParameter(SCHEME_ID_PARAM);
+        if (StringUtils.isBlank(schemeId)) {
+            schemeId = AuthenticationConfig.getProperty(AuthenticationConfig.SCHEME);
+        }
+        BasicWithLocationAuthenticationScheme scheme = isSchemeAllowed(schemeId) ? getLocationScheme(schemeId) : null;
+        if (scheme == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        Listing listing = getListing(schemeId, scheme.getLocationIndex());
+        response.setHeader("ETag", listing.etag);
+        response.setHeader("Cache-Control", "private, max-age=60");
+        if (matchesETag(request.getHeader("If-None-Match"), listing.etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(listing.json.length);
+        response.getOutputStream().write(listing.json);
+    }
+
+    /**
+     * @return true if the given If-None-Match header value includes the given ETag
+     */
+    protected boolean matchesETag(String ifNoneMatch, String etag) {
+        if (StringUtils.isNotBlank(ifNoneMatch)) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the given schemeId is the configured authentication scheme, or is listed in the
+     * `authentication.loginLocations.schemes` property
+     */
+    protected boolean isSchemeAllowed(String schemeId) {
+        if (StringUtils.isBlank(schemeId)) {
+            return false;
+        }
+        if (schemeId.equals(AuthenticationConfig.getProperty(AuthenticationConfig.SCHEME))) {
+            return true;
+        }
+        return AuthenticationConfig.getStringList(AuthenticationConfig.LOGIN_LOCATIONS_SCHEMES).contains(schemeId);
+    }
+
+    /**
+     * @return the BasicWithLocationAuthenticationScheme with the given schemeId, or the primary scheme of the
+     * TwoFactorAuthenticationScheme with the given schemeId, or null if neither is configured
+     */
+    protected BasicWithLocationAuthenticationScheme getLocationScheme(String schemeId) {
+        if (StringUtils.isBlank(schemeId)) {
+            return null;
+        }
+        AuthenticationScheme scheme;
+        try {
+            scheme = AuthenticationConfig.getAuthenticationScheme(schemeId);
+            if (scheme instanceof TwoFactorAuthenticationScheme) {
+                scheme = ((TwoFactorAuthenticationScheme) scheme).getPrimaryAuthenticationScheme();
+            }
+        }
+        catch (Exception e) {
+            log.debug("Unable to retrieve authentication scheme " + schemeId, e);
+            return null;
+        }
+        if (scheme instanceof BasicWithLocationAuthenticationScheme) {
+            return (BasicWithLocationAuthenticationScheme) scheme;
+        }
+        return null;
+    }
+
+    /**
+     * @return the rendered listing for the given LocationIndex, rendering it only if the index has been rebuilt
+     */
+    protected Listing getListing(String schemeId, LocationIndex locationIndex) throws IOException {
+        Listing listing = listings.get(schemeId);
+        if (listing == null || listing.locationIndex != locationIndex) {
+            List<Map<String, Object>> locations = new ArrayList<>();
+            for (LocationIndex.Entry entry : locationIndex.getLocations()) {
+                Map<String, Object> location = new LinkedHashMap<>();
+                location.put("id", entry.getLocationId());
+                location.put("uuid", entry.getUuid());
+                location.put("name", entry.getName());
+                locations.add(location);
+            }
+            byte[] json = objectMapper.writeValueAsBytes(locations);
+            listing = new Listing(locationIndex, json, "\"" + DigestUtils.sha256Hex(json) + "\"");
+            listings.put(schemeId, listing);
+        }
+        return listing;
+    }
+
+    protected static class Listing {
+
+        private final LocationIndex locationIndex;
+        private final byte[] json;
+        private final String etag;
+
+        private Listing(LocationIndex locationIndex, byte[] json, String etag) {
+            this.locationIndex = locationIndex;
+            this.json = json;
+            this.etag = etag;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Authenticated;
+import org.openmrs.api.context.AuthenticationScheme;
+import org.openmrs.api.context.BasicAuthenticated;
+import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.AuthenticationSpan;
+import org.openmrs.module.authentication.AuthenticationTracer;
+import org.openmrs.module.authentication.ConfigurableAuthenticationScheme;
+import org.openmrs.module.authentication.UserLogin;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * An authentication scheme that requires a configured sequence of authentication factors, as defined by a
+ * FactorGraph.  For example, `password -> (totp | secret)?` requires authentication with the `password` scheme,
+ * followed by either the `totp` or `secret` scheme for those users who have one of these configured, via the
+ * `authentication.secondaryType` user property.  A location check can be included by using a
+ * BasicWithLocationAuthenticationScheme as one of the steps.
+ * The graph is compiled once and shared, and the progress of each login through it is held on the UserLogin, so each
+ * request only needs to consider the current step, and a single scheme instance can serve any number of logins.
+ */
+public class MultiFactorAuthenticationScheme extends WebAuthenticationScheme {
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    public static final String FACTORS = "factors";
+
+    // Key of the UserLogin attribute that holds the FactorState for a login, suffixed with the schemeId
+    public static final String FACTOR_STATE_ATTRIBUTE = "authentication.factorState.";
+
+    // Recorded as the choice for an optional step that was not required for the user
+    public static final int SKIPPED = -1;
+
+    protected String factors;
+    private FactorGraph factorGraph;
+
+    /**
+     * This supports configuring the `factors` expression that defines the steps required to authenticate
+     * @see FactorGraph
+     * @see ConfigurableAuthenticationScheme#configure(String, Properties)
+     */
+    @Override
+    public void configure(String schemeId, Properties config) {
+        super.configure(schemeId, config);
+        factors = config.getProperty(FACTORS);
+        factorGraph = null;
+    }
+
+    /**
+     * @see WebAuthenticationScheme#isUserConfigurationRequired(User)
+     */
+    @Override
+    public boolean isUserConfigurationRequired(User user) {
+        return false;
+    }
+
+    /**
+     * @see WebAuthenticationScheme#getChallengeUrl(AuthenticationSession)
+     */
+    @Override
+    public String getChallengeUrl(AuthenticationSession session) {
+        UserLogin userLogin = session.getUserLogin();
+        FactorState state = getFactorState(userLogin);
+        if (state.isComplete()) {
+            return null;
+        }
+        FactorGraph.Step step = state.graph.getStep(state.step);
+        int choice = getPreferredChoice(step, userLogin.getUser());
+        return getStepScheme(step.getSchemeId(choice < 0 ? 0 : choice)).getChallengeUrl(session);
+    }
+
+    /**
+     * Advances the login through the factor graph as far as the submitted credentials allow, starting from the
+     * current step, and returns credentials for this scheme once all required steps are complete
+     * @see WebAuthenticationScheme#getCredentials(AuthenticationSession)
+     */
+    @Override
+    public AuthenticationCredentials getCredentials(AuthenticationSession session) {
+        AuthenticationSpan span = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_GET_CREDENTIALS);
+        span.setAttribute(AuthenticationTracer.ATTRIBUTE_SCHEME_ID, getSchemeId());
+        span.setAttribute(AuthenticationTracer.ATTRIBUTE_LOGIN_ID, session.getUserLogin().getLoginId());
+        try {
+            return findCredentials(session);
+        }
+        finally {
+            span.end();
+        }
+    }
+
+    private AuthenticationCredentials findCredentials(AuthenticationSession session) {
+        UserLogin userLogin = session.getUserLogin();
+        AuthenticationCredentials existingCredentials = userLogin.getUnvalidatedCredentials(getSchemeId());
+        if (existingCredentials != null) {
+            return existingCredentials;
+        }
+        FactorState state = getFactorState(userLogin);
+        while (!state.isComplete()) {
+            FactorGraph.Step step = state.graph.getStep(state.step);
+            int validated = getValidatedChoice(step, userLogin);
+            if (validated >= 0) {
+                state.advance(validated, userLogin.getUser());
+            }
+            else if (step.isOptional() && getPreferredChoice(step, userLogin.getUser()) < 0) {
+                log.debug("Step " + state.step + " not required for user: " + userLogin.getUsername());
+                state.advance(SKIPPED, userLogin.getUser());
+            }
+            else if (!authenticateStep(session, state, step)) {
+                return null;
+            }
+        }
+        MultiFactorAuthenticationCredentials credentials = new MultiFactorAuthenticationCredentials(
+                userLogin.getUser(), userLogin.getValidatedCredentials(), state.choices
+        );
+        userLogin.addUnvalidatedCredentials(credentials);
+        return credentials;
+    }
+
+    /**
+     * Attempts to complete the given step with credentials submitted on the current request.  If the user has a
+     * preferred scheme for the step, only that scheme is used, otherwise each of the schemes is tried in order.
+     * @return true if the step was completed
+     */
+    protected boolean authenticateStep(AuthenticationSession session, FactorState state, FactorGraph.Step step) {
+        UserLogin userLogin = session.getUserLogin();
+        int preferred = getPreferredChoice(step, userLogin.getUser());
+        int from = preferred < 0 ? 0 : preferred;
+        int to = preferred < 0 ? step.getSchemeCount() : preferred + 1;
+        for (int i = from; i < to; i++) {
+            WebAuthenticationScheme scheme = getStepScheme(step.getSchemeId(i));
+            AuthenticationCredentials credentials = scheme.getCredentials(session);
+            if (credentials != null) {
+                try {
+                    session.authenticate(scheme, credentials);
+                    if (state.step == 0) {
+                        session.refreshDefaultLocale();
+                    }
+                    state.advance(i, userLogin.getUser());
+                    return true;
+                }
+                catch (Exception e) {
+                    log.trace("Authentication Failed for step " + state.step + ": " + credentials.getClientName(), e);
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @see WebAuthenticationScheme#authenticate(AuthenticationCredentials, UserLogin)
+     */
+    @Override
+    public Authenticated authenticate(AuthenticationCredentials credentials, UserLogin userLogin) {
+        if (!(credentials instanceof MultiFactorAuthenticationCredentials)) {
+            throw new ContextAuthenticationException("authentication.error.incorrectCredentialsForScheme");
+        }
+        MultiFactorAuthenticationCredentials mfaCreds = (MultiFactorAuthenticationCredentials) credentials;
+        if (userLogin.getUser() != null && !userLogin.getUser().equals(mfaCreds.user)) {
+            throw new ContextAuthenticationException("authentication.error.userDiffersFromCandidateUser");
+        }
+        FactorGraph graph = getFactorGraph();
+        if (mfaCreds.user == null || mfaCreds.choices.length != graph.size()) {
+            throw new ContextAuthenticationException("authentication.error.primaryAuthenticationRequired");
+        }
+        for (int i = 0; i < graph.size(); i++) {
+            FactorGraph.Step step = graph.getStep(i);
+            int choice = mfaCreds.choices[i];
+            boolean completed;
+            if (choice == SKIPPED) {
+                completed = step.isOptional() && getPreferredChoice(step, mfaCreds.user) < 0;
+            }
+            else {
+                completed = mfaCreds.validatedCredentials.contains(step.getSchemeId(choice));
+            }
+            if (!completed) {
+                String error = (i == 0 ? "primary" : "secondary") + "AuthenticationRequired";
+                throw new ContextAuthenticationException("authentication.error." + error);
+            }
+        }
+        return new BasicAuthenticated(mfaCreds.user, credentials.getAuthenticationScheme());
+    }
+
+    /**
+     * @return the FactorGraph compiled from the configured `factors` expression
+     */
+    public FactorGraph getFactorGraph() {
+        if (factorGraph == null) {
+            try {
+                factorGraph = FactorGraph.getInstance(factors);
+            }
+            catch (Exception e) {
+                throw new ContextAuthenticationException("authentication.error.invalidConfiguration", e);
+            }
+        }
+        return factorGraph;
+    }
+
+    /**
+     * Returns the progress of the given login through the factor graph, which is stored on the UserLogin.  This is
+     * reset if the candidate user has changed since it was last advanced, eg. following a failed authentication, or
+     * if the configured graph has changed.
+     * @param userLogin the UserLogin to get the state for
+     * @return the FactorState for the given login
+     */
+    protected FactorState getFactorState(UserLogin userLogin) {
+        String attribute = FACTOR_STATE_ATTRIBUTE + getSchemeId();
+        Object existing = userLogin.getAttribute(attribute);
+        FactorGraph graph = getFactorGraph();
+        FactorState state = existing instanceof FactorState ? (FactorState) existing : null;
+        if (state == null || state.graph != graph || !Objects.equals(state.user, userLogin.getUser())) {
+            state = new FactorState(graph, userLogin.getUser());
+            userLogin.setAttribute(attribute, state);
+        }
+        return state;
+    }
+
+    /**
+     * @return the index of the scheme in the given step that has already been validated for this login, or -1 if none
+     */
+    protected int getValidatedChoice(FactorGraph.Step step, UserLogin userLogin) {
+        for (int i = 0; i < step.getSchemeCount(); i++) {
+            if (userLogin.isCredentialValidated(step.getSchemeId(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The preferred scheme of a user is configured via a user property named `authentication.secondaryType`, the
+     * value of which is the schemeId, or a comma-delimited list of schemeIds, that the user has chosen
+     * @return the index of the scheme in the given step that the given user has configured, or -1 if none
+     */
+    protected int getPreferredChoice(FactorGraph.Step step, User user) {
+        if (user != null) {
+            String preferred = user.getUserProperty(TwoFactorAuthenticationScheme.USER_PROPERTY_SECONDARY_TYPE);
+            if (StringUtils.isNotBlank(preferred)) {
+                for (String schemeId : preferred.split(",")) {
+                    int index = step.indexOf(schemeId.trim());
+                    if (index >= 0) {
+                        return index;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param schemeId the schemeId of a step
+     * @return the WebAuthenticationScheme configured with the given schemeId
+     */
+    protected WebAuthenticationScheme getStepScheme(String schemeId) {
+        AuthenticationScheme scheme;
+        try {
+            scheme = AuthenticationConfig.getAuthenticationScheme(schemeId);
+        }
+        catch (Exception e) {
+            throw new ContextAuthenticationException("authentication.error.invalidConfiguration", e);
+        }
+        if (!(scheme instanceof WebAuthenticationScheme)) {
+            throw new ContextAuthenticationException("authentication.error.invalidConfiguration");
+        }
+        return (WebAuthenticationScheme) scheme;
+    }
+
+    /**
+     * The progress of a single login through a FactorGraph, consisting of the current step, and the index of the
+     * scheme that completed each previous step, or SKIPPED
+     */
+    public static class FactorState {
+
+        private final FactorGraph graph;
+        private final int[] choices;
+        private User user;
+        private int step;
+
+        protected FactorState(FactorGraph graph, User user) {
+            this.graph = graph;
+            this.user = user;
+            this.choices = new int[graph.size()];
+        }
+
+        protected void advance(int choice, User user) {
+            this.choices[step++] = choice;
+            this.user = user;
+        }
+
+        /**
+         * @return the index of the current step
+         */
+        public int getStep() {
+            return step;
+        }
+
+        /**
+         * @return true if all steps have been completed
+         */
+        public boolean isComplete() {
+            return step >= choices.length;
+        }
+    }
+
+    /**
+     * Credentials inner class, to enable access and visibility of credential details to be limited to scheme
+     */
+    public class MultiFactorAuthenticationCredentials implements AuthenticationCredentials {
+
+        protected final User user;
+        protected final Set<String> validatedCredentials = new HashSet<>();
+        protected final int[] choices;
+
+        protected MultiFactorAuthenticationCredentials(User user, Set<String> validatedCredentials, int[] choices) {
+            this.user = user;
+            if (validatedCredentials != null) {
+                this.validatedCredentials.addAll(validatedCredentials);
+            }
+            this.choices = Arrays.copyOf(choices, choices.length);
+        }
+
+        @Override
+        public String getAuthenticationScheme() {
+            return getSchemeId();
+        }
+
+        @Override
+        public String getClientName() {
+            return user == null ? null : user.getUsername();
+        }
+    }
+}
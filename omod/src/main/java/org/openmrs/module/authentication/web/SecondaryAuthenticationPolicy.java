@@ -0,0 +1,119 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.User;
+import org.openmrs.module.authentication.AuthenticationUtil;
+import org.openmrs.module.authentication.CidrMatcher;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.UserLoginTracker;
+
+import java.time.LocalTime;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines, for a particular login, whether a user who has a secondary authentication scheme configured must
+ * complete it.  By default, secondary authentication is always required.  Secondary authentication is only skipped
+ * if `trustedNetworks` are configured, and all the following are true:
+ * <ul>
+ *     <li>The client IP address is within one of the `trustedNetworks` (a comma-delimited list of CIDR ranges)</li>
+ *     <li>The current time is within the `trustedHours`, if configured, eg. `07:00-19:00`</li>
+ *     <li>The user does not have any of the `alwaysRequireForRoles`, if configured</li>
+ *     <li>Fewer than `maxRecentFailures` failed authentication attempts have been made for the username within the
+ *     last `recentFailureMinutes`, across all logins.  These are tracked by the UserLoginTracker, and are cleared
+ *     when the user next logs in successfully</li>
+ * </ul>
+ */
+public class SecondaryAuthenticationPolicy {
+
+    public static final String TRUSTED_NETWORKS = "trustedNetworks";
+    public static final String TRUSTED_HOURS = "trustedHours";
+    public static final String ALWAYS_REQUIRE_FOR_ROLES = "alwaysRequireForRoles";
+    public static final String MAX_RECENT_FAILURES = "maxRecentFailures";
+    public static final String RECENT_FAILURE_MINUTES = "recentFailureMinutes";
+
+    protected CidrMatcher trustedNetworks;
+    protected LocalTime trustedHoursStart;
+    protected LocalTime trustedHoursEnd;
+    protected List<String> alwaysRequireForRoles;
+    protected int maxRecentFailures;
+    protected long recentFailureMillis;
+
+    /**
+     * @param config the properties to configure this policy with
+     * @throws IllegalArgumentException if the trustedNetworks or trustedHours are not valid
+     */
+    public SecondaryAuthenticationPolicy(Properties config) {
+        trustedNetworks = CidrMatcher.getInstance(config.getProperty(TRUSTED_NETWORKS));
+        String trustedHours = config.getProperty(TRUSTED_HOURS);
+        if (StringUtils.isNotBlank(trustedHours)) {
+            String[] range = trustedHours.split("-");
+            if (range.length != 2) {
+                throw new IllegalArgumentException("Invalid trusted hours: " + trustedHours);
+            }
+            trustedHoursStart = LocalTime.parse(range[0].trim());
+            trustedHoursEnd = LocalTime.parse(range[1].trim());
+        }
+        alwaysRequireForRoles = AuthenticationUtil.getStringList(config.getProperty(ALWAYS_REQUIRE_FOR_ROLES), ",");
+        maxRecentFailures = AuthenticationUtil.getInteger(config.getProperty(MAX_RECENT_FAILURES), 3);
+        int recentFailureMinutes = AuthenticationUtil.getInteger(config.getProperty(RECENT_FAILURE_MINUTES), 60);
+        recentFailureMillis = TimeUnit.MINUTES.toMillis(recentFailureMinutes);
+    }
+
+    /**
+     * @param userLogin the UserLogin for the current login attempt
+     * @param user the candidate user, who has a secondary authentication scheme configured
+     * @return true if the candidate user must complete secondary authentication for this login
+     */
+    public boolean isSecondaryAuthenticationRequired(UserLogin userLogin, User user) {
+        if (trustedNetworks.isEmpty() || !trustedNetworks.matches(userLogin.getIpAddress())) {
+            return true;
+        }
+        if (trustedHoursStart != null && !isWithinTrustedHours(getCurrentTime())) {
+            return true;
+        }
+        for (String role : alwaysRequireForRoles) {
+            if (user.hasRole(role.trim(), true)) {
+                return true;
+            }
+        }
+        return getRecentFailures(userLogin) >= maxRecentFailures;
+    }
+
+    /**
+     * @param time the time to check
+     * @return true if the given time is within the trusted hours, supporting ranges that span midnight
+     */
+    protected boolean isWithinTrustedHours(LocalTime time) {
+        if (trustedHoursStart.isAfter(trustedHoursEnd)) {
+            return !time.isBefore(trustedHoursStart) || time.isBefore(trustedHoursEnd);
+        }
+        return !time.isBefore(trustedHoursStart) && time.isBefore(trustedHoursEnd);
+    }
+
+    /**
+     * @return the number of failed authentication attempts recorded for the username of the given login within the
+     * last `recentFailureMinutes`, across all logins, including any made during the given login
+     */
+    protected int getRecentFailures(UserLogin userLogin) {
+        long since = System.currentTimeMillis() - recentFailureMillis;
+        return UserLoginTracker.getFailedAuthentications(userLogin.getUsername(), since);
+    }
+
+    /**
+     * This is separated out in a separate method to allow easier mocking
+     */
+    protected LocalTime getCurrentTime() {
+        return LocalTime.now();
+    }
+}
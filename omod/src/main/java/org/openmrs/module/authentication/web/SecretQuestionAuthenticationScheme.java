@@ -19,6 +19,8 @@ import org.openmrs.api.context.BasicAuthenticated;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.context.ContextAuthenticationException;
 import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.AuthenticationUtil;
+import org.openmrs.module.authentication.ExpiringCache;
 import org.openmrs.module.authentication.UserLogin;
 
 import java.util.Properties;
@@ -29,6 +31,9 @@ import java.util.Properties;
  * This scheme supports configuration parameters that enable implementations to utilize it with their own pages
  * This includes the ability to configure the `loginPage` that the user should be taken to, as well as the
  * `questionParam` and `answerParam` that should be read from the http request submission to authenticate.
+ * Configured secret questions are cached for `questionCacheSeconds`, or until the SecretQuestionChangeInterceptor
+ * sees the user's credentials change.  Once `maxAnswerAttempts` incorrect answers have been submitted since the
+ * candidate user was identified, the login is restarted, so that the user must authenticate again from the start.
  */
 public class SecretQuestionAuthenticationScheme extends WebAuthenticationScheme {
 
@@ -37,6 +42,8 @@ public class SecretQuestionAuthenticationScheme extends WebAuthenticationScheme
     public static final String LOGIN_PAGE = "loginPage";
     public static final String QUESTION_PARAM = "questionParam";
     public static final String ANSWER_PARAM = "answerParam";
+    public static final String QUESTION_CACHE_SECONDS = "questionCacheSeconds";
+    public static final String MAX_ANSWER_ATTEMPTS = "maxAnswerAttempts";
 
     public static final String QUESTION = "question";
     public static final String ANSWER = "answer";
@@ -44,6 +51,11 @@ public class SecretQuestionAuthenticationScheme extends WebAuthenticationScheme
     protected String loginPage;
     protected String questionParam;
     protected String answerParam;
+    protected int questionCacheSeconds;
+    protected int maxAnswerAttempts;
+
+    // Configured secret questions, keyed on userId
+    private static final ExpiringCache<Integer, String> questionCache = new ExpiringCache<>(1000);
 
     @Override
     public void configure(String schemeId, Properties config) {
@@ -51,6 +63,8 @@ public class SecretQuestionAuthenticationScheme extends WebAuthenticationScheme
         loginPage = config.getProperty(LOGIN_PAGE, "/loginWithSecret.htm");
         questionParam = config.getProperty(QUESTION_PARAM, QUESTION);
         answerParam = config.getProperty(ANSWER_PARAM, ANSWER);
+        questionCacheSeconds = AuthenticationUtil.getInteger(config.getProperty(QUESTION_CACHE_SECONDS), 300);
+        maxAnswerAttempts = AuthenticationUtil.getInteger(config.getProperty(MAX_ANSWER_ATTEMPTS), 5);
     }
 
     /**
@@ -58,7 +72,7 @@ public class SecretQuestionAuthenticationScheme extends WebAuthenticationScheme
      */
     @Override
     public boolean isUserConfigurationRequired(User user) {
-        return StringUtils.isBlank(Context.getUserService().getSecretQuestion(user));
+        return StringUtils.isBlank(getCachedSecretQuestion(user));
     }
 
     @Override
@@ -101,17 +115,68 @@ public class SecretQuestionAuthenticationScheme extends WebAuthenticationScheme
         if (userLogin.getUser() != null && !userLogin.getUser().equals(c.user)) {
             throw new ContextAuthenticationException("authentication.error.userDiffersFromCandidateUser");
         }
-        String expectedQuestion = getSecretQuestion(c.user);
+        if (maxAnswerAttempts > 0 && userLogin.getFailedAuthentications(getSchemeId()) >= maxAnswerAttempts) {
+            throw new ContextAuthenticationException("authentication.error.tooManyAttempts");
+        }
+        String expectedQuestion = getCachedSecretQuestion(c.user);
+        if (!c.question.equalsIgnoreCase(expectedQuestion)) {
+            // The question may have changed since it was cached
+            removeCachedSecretQuestion(c.user);
+            expectedQuestion = getCachedSecretQuestion(c.user);
+        }
         if (StringUtils.isBlank(expectedQuestion) || !expectedQuestion.equalsIgnoreCase(c.question)) {
             throw new ContextAuthenticationException("authentication.error.incorrectQuestion");
         }
         if (!isSecretAnswer(c.user, c.answer)) {
+            if (maxAnswerAttempts > 0 && userLogin.getFailedAuthentications(getSchemeId()) + 1 >= maxAnswerAttempts) {
+                userLogin.restartAuthentication();
+                throw new ContextAuthenticationException("authentication.error.tooManyAttempts");
+            }
             throw new ContextAuthenticationException("authentication.error.incorrectAnswer");
         }
 
         return new BasicAuthenticated(c.user, credentials.getAuthenticationScheme());
     }
 
+    /**
+     * @param user the user to retrieve the secret question for
+     * @return the secret question for the given user, which is cached for a short period once configured
+     */
+    protected String getCachedSecretQuestion(User user) {
+        if (questionCacheSeconds <= 0 || user.getUserId() == null) {
+            return getSecretQuestion(user);
+        }
+        String question = questionCache.get(user.getUserId());
+        if (question == null) {
+            question = getSecretQuestion(user);
+            if (StringUtils.isNotBlank(question)) {
+                questionCache.put(user.getUserId(), question, System.currentTimeMillis() + questionCacheSeconds * 1000L);
+            }
+        }
+        return question;
+    }
+
+    /**
+     * Removes the cached secret question for the given user.  This should be called when a user's question changes.
+     * @param user the user whose question should be removed
+     */
+    public static void removeCachedSecretQuestion(User user) {
+        if (user != null) {
+            removeCachedSecretQuestion(user.getUserId());
+        }
+    }
+
+    /**
+     * Removes the cached secret question for the user with the given id
+     * @param userId the id of the user whose question should be removed
+     * @see SecretQuestionChangeInterceptor
+     */
+    public static void removeCachedSecretQuestion(Integer userId) {
+        if (userId != null) {
+            questionCache.remove(userId);
+        }
+    }
+
     /**
      * @see UserService#getSecretQuestion(User)
      */
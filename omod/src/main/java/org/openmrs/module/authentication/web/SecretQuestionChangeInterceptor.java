@@ -0,0 +1,82 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.hibernate.type.Type;
+import org.openmrs.User;
+import org.openmrs.api.db.LoginCredential;
+import org.springframework.stereotype.Component;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Hibernate interceptor, registered with the OpenMRS session factory, that removes the cached secret question of
+ * each user whose login credentials are saved, modified, or deleted, or who is deleted, once the transaction that
+ * made the change has been committed
+ */
+@Component("authentication.secretQuestionChangeInterceptor")
+public class SecretQuestionChangeInterceptor extends EmptyInterceptor {
+
+    private static final ThreadLocal<Set<Integer>> changedUsers = new ThreadLocal<>();
+
+    @Override
+    public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+                                String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+    }
+
+    @Override
+    public void afterTransactionCompletion(Transaction tx) {
+        Set<Integer> userIds = changedUsers.get();
+        if (userIds != null) {
+            changedUsers.remove();
+            if (tx == null || tx.getStatus() == TransactionStatus.COMMITTED) {
+                for (Integer userId : userIds) {
+                    SecretQuestionAuthenticationScheme.removeCachedSecretQuestion(userId);
+                }
+            }
+        }
+    }
+
+    private void checkEntity(Object entity) {
+        Integer userId = null;
+        if (entity instanceof LoginCredential) {
+            userId = ((LoginCredential) entity).getUserId();
+        }
+        else if (entity instanceof User) {
+            userId = ((User) entity).getUserId();
+        }
+        if (userId != null) {
+            Set<Integer> userIds = changedUsers.get();
+            if (userIds == null) {
+                userIds = new HashSet<>();
+                changedUsers.set(userIds);
+            }
+            userIds.add(userId);
+        }
+    }
+}
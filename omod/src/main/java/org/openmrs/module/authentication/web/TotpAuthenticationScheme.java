@@ -13,28 +13,39 @@
  */
 package org.openmrs.module.authentication.web;
 
-import dev.samstevens.totp.code.CodeGenerator;
-import dev.samstevens.totp.code.DefaultCodeGenerator;
-import dev.samstevens.totp.code.DefaultCodeVerifier;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
 import dev.samstevens.totp.code.HashingAlgorithm;
 import dev.samstevens.totp.qr.QrData;
 import dev.samstevens.totp.qr.QrGenerator;
 import dev.samstevens.totp.qr.ZxingPngQrGenerator;
 import dev.samstevens.totp.secret.DefaultSecretGenerator;
-import dev.samstevens.totp.time.SystemTimeProvider;
-import dev.samstevens.totp.time.TimeProvider;
 import dev.samstevens.totp.util.Utils;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.User;
 import org.openmrs.api.context.Authenticated;
 import org.openmrs.api.context.BasicAuthenticated;
 import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.module.authentication.AuthenticationConfig;
 import org.openmrs.module.authentication.AuthenticationCredentials;
 import org.openmrs.module.authentication.AuthenticationUtil;
+import org.openmrs.module.authentication.ExpiringCache;
 import org.openmrs.module.authentication.UserLogin;
 import org.openmrs.util.Security;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This supports configuring and validating against a TOTP provider using something like Google Authenticator
@@ -46,9 +57,13 @@ public class TotpAuthenticationScheme extends WebAuthenticationScheme {
 	public static final String SECRET_LENGTH = "secretLength";
 	public static final String HASHING_ALGORITHM = "hashingAlgorithm";
 	public static final String QR_CODE_ISSUER = "qrCodeIssuer";
+	public static final String QR_CODE_FORMAT = "qrCodeFormat";
+	public static final String QR_CODE_CACHE_SECONDS = "qrCodeCacheSeconds";
 	public static final String CODE_LENGTH = "codeLength";
 	public static final String CODE_VALIDITY_PERIOD = "codeValidityPeriod";
 	public static final String ALLOWED_DISCREPANCY = "allowedDiscrepancy";
+	public static final String USED_CODE_STORE = "usedCodeStore";
+	public static final String SECRET_CACHE_SECONDS = "secretCacheSeconds";
 
 	// Configuration properties for login page
 	public static final String LOGIN_PAGE = "loginPage";
@@ -57,11 +72,34 @@ public class TotpAuthenticationScheme extends WebAuthenticationScheme {
 	private int secretLength;
 	private HashingAlgorithm hashingAlgorithm;
 	private String qrCodeIssuer;
+	private String qrCodeFormat;
+	private int qrCodeCacheSeconds;
 	private int codeLength;
 	private int codeValidityPeriod;
 	private int allowedDiscrepancy;
 	private String loginPage;
 	private String codeParam;
+	private TotpVerifier verifier;
+	private String usedCodeStoreClass;
+	private int secretCacheSeconds;
+
+	// Stores are retained across requests, keyed on the configured class name
+	private static final Map<String, TotpUsedCodeStore> usedCodeStores = new ConcurrentHashMap<>();
+
+	private static final int QR_CODE_SIZE = 350;
+	private static final String PNG = "png";
+	private static final String SVG = "svg";
+
+	// Decrypted secrets, keyed on userId and schemeId, which are zeroed once removed from the cache
+	private static final ExpiringCache<String, CachedSecret> secretCache = new ExpiringCache<String, CachedSecret>(1000) {
+		@Override
+		protected void onRemoval(CachedSecret value) {
+			value.clear();
+		}
+	};
+
+	// Rendered QR codes, keyed on a hash of the QR code content and format.  The images themselves encode the secret.
+	private static final ExpiringCache<String, byte[]> qrCodeCache = new ExpiringCache<>(100);
 
 	@Override
 	public void configure(String schemeId, Properties config) {
@@ -69,11 +107,16 @@ public class TotpAuthenticationScheme extends WebAuthenticationScheme {
 		secretLength = AuthenticationUtil.getInteger(config.getProperty(SECRET_LENGTH), 32);
 		hashingAlgorithm = HashingAlgorithm.valueOf(config.getProperty(HASHING_ALGORITHM, "SHA1"));
 		qrCodeIssuer = config.getProperty(QR_CODE_ISSUER, "OpenMRS");
+		qrCodeFormat = config.getProperty(QR_CODE_FORMAT, PNG).toLowerCase(Locale.ROOT);
+		qrCodeCacheSeconds = AuthenticationUtil.getInteger(config.getProperty(QR_CODE_CACHE_SECONDS), 10);
 		codeLength = AuthenticationUtil.getInteger(config.getProperty(CODE_LENGTH), 6);
 		codeValidityPeriod = AuthenticationUtil.getInteger(config.getProperty(CODE_VALIDITY_PERIOD), 30);
 		allowedDiscrepancy = AuthenticationUtil.getInteger(config.getProperty(ALLOWED_DISCREPANCY), 2);
 		loginPage = config.getProperty(LOGIN_PAGE, "/loginTotp.page");
 		codeParam = config.getProperty(CODE_PARAM, "code");
+		verifier = TotpVerifier.getInstance(hashingAlgorithm, codeLength, codeValidityPeriod, allowedDiscrepancy);
+		usedCodeStoreClass = config.getProperty(USED_CODE_STORE, InMemoryTotpUsedCodeStore.class.getName());
+		secretCacheSeconds = AuthenticationUtil.getInteger(config.getProperty(SECRET_CACHE_SECONDS), 300);
 	}
 
 	@Override
@@ -102,10 +145,17 @@ public class TotpAuthenticationScheme extends WebAuthenticationScheme {
 		if (StringUtils.isBlank(userSecret)) {
 			throw new ContextAuthenticationException("authentication.error.noSecretConfiguredForUser");
 		}
-		String decodedSecret = Security.decrypt(userSecret);
-		if (!verifyCode(decodedSecret, c.code)) {
+		byte[] secretKey = getSecretKey(c.user, userSecret);
+		long timeStep = verifier.verify(secretKey, c.code);
+		Arrays.fill(secretKey, (byte) 0);
+		if (timeStep == TotpVerifier.NO_MATCH) {
 			throw new ContextAuthenticationException("authentication.error.invalidCredentials");
 		}
+		// No code for this time step, or any earlier time step, can be accepted once it is outside the allowed window
+		long expiresAt = (timeStep + allowedDiscrepancy + 1) * codeValidityPeriod * 1000L;
+		if (!getUsedCodeStore().markUsed(getSchemeId(), c.user.getUserId(), timeStep, expiresAt)) {
+			throw new ContextAuthenticationException("authentication.error.codeAlreadyUsed");
+		}
 
 		return new BasicAuthenticated(c.user, credentials.getAuthenticationScheme());
 	}
@@ -151,7 +201,76 @@ public class TotpAuthenticationScheme extends WebAuthenticationScheme {
 	 * @return a url string that will render to a QR code in the browser for the given secret
 	 */
 	public String generateQrCodeUriForSecret(String secret, String label) {
-		QrData data = new QrData.Builder()
+		return Utils.getDataUriForImage(getQrCode(secret, label, qrCodeFormat), getQrCodeMimeType());
+	}
+
+	/**
+	 * Writes a QR code for the given secret directly to the given response, in the configured format
+	 * @param secret the secret to generate the QR code for
+	 * @param label the label to associate with the QR code in the app (typically username)
+	 * @param response the response to write the image to
+	 * @throws IOException if an error occurs writing to the response
+	 */
+	public void writeQrCode(String secret, String label, HttpServletResponse response) throws IOException {
+		byte[] image = getQrCode(secret, label, qrCodeFormat);
+		response.setContentType(getQrCodeMimeType());
+		response.setContentLength(image.length);
+		response.setHeader("Cache-Control", "no-store");
+		OutputStream out = response.getOutputStream();
+		out.write(image);
+		out.flush();
+	}
+
+	/**
+	 * @return the mime type of QR code images in the configured format
+	 */
+	public String getQrCodeMimeType() {
+		return SVG.equals(qrCodeFormat) ? "image/svg+xml" : "image/png";
+	}
+
+	/**
+	 * @param secret the secret to generate the QR code for
+	 * @param label the label to associate with the QR code in the app (typically username)
+	 * @return the PNG image data of a QR code for the given secret, which is always newly rendered and not cached
+	 */
+	public byte[] generateQrCodeImage(String secret, String label) {
+		return renderQrCode(getQrData(secret, label), PNG);
+	}
+
+	/**
+	 * @param secret the secret to generate the QR code for
+	 * @param label the label to associate with the QR code in the app (typically username)
+	 * @return an SVG image of a QR code for the given secret, which is much smaller than the equivalent PNG
+	 */
+	public String generateQrCodeSvg(String secret, String label) {
+		return new String(getQrCode(secret, label, SVG), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Rendered QR codes are cached for a short period, so that reloading a page that displays a QR code does not
+	 * render it again.  Entries are keyed on a hash of the QR code content, but the cached image encodes the otpauth
+	 * URI, including the secret, so the cache period should be kept shorter than that of decrypted secrets.
+	 * The returned array is shared, and must not be modified.
+	 */
+	protected byte[] getQrCode(String secret, String label, String format) {
+		QrData data = getQrData(secret, label);
+		if (qrCodeCacheSeconds <= 0) {
+			return renderQrCode(data, format);
+		}
+		String cacheKey = format + ":" + DigestUtils.sha256Hex(data.getUri());
+		byte[] image = qrCodeCache.get(cacheKey);
+		if (image == null) {
+			image = renderQrCode(data, format);
+			qrCodeCache.put(cacheKey, image, System.currentTimeMillis() + qrCodeCacheSeconds * 1000L);
+		}
+		return image;
+	}
+
+	/**
+	 * @return the data to encode in a QR code for the given secret and label
+	 */
+	protected QrData getQrData(String secret, String label) {
+		return new QrData.Builder()
 				.label(label)
 				.secret(secret)
 				.issuer(qrCodeIssuer)
@@ -159,31 +278,173 @@ public class TotpAuthenticationScheme extends WebAuthenticationScheme {
 				.digits(codeLength)
 				.period(codeValidityPeriod)
 				.build();
+	}
+
+	/**
+	 * @return the image data of a QR code for the given data, in the given format
+	 */
+	protected byte[] renderQrCode(QrData data, String format) {
 		try {
+			if (SVG.equals(format)) {
+				return renderSvg(data.getUri()).getBytes(StandardCharsets.UTF_8);
+			}
 			QrGenerator generator = new ZxingPngQrGenerator();
-			byte[] imageData = generator.generate(data);
-			String mimeType = generator.getImageMimeType();
-			return Utils.getDataUriForImage(imageData, mimeType);
+			return generator.generate(data);
 		}
 		catch (Exception e) {
 			throw new RuntimeException("An error occurred generating the QR Code", e);
 		}
 	}
 
+	/**
+	 * Renders the given content as an SVG QR code, drawing each horizontal run of dark modules as a line segment
+	 * within a single path, using relative moves between runs on the same row, with a viewBox measured in modules.
+	 * This avoids rendering a raster image, and the result scales without loss.
+	 */
+	protected String renderSvg(String content) throws Exception {
+		Map<EncodeHintType, Object> hints = Collections.singletonMap(EncodeHintType.MARGIN, 4);
+		BitMatrix matrix = new QRCodeWriter().encode(content, BarcodeFormat.QR_CODE, 0, 0, hints);
+		int width = matrix.getWidth();
+		int height = matrix.getHeight();
+		StringBuilder svg = new StringBuilder(4096);
+		svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(QR_CODE_SIZE)
+				.append("\" height=\"").append(QR_CODE_SIZE).append("\" viewBox=\"0 0 ").append(width).append(" ")
+				.append(height).append("\" shape-rendering=\"crispEdges\">");
+		svg.append("<rect width=\"100%\" height=\"100%\" fill=\"#fff\"/><path stroke=\"#000\" d=\"");
+		for (int y = 0; y < height; y++) {
+			int end = -1;
+			int x = 0;
+			while (x < width) {
+				if (matrix.get(x, y)) {
+					int start = x;
+					while (x < width && matrix.get(x, y)) {
+						x++;
+					}
+					if (end < 0) {
+						svg.append('M').append(start).append(' ').append(y).append(".5");
+					}
+					else {
+						svg.append('m').append(start - end).append(" 0");
+					}
+					svg.append('h').append(x - start);
+					end = x;
+				}
+				else {
+					x++;
+				}
+			}
+		}
+		return svg.append("\"/></svg>").toString();
+	}
+
+	/**
+	 * This is separated out in a separate method to allow easier mocking
+	 * @param secret the secret to encrypt
+	 * @return the encrypted secret, as stored in the user property
+	 */
+	protected String encryptSecret(String secret) {
+		return Security.encrypt(secret);
+	}
+
 	/**
 	 * @param secret the user assigned secret
 	 * @param code the code to verify
 	 * @return true if the entered code is valid for the given secret
 	 */
 	public boolean verifyCode(String secret, String code) {
-		TimeProvider timeProvider = new SystemTimeProvider();
-		CodeGenerator codeGenerator = new DefaultCodeGenerator(hashingAlgorithm, codeLength);
-		DefaultCodeVerifier verifier = new DefaultCodeVerifier(codeGenerator, timeProvider);
-		verifier.setTimePeriod(codeValidityPeriod);
-		verifier.setAllowedTimePeriodDiscrepancy(allowedDiscrepancy);
 		return verifier.isValidCode(secret, code);
 	}
 
+	/**
+	 * Decrypting the secret requires initializing a cipher, so the decoded secret is cached for a short period,
+	 * in a byte array that is zeroed once it is removed from the cache.  The cached secret is copied and zeroed under
+	 * the same lock, so a secret that is removed while being read is decrypted again rather than returned as zeros.
+	 * The cached secret is replaced if the encrypted secret changes, and is removed when the user's session is
+	 * destroyed.
+	 * @param user the user to retrieve the secret for
+	 * @param encryptedSecret the value of the user property that stores the user's encrypted secret
+	 * @return a copy of the decoded secret, used as the key to generate codes, which the caller should zero after use
+	 */
+	protected byte[] getSecretKey(User user, String encryptedSecret) {
+		if (secretCacheSeconds <= 0 || user.getUserId() == null) {
+			return TotpVerifier.decodeSecret(decryptSecret(encryptedSecret));
+		}
+		String cacheKey = user.getUserId() + ":" + getSchemeId();
+		CachedSecret cached = secretCache.get(cacheKey);
+		if (cached != null && cached.encryptedSecret.equals(encryptedSecret)) {
+			byte[] key = cached.copyKey();
+			if (key != null) {
+				return key;
+			}
+		}
+		byte[] key = TotpVerifier.decodeSecret(decryptSecret(encryptedSecret));
+		long expiresAt = System.currentTimeMillis() + secretCacheSeconds * 1000L;
+		secretCache.put(cacheKey, new CachedSecret(encryptedSecret, key.clone()), expiresAt);
+		return key;
+	}
+
+	/**
+	 * This is separated out in a separate method to allow easier mocking
+	 * @param encryptedSecret the encrypted secret to decrypt
+	 * @return the decrypted secret
+	 */
+	protected String decryptSecret(String encryptedSecret) {
+		return Security.decrypt(encryptedSecret);
+	}
+
+	/**
+	 * Removes any cached secrets for the given user
+	 * @param user the user whose secrets should be removed
+	 */
+	public static void removeCachedSecrets(User user) {
+		if (user != null && user.getUserId() != null) {
+			String prefix = user.getUserId() + ":";
+			secretCache.removeAll(key -> key.startsWith(prefix));
+		}
+	}
+
+	/**
+	 * @return the store used to prevent codes from being replayed, which is shared by all schemes configured with it
+	 */
+	protected TotpUsedCodeStore getUsedCodeStore() {
+		return usedCodeStores.computeIfAbsent(usedCodeStoreClass, className -> {
+			String property = AuthenticationConfig.SCHEME_CONFIG_PREFIX_TEMPLATE.replace(AuthenticationConfig.SCHEME_ID, getSchemeId());
+			TotpUsedCodeStore store = AuthenticationConfig.getClassInstance(property + USED_CODE_STORE, TotpUsedCodeStore.class);
+			return store == null ? new InMemoryTotpUsedCodeStore() : store;
+		});
+	}
+
+	/**
+	 * @return the verifier used to validate codes, which is shared by all schemes with the same code configuration
+	 */
+	public TotpVerifier getVerifier() {
+		return verifier;
+	}
+
+	private static class CachedSecret {
+
+		private final String encryptedSecret;
+		private final byte[] key;
+		private boolean cleared = false;
+
+		private CachedSecret(String encryptedSecret, byte[] key) {
+			this.encryptedSecret = encryptedSecret;
+			this.key = key;
+		}
+
+		/**
+		 * @return a copy of the key, or null if it has been zeroed
+		 */
+		private synchronized byte[] copyKey() {
+			return cleared ? null : key.clone();
+		}
+
+		private synchronized void clear() {
+			Arrays.fill(key, (byte) 0);
+			cleared = true;
+		}
+	}
+
 	/**
 	 * Credentials inner class, to enable access and visibility of credential details to be limited to scheme
 	 */
@@ -0,0 +1,212 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Enrolls many users into a TotpAuthenticationScheme at once, eg. when rolling out TOTP to a facility.
+ * Users are processed in batches.  For each batch, a secret is generated for each user that does not already have
+ * one, and QR codes are rendered in parallel on a ForkJoinPool.  Each QR code is written to a ZIP stream as
+ * `${userId}.png`, and only then are the encrypted secrets saved, in a single transaction, so that no user is left
+ * enrolled with a secret that was not exported.  Users without a userId, or without a username or systemId to label
+ * the QR code with, are skipped.  The ZIP also contains an `enrollment.csv`, which lists the userId and username
+ * of each user and whether they were enrolled or skipped.  Only a single batch is held in memory at a time.
+ */
+public class TotpBulkEnrollment {
+
+    public static final String MANIFEST = "enrollment.csv";
+    public static final String ENROLLED = "enrolled";
+    public static final String SKIPPED = "skipped";
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private final TotpAuthenticationScheme scheme;
+    private final int batchSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param scheme the configured scheme to enroll users into
+     * @param batchSize the number of users to save in each transaction
+     * @param pool the pool on which to render QR codes
+     */
+    public TotpBulkEnrollment(TotpAuthenticationScheme scheme, int batchSize, ForkJoinPool pool) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.scheme = scheme;
+        this.batchSize = batchSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Enrolls all the given users that do not already have a secret configured, and writes a ZIP of their QR codes
+     * @param users the users to enroll
+     * @param out the stream to write the ZIP to.  This is finished, but not closed.
+     * @return the number of users enrolled
+     * @throws IOException if an error occurs rendering QR codes or writing the ZIP, in which case the ZIP is not
+     * finished and should be discarded
+     */
+    public int enroll(Stream<User> users, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        List<String[]> manifest = new ArrayList<>();
+        int enrolled = 0;
+        List<Enrollment> batch = new ArrayList<>(batchSize);
+        for (Iterator<User> i = users.iterator(); i.hasNext(); ) {
+            User user = i.next();
+            String userId = user.getUserId() == null ? null : user.getUserId().toString();
+            String label = getLabel(user);
+            if (userId != null && label != null && scheme.isUserConfigurationRequired(user)) {
+                batch.add(new Enrollment(user, label, scheme.generateSecret()));
+                manifest.add(new String[] {userId, user.getUsername(), ENROLLED});
+            }
+            else {
+                manifest.add(new String[] {userId, user.getUsername(), SKIPPED});
+            }
+            if (batch.size() == batchSize || (!i.hasNext() && !batch.isEmpty())) {
+                enrolled += processBatch(batch, zip);
+                batch.clear();
+            }
+        }
+        zip.putNextEntry(new ZipEntry(MANIFEST));
+        Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        writer.write("userId,username,status\n");
+        for (String[] row : manifest) {
+            for (int j = 0; j < row.length; j++) {
+                if (j > 0) {
+                    writer.write(",");
+                }
+                writer.write(toCsvField(row[j]));
+            }
+            writer.write("\n");
+        }
+        writer.flush();
+        zip.closeEntry();
+        zip.finish();
+        return enrolled;
+    }
+
+    /**
+     * Renders and writes the QR codes for the given batch, and then saves the secrets for the batch.  If rendering or
+     * writing fails, no secrets in the batch are saved.
+     */
+    protected int processBatch(List<Enrollment> batch, ZipOutputStream zip) throws IOException {
+        for (Enrollment enrollment : batch) {
+            enrollment.encryptedSecret = scheme.encryptSecret(enrollment.secret);
+        }
+        List<byte[]> images;
+        try {
+            images = pool.submit(() -> batch.parallelStream()
+                    .map(e -> scheme.generateQrCodeImage(e.secret, e.label))
+                    .collect(Collectors.toList())).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating QR codes", e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("An error occurred generating QR codes", e.getCause());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            zip.putNextEntry(new ZipEntry(batch.get(i).user.getUserId() + ".png"));
+            zip.write(images.get(i));
+            zip.closeEntry();
+        }
+        zip.flush();
+        saveSecrets(batch);
+        log.debug("Enrolled " + batch.size() + " users into " + scheme.getSchemeId());
+        return batch.size();
+    }
+
+    /**
+     * @return the username of the given user, or the systemId if there is no username, or null if neither is set
+     */
+    protected String getLabel(User user) {
+        if (StringUtils.isNotBlank(user.getUsername())) {
+            return user.getUsername();
+        }
+        return StringUtils.isNotBlank(user.getSystemId()) ? user.getSystemId() : null;
+    }
+
+    /**
+     * @return the given value as a CSV field, quoted as described in RFC 4180 if it contains a comma, quote, or line
+     * break, or an empty field if the value is null
+     */
+    protected static String toCsvField(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Saves the encrypted secret for each user in the given batch as a user property, within a single transaction.
+     * This is separated out in a separate method to allow easier mocking
+     */
+    protected void saveSecrets(List<Enrollment> batch) {
+        String propertyName = scheme.getSecretUserPropertyName();
+        PlatformTransactionManager transactionManager = Context.getRegisteredComponent("transactionManager",
+                PlatformTransactionManager.class);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            try {
+                Context.addProxyPrivilege(PrivilegeConstants.EDIT_USERS);
+                for (Enrollment enrollment : batch) {
+                    Context.getUserService().setUserProperty(enrollment.user, propertyName, enrollment.encryptedSecret);
+                }
+                Context.flushSession();
+            }
+            finally {
+                Context.removeProxyPrivilege(PrivilegeConstants.EDIT_USERS);
+            }
+        });
+    }
+
+    /**
+     * Represents the enrollment of a single user
+     */
+    protected static class Enrollment {
+
+        protected final User user;
+        protected final String label;
+        protected final String secret;
+        protected String encryptedSecret;
+
+        protected Enrollment(User user, String label, String secret) {
+            this.user = user;
+            this.label = label;
+            this.secret = secret;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+/**
+ * Records the most recent TOTP time step accepted for each user, so that a code cannot be replayed while it remains
+ * within the allowed discrepancy window.  The default implementation, InMemoryTotpUsedCodeStore, is suitable for
+ * a single server.  Where several servers share the same users, an implementation backed by shared storage, such as
+ * a database table with a unique key on scheme and user, can be configured for the TotpAuthenticationScheme instead.
+ * Implementations must have a public no-argument constructor, and must be thread-safe.
+ */
+public interface TotpUsedCodeStore {
+
+    /**
+     * Records that a code for the given time step has been accepted for the given user.  This must be atomic, such
+     * that if this is called concurrently for the same user and time step, only one call returns true.
+     * @param schemeId the id of the scheme that accepted the code
+     * @param userId the id of the user that the code was accepted for
+     * @param timeStep the time step that the code was generated for
+     * @param expiresAt the time, in epoch milliseconds, after which no code for this time step could be accepted
+     * @return true if the time step was recorded, false if this or a later time step had already been recorded
+     */
+    boolean markUsed(String schemeId, Integer userId, long timeStep, long expiresAt);
+}
@@ -0,0 +1,182 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import dev.samstevens.totp.code.HashingAlgorithm;
+import org.apache.commons.codec.binary.Base32;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Verifies TOTP codes (RFC 6238), producing the same results as the DefaultCodeVerifier of the totp library, but
+ * designed to be constructed once and shared.  Each thread reuses its own Mac instance, rather than looking one up
+ * for each time step, the window of valid time steps is computed once per verification, and codes are compared as
+ * integers in constant time, so that verification does not allocate Strings.
+ * Instances are thread-safe.
+ */
+public class TotpVerifier {
+
+    public static final long NO_MATCH = -1;
+
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000};
+
+    private static final Map<String, TotpVerifier> verifiers = new ConcurrentHashMap<>();
+
+    private final HashingAlgorithm hashingAlgorithm;
+    private final int codeLength;
+    private final int timePeriod;
+    private final int allowedDiscrepancy;
+    private final ThreadLocal<Mac> mac;
+
+    /**
+     * @param hashingAlgorithm the HMAC algorithm used to generate codes
+     * @param codeLength the number of digits in each code
+     * @param timePeriod the number of seconds that each code is valid for
+     * @param allowedDiscrepancy the number of time periods before and after the current period that are also valid
+     */
+    public TotpVerifier(HashingAlgorithm hashingAlgorithm, int codeLength, int timePeriod, int allowedDiscrepancy) {
+        if (codeLength < 1 || codeLength > 9) {
+            throw new IllegalArgumentException("Code length must be between 1 and 9 digits");
+        }
+        if (timePeriod < 1 || allowedDiscrepancy < 0) {
+            throw new IllegalArgumentException("Time period must be positive and discrepancy must not be negative");
+        }
+        this.hashingAlgorithm = hashingAlgorithm;
+        this.codeLength = codeLength;
+        this.timePeriod = timePeriod;
+        this.allowedDiscrepancy = allowedDiscrepancy;
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                return Mac.getInstance(hashingAlgorithm.getHmacAlgorithm());
+            }
+            catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to create " + hashingAlgorithm.getHmacAlgorithm(), e);
+            }
+        });
+    }
+
+    /**
+     * @return a TotpVerifier with the given configuration, which is created once and shared
+     * @see TotpVerifier#TotpVerifier(HashingAlgorithm, int, int, int)
+     */
+    public static TotpVerifier getInstance(HashingAlgorithm hashingAlgorithm, int codeLength, int timePeriod,
+                                           int allowedDiscrepancy) {
+        String key = hashingAlgorithm + ":" + codeLength + ":" + timePeriod + ":" + allowedDiscrepancy;
+        return verifiers.computeIfAbsent(key, k -> new TotpVerifier(hashingAlgorithm, codeLength, timePeriod, allowedDiscrepancy));
+    }
+
+    /**
+     * @param secret the Base32-encoded secret
+     * @return the secret decoded into the key used to generate codes
+     */
+    public static byte[] decodeSecret(String secret) {
+        return new Base32().decode(secret);
+    }
+
+    /**
+     * @param secret the Base32-encoded secret
+     * @param code the code to verify
+     * @return true if the given code is valid for the given secret at the current time
+     */
+    public boolean isValidCode(String secret, String code) {
+        return verify(decodeSecret(secret), code) != NO_MATCH;
+    }
+
+    /**
+     * @param key the decoded secret
+     * @param code the code to verify
+     * @return the time step that the given code matches at the current time, or NO_MATCH if it is not valid
+     */
+    public long verify(byte[] key, String code) {
+        return verify(key, code, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * All time steps in the window are checked, whether or not an earlier step matches, so that the time taken
+     * does not reveal which step matched
+     * @param key the decoded secret
+     * @param code the code to verify
+     * @param timeSeconds the time, in epoch seconds, at which to verify the code
+     * @return the time step that the given code matches at the given time, or NO_MATCH if it is not valid
+     */
+    public long verify(byte[] key, String code, long timeSeconds) {
+        int submitted = parseCode(code);
+        if (submitted < 0 || key == null || key.length == 0) {
+            return NO_MATCH;
+        }
+        long currentStep = Math.floorDiv(timeSeconds, timePeriod);
+        long firstStep = currentStep - allowedDiscrepancy;
+        long lastStep = currentStep + allowedDiscrepancy;
+        Mac m = mac.get();
+        try {
+            m.init(new SecretKeySpec(key, hashingAlgorithm.getHmacAlgorithm()));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialize " + hashingAlgorithm.getHmacAlgorithm(), e);
+        }
+        long matchedStep = NO_MATCH;
+        for (long step = firstStep; step <= lastStep; step++) {
+            int difference = generate(m, step) ^ submitted;
+            long isMatch = ((difference | -difference) >>> 31) ^ 1; // 1 if difference is zero, 0 otherwise
+            matchedStep = (isMatch * step) + ((1 - isMatch) * matchedStep);
+        }
+        return matchedStep;
+    }
+
+    /**
+     * @return the code for the given time step, using the given Mac that has been initialized with the key
+     */
+    private int generate(Mac m, long step) {
+        for (int i = 7; i >= 0; i--) {
+            m.update((byte) (step >>> (i * 8)));
+        }
+        byte[] hash = m.doFinal();
+        int offset = hash[hash.length - 1] & 0xF;
+        int binary = ((hash[offset] & 0x7F) << 24) | ((hash[offset + 1] & 0xFF) << 16)
+                | ((hash[offset + 2] & 0xFF) << 8) | (hash[offset + 3] & 0xFF);
+        return binary % POWERS_OF_TEN[codeLength];
+    }
+
+    /**
+     * @return the given code as an int, or -1 if it is not a code of the configured length containing only digits
+     */
+    private int parseCode(String code) {
+        if (code == null || code.length() != codeLength) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < codeLength; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of seconds that each code is valid for
+     */
+    public int getTimePeriod() {
+        return timePeriod;
+    }
+
+    /**
+     * @return the number of time periods before and after the current period that are also valid
+     */
+    public int getAllowedDiscrepancy() {
+        return allowedDiscrepancy;
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.PrivilegeConstants;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Issues and verifies signed tokens that identify a device that a user has chosen to trust, so that the
+ * secondary authentication factor can be skipped on subsequent logins from that device.
+ * <p>
+ * A token has the format `${tokenId}.${expiresAt}.${signature}`, where the signature is an HMAC-SHA256, keyed with
+ * a configured secret, of the username, tokenId and expiry.  A token is therefore bound to a single user, and cannot be
+ * modified or transferred to another user.  In order for tokens to be revocable, the id and expiry of each token
+ * issued to a user is also stored in a user property named `authentication.trustedDevices`, in the compact format
+ * `${tokenId}:${expiresAt},${tokenId}:${expiresAt}`.  Removing a token id from this property, or removing the
+ * property entirely, revokes the corresponding device(s).  Expired entries are pruned whenever a new token is issued,
+ * and only the most recent `maxDevices` tokens are retained for each user.
+ */
+public class TrustedDeviceStore {
+
+    public static final String USER_PROPERTY_TRUSTED_DEVICES = "authentication.trustedDevices";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String secret;
+    private final int maxDevices;
+
+    /**
+     * @param secret the secret used to sign tokens
+     * @param maxDevices the maximum number of trusted devices to retain for each user
+     */
+    public TrustedDeviceStore(String secret, int maxDevices) {
+        this.secret = secret;
+        this.maxDevices = maxDevices;
+    }
+
+    /**
+     * Issues and stores a new token for the given user
+     * @param user the user to issue the token for
+     * @param expiresAt the time, in epoch milliseconds, at which the token expires
+     * @return the new token
+     */
+    public String issueToken(User user, long expiresAt) {
+        byte[] idBytes = new byte[12];
+        random.nextBytes(idBytes);
+        String tokenId = Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes);
+        Map<String, Long> devices = getTrustedDevices(user);
+        long now = System.currentTimeMillis();
+        devices.values().removeIf(deviceExpiry -> deviceExpiry < now);
+        devices.put(tokenId, expiresAt);
+        for (Iterator<String> i = devices.keySet().iterator(); i.hasNext() && devices.size() > maxDevices; ) {
+            i.next();
+            i.remove();
+        }
+        saveTrustedDevices(user, devices);
+        return tokenId + "." + expiresAt + "." + sign(user.getUsername(), tokenId, expiresAt);
+    }
+
+    /**
+     * @param user the user to check
+     * @param token the token to verify
+     * @return true if the given token was issued to the given user, is not expired, and has not been revoked
+     */
+    public boolean isTrusted(User user, String token) {
+        if (user == null || StringUtils.isBlank(token)) {
+            return false;
+        }
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            return false;
+        }
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(parts[1]);
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+        if (expiresAt < System.currentTimeMillis()) {
+            return false;
+        }
+        byte[] expected = sign(user.getUsername(), parts[0], expiresAt).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, parts[2].getBytes(StandardCharsets.US_ASCII))) {
+            return false;
+        }
+        Long storedExpiry = getTrustedDevices(user).get(parts[0]);
+        return storedExpiry != null && storedExpiry == expiresAt;
+    }
+
+    /**
+     * @param user the user whose device should be revoked
+     * @param tokenId the id of the token to revoke
+     */
+    public void revoke(User user, String tokenId) {
+        Map<String, Long> devices = getTrustedDevices(user);
+        if (devices.remove(tokenId) != null) {
+            saveTrustedDevices(user, devices);
+        }
+    }
+
+    /**
+     * @param user the user whose devices should all be revoked
+     */
+    public void revokeAll(User user) {
+        saveTrustedDevices(user, new LinkedHashMap<>());
+    }
+
+    /**
+     * @param user the user to retrieve trusted devices for
+     * @return a Map of tokenId to expiry for all trusted devices stored for the given user, in the order issued
+     */
+    public Map<String, Long> getTrustedDevices(User user) {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        String stored = user.getUserProperty(USER_PROPERTY_TRUSTED_DEVICES);
+        if (StringUtils.isNotBlank(stored)) {
+            for (String device : stored.split(",")) {
+                int separator = device.indexOf(':');
+                if (separator > 0) {
+                    try {
+                        ret.put(device.substring(0, separator), Long.parseLong(device.substring(separator + 1)));
+                    }
+                    catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Saves the given trusted devices to the user property
+     */
+    protected void saveTrustedDevices(User user, Map<String, Long> devices) {
+        StringBuilder value = new StringBuilder();
+        for (Map.Entry<String, Long> device : devices.entrySet()) {
+            value.append(value.length() == 0 ? "" : ",").append(device.getKey()).append(":").append(device.getValue());
+        }
+        saveUserProperty(user, USER_PROPERTY_TRUSTED_DEVICES, value.toString());
+    }
+
+    /**
+     * Method to save a user property.  This is typically called before the user is fully authenticated, and so
+     * requires proxy privileges.  This is separated out in a separate method to allow easier mocking
+     */
+    protected void saveUserProperty(User user, String key, String value) {
+        try {
+            Context.addProxyPrivilege(PrivilegeConstants.GET_USERS);
+            Context.addProxyPrivilege(PrivilegeConstants.EDIT_USERS);
+            if (StringUtils.isBlank(value)) {
+                Context.getUserService().removeUserProperty(user, key);
+            }
+            else {
+                Context.getUserService().setUserProperty(user, key, value);
+            }
+        }
+        finally {
+            Context.removeProxyPrivilege(PrivilegeConstants.GET_USERS);
+            Context.removeProxyPrivilege(PrivilegeConstants.EDIT_USERS);
+        }
+    }
+
+    private String sign(String username, String tokenId, long expiresAt) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+            String content = username + "." + tokenId + "." + expiresAt;
+            return Hex.encodeHexString(mac.doFinal(content.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to sign trusted device token", e);
+        }
+    }
+}
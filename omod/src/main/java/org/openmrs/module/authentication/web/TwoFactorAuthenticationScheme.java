@@ -20,6 +20,8 @@ import org.openmrs.api.context.ContextAuthenticationException;
 import org.openmrs.api.context.Credentials;
 import org.openmrs.module.authentication.AuthenticationConfig;
 import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.AuthenticationSpan;
+import org.openmrs.module.authentication.AuthenticationTracer;
 import org.openmrs.module.authentication.AuthenticationUtil;
 import org.openmrs.module.authentication.ConfigurableAuthenticationScheme;
 import org.openmrs.module.authentication.UserLogin;
@@ -27,8 +29,10 @@ import org.openmrs.module.authentication.UserLogin;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An authentication scheme that supports a primary and secondary authentication factor
@@ -40,12 +44,40 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 	// User configuration
 	public static final String USER_PROPERTY_SECONDARY_TYPE = "authentication.secondaryType";
 
+	// Secondary authentication policy configuration, see SecondaryAuthenticationPolicy
+	public static final String POLICY_CONFIG_PREFIX = "policy.";
+
+	// Trusted device configuration
+	public static final String TRUSTED_DEVICE_DAYS = "trustedDeviceDays";
+	public static final String TRUSTED_DEVICE_SECRET = "trustedDeviceSecret";
+	public static final String TRUSTED_DEVICE_PARAM = "trustedDeviceParam";
+	public static final String TRUSTED_DEVICE_COOKIE = "trustedDeviceCookie";
+	public static final String MAX_TRUSTED_DEVICES = "maxTrustedDevices";
+
+	// Key of the UserLogin attribute that holds the FactorPlan for a login, suffixed with the schemeId
+	public static final String FACTOR_PLAN_ATTRIBUTE = "authentication.factorPlan.";
+
+	// Maximum number of tokens, for different users, retained in the cookie of a shared device
+	private static final int MAX_TOKENS_PER_COOKIE = 10;
+
 	protected List<String> primaryOptions = new ArrayList<>();
 	protected List<String> secondaryOptions = new ArrayList<>();
+	protected int trustedDeviceDays;
+	protected String trustedDeviceSecret;
+	protected String trustedDeviceParam;
+	protected String trustedDeviceCookie;
+	protected int maxTrustedDevices;
+	protected Properties policyConfig = new Properties();
+	private SecondaryAuthenticationPolicy policy;
 
 	/**
 	 * This supports configuring the `primaryOptions` and `secondaryOptions` that are supported factors
 	 * These are both expected to be comma-delimited lists of schemeIds
+	 * If `trustedDeviceDays` is greater than 0, and a `trustedDeviceSecret` is configured, then users can choose to
+	 * trust the device they are logging in from for this number of days, by submitting the `trustedDeviceParam`
+	 * along with their secondary credentials.  Subsequent logins from this device will not require a secondary factor.
+	 * Properties prefixed with `policy.` configure the SecondaryAuthenticationPolicy, which determines whether users
+	 * with a secondary scheme configured are required to complete it, based on the context of each login.
 	 * @see ConfigurableAuthenticationScheme#configure(String, Properties)
 	 */
 	@Override
@@ -53,6 +85,12 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 		super.configure(schemeId, config);
 		primaryOptions = AuthenticationUtil.getStringList(config.getProperty("primaryOptions"), ",");
 		secondaryOptions = AuthenticationUtil.getStringList(config.getProperty("secondaryOptions"), ",");
+		trustedDeviceDays = AuthenticationUtil.getInteger(config.getProperty(TRUSTED_DEVICE_DAYS), 0);
+		trustedDeviceSecret = config.getProperty(TRUSTED_DEVICE_SECRET);
+		trustedDeviceParam = config.getProperty(TRUSTED_DEVICE_PARAM, "rememberDevice");
+		trustedDeviceCookie = config.getProperty(TRUSTED_DEVICE_COOKIE, "authentication.trustedDevice");
+		maxTrustedDevices = AuthenticationUtil.getInteger(config.getProperty(MAX_TRUSTED_DEVICES), 10);
+		policyConfig = AuthenticationUtil.getPropertiesWithPrefix(config, POLICY_CONFIG_PREFIX, true);
 	}
 
 	/**
@@ -65,13 +103,13 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 
 	@Override
 	public String getChallengeUrl(AuthenticationSession session) {
-		User candidateUser = session.getUserLogin().getUser();
-		if (candidateUser == null) {
-			return getPrimaryAuthenticationScheme().getChallengeUrl(session);
+		UserLogin userLogin = session.getUserLogin();
+		FactorPlan plan = getFactorPlan(userLogin, userLogin.getUser());
+		if (plan.getUser() == null) {
+			return plan.getPrimaryScheme().getChallengeUrl(session);
 		}
-		WebAuthenticationScheme secondaryScheme = getSecondaryAuthenticationScheme(candidateUser);
-		if (secondaryScheme != null) {
-			return getSecondaryAuthenticationScheme(candidateUser).getChallengeUrl(session);
+		if (plan.getSecondaryScheme() != null) {
+			return plan.getSecondaryScheme().getChallengeUrl(session);
 		}
 		return null;
 	}
@@ -81,6 +119,18 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 	 */
 	@Override
 	public AuthenticationCredentials getCredentials(AuthenticationSession session) {
+		AuthenticationSpan span = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_GET_CREDENTIALS);
+		span.setAttribute(AuthenticationTracer.ATTRIBUTE_SCHEME_ID, getSchemeId());
+		span.setAttribute(AuthenticationTracer.ATTRIBUTE_LOGIN_ID, session.getUserLogin().getLoginId());
+		try {
+			return findCredentials(session);
+		}
+		finally {
+			span.end();
+		}
+	}
+
+	private AuthenticationCredentials findCredentials(AuthenticationSession session) {
 
 		UserLogin userLogin = session.getUserLogin();
 		AuthenticationCredentials existingCredentials = userLogin.getUnvalidatedCredentials(getSchemeId());
@@ -89,7 +139,7 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 		}
 
 		// Primary Authentication
-		WebAuthenticationScheme primaryScheme = getPrimaryAuthenticationScheme();
+		WebAuthenticationScheme primaryScheme = getFactorPlan(userLogin, userLogin.getUser()).getPrimaryScheme();
 		if (!userLogin.isCredentialValidated(primaryScheme.getSchemeId())) {
 			AuthenticationCredentials primaryCredentials = primaryScheme.getCredentials(session);
 			if (primaryCredentials != null) {
@@ -104,22 +154,37 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 
 		// Secondary Authentication
 		if (userLogin.getUser() != null) {
-			WebAuthenticationScheme secondaryScheme = getSecondaryAuthenticationScheme(userLogin.getUser());
-			if (secondaryScheme != null) {
+			WebAuthenticationScheme secondaryScheme = getFactorPlan(userLogin, userLogin.getUser()).getSecondaryScheme();
+			boolean secondaryRequired = secondaryScheme != null && isSecondaryAuthenticationRequired(session);
+			if (secondaryRequired) {
+				if (!userLogin.isCredentialValidated(secondaryScheme.getSchemeId()) && isTrustedDevice(session)) {
+					log.debug("Secondary authentication not required on trusted device: " + userLogin.getUsername());
+					Authenticated trusted = new BasicAuthenticated(userLogin.getUser(), secondaryScheme.getSchemeId());
+					userLogin.authenticationTrustedDevice(secondaryScheme.getSchemeId(), trusted);
+				}
 				if (!userLogin.isCredentialValidated(secondaryScheme.getSchemeId())) {
 					AuthenticationCredentials secondaryCredentials = secondaryScheme.getCredentials(session);
 					if (secondaryCredentials != null) {
+						boolean authenticated = false;
 						try {
 							session.authenticate(secondaryScheme, secondaryCredentials).getUser();
+							authenticated = true;
 						} catch (Exception e) {
 							log.trace("Secondary Authentication Failed: " + secondaryCredentials.getClientName(), e);
 						}
+						if (authenticated && isTrustedDeviceEnabled() && isTrue(session.getRequestParam(trustedDeviceParam))) {
+							try {
+								trustDevice(session);
+							} catch (Exception e) {
+								log.warn("Unable to trust device for user: " + userLogin.getUsername(), e);
+							}
+						}
 					}
 				}
 			}
-			if (secondaryScheme == null || userLogin.isCredentialValidated(secondaryScheme.getSchemeId())) {
+			if (!secondaryRequired || userLogin.isCredentialValidated(secondaryScheme.getSchemeId())) {
 				TwoFactorAuthenticationCredentials credentials = new TwoFactorAuthenticationCredentials(
-						userLogin.getUser(), userLogin.getValidatedCredentials()
+						userLogin.getUser(), userLogin.getValidatedCredentials(), secondaryRequired
 				);
 				userLogin.addUnvalidatedCredentials(credentials);
 				return credentials;
@@ -142,11 +207,12 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 		if (userLogin.getUser() != null && !userLogin.getUser().equals(mfaCreds.user)) {
 			throw new ContextAuthenticationException("authentication.error.userDiffersFromCandidateUser");
 		}
-		if (!mfaCreds.validatedCredentials.contains(getPrimaryAuthenticationScheme().getSchemeId())) {
+		FactorPlan plan = getFactorPlan(userLogin, mfaCreds.user);
+		if (!mfaCreds.validatedCredentials.contains(plan.getPrimaryScheme().getSchemeId())) {
 			throw new ContextAuthenticationException("authentication.error.primaryAuthenticationRequired");
 		}
-		WebAuthenticationScheme secondaryScheme = getSecondaryAuthenticationScheme(mfaCreds.user);
-		if (secondaryScheme != null) {
+		WebAuthenticationScheme secondaryScheme = plan.getSecondaryScheme();
+		if (secondaryScheme != null && mfaCreds.secondaryAuthenticationRequired) {
 			if (!mfaCreds.validatedCredentials.contains(secondaryScheme.getSchemeId())) {
 				throw new ContextAuthenticationException("authentication.error.secondaryAuthenticationRequired");
 			}
@@ -154,6 +220,110 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 		return new BasicAuthenticated(mfaCreds.user, credentials.getAuthenticationScheme());
 	}
 
+	/**
+	 * @param session the current AuthenticationSession, with a candidate user who has a secondary scheme configured
+	 * @return true if the SecondaryAuthenticationPolicy requires secondary authentication for this login
+	 */
+	protected boolean isSecondaryAuthenticationRequired(AuthenticationSession session) {
+		UserLogin userLogin = session.getUserLogin();
+		boolean required = getSecondaryAuthenticationPolicy().isSecondaryAuthenticationRequired(userLogin, userLogin.getUser());
+		if (!required) {
+			log.debug("Secondary authentication not required by policy: " + userLogin.getUsername());
+		}
+		return required;
+	}
+
+	/**
+	 * @return the SecondaryAuthenticationPolicy configured for this scheme
+	 */
+	protected SecondaryAuthenticationPolicy getSecondaryAuthenticationPolicy() {
+		if (policy == null) {
+			try {
+				policy = new SecondaryAuthenticationPolicy(policyConfig);
+			}
+			catch (Exception e) {
+				throw new ContextAuthenticationException("authentication.error.invalidConfiguration", e);
+			}
+		}
+		return policy;
+	}
+
+	/**
+	 * @return true if trusted devices are enabled for this scheme
+	 */
+	protected boolean isTrustedDeviceEnabled() {
+		return trustedDeviceDays > 0 && StringUtils.isNotBlank(trustedDeviceSecret);
+	}
+
+	/**
+	 * @param session the current AuthenticationSession
+	 * @return true if the request contains a valid trusted device token for the candidate user in the session
+	 */
+	protected boolean isTrustedDevice(AuthenticationSession session) {
+		if (!isTrustedDeviceEnabled()) {
+			return false;
+		}
+		String cookieValue = session.getCookieValue(trustedDeviceCookie);
+		if (StringUtils.isNotBlank(cookieValue)) {
+			TrustedDeviceStore store = getTrustedDeviceStore();
+			for (String token : cookieValue.split("\\|")) {
+				if (store.isTrusted(session.getUserLogin().getUser(), token)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Issues a new trusted device token for the candidate user in the session, and adds this to the cookie on the
+	 * response.  The cookie may contain tokens for several users, to support devices that are shared.
+	 * @param session the current AuthenticationSession
+	 */
+	protected void trustDevice(AuthenticationSession session) {
+		long expiresAt = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(trustedDeviceDays);
+		String token = getTrustedDeviceStore().issueToken(session.getUserLogin().getUser(), expiresAt);
+		List<String> tokens = AuthenticationUtil.getStringList(session.getCookieValue(trustedDeviceCookie), "\\|");
+		tokens.add(token);
+		while (tokens.size() > MAX_TOKENS_PER_COOKIE) {
+			tokens.remove(0);
+		}
+		int maxAge = (int) TimeUnit.DAYS.toSeconds(trustedDeviceDays);
+		session.setCookieValue(trustedDeviceCookie, StringUtils.join(tokens, "|"), maxAge);
+	}
+
+	/**
+	 * @return the TrustedDeviceStore used to issue and verify trusted device tokens
+	 */
+	protected TrustedDeviceStore getTrustedDeviceStore() {
+		return new TrustedDeviceStore(trustedDeviceSecret, maxTrustedDevices);
+	}
+
+	private boolean isTrue(String value) {
+		return "true".equalsIgnoreCase(value) || "on".equalsIgnoreCase(value);
+	}
+
+	/**
+	 * Returns the FactorPlan for the given login and user, which is stored on the UserLogin until the login succeeds,
+	 * so that the primary and secondary schemes are resolved once per login rather than several times on each request.  The plan is
+	 * recomputed if the candidate user has changed since it was computed, eg. following a failed authentication, in
+	 * which case the primary scheme is retained and only the secondary scheme is resolved again.
+	 * @param userLogin the UserLogin to get the plan for
+	 * @param user the candidate user to get the plan for, or null if no candidate user has been identified
+	 * @return the FactorPlan for the given login and user
+	 */
+	protected FactorPlan getFactorPlan(UserLogin userLogin, User user) {
+		String attribute = FACTOR_PLAN_ATTRIBUTE + getSchemeId();
+		Object existing = userLogin.getAttribute(attribute);
+		FactorPlan plan = existing instanceof FactorPlan ? (FactorPlan) existing : null;
+		if (plan == null || !Objects.equals(plan.getUser(), user)) {
+			WebAuthenticationScheme primaryScheme = plan == null ? getPrimaryAuthenticationScheme() : plan.getPrimaryScheme();
+			plan = new FactorPlan(user, primaryScheme, getSecondaryAuthenticationScheme(user));
+			userLogin.setAttribute(attribute, plan);
+		}
+		return plan;
+	}
+
 	/**
 	 * This returns the WebAuthenticationScheme that is configured as the primary authentication scheme,
 	 * defined as the first configured authentication scheme in the `primaryOptions` configuration property
@@ -219,6 +389,43 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 		return secondaryOptions;
 	}
 
+	/**
+	 * The authentication schemes resolved for a particular login and candidate user
+	 */
+	public static class FactorPlan {
+
+		private final User user;
+		private final WebAuthenticationScheme primaryScheme;
+		private final WebAuthenticationScheme secondaryScheme;
+
+		protected FactorPlan(User user, WebAuthenticationScheme primaryScheme, WebAuthenticationScheme secondaryScheme) {
+			this.user = user;
+			this.primaryScheme = primaryScheme;
+			this.secondaryScheme = secondaryScheme;
+		}
+
+		/**
+		 * @return the candidate user this plan was computed for, or null if computed before a user was identified
+		 */
+		public User getUser() {
+			return user;
+		}
+
+		/**
+		 * @return the primary authentication scheme
+		 */
+		public WebAuthenticationScheme getPrimaryScheme() {
+			return primaryScheme;
+		}
+
+		/**
+		 * @return the secondary authentication scheme configured for the user, or null if there is none
+		 */
+		public WebAuthenticationScheme getSecondaryScheme() {
+			return secondaryScheme;
+		}
+	}
+
 	/**
 	 * Credentials inner class, to enable access and visibility of credential details to be limited to scheme
 	 */
@@ -226,6 +433,7 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 
 		protected final User user;
 		protected final Set<String> validatedCredentials = new HashSet<>();
+		protected final boolean secondaryAuthenticationRequired;
 
 		@Override
 		public String getAuthenticationScheme() {
@@ -233,10 +441,16 @@ public class TwoFactorAuthenticationScheme extends WebAuthenticationScheme {
 		}
 
 		protected TwoFactorAuthenticationCredentials(User user, Set<String> validatedCredentials) {
+			this(user, validatedCredentials, true);
+		}
+
+		protected TwoFactorAuthenticationCredentials(User user, Set<String> validatedCredentials,
+													 boolean secondaryAuthenticationRequired) {
 			this.user = user;
 			if (validatedCredentials != null) {
 				this.validatedCredentials.addAll(validatedCredentials);
 			}
+			this.secondaryAuthenticationRequired = secondaryAuthenticationRequired;
 		}
 
 		@Override
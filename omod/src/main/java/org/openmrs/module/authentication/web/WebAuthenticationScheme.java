@@ -15,6 +15,10 @@ import org.openmrs.api.context.ContextAuthenticationException;
 import org.openmrs.api.context.Credentials;
 import org.openmrs.api.context.DaoAuthenticationScheme;
 import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.AuthenticationMetrics;
+import org.openmrs.module.authentication.AuthenticationMetrics.Outcome;
+import org.openmrs.module.authentication.AuthenticationSpan;
+import org.openmrs.module.authentication.AuthenticationTracer;
 import org.openmrs.module.authentication.ConfigurableAuthenticationScheme;
 import org.openmrs.module.authentication.UserLogin;
 import org.openmrs.module.authentication.UserLoginTracker;
@@ -86,20 +90,30 @@ public abstract class WebAuthenticationScheme extends DaoAuthenticationScheme im
         UserLogin userLogin = UserLoginTracker.getLoginOnThread();
         Authenticated authenticated;
         boolean addedToThread = false;
+        long startNanos = System.nanoTime();
+        AuthenticationSpan span = AuthenticationTracer.startSpan(AuthenticationTracer.SPAN_SCHEME);
         try {
             if (userLogin == null) {
                 userLogin = new UserLogin();
                 UserLoginTracker.setLoginOnThread(userLogin);
                 addedToThread = true;
             }
+            span.setAttribute(AuthenticationTracer.ATTRIBUTE_SCHEME_ID, schemeId);
+            span.setAttribute(AuthenticationTracer.ATTRIBUTE_SCHEME_TYPE, getClass().getName());
+            span.setAttribute(AuthenticationTracer.ATTRIBUTE_LOGIN_ID, userLogin.getLoginId());
             authenticated = authenticate(authenticationCredentials, userLogin);
             userLogin.authenticationSuccessful(schemeId, authenticated);
+            AuthenticationMetrics.record(AuthenticationMetrics.STAGE_SCHEME, schemeId, Outcome.SUCCESS, startNanos);
+            span.setOutcome(Outcome.SUCCESS);
         }
         catch (Exception e) {
             userLogin.authenticationFailed(schemeId);
+            AuthenticationMetrics.record(AuthenticationMetrics.STAGE_SCHEME, schemeId, Outcome.FAILURE, startNanos);
+            span.setOutcome(Outcome.FAILURE);
             throw new ContextAuthenticationException(e.getMessage(), e);
         }
         finally {
+            span.end();
             if (addedToThread) {
                 UserLoginTracker.removeLoginFromThread();
             }
@@ -16,6 +16,8 @@ public class WebUtil {
 
     /**
      * Checks if the request is for a URL that matches a configured whitelist pattern.
+     * This checks each pattern in turn.  Callers that check many requests against the same whitelist, such as the
+     * AuthenticationFilter, should compile it once into a WhiteListMatcher instead.
      * 
      * @param request the HttpServletRequest to check
      * @param whiteList the list of URL patterns to check against
@@ -30,6 +32,20 @@ public class WebUtil {
         return false;
     }
 
+    /**
+     * @param patterns the patterns to check, which are expected to already be expanded and contextualized
+     * @param path the path to check
+     * @return true if the given path matches any of the given patterns
+     */
+    static boolean matchesAny(List<String> patterns, String path) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (matcher.match(patterns.get(i), path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Checks the request servlet path and requestURI against the given pattern.
      * 
@@ -0,0 +1,187 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compiled form of a whitelist, which matches requests in the same way as checking each pattern in turn with
+ * WebUtil.matchesPath, without tokenizing the path once per pattern.  Exact paths, extension patterns such as
+ * `*.ext`, and prefix patterns such as `/prefix/**`, are compared directly against the path, and any other pattern
+ * is matched with the AntPathMatcher as before.  Paths that are not in a simple canonical form, eg. that contain
+ * whitespace, empty segments, a trailing slash, or non-ASCII characters, are also matched with the AntPathMatcher.
+ * Patterns are contextualized, and compiled, once for each context path that requests are received on.  Paths are
+ * compared to the compiled patterns ignoring case, without allocating, as this is done on every request.
+ * Instances should be compiled once and retained by the filter that uses them, eg. when it is initialized.
+ */
+public class WhiteListMatcher {
+
+    private final List<String> whiteList;
+    private final Patterns servletPathPatterns;
+    private final Map<String, Patterns> requestUriPatterns = new ConcurrentHashMap<>();
+
+    /**
+     * @param whiteList the list of url patterns to match, as configured in `authentication.whiteList`
+     */
+    public WhiteListMatcher(List<String> whiteList) {
+        this.whiteList = new ArrayList<>(whiteList);
+        this.servletPathPatterns = new Patterns(this.whiteList, null);
+    }
+
+    /**
+     * @param request the HttpServletRequest to check
+     * @return true if the servlet path or request URI of the given request matches any pattern in the whitelist
+     */
+    public boolean matches(HttpServletRequest request) {
+        if (servletPathPatterns.matches(request.getServletPath())) {
+            return true;
+        }
+        String contextPath = request.getContextPath();
+        if (contextPath == null) {
+            return WebUtil.isWhiteListed(request, whiteList);
+        }
+        Patterns patterns = requestUriPatterns.get(contextPath);
+        if (patterns == null) {
+            patterns = new Patterns(whiteList, contextPath);
+            if (requestUriPatterns.size() < 10) {
+                requestUriPatterns.put(contextPath, patterns);
+            }
+        }
+        return patterns.matches(request.getRequestURI());
+    }
+
+    /**
+     * @return the whitelist that this matcher was compiled from
+     */
+    public List<String> getWhiteList() {
+        return whiteList;
+    }
+
+    /**
+     * @return true if the given path is in a simple canonical form, which can be compared to patterns directly
+     */
+    static boolean isCanonical(String path) {
+        if (path == null || path.isEmpty() || path.charAt(0) != '/' || path.charAt(path.length() - 1) == '/') {
+            return false;
+        }
+        char previous = 0;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c <= ' ' || c >= 127 || (c == '/' && previous == '/')) {
+                return false;
+            }
+            previous = c;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the given value is empty, or is a canonical path with no wildcards
+     */
+    private static boolean isLiteralPath(String value) {
+        if (value.isEmpty()) {
+            return true;
+        }
+        return isCanonical(value) && isLiteral(value);
+    }
+
+    /**
+     * @return true if the given value contains only ASCII characters that are not whitespace or wildcards
+     */
+    private static boolean isLiteral(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c <= ' ' || c >= 127 || c == '*' || c == '?' || c == '{' || c == '}') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The patterns of a whitelist, contextualized for a particular context path, or for matching servlet paths
+     */
+    static class Patterns {
+
+        private final List<String> antPatterns = new ArrayList<>();
+        private final Set<String> exactPaths = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        private final List<String> prefixes = new ArrayList<>();
+        private final List<String> suffixPrefixes = new ArrayList<>();
+        private final List<String> suffixes = new ArrayList<>();
+        private final List<String> otherPatterns = new ArrayList<>();
+
+        Patterns(List<String> whiteList, String contextPath) {
+            for (String pattern : whiteList) {
+                if (pattern.startsWith("*")) {
+                    pattern = "/**/" + pattern;
+                }
+                if (contextPath != null) {
+                    pattern = contextualize(contextPath, pattern);
+                }
+                antPatterns.add(pattern);
+                int suffixIndex = pattern.indexOf("/**/*");
+                if (pattern.endsWith("/**") && isLiteralPath(pattern.substring(0, pattern.length() - 3))) {
+                    prefixes.add(pattern.substring(0, pattern.length() - 3));
+                }
+                else if (suffixIndex >= 0 && isLiteralPath(pattern.substring(0, suffixIndex))
+                        && pattern.length() > suffixIndex + 5 && isLiteral(pattern.substring(suffixIndex + 5))
+                        && pattern.indexOf('/', suffixIndex + 5) < 0) {
+                    suffixPrefixes.add(pattern.substring(0, suffixIndex + 1));
+                    suffixes.add(pattern.substring(suffixIndex + 5));
+                }
+                else if (!pattern.isEmpty() && isLiteralPath(pattern)) {
+                    exactPaths.add(pattern);
+                }
+                else {
+                    otherPatterns.add(pattern);
+                }
+            }
+        }
+
+        private static String contextualize(String contextPath, String pattern) {
+            if (!pattern.startsWith(contextPath)) {
+                pattern = contextPath + (pattern.startsWith("/") ? "" : "/") + pattern;
+            }
+            return pattern;
+        }
+
+        boolean matches(String path) {
+            if (!isCanonical(path)) {
+                return WebUtil.matchesAny(antPatterns, path);
+            }
+            if (exactPaths.contains(path)) {
+                return true;
+            }
+            for (int i = 0; i < prefixes.size(); i++) {
+                String prefix = prefixes.get(i);
+                if (path.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                    if (path.length() == prefix.length() || path.charAt(prefix.length()) == '/') {
+                        return true;
+                    }
+                }
+            }
+            for (int i = 0; i < suffixes.size(); i++) {
+                String suffix = suffixes.get(i);
+                String suffixPrefix = suffixPrefixes.get(i);
+                if (path.regionMatches(true, path.length() - suffix.length(), suffix, 0, suffix.length())
+                        && path.regionMatches(true, 0, suffixPrefix, 0, suffixPrefix.length())) {
+                    return true;
+                }
+            }
+            return WebUtil.matchesAny(otherPatterns, path);
+        }
+    }
+}
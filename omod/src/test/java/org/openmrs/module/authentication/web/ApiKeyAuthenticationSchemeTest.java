@@ -0,0 +1,239 @@
+package org.openmrs.module.authentication.web;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.User;
+import org.openmrs.api.context.Authenticated;
+import org.openmrs.api.context.AuthenticationScheme;
+import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.api.context.UsernamePasswordCredentials;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.UserLoginTracker;
+import org.openmrs.module.authentication.web.mocks.MockApiKeyAuthenticationScheme;
+import org.openmrs.module.authentication.web.mocks.MockApiKeyAuthenticationScheme.MockApiKeyStore;
+import org.openmrs.module.authentication.web.mocks.MockAuthenticationSession;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.Date;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ApiKeyAuthenticationSchemeTest extends BaseWebAuthenticationTest {
+
+	MockApiKeyAuthenticationScheme authenticationScheme;
+	MockApiKeyStore store;
+	UserLogin userLogin;
+	User user;
+
+	@BeforeEach
+	@Override
+	public void setup() {
+		super.setup();
+		AuthenticationConfig.setProperty("authentication.scheme", "apikey");
+		AuthenticationConfig.setProperty("authentication.scheme.apikey.type", MockApiKeyAuthenticationScheme.class.getName());
+		AuthenticationConfig.setProperty("authentication.scheme.apikey.config.pepper", "testPepper");
+		setRuntimeProperties(AuthenticationConfig.getConfig());
+		store = new MockApiKeyStore("apikey");
+		MockApiKeyAuthenticationScheme.store = store;
+		userLogin = new UserLogin();
+		UserLoginTracker.setLoginOnThread(userLogin);
+		AuthenticationScheme scheme = AuthenticationConfig.getAuthenticationScheme();
+		assertThat(scheme.getClass(), equalTo(MockApiKeyAuthenticationScheme.class));
+		authenticationScheme = (MockApiKeyAuthenticationScheme) scheme;
+		user = new User();
+		user.setUsername("labInstrument");
+	}
+
+	@AfterEach
+	@Override
+	public void teardown() {
+		UserLoginTracker.removeLoginFromThread();
+		ApiKeyStore.stopFlushing();
+		super.teardown();
+	}
+
+	protected AuthenticationCredentials getCredentials(String headerName, String headerValue) {
+		MockHttpServletRequest request = newGetRequest("/ws/rest/v1/patient", "192.168.1.1");
+		request.addHeader(headerName, headerValue);
+		request.setSession(newSession());
+		return authenticationScheme.getCredentials(new MockAuthenticationSession(request, newResponse()));
+	}
+
+	@Test
+	public void shouldGetCredentialsFromApiKeyOrAuthorizationHeader() {
+		assertThat(getCredentials("X-API-Key", "abc.def"), notNullValue());
+		assertThat(getCredentials("Authorization", "ApiKey abc.def"), notNullValue());
+		assertThat(getCredentials("Authorization", "Basic YWRtaW46dGVzdA=="), nullValue());
+	}
+
+	@Test
+	public void shouldNotStoreTheSecretPortionOfTheKey() {
+		String apiKey = authenticationScheme.createApiKey(user, null);
+		String prefix = apiKey.substring(0, apiKey.indexOf('.'));
+		String secret = apiKey.substring(apiKey.indexOf('.') + 1);
+		String stored = store.globalProperties.get("authentication.apiKey.apikey." + prefix);
+		assertThat(stored, notNullValue());
+		assertThat(stored, not(containsString(secret)));
+	}
+
+	@Test
+	public void shouldAuthenticateWithValidApiKey() {
+		String apiKey = authenticationScheme.createApiKey(user, null);
+		Authenticated authenticated = authenticationScheme.authenticate(getCredentials("X-API-Key", apiKey));
+		assertThat(authenticated.getUser().getUsername(), equalTo("labInstrument"));
+		assertThat(authenticated.getAuthenticationScheme(), equalTo("apikey"));
+	}
+
+	@Test
+	public void shouldAuthenticateWithKeysLoadedFromStore() {
+		String apiKey = authenticationScheme.createApiKey(user, null);
+		MockApiKeyStore newStore = new MockApiKeyStore("apikey");
+		newStore.globalProperties.putAll(store.globalProperties);
+		MockApiKeyAuthenticationScheme.store = newStore;
+		Authenticated authenticated = authenticationScheme.authenticate(getCredentials("X-API-Key", apiKey));
+		assertThat(authenticated.getUser().getUsername(), equalTo("labInstrument"));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithIncorrectSecret() {
+		String apiKey = authenticationScheme.createApiKey(user, null);
+		String prefix = apiKey.substring(0, apiKey.indexOf('.'));
+		AuthenticationCredentials credentials = getCredentials("X-API-Key", prefix + ".incorrect");
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(credentials));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithUnknownOrMalformedKey() {
+		AuthenticationCredentials unknown = getCredentials("X-API-Key", "000000000000.secret");
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(unknown));
+		AuthenticationCredentials malformed = getCredentials("X-API-Key", "nosecret");
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(malformed));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithExpiredKey() {
+		String apiKey = authenticationScheme.createApiKey(user, new Date(System.currentTimeMillis() - 1000));
+		AuthenticationCredentials credentials = getCredentials("X-API-Key", apiKey);
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(credentials));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithRevokedKey() {
+		String apiKey = authenticationScheme.createApiKey(user, null);
+		authenticationScheme.revokeApiKey(apiKey.substring(0, apiKey.indexOf('.')));
+		AuthenticationCredentials credentials = getCredentials("X-API-Key", apiKey);
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(credentials));
+		assertThat(store.globalProperties.size(), equalTo(0));
+	}
+
+	@Test
+	public void shouldRemoveKeyFromIndexWhenGlobalPropertyIsDeletedOrCleared() {
+		String key1 = authenticationScheme.createApiKey(user, null);
+		String key2 = authenticationScheme.createApiKey(user, null);
+		String prefix1 = key1.substring(0, key1.indexOf('.'));
+		String prefix2 = key2.substring(0, key2.indexOf('.'));
+		assertThat(store.size(), equalTo(2));
+		assertThat(store.supportsPropertyName("authentication.apiKey.apikey." + prefix1), equalTo(true));
+		assertThat(store.supportsPropertyName("authentication.apiKey.other." + prefix1), equalTo(false));
+		store.globalPropertyDeleted("authentication.apiKey.apikey." + prefix1);
+		assertThat(store.getApiKey(prefix1), nullValue());
+		store.globalPropertyChanged(new GlobalProperty("authentication.apiKey.apikey." + prefix2, ""));
+		assertThat(store.getApiKey(prefix2), nullValue());
+	}
+
+	@Test
+	public void shouldFailToAuthenticateIfUserNotFound() {
+		User unknown = new User();
+		unknown.setUsername("unknown");
+		String apiKey = authenticationScheme.createApiKey(unknown, null);
+		AuthenticationCredentials credentials = getCredentials("X-API-Key", apiKey);
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(credentials));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateIfPepperNotConfigured() {
+		String apiKey = authenticationScheme.createApiKey(user, null);
+		AuthenticationConfig.setProperty("authentication.scheme.apikey.config.pepper", null);
+		AuthenticationScheme scheme = AuthenticationConfig.getAuthenticationScheme();
+		ContextAuthenticationException e = assertThrows(ContextAuthenticationException.class,
+				() -> scheme.authenticate(getCredentials("X-API-Key", apiKey)));
+		assertThat(e.getMessage(), equalTo("authentication.error.invalidConfiguration"));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateIfCredentialsAreIncorrectType() {
+		UsernamePasswordCredentials creds = new UsernamePasswordCredentials("admin", "adminPassword");
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(creds));
+	}
+
+	@Test
+	public void shouldRecordLastUsedInMemoryAndWriteInBatches() {
+		String key1 = authenticationScheme.createApiKey(user, null);
+		String key2 = authenticationScheme.createApiKey(user, null);
+		int writes = store.writes;
+		for (int i = 0; i < 10; i++) {
+			authenticationScheme.authenticate(getCredentials("X-API-Key", key1));
+			authenticationScheme.authenticate(getCredentials("X-API-Key", key2));
+		}
+		assertThat(store.writes, equalTo(writes));
+		String prefix1 = key1.substring(0, key1.indexOf('.'));
+		assertThat(store.getApiKey(prefix1).getLastUsed(), notNullValue());
+		assertThat(getStoredApiKey(prefix1).getLastUsed(), nullValue());
+		store.flushLastUsed();
+		assertThat(store.writes, equalTo(writes + 1));
+		assertThat(getStoredApiKey(prefix1).getLastUsed(), notNullValue());
+	}
+
+	@Test
+	public void shouldNotRestoreRevokedKeyWhenWritingLastUsed() {
+		String apiKey = authenticationScheme.createApiKey(user, null);
+		String prefix = apiKey.substring(0, apiKey.indexOf('.'));
+		authenticationScheme.authenticate(getCredentials("X-API-Key", apiKey));
+		authenticationScheme.revokeApiKey(prefix);
+		store.flushLastUsed();
+		assertThat(store.globalProperties.containsKey("authentication.apiKey.apikey." + prefix), equalTo(false));
+		assertThat(store.getApiKey(prefix), nullValue());
+	}
+
+	@Test
+	public void shouldNotRestoreKeyDeletedElsewhereWhenWritingLastUsed() {
+		String apiKey = authenticationScheme.createApiKey(user, null);
+		String prefix = apiKey.substring(0, apiKey.indexOf('.'));
+		authenticationScheme.authenticate(getCredentials("X-API-Key", apiKey));
+		store.globalProperties.remove("authentication.apiKey.apikey." + prefix);
+		assertThat(store.getApiKey(prefix), notNullValue());
+		store.flushLastUsed();
+		assertThat(store.globalProperties.containsKey("authentication.apiKey.apikey." + prefix), equalTo(false));
+		assertThat(store.getApiKey(prefix), nullValue());
+		assertThrows(ContextAuthenticationException.class,
+				() -> authenticationScheme.authenticate(getCredentials("X-API-Key", apiKey)));
+	}
+
+	@Test
+	public void shouldWriteLastUsedInBackground() throws Exception {
+		AuthenticationConfig.setProperty("authentication.scheme.apikey.config.lastUsedFlushInterval", "0");
+		AuthenticationScheme scheme = AuthenticationConfig.getAuthenticationScheme();
+		String apiKey = authenticationScheme.createApiKey(user, null);
+		String prefix = apiKey.substring(0, apiKey.indexOf('.'));
+		scheme.authenticate(getCredentials("X-API-Key", apiKey));
+		for (int i = 0; i < 100 && getStoredApiKey(prefix).getLastUsed() == null; i++) {
+			Thread.sleep(10);
+		}
+		assertThat(getStoredApiKey(prefix).getLastUsed(), notNullValue());
+	}
+
+	protected ApiKeyStore.ApiKey getStoredApiKey(String prefix) {
+		String value = store.globalProperties.get("authentication.apiKey.apikey." + prefix);
+		return ApiKeyStore.ApiKey.fromPropertyValue(prefix, value);
+	}
+}
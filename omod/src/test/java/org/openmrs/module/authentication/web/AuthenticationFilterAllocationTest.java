@@ -0,0 +1,148 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.openmrs.User;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.web.mocks.MockAuthenticationSession;
+import org.openmrs.module.authentication.web.mocks.MockForcePasswordChangeFilter;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Guards the number of bytes allocated by each request from an authenticated user, as it passes through the
+ * AuthenticationFilter and ForcePasswordChangeFilter.  The budgets below are the maximum average allocation per
+ * request, and should only be raised deliberately, when an increase in the cost of every request is justified.
+ * The same request and response are passed through the filters repeatedly, so that only the allocation of the
+ * filters themselves is measured.  Whether short-lived objects are allocated at all depends on the escape analysis
+ * of the JIT compiler, so these tests are tagged to run separately from the unit tests, with `mvn -P allocation test`,
+ * and each budget allows a margin over the allocation measured on a HotSpot JVM.
+ */
+@Tag("allocation")
+public class AuthenticationFilterAllocationTest {
+
+	// Maximum average bytes allocated per request by each filter, at least twice that measured when last changed
+	static final long AUTHENTICATION_FILTER_BUDGET = 320;
+	static final long FORCE_PASSWORD_CHANGE_FILTER_BUDGET = 64;
+
+	static final int WARMUP_REQUESTS = 20000;
+	static final int MEASURED_REQUESTS = 20000;
+
+	MockHttpServletRequest request;
+	MockHttpServletResponse response;
+	FilterChain chain;
+	User user;
+
+	@BeforeEach
+	public void setup() {
+		Properties config = new Properties();
+		config.setProperty(AuthenticationConfig.SCHEME, "basic");
+		config.setProperty(AuthenticationConfig.WHITE_LIST, "/login.htm,/ms/legacyui/loginServlet,*.js,*.css,*.png");
+		config.setProperty(AuthenticationConfig.SUPPORT_FORCED_PASSWORD_CHANGE, "true");
+		config.setProperty(AuthenticationConfig.PASSWORD_CHANGE_URL, "/passwordChange.htm");
+		config.setProperty(AuthenticationConfig.PASSWORD_CHANGE_WHITE_LIST, "/passwordChange.htm,*.js,*.css,*.png");
+		AuthenticationConfig.setConfig(config);
+		request = new MockHttpServletRequest("GET", "/openmrs/patientDashboard.htm");
+		request.setContextPath("/openmrs");
+		request.setServletPath("/patientDashboard.htm");
+		request.setRemoteAddr("192.168.1.1");
+		request.setSession(new MockHttpSession());
+		response = new MockHttpServletResponse();
+		chain = (req, res) -> {};
+		user = new User();
+		user.setUserId(1);
+		user.setUsername("admin");
+	}
+
+	@Test
+	public void shouldStayWithinAllocationBudgetForAuthenticatedRequest() throws Exception {
+		AuthenticationFilter filter = getAuthenticationFilter();
+		long allocated = getAllocatedBytesPerRequest(() -> filter.doFilter(request, response, chain));
+		assertThat(response.isCommitted(), equalTo(false));
+		assertThat(allocated, lessThanOrEqualTo(AUTHENTICATION_FILTER_BUDGET));
+	}
+
+	@Test
+	public void shouldStayWithinAllocationBudgetForPasswordChangeCheck() throws Exception {
+		ForcePasswordChangeFilter filter = getForcePasswordChangeFilter();
+		long allocated = getAllocatedBytesPerRequest(() -> filter.doFilter(request, response, chain));
+		assertThat(response.isCommitted(), equalTo(false));
+		assertThat(allocated, lessThanOrEqualTo(FORCE_PASSWORD_CHANGE_FILTER_BUDGET));
+	}
+
+	@Test
+	public void shouldStayWithinAllocationBudgetForFilterChain() throws Exception {
+		AuthenticationFilter authenticationFilter = getAuthenticationFilter();
+		ForcePasswordChangeFilter passwordChangeFilter = getForcePasswordChangeFilter();
+		FilterChain filterChain = (req, res) -> passwordChangeFilter.doFilter(req, res, chain);
+		long allocated = getAllocatedBytesPerRequest(() -> authenticationFilter.doFilter(request, response, filterChain));
+		assertThat(response.isCommitted(), equalTo(false));
+		assertThat(allocated, lessThanOrEqualTo(AUTHENTICATION_FILTER_BUDGET + FORCE_PASSWORD_CHANGE_FILTER_BUDGET));
+	}
+
+	AuthenticationFilter getAuthenticationFilter() {
+		AuthenticationFilter filter = new AuthenticationFilter() {
+			@Override
+			protected AuthenticationSession getAuthenticationSession(HttpServletRequest req, HttpServletResponse res) {
+				MockAuthenticationSession session = new MockAuthenticationSession(req, res);
+				session.setAuthenticatedUser(user);
+				return session;
+			}
+		};
+		filter.init(null);
+		return filter;
+	}
+
+	ForcePasswordChangeFilter getForcePasswordChangeFilter() {
+		MockForcePasswordChangeFilter filter = new MockForcePasswordChangeFilter(null);
+		filter.setAuthenticatedUser(user);
+		return filter;
+	}
+
+	/**
+	 * @return the average number of bytes allocated by the current thread for each invocation of the given request,
+	 * after the request has first been invoked enough times to be compiled
+	 */
+	long getAllocatedBytesPerRequest(Request request) throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "Thread allocation measurement not supported");
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threadBean.isThreadAllocatedMemorySupported(), "Thread allocation measurement not supported");
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+		for (int i = 0; i < WARMUP_REQUESTS; i++) {
+			request.invoke();
+		}
+		long start = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < MEASURED_REQUESTS; i++) {
+			request.invoke();
+		}
+		return (threadBean.getThreadAllocatedBytes(threadId) - start) / MEASURED_REQUESTS;
+	}
+
+	interface Request {
+		void invoke() throws Exception;
+	}
+}
@@ -35,6 +35,7 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class AuthenticationFilterTest extends BaseWebAuthenticationTest {
 
@@ -88,6 +89,56 @@ public class AuthenticationFilterTest extends BaseWebAuthenticationTest {
 		assertThat(response.getRedirectedUrl(), equalTo("/login.htm"));
 	}
 
+	@Test
+	public void shouldRejectRequestFromDeniedIpAddress() throws Exception {
+		setupTestThatInvokesAuthenticationCheck();
+		AuthenticationConfig.setProperty("authentication.ipDenyList", "192.168.1.0/24");
+		filter.doFilter(request, response, chain);
+		assertThat(response.getStatus(), equalTo(403));
+		assertThat(response.getRedirectedUrl(), nullValue());
+		assertThat(chain.getRequest(), nullValue());
+	}
+
+	@Test
+	public void shouldRejectRequestFromIpAddressNotInAllowList() throws Exception {
+		setupTestThatInvokesAuthenticationCheck();
+		AuthenticationConfig.setProperty("authentication.ipAllowList", "10.0.0.0/8");
+		filter.doFilter(request, response, chain);
+		assertThat(response.getStatus(), equalTo(403));
+		assertThat(chain.getRequest(), nullValue());
+	}
+
+	@Test
+	public void shouldRejectDeniedIpAddressEvenIfInAllowList() throws Exception {
+		setupTestThatInvokesAuthenticationCheck();
+		AuthenticationConfig.setProperty("authentication.ipAllowList", "192.168.0.0/16");
+		AuthenticationConfig.setProperty("authentication.ipDenyList", "192.168.1.1");
+		filter.doFilter(request, response, chain);
+		assertThat(response.getStatus(), equalTo(403));
+	}
+
+	@Test
+	public void shouldRejectRequestIfIpAddressRangesAreInvalid() throws Exception {
+		setupTestThatInvokesAuthenticationCheck();
+		AuthenticationConfig.setProperty("authentication.scheme.basic.ipDenyList", "192.168.1.0/33");
+		filter.doFilter(request, response, chain);
+		assertThat(response.getStatus(), equalTo(403));
+		assertThat(chain.getRequest(), nullValue());
+		response = newResponse();
+		filter.doFilter(request, response, chain);
+		assertThat(response.getStatus(), equalTo(403));
+	}
+
+	@Test
+	public void shouldAllowRequestFromIpAddressInSchemeAllowList() throws Exception {
+		setupTestThatInvokesAuthenticationCheck();
+		AuthenticationConfig.setProperty("authentication.ipAllowList", "10.0.0.0/8");
+		AuthenticationConfig.setProperty("authentication.scheme.basic.ipAllowList", "192.168.1.0/24");
+		filter.doFilter(request, response, chain);
+		assertThat(response.getStatus(), equalTo(302));
+		assertThat(response.getRedirectedUrl(), equalTo("/login.htm"));
+	}
+
 	@Test
 	public void shouldNotFilterIfUserIsAlreadyAuthenticated() throws Exception {
 		setupTestThatInvokesAuthenticationCheck();
@@ -177,6 +228,20 @@ public class AuthenticationFilterTest extends BaseWebAuthenticationTest {
 		assertThat(response.getRedirectedUrl(), equalTo("/login.htm"));
 	}
 
+	@Test
+	public void shouldCompileWhiteListOnlyWhenConfigurationChanges() {
+		AuthenticationConfig.setProperty(AuthenticationConfig.WHITE_LIST, "/login.htm,*.js");
+		WhiteListMatcher whiteListMatcher = filter.getWhiteListMatcher();
+		assertThat(filter.getWhiteListMatcher(), sameInstance(whiteListMatcher));
+		request.setServletPath("/site.css");
+		assertThat(filter.isWhiteListed(request), equalTo(false));
+		AuthenticationConfig.setProperty(AuthenticationConfig.WHITE_LIST, "/login.htm,*.css");
+		assertThat(filter.getWhiteListMatcher(), not(sameInstance(whiteListMatcher)));
+		assertThat(filter.isWhiteListed(request), equalTo(true));
+		request.setServletPath(LoginLocationsServlet.PATH);
+		assertThat(filter.isWhiteListed(request), equalTo(true));
+	}
+
 	@Test
 	public void shouldWhiteListIfAnyPatternsMatchRequest() {
 		AuthenticationConfig.setProperty(AuthenticationConfig.WHITE_LIST, "/login.htm,*.jpg,/**/*.gif");
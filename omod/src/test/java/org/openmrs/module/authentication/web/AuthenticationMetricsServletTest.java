@@ -0,0 +1,99 @@
+package org.openmrs.module.authentication.web;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.AuthenticationMetrics;
+import org.openmrs.module.authentication.AuthenticationMetrics.Outcome;
+import org.openmrs.module.authentication.AuthenticationTimer;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+public class AuthenticationMetricsServletTest extends BaseWebAuthenticationTest {
+
+	@BeforeEach
+	@Override
+	public void setup() {
+		super.setup();
+		AuthenticationMetrics.reset();
+	}
+
+	@AfterEach
+	@Override
+	public void teardown() {
+		AuthenticationMetrics.reset();
+		super.teardown();
+	}
+
+	protected MockHttpServletResponse get(boolean privileged, String ipAddress) throws Exception {
+		MockHttpServletResponse response = newResponse();
+		new PrivilegedMetricsServlet(privileged).doGet(newGetRequest(AuthenticationMetricsServlet.PATH, ipAddress), response);
+		return response;
+	}
+
+	@Test
+	public void shouldServeMetricsInPrometheusTextFormat() throws Exception {
+		AuthenticationTimer timer = AuthenticationMetrics.getTimer(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.SUCCESS);
+		timer.record(2_000_000);
+		timer.record(20_000_000);
+		timer.record(20_000_000_000L);
+		MockHttpServletResponse response = get(true, "192.168.1.1");
+		assertThat(response.getStatus(), equalTo(200));
+		assertThat(response.getContentType(), equalTo(AuthenticationMetricsServlet.CONTENT_TYPE));
+		String body = response.getContentAsString();
+		assertThat(body, containsString("# TYPE openmrs_authentication_requests_total counter\n"));
+		assertThat(body, containsString("openmrs_authentication_requests_total{stage=\"filter\",scheme=\"basic\",outcome=\"success\"} 3\n"));
+		assertThat(body, containsString("openmrs_authentication_requests_total{stage=\"filter\",scheme=\"basic\",outcome=\"failure\"} 0\n"));
+		assertThat(body, containsString("# TYPE openmrs_authentication_duration_seconds histogram\n"));
+		String labels = "stage=\"filter\",scheme=\"basic\",outcome=\"success\"";
+		assertThat(body, containsString("openmrs_authentication_duration_seconds_bucket{" + labels + ",le=\"0.001\"} 0\n"));
+		assertThat(body, containsString("openmrs_authentication_duration_seconds_bucket{" + labels + ",le=\"0.0025\"} 1\n"));
+		assertThat(body, containsString("openmrs_authentication_duration_seconds_bucket{" + labels + ",le=\"0.025\"} 2\n"));
+		assertThat(body, containsString("openmrs_authentication_duration_seconds_bucket{" + labels + ",le=\"10.0\"} 2\n"));
+		assertThat(body, containsString("openmrs_authentication_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 3\n"));
+		assertThat(body, containsString("openmrs_authentication_duration_seconds_sum{" + labels + "} 20.022\n"));
+		assertThat(body, containsString("openmrs_authentication_duration_seconds_count{" + labels + "} 3\n"));
+	}
+
+	@Test
+	public void shouldEscapeLabelValues() throws Exception {
+		AuthenticationMetrics.getTimer(AuthenticationMetrics.STAGE_SCHEME, "a\"b", Outcome.FAILURE).record(1);
+		MockHttpServletResponse response = get(true, "192.168.1.1");
+		assertThat(response.getContentAsString(), containsString("scheme=\"a\\\"b\",outcome=\"failure\"} 1\n"));
+	}
+
+	@Test
+	public void shouldRejectUsersWithoutPrivilege() throws Exception {
+		AuthenticationMetrics.getTimer(AuthenticationMetrics.STAGE_FILTER, "basic", Outcome.SUCCESS).record(1);
+		MockHttpServletResponse response = get(false, "192.168.1.1");
+		assertThat(response.getStatus(), equalTo(403));
+		assertThat(response.getContentAsString(), equalTo(""));
+	}
+
+	@Test
+	public void shouldRejectAddressesOutsideIpAllowList() throws Exception {
+		AuthenticationConfig.setProperty(AuthenticationConfig.METRICS_IP_ALLOW_LIST, "10.20.0.0/16");
+		assertThat(get(true, "192.168.1.1").getStatus(), equalTo(403));
+		assertThat(get(true, "10.20.1.1").getStatus(), equalTo(200));
+		AuthenticationConfig.setProperty(AuthenticationConfig.METRICS_IP_ALLOW_LIST, "not-a-range");
+		assertThat(get(true, "10.20.1.1").getStatus(), equalTo(403));
+	}
+
+	private static class PrivilegedMetricsServlet extends AuthenticationMetricsServlet {
+
+		private final boolean privileged;
+
+		PrivilegedMetricsServlet(boolean privileged) {
+			this.privileged = privileged;
+		}
+
+		@Override
+		protected boolean hasPrivilege(String privilege) {
+			return privileged && PRIVILEGE.equals(privilege);
+		}
+	}
+}
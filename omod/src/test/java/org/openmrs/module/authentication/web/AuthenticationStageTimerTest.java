@@ -0,0 +1,99 @@
+package org.openmrs.module.authentication.web;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.AuthenticationEvent;
+import org.openmrs.module.authentication.AuthenticationMetrics;
+import org.openmrs.module.authentication.AuthenticationMetrics.Outcome;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.web.AuthenticationStageTimer.Stage;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+
+public class AuthenticationStageTimerTest {
+
+	@BeforeEach
+	public void setup() {
+		AuthenticationConfig.setConfig(new Properties());
+		AuthenticationMetrics.reset();
+	}
+
+	@AfterEach
+	public void teardown() {
+		AuthenticationConfig.setConfig(new Properties());
+		AuthenticationMetrics.reset();
+	}
+
+	@Test
+	public void shouldReturnDisabledTimerIfStageTimingIsNotEnabled() {
+		AuthenticationStageTimer timer = AuthenticationStageTimer.newInstance();
+		assertThat(timer, sameInstance(AuthenticationStageTimer.DISABLED));
+		timer.begin(Stage.AUTHENTICATE);
+		timer.end();
+		assertThat(timer.getStageNanos(Stage.AUTHENTICATE), equalTo(-1L));
+		UserLogin userLogin = new UserLogin();
+		timer.complete(userLogin, "basic", Outcome.SUCCESS);
+		assertThat(userLogin.getEvents(), hasSize(0));
+		assertThat(AuthenticationMetrics.getTimers(), hasSize(0));
+	}
+
+	@Test
+	public void shouldTimeEachStageUntilTheNextStageBegins() throws Exception {
+		AuthenticationConfig.setProperty(AuthenticationConfig.STAGE_TIMING_ENABLED, "true");
+		AuthenticationStageTimer timer = AuthenticationStageTimer.newInstance();
+		assertThat(timer, not(sameInstance(AuthenticationStageTimer.DISABLED)));
+		timer.begin(Stage.GET_CREDENTIALS);
+		timer.end();
+		timer.begin(Stage.AUTHENTICATE);
+		Thread.sleep(20);
+		timer.begin(Stage.REDIRECT);
+		assertThat(timer.getStageNanos(Stage.GET_CREDENTIALS), greaterThanOrEqualTo(0L));
+		assertThat(timer.getStageNanos(Stage.AUTHENTICATE), greaterThanOrEqualTo(20_000_000L));
+		assertThat(timer.getStageNanos(Stage.REGENERATE_HTTP_SESSION), equalTo(-1L));
+		timer.end();
+		assertThat(timer.getStageNanos(Stage.REDIRECT), greaterThanOrEqualTo(0L));
+		String breakdown = timer.getBreakdown(timer.getTotalNanos());
+		assertThat(breakdown, startsWith("getCredentials="));
+		assertThat(breakdown, containsString(", authenticate="));
+		assertThat(breakdown, containsString(", redirect="));
+		assertThat(breakdown, containsString(", total="));
+		assertThat(breakdown, not(containsString("regenerateHttpSession")));
+	}
+
+	@Test
+	public void shouldRecordStagesAsEventAndMetricsOnCompletion() {
+		AuthenticationConfig.setProperty(AuthenticationConfig.STAGE_TIMING_ENABLED, "true");
+		AuthenticationStageTimer timer = AuthenticationStageTimer.newInstance();
+		timer.begin(Stage.GET_CREDENTIALS);
+		timer.begin(Stage.AUTHENTICATE);
+		UserLogin userLogin = new UserLogin();
+		timer.complete(userLogin, "basic", Outcome.FAILURE);
+		List<AuthenticationEvent> events = userLogin.getEvents();
+		assertThat(events, hasSize(1));
+		assertThat(events.get(0).getEvent(), equalTo(AuthenticationEvent.AUTHENTICATION_STAGE_TIMING));
+		assertThat(events.get(0).getDetails(), startsWith("getCredentials="));
+		assertThat(AuthenticationMetrics.getTimer("login.getCredentials", "basic", Outcome.FAILURE).getCount(), equalTo(1L));
+		assertThat(AuthenticationMetrics.getTimer("login.authenticate", "basic", Outcome.FAILURE).getCount(), equalTo(1L));
+		assertThat(AuthenticationMetrics.getTimer("login.redirect", "basic", Outcome.FAILURE).getCount(), equalTo(0L));
+	}
+
+	@Test
+	public void shouldLogSlowLoginsAtMostOncePerInterval() {
+		long now = System.nanoTime() + 1_000_000_000_000L;
+		assertThat(AuthenticationStageTimer.isSlowLoginLogDue(now), equalTo(true));
+		assertThat(AuthenticationStageTimer.isSlowLoginLogDue(now + 1), equalTo(false));
+		assertThat(AuthenticationStageTimer.isSlowLoginLogDue(now + 61_000_000_000L), equalTo(true));
+	}
+}
@@ -0,0 +1,50 @@
+package org.openmrs.module.authentication.web;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FactorGraphTest {
+
+	@Test
+	public void shouldCompileSequenceOfStepsWithChoices() {
+		FactorGraph graph = FactorGraph.compile("location -> password -> (totp | secret)?");
+		assertThat(graph.size(), equalTo(3));
+		assertThat(graph.getStep(0).getSchemeIds(), contains("location"));
+		assertThat(graph.getStep(0).isOptional(), equalTo(false));
+		assertThat(graph.getStep(1).getSchemeIds(), contains("password"));
+		assertThat(graph.getStep(2).getSchemeIds(), contains("totp", "secret"));
+		assertThat(graph.getStep(2).isOptional(), equalTo(true));
+		assertThat(graph.getStep(2).indexOf("secret"), equalTo(1));
+		assertThat(graph.getStep(2).indexOf("password"), equalTo(-1));
+	}
+
+	@Test
+	public void shouldCompileSingleStep() {
+		FactorGraph graph = FactorGraph.compile("password");
+		assertThat(graph.size(), equalTo(1));
+		assertThat(graph.getStep(0).getSchemeId(0), equalTo("password"));
+	}
+
+	@Test
+	public void shouldShareGraphsCompiledFromSameExpression() {
+		FactorGraph graph = FactorGraph.getInstance("password -> (totp | secret)");
+		assertThat(FactorGraph.getInstance(" password -> (totp | secret) "), sameInstance(graph));
+	}
+
+	@Test
+	public void shouldRejectInvalidExpressions() {
+		assertThrows(IllegalArgumentException.class, () -> FactorGraph.getInstance(null));
+		assertThrows(IllegalArgumentException.class, () -> FactorGraph.compile(""));
+		assertThrows(IllegalArgumentException.class, () -> FactorGraph.compile("password ->"));
+		assertThrows(IllegalArgumentException.class, () -> FactorGraph.compile("password -> totp | secret"));
+		assertThrows(IllegalArgumentException.class, () -> FactorGraph.compile("password -> (totp | )"));
+		assertThrows(IllegalArgumentException.class, () -> FactorGraph.compile("password -> (totp | totp)"));
+		assertThrows(IllegalArgumentException.class, () -> FactorGraph.compile("password -> (totp"));
+		assertThrows(IllegalArgumentException.class, () -> FactorGraph.compile("password? -> totp"));
+	}
+}
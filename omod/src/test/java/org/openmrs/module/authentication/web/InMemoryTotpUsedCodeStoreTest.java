@@ -0,0 +1,80 @@
+package org.openmrs.module.authentication.web;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class InMemoryTotpUsedCodeStoreTest {
+
+	long future = System.currentTimeMillis() + 60000;
+
+	@Test
+	public void shouldRejectReplayOfSameTimeStep() {
+		InMemoryTotpUsedCodeStore store = new InMemoryTotpUsedCodeStore();
+		assertThat(store.markUsed("totp", 1, 100, future), equalTo(true));
+		assertThat(store.markUsed("totp", 1, 100, future), equalTo(false));
+	}
+
+	@Test
+	public void shouldRejectEarlierTimeStepAndAcceptLaterTimeStep() {
+		InMemoryTotpUsedCodeStore store = new InMemoryTotpUsedCodeStore();
+		assertThat(store.markUsed("totp", 1, 100, future), equalTo(true));
+		assertThat(store.markUsed("totp", 1, 99, future), equalTo(false));
+		assertThat(store.markUsed("totp", 1, 101, future), equalTo(true));
+		assertThat(store.markUsed("totp", 1, 100, future), equalTo(false));
+		assertThat(store.size(), equalTo(1));
+	}
+
+	@Test
+	public void shouldTrackEachUserAndSchemeSeparately() {
+		InMemoryTotpUsedCodeStore store = new InMemoryTotpUsedCodeStore();
+		assertThat(store.markUsed("totp", 1, 100, future), equalTo(true));
+		assertThat(store.markUsed("totp", 2, 100, future), equalTo(true));
+		assertThat(store.markUsed("other", 1, 100, future), equalTo(true));
+		assertThat(store.size(), equalTo(3));
+	}
+
+	@Test
+	public void shouldIgnoreAndRemoveExpiredEntries() {
+		InMemoryTotpUsedCodeStore store = new InMemoryTotpUsedCodeStore();
+		long past = System.currentTimeMillis() - 1000;
+		assertThat(store.markUsed("totp", 1, 100, past), equalTo(true));
+		assertThat(store.markUsed("totp", 2, 100, past), equalTo(true));
+		assertThat(store.markUsed("totp", 1, 100, future), equalTo(true));
+		store.purgeExpired(System.currentTimeMillis());
+		assertThat(store.size(), equalTo(1));
+	}
+
+	@Test
+	public void shouldAcceptTimeStepOnlyOnceWhenUsedConcurrently() throws Exception {
+		InMemoryTotpUsedCodeStore store = new InMemoryTotpUsedCodeStore();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					return store.markUsed("totp", 1, 100, future);
+				}));
+			}
+			start.countDown();
+			int accepted = 0;
+			for (Future<Boolean> result : results) {
+				accepted += result.get() ? 1 : 0;
+			}
+			assertThat(accepted, equalTo(1));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+}
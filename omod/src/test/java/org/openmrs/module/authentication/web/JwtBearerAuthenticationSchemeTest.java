@@ -0,0 +1,244 @@
+package org.openmrs.module.authentication.web;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.api.context.Authenticated;
+import org.openmrs.api.context.AuthenticationScheme;
+import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.api.context.UsernamePasswordCredentials;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.UserLoginTracker;
+import org.openmrs.module.authentication.web.mocks.MockAuthenticationSession;
+import org.openmrs.module.authentication.web.mocks.MockJwtBearerAuthenticationScheme;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class JwtBearerAuthenticationSchemeTest extends BaseWebAuthenticationTest {
+
+	MockAuthenticationSession authenticationSession;
+	MockHttpSession session;
+	MockJwtBearerAuthenticationScheme authenticationScheme;
+	UserLogin userLogin;
+	KeyPair keyPair;
+	KeyPair otherKeyPair;
+	File jwksFile;
+
+	@BeforeEach
+	@Override
+	public void setup() {
+		super.setup();
+		keyPair = newKeyPair();
+		otherKeyPair = newKeyPair();
+		jwksFile = new File(appDataDir, "jwks.json");
+		jwksFile.deleteOnExit();
+		writeFile(jwksFile, jwks("key1", (RSAPublicKey) keyPair.getPublic()));
+		AuthenticationConfig.setProperty("authentication.scheme", "jwt");
+		AuthenticationConfig.setProperty("authentication.scheme.jwt.type", MockJwtBearerAuthenticationScheme.class.getName());
+		AuthenticationConfig.setProperty("authentication.scheme.jwt.config.jwksLocation", jwksFile.getAbsolutePath());
+		AuthenticationConfig.setProperty("authentication.scheme.jwt.config.issuer", "https://idp.example.org");
+		AuthenticationConfig.setProperty("authentication.scheme.jwt.config.audience", "openmrs");
+		setRuntimeProperties(AuthenticationConfig.getConfig());
+		session = newSession();
+		authenticationSession = new MockAuthenticationSession(newRequest(null), newResponse());
+		userLogin = authenticationSession.getUserLogin();
+		UserLoginTracker.setLoginOnThread(userLogin);
+		AuthenticationScheme scheme = AuthenticationConfig.getAuthenticationScheme();
+		assertThat(scheme.getClass(), equalTo(MockJwtBearerAuthenticationScheme.class));
+		authenticationScheme = (MockJwtBearerAuthenticationScheme) scheme;
+		MockJwtBearerAuthenticationScheme.verifications = 0;
+	}
+
+	@AfterEach
+	@Override
+	public void teardown() {
+		UserLoginTracker.removeLoginFromThread();
+		JwtBearerAuthenticationScheme.clearVerifiedTokens();
+		JsonWebKeySet.stopRefreshing();
+		super.teardown();
+	}
+
+	protected MockHttpServletRequest newRequest(String authorizationHeader) {
+		MockHttpServletRequest request = newGetRequest("/ws/rest/v1/patient", "192.168.1.1");
+		if (authorizationHeader != null) {
+			request.addHeader("Authorization", authorizationHeader);
+		}
+		request.setSession(session);
+		return request;
+	}
+
+	protected AuthenticationCredentials getCredentials(String authorizationHeader) {
+		authenticationSession = new MockAuthenticationSession(newRequest(authorizationHeader), newResponse());
+		return authenticationScheme.getCredentials(authenticationSession);
+	}
+
+	@Test
+	public void shouldConfigureFromRuntimeProperties() {
+		assertThat(authenticationScheme.getSchemeId(), equalTo("jwt"));
+	}
+
+	@Test
+	public void shouldReturnNullIfNoBearerTokenInRequest() {
+		assertThat(getCredentials(null), nullValue());
+		assertThat(getCredentials("Basic YWRtaW46dGVzdA=="), nullValue());
+	}
+
+	@Test
+	public void shouldAuthenticateWithValidToken() {
+		AuthenticationCredentials credentials = getCredentials("Bearer " + token(keyPair, "key1", claims("admin", 300)));
+		assertThat(credentials, notNullValue());
+		Authenticated authenticated = authenticationScheme.authenticate(credentials);
+		assertThat(authenticated.getUser().getUsername(), equalTo("admin"));
+		assertThat(authenticated.getAuthenticationScheme(), equalTo("jwt"));
+	}
+
+	@Test
+	public void shouldOnlyVerifyTheSameTokenOnce() {
+		String token = token(keyPair, "key1", claims("admin", 300));
+		authenticationScheme.authenticate(authenticationScheme.new JwtCredentials(token));
+		authenticationScheme.authenticate(authenticationScheme.new JwtCredentials(token));
+		assertThat(MockJwtBearerAuthenticationScheme.verifications, equalTo(1));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithExpiredToken() {
+		AuthenticationCredentials credentials = getCredentials("Bearer " + token(keyPair, "key1", claims("admin", -300)));
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(credentials));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithInvalidSignature() {
+		AuthenticationCredentials credentials = getCredentials("Bearer " + token(otherKeyPair, "key1", claims("admin", 300)));
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(credentials));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithUnknownKeyId() {
+		AuthenticationCredentials credentials = getCredentials("Bearer " + token(keyPair, "key2", claims("admin", 300)));
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(credentials));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithIncorrectIssuerOrAudience() {
+		String wrongIssuer = claims("admin", 300).replace("https://idp.example.org", "https://other.example.org");
+		AuthenticationCredentials c1 = authenticationScheme.new JwtCredentials(token(keyPair, "key1", wrongIssuer));
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(c1));
+		String wrongAudience = claims("admin", 300).replace("\"openmrs\"", "\"other\"");
+		AuthenticationCredentials c2 = authenticationScheme.new JwtCredentials(token(keyPair, "key1", wrongAudience));
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(c2));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateIfUserNotFound() {
+		AuthenticationCredentials credentials = getCredentials("Bearer " + token(keyPair, "key1", claims("unknown", 300)));
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(credentials));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateIfCredentialsAreIncorrectType() {
+		UsernamePasswordCredentials creds = new UsernamePasswordCredentials("admin", "adminPassword");
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(creds));
+	}
+
+	@Test
+	public void shouldLoadKeySetFromUrl() throws Exception {
+		byte[] jwks = jwks("key1", (RSAPublicKey) keyPair.getPublic()).getBytes(StandardCharsets.UTF_8);
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/jwks.json", exchange -> {
+			exchange.sendResponseHeaders(200, jwks.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(jwks);
+			}
+		});
+		server.start();
+		try {
+			String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/jwks.json";
+			JsonWebKeySet keySet = JsonWebKeySet.getInstance(url, 0);
+			assertThat(keySet.size(), equalTo(1));
+			assertThat(keySet.getKey("key1"), equalTo(keyPair.getPublic()));
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void shouldRetainExistingKeysIfReloadFails() {
+		JsonWebKeySet keySet = JsonWebKeySet.getInstance(jwksFile.getAbsolutePath(), 0);
+		assertThat(keySet.size(), equalTo(1));
+		jwksFile.delete();
+		keySet.reload();
+		assertThat(keySet.getKey("key1"), equalTo(keyPair.getPublic()));
+	}
+
+	protected String claims(String username, int expiresInSeconds) {
+		long now = System.currentTimeMillis() / 1000;
+		return "{\"sub\":\"" + username + "\",\"iss\":\"https://idp.example.org\",\"aud\":[\"openmrs\"]," +
+				"\"jti\":\"" + UUID.randomUUID() + "\",\"iat\":" + now + ",\"exp\":" + (now + expiresInSeconds) + "}";
+	}
+
+	protected String token(KeyPair keyPair, String keyId, String claims) {
+		try {
+			Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+			String header = "{\"alg\":\"RS256\",\"typ\":\"JWT\",\"kid\":\"" + keyId + "\"}";
+			String content = encoder.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + "." +
+					encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8));
+			Signature signature = Signature.getInstance("SHA256withRSA");
+			signature.initSign(keyPair.getPrivate());
+			signature.update(content.getBytes(StandardCharsets.US_ASCII));
+			return content + "." + encoder.encodeToString(signature.sign());
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected String jwks(String keyId, RSAPublicKey key) {
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		String n = encoder.encodeToString(key.getModulus().toByteArray());
+		String e = encoder.encodeToString(key.getPublicExponent().toByteArray());
+		return "{\"keys\":[{\"kty\":\"RSA\",\"use\":\"sig\",\"alg\":\"RS256\",\"kid\":\"" + keyId + "\"," +
+				"\"n\":\"" + n + "\",\"e\":\"" + e + "\"}]}";
+	}
+
+	protected KeyPair newKeyPair() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(2048);
+			return generator.generateKeyPair();
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void writeFile(File file, String contents) {
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(contents.getBytes(StandardCharsets.UTF_8));
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
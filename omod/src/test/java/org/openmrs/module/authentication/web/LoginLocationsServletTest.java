@@ -0,0 +1,116 @@
+package org.openmrs.module.authentication.web;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.Location;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.LocationIndex;
+import org.openmrs.module.authentication.web.mocks.MockBasicWithLocationAuthenticationScheme;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class LoginLocationsServletTest extends BaseWebAuthenticationTest {
+
+	LoginLocationsServlet servlet;
+
+	@BeforeEach
+	@Override
+	public void setup() {
+		super.setup();
+		AuthenticationConfig.setProperty("authentication.scheme", "basic");
+		AuthenticationConfig.setProperty("authentication.scheme.basic.type", MockBasicWithLocationAuthenticationScheme.class.getName());
+		AuthenticationConfig.setProperty("authentication.scheme.basic.config.onlyLocationsWithTag", "Login Location");
+		setRuntimeProperties(AuthenticationConfig.getConfig());
+		MockBasicWithLocationAuthenticationScheme.validLocations.clear();
+		MockBasicWithLocationAuthenticationScheme.validLocations.add(newLocation(1, "Clinic"));
+		MockBasicWithLocationAuthenticationScheme.validLocations.add(newLocation(2, "Ward"));
+		MockBasicWithLocationAuthenticationScheme.loads = 0;
+		LocationIndex.invalidate();
+		servlet = new LoginLocationsServlet();
+	}
+
+	protected Location newLocation(Integer locationId, String name) {
+		Location location = new Location(locationId);
+		location.setUuid("uuid-" + locationId);
+		location.setName(name);
+		return location;
+	}
+
+	protected MockHttpServletResponse get(String ifNoneMatch) throws Exception {
+		return get(ifNoneMatch, null);
+	}
+
+	protected MockHttpServletResponse get(String ifNoneMatch, String schemeId) throws Exception {
+		MockHttpServletRequest request = newGetRequest(LoginLocationsServlet.PATH, "192.168.1.1");
+		if (schemeId != null) {
+			request.setParameter(LoginLocationsServlet.SCHEME_ID_PARAM, schemeId);
+		}
+		if (ifNoneMatch != null) {
+			request.addHeader("If-None-Match", ifNoneMatch);
+		}
+		MockHttpServletResponse response = newResponse();
+		servlet.doGet(request, response);
+		return response;
+	}
+
+	@Test
+	public void shouldServeValidLocationsAsJson() throws Exception {
+		MockHttpServletResponse response = get(null);
+		assertThat(response.getStatus(), equalTo(200));
+		assertThat(response.getContentType(), equalTo("application/json;charset=UTF-8"));
+		assertThat(response.getContentAsString(),
+				equalTo("[{\"id\":1,\"uuid\":\"uuid-1\",\"name\":\"Clinic\"},{\"id\":2,\"uuid\":\"uuid-2\",\"name\":\"Ward\"}]"));
+		assertThat(response.getHeader("ETag"), notNullValue());
+		assertThat(response.getHeader("Cache-Control"), equalTo("private, max-age=60"));
+	}
+
+	@Test
+	public void shouldReturnNotModifiedIfETagMatches() throws Exception {
+		String etag = get(null).getHeader("ETag");
+		MockHttpServletResponse response = get(etag);
+		assertThat(response.getStatus(), equalTo(304));
+		assertThat(response.getContentAsByteArray().length, equalTo(0));
+		assertThat(get("\"other\", " + etag).getStatus(), equalTo(304));
+		assertThat(get("\"other\"").getStatus(), equalTo(200));
+		assertThat(MockBasicWithLocationAuthenticationScheme.loads, equalTo(1));
+	}
+
+	@Test
+	public void shouldChangeETagWhenLocationsChange() throws Exception {
+		String etag = get(null).getHeader("ETag");
+		MockBasicWithLocationAuthenticationScheme.validLocations.add(newLocation(3, "Pharmacy"));
+		LocationIndex.invalidate();
+		MockHttpServletResponse response = get(etag);
+		assertThat(response.getStatus(), equalTo(200));
+		assertThat(response.getHeader("ETag"), not(equalTo(etag)));
+	}
+
+	@Test
+	public void shouldReturnNotFoundIfSchemeDoesNotSupportLocations() throws Exception {
+		AuthenticationConfig.setProperty("authentication.scheme.basic.type", BasicWebAuthenticationScheme.class.getName());
+		assertThat(get(null).getStatus(), equalTo(404));
+	}
+
+	@Test
+	public void shouldOnlyServeSchemesThatAreConfiguredOrListed() throws Exception {
+		AuthenticationConfig.setProperty("authentication.scheme.kiosk.type", MockBasicWithLocationAuthenticationScheme.class.getName());
+		assertThat(get(null, "basic").getStatus(), equalTo(200));
+		assertThat(get(null, "kiosk").getStatus(), equalTo(404));
+		assertThat(get(null, "unknown").getStatus(), equalTo(404));
+		AuthenticationConfig.setProperty("authentication.loginLocations.schemes", "kiosk");
+		assertThat(get(null, "kiosk").getStatus(), equalTo(200));
+		assertThat(get(null, "unknown").getStatus(), equalTo(404));
+	}
+
+	@Test
+	public void shouldAlwaysWhiteListLoginLocations() {
+		MockHttpServletRequest request = newGetRequest(LoginLocationsServlet.PATH, "192.168.1.1");
+		request.setServletPath(LoginLocationsServlet.PATH);
+		assertThat(new AuthenticationFilter().isWhiteListed(request), equalTo(true));
+	}
+}
@@ -0,0 +1,151 @@
+package org.openmrs.module.authentication.web;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.api.context.Authenticated;
+import org.openmrs.api.context.AuthenticationScheme;
+import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.UserLoginTracker;
+import org.openmrs.module.authentication.web.mocks.MockAuthenticationSession;
+import org.openmrs.module.authentication.web.mocks.MockBasicWebAuthenticationScheme;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MultiFactorAuthenticationSchemeTest extends BaseWebAuthenticationTest {
+
+	MockHttpSession session;
+	MockAuthenticationSession authenticationSession;
+	MultiFactorAuthenticationScheme authenticationScheme;
+	UserLogin userLogin;
+
+	@BeforeEach
+	@Override
+	public void setup() {
+		super.setup();
+		AuthenticationConfig.setProperty("authentication.scheme", "mfa");
+		AuthenticationConfig.setProperty("authentication.scheme.mfa.type", MultiFactorAuthenticationScheme.class.getName());
+		AuthenticationConfig.setProperty("authentication.scheme.mfa.config.factors", "password -> (code | question)?");
+		addScheme("password", "/passwordLogin", "mfaAdmin,mfaCode,mfaQuestion");
+		AuthenticationConfig.setProperty("authentication.scheme.password.config.users.mfaCode.secondaryType", "code");
+		AuthenticationConfig.setProperty("authentication.scheme.password.config.users.mfaQuestion.secondaryType", "question");
+		addScheme("code", "/codeLogin", "mfaCode");
+		addScheme("question", "/questionLogin", "mfaQuestion");
+		setRuntimeProperties(AuthenticationConfig.getConfig());
+		session = newSession();
+		authenticationSession = newAuthenticationSession(null, null, null);
+		userLogin = authenticationSession.getUserLogin();
+		AuthenticationScheme scheme = AuthenticationConfig.getAuthenticationScheme();
+		assertThat(scheme.getClass(), equalTo(MultiFactorAuthenticationScheme.class));
+		authenticationScheme = (MultiFactorAuthenticationScheme) scheme;
+		UserLoginTracker.setLoginOnThread(userLogin);
+	}
+
+	@AfterEach
+	@Override
+	public void teardown() {
+		UserLoginTracker.removeLoginFromThread();
+		super.teardown();
+	}
+
+	protected void addScheme(String schemeId, String loginPage, String users) {
+		String prefix = "authentication.scheme." + schemeId;
+		AuthenticationConfig.setProperty(prefix + ".type", MockBasicWebAuthenticationScheme.class.getName());
+		AuthenticationConfig.setProperty(prefix + ".config.loginPage", loginPage);
+		AuthenticationConfig.setProperty(prefix + ".config.usernameParam", schemeId + "User");
+		AuthenticationConfig.setProperty(prefix + ".config.passwordParam", schemeId + "Pw");
+		AuthenticationConfig.setProperty(prefix + ".config.users", users);
+		for (String user : users.split(",")) {
+			AuthenticationConfig.setProperty(prefix + ".config.users." + user + ".password", schemeId + "Pw");
+		}
+	}
+
+	protected MockAuthenticationSession newAuthenticationSession(String schemeId, String username, String password) {
+		MockHttpServletRequest request = newPostRequest("192.168.1.1", "/login");
+		if (schemeId != null) {
+			request.setParameter(schemeId + "User", username);
+			request.setParameter(schemeId + "Pw", password);
+		}
+		request.setSession(session);
+		return new MockAuthenticationSession(request, newResponse());
+	}
+
+	protected AuthenticationCredentials submit(String schemeId, String username, String password) {
+		authenticationSession = newAuthenticationSession(schemeId, username, password);
+		return authenticationScheme.getCredentials(authenticationSession);
+	}
+
+	@Test
+	public void shouldChallengeForFirstStepUntilUserIsIdentified() {
+		assertThat(submit(null, null, null), nullValue());
+		assertThat(authenticationScheme.getChallengeUrl(authenticationSession), equalTo("/passwordLogin"));
+		assertThat(submit("password", "mfaCode", "wrong"), nullValue());
+		assertThat(authenticationScheme.getChallengeUrl(authenticationSession), equalTo("/passwordLogin"));
+	}
+
+	@Test
+	public void shouldSkipOptionalStepIfUserHasNoSchemeConfigured() {
+		AuthenticationCredentials credentials = submit("password", "mfaAdmin", "passwordPw");
+		assertThat(credentials, notNullValue());
+		Authenticated authenticated = authenticationScheme.authenticate(credentials);
+		assertThat(authenticated.getUser().getUsername(), equalTo("mfaAdmin"));
+	}
+
+	@Test
+	public void shouldRequireSchemeConfiguredForUserInOptionalStep() {
+		assertThat(submit("password", "mfaQuestion", "passwordPw"), nullValue());
+		assertThat(authenticationScheme.getChallengeUrl(authenticationSession), equalTo("/questionLogin"));
+		assertThat(authenticationScheme.getFactorState(userLogin).getStep(), equalTo(1));
+		assertThat(submit("code", "mfaQuestion", "codePw"), nullValue());
+		AuthenticationCredentials credentials = submit("question", "mfaQuestion", "questionPw");
+		assertThat(credentials, notNullValue());
+		Authenticated authenticated = authenticationScheme.authenticate(credentials);
+		assertThat(authenticated.getUser().getUsername(), equalTo("mfaQuestion"));
+	}
+
+	@Test
+	public void shouldRemainOnCurrentStepIfStepAuthenticationFails() {
+		assertThat(submit("password", "mfaCode", "passwordPw"), nullValue());
+		assertThat(submit("code", "mfaCode", "wrong"), nullValue());
+		assertThat(authenticationScheme.getFactorState(userLogin).getStep(), equalTo(1));
+		assertThat(userLogin.isCredentialValidated("password"), equalTo(true));
+		assertThat(submit("code", "mfaCode", "codePw"), notNullValue());
+	}
+
+	@Test
+	public void shouldRetainFactorStateOnUserLoginAcrossRequests() {
+		submit("password", "mfaCode", "passwordPw");
+		MultiFactorAuthenticationScheme.FactorState state = authenticationScheme.getFactorState(userLogin);
+		MultiFactorAuthenticationScheme other = (MultiFactorAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		assertThat(other.getFactorState(userLogin), sameInstance(state));
+		assertThat(other.getFactorGraph(), sameInstance(authenticationScheme.getFactorGraph()));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateIfRequiredStepIsIncomplete() {
+		submit("password", "mfaCode", "passwordPw");
+		MultiFactorAuthenticationScheme.FactorState state = authenticationScheme.getFactorState(userLogin);
+		AuthenticationCredentials credentials = authenticationScheme.new MultiFactorAuthenticationCredentials(
+				userLogin.getUser(), userLogin.getValidatedCredentials(), new int[] {0, MultiFactorAuthenticationScheme.SKIPPED}
+		);
+		assertThat(state.isComplete(), equalTo(false));
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(credentials));
+	}
+
+	@Test
+	public void shouldFailWithInvalidFactorsConfiguration() {
+		AuthenticationConfig.setProperty("authentication.scheme.mfa.config.factors", "password -> totp | secret");
+		authenticationScheme = (MultiFactorAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.getFactorGraph());
+	}
+}
@@ -9,6 +9,7 @@ import org.openmrs.api.context.AuthenticationScheme;
 import org.openmrs.api.context.BasicAuthenticated;
 import org.openmrs.api.context.ContextAuthenticationException;
 import org.openmrs.api.context.UsernamePasswordCredentials;
+import org.openmrs.api.db.LoginCredential;
 import org.openmrs.module.authentication.AuthenticationConfig;
 import org.openmrs.module.authentication.AuthenticationCredentials;
 import org.openmrs.module.authentication.TestAuthenticationCredentials;
@@ -60,6 +61,8 @@ public class SecretQuestionAuthenticationSchemeTest extends BaseWebAuthenticatio
 		AuthenticationScheme scheme = AuthenticationConfig.getAuthenticationScheme();
 		assertThat(scheme.getClass(), equalTo(MockSecretQuestionAuthenticationScheme.class));
 		authenticationScheme = (MockSecretQuestionAuthenticationScheme) scheme;
+		MockSecretQuestionAuthenticationScheme.questionLookups = 0;
+		MockSecretQuestionAuthenticationScheme.answerChecks = 0;
 	}
 
 	@AfterEach
@@ -123,4 +126,56 @@ public class SecretQuestionAuthenticationSchemeTest extends BaseWebAuthenticatio
 		UsernamePasswordCredentials creds = new UsernamePasswordCredentials("admin", "adminPassword");
 		assertThrows(ContextAuthenticationException.class, () -> authenticationScheme.authenticate(creds));
 	}
+
+	@Test
+	public void shouldRestartLoginOnceMaxAttemptsReached() {
+		for (int i = 0; i < 4; i++) {
+			AuthenticationCredentials credentials = getCredentials("testing question", "incorrect answer");
+			ContextAuthenticationException e = assertThrows(ContextAuthenticationException.class,
+					() -> authenticationScheme.authenticate(credentials));
+			assertThat(e.getMessage(), equalTo("authentication.error.incorrectAnswer"));
+		}
+		AuthenticationCredentials lastCredentials = getCredentials("testing question", "incorrect answer");
+		ContextAuthenticationException e = assertThrows(ContextAuthenticationException.class,
+				() -> authenticationScheme.authenticate(lastCredentials));
+		assertThat(e.getMessage(), equalTo("authentication.error.tooManyAttempts"));
+		assertThat(MockSecretQuestionAuthenticationScheme.answerChecks, equalTo(5));
+		assertThat(userLogin.getUser(), nullValue());
+		assertThat(userLogin.isCredentialValidated("test"), equalTo(false));
+
+		userLogin.authenticationSuccessful("test", new BasicAuthenticated(candidateUser, "test"));
+		assertThat(userLogin.getFailedAuthentications("secret"), equalTo(0));
+		AuthenticationCredentials credentials = getCredentials("testing question", "testing answer");
+		assertThat(authenticationScheme.authenticate(credentials).getUser(), equalTo(candidateUser));
+		assertThat(MockSecretQuestionAuthenticationScheme.answerChecks, equalTo(6));
+	}
+
+	@Test
+	public void shouldRemoveCachedSecretQuestionWhenLoginCredentialChanges() {
+		User user = new User(5002);
+		user.setUsername("changed");
+		authenticationScheme.getCachedSecretQuestion(user);
+		assertThat(MockSecretQuestionAuthenticationScheme.questionLookups, equalTo(1));
+		LoginCredential credential = new LoginCredential();
+		credential.setUserId(5002);
+		SecretQuestionChangeInterceptor interceptor = new SecretQuestionChangeInterceptor();
+		interceptor.onFlushDirty(credential, 5002, null, null, null, null);
+		authenticationScheme.getCachedSecretQuestion(user);
+		assertThat(MockSecretQuestionAuthenticationScheme.questionLookups, equalTo(1));
+		interceptor.afterTransactionCompletion(null);
+		authenticationScheme.getCachedSecretQuestion(user);
+		assertThat(MockSecretQuestionAuthenticationScheme.questionLookups, equalTo(2));
+	}
+
+	@Test
+	public void shouldCacheSecretQuestionForUser() {
+		User user = new User(5001);
+		user.setUsername("cached");
+		assertThat(authenticationScheme.isUserConfigurationRequired(user), equalTo(false));
+		assertThat(authenticationScheme.getCachedSecretQuestion(user), equalTo("cached question"));
+		assertThat(MockSecretQuestionAuthenticationScheme.questionLookups, equalTo(1));
+		SecretQuestionAuthenticationScheme.removeCachedSecretQuestion(user);
+		assertThat(authenticationScheme.getCachedSecretQuestion(user), equalTo("cached question"));
+		assertThat(MockSecretQuestionAuthenticationScheme.questionLookups, equalTo(2));
+	}
 }
@@ -0,0 +1,211 @@
+package org.openmrs.module.authentication.web;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import dev.samstevens.totp.code.DefaultCodeGenerator;
+import dev.samstevens.totp.code.HashingAlgorithm;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.User;
+import org.openmrs.api.context.Authenticated;
+import org.openmrs.api.context.AuthenticationScheme;
+import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.UserLogin;
+import org.openmrs.module.authentication.UserLoginTracker;
+import org.openmrs.module.authentication.web.mocks.MockTotpAuthenticationScheme;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TotpAuthenticationSchemeTest extends BaseWebAuthenticationTest {
+
+	static int nextUserId = 1000;
+
+	MockTotpAuthenticationScheme authenticationScheme;
+	User user;
+	String secret;
+
+	@BeforeEach
+	@Override
+	public void setup() {
+		super.setup();
+		AuthenticationConfig.setProperty("authentication.scheme", "totp");
+		AuthenticationConfig.setProperty("authentication.scheme.totp.type", MockTotpAuthenticationScheme.class.getName());
+		setRuntimeProperties(AuthenticationConfig.getConfig());
+		UserLoginTracker.setLoginOnThread(new UserLogin());
+		AuthenticationScheme scheme = AuthenticationConfig.getAuthenticationScheme();
+		assertThat(scheme.getClass(), equalTo(MockTotpAuthenticationScheme.class));
+		authenticationScheme = (MockTotpAuthenticationScheme) scheme;
+		secret = authenticationScheme.generateSecret();
+		user = new User(nextUserId++);
+		user.setUsername("admin");
+		user.setUserProperty(authenticationScheme.getSecretUserPropertyName(), MockTotpAuthenticationScheme.ENCRYPTED_PREFIX + secret);
+		MockTotpAuthenticationScheme.decryptions = 0;
+	}
+
+	@AfterEach
+	@Override
+	public void teardown() {
+		UserLoginTracker.removeLoginFromThread();
+		super.teardown();
+	}
+
+	protected String getCode(long timeStepOffset) throws Exception {
+		long timeStep = System.currentTimeMillis() / 1000 / 30 + timeStepOffset;
+		return new DefaultCodeGenerator(HashingAlgorithm.SHA1, 6).generate(secret, timeStep);
+	}
+
+	protected Authenticated authenticate(String code) {
+		return authenticationScheme.authenticate(authenticationScheme.new TotpCredentials(user, code));
+	}
+
+	@Test
+	public void shouldAuthenticateWithValidCode() throws Exception {
+		Authenticated authenticated = authenticate(getCode(0));
+		assertThat(authenticated.getUser(), equalTo(user));
+		assertThat(authenticated.getAuthenticationScheme(), equalTo("totp"));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithInvalidCode() throws Exception {
+		String code = getCode(0).equals("000000") ? "111111" : "000000";
+		ContextAuthenticationException e = assertThrows(ContextAuthenticationException.class, () -> authenticate(code));
+		assertThat(e.getMessage(), equalTo("authentication.error.invalidCredentials"));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithReplayedCode() throws Exception {
+		String code = getCode(0);
+		authenticate(code);
+		UserLoginTracker.setLoginOnThread(new UserLogin());
+		ContextAuthenticationException e = assertThrows(ContextAuthenticationException.class, () -> authenticate(code));
+		assertThat(e.getMessage(), equalTo("authentication.error.codeAlreadyUsed"));
+	}
+
+	@Test
+	public void shouldFailToAuthenticateWithCodeEarlierThanLastAcceptedCode() throws Exception {
+		String earlierCode = getCode(-1);
+		String code = getCode(0);
+		if (!earlierCode.equals(code)) {
+			authenticate(code);
+			UserLoginTracker.setLoginOnThread(new UserLogin());
+			ContextAuthenticationException e = assertThrows(ContextAuthenticationException.class,
+					() -> authenticate(earlierCode));
+			assertThat(e.getMessage(), equalTo("authentication.error.codeAlreadyUsed"));
+		}
+	}
+
+	@Test
+	public void shouldDecryptSecretOnceWhileCached() throws Exception {
+		authenticate(getCode(-1));
+		UserLoginTracker.setLoginOnThread(new UserLogin());
+		authenticate(getCode(0));
+		assertThat(MockTotpAuthenticationScheme.decryptions, equalTo(1));
+	}
+
+	@Test
+	public void shouldDecryptSecretAgainIfSecretChanges() throws Exception {
+		authenticate(getCode(-1));
+		secret = authenticationScheme.generateSecret();
+		user.setUserProperty(authenticationScheme.getSecretUserPropertyName(), MockTotpAuthenticationScheme.ENCRYPTED_PREFIX + secret);
+		UserLoginTracker.setLoginOnThread(new UserLogin());
+		authenticate(getCode(0));
+		assertThat(MockTotpAuthenticationScheme.decryptions, equalTo(2));
+	}
+
+	@Test
+	public void shouldDecryptSecretAgainAfterCachedSecretsRemoved() throws Exception {
+		authenticate(getCode(-1));
+		TotpAuthenticationScheme.removeCachedSecrets(user);
+		UserLoginTracker.setLoginOnThread(new UserLogin());
+		authenticate(getCode(0));
+		assertThat(MockTotpAuthenticationScheme.decryptions, equalTo(2));
+	}
+
+	@Test
+	public void shouldNotReturnZeroedSecretIfRemovedWhileBeingRead() throws Exception {
+		String encryptedSecret = user.getUserProperty(authenticationScheme.getSecretUserPropertyName());
+		byte[] expected = authenticationScheme.getSecretKey(user, encryptedSecret);
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread remover = new Thread(() -> {
+			while (running.get()) {
+				TotpAuthenticationScheme.removeCachedSecrets(user);
+			}
+		});
+		remover.start();
+		try {
+			for (int i = 0; i < 20000; i++) {
+				assertThat(authenticationScheme.getSecretKey(user, encryptedSecret), equalTo(expected));
+			}
+		}
+		finally {
+			running.set(false);
+			remover.join();
+		}
+	}
+
+	@Test
+	public void shouldDecryptSecretEachTimeIfCacheDisabled() throws Exception {
+		AuthenticationConfig.setProperty("authentication.scheme.totp.config.secretCacheSeconds", "0");
+		authenticationScheme = (MockTotpAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		authenticate(getCode(-1));
+		UserLoginTracker.setLoginOnThread(new UserLogin());
+		authenticate(getCode(0));
+		assertThat(MockTotpAuthenticationScheme.decryptions, equalTo(2));
+	}
+
+	@Test
+	public void shouldGenerateSvgQrCodeMatchingEncodedContent() throws Exception {
+		String svg = authenticationScheme.generateQrCodeSvg(secret, "admin");
+		assertThat(svg, startsWith("<svg"));
+		String uri = authenticationScheme.getQrData(secret, "admin").getUri();
+		BitMatrix expected = new QRCodeWriter().encode(uri, BarcodeFormat.QR_CODE, 0, 0,
+				Collections.singletonMap(EncodeHintType.MARGIN, 4));
+		BitMatrix actual = new BitMatrix(expected.getWidth(), expected.getHeight());
+		Matcher m = Pattern.compile("([Mm])(\\d+) (\\d+)(?:\\.5)?h(\\d+)").matcher(svg);
+		int x = 0;
+		int y = 0;
+		while (m.find()) {
+			boolean absolute = m.group(1).equals("M");
+			x = absolute ? Integer.parseInt(m.group(2)) : x + Integer.parseInt(m.group(2));
+			y = absolute ? Integer.parseInt(m.group(3)) : y;
+			int length = Integer.parseInt(m.group(4));
+			actual.setRegion(x, y, length, 1);
+			x += length;
+		}
+		assertThat(actual, equalTo(expected));
+	}
+
+	@Test
+	public void shouldCacheRenderedQrCodesBySecretAndLabel() {
+		byte[] qrCode = authenticationScheme.getQrCode(secret, "admin", "png");
+		assertThat(authenticationScheme.getQrCode(secret, "admin", "png"), sameInstance(qrCode));
+		assertThat(authenticationScheme.getQrCode(secret, "other", "png"), not(sameInstance(qrCode)));
+		assertThat(authenticationScheme.getQrCode(authenticationScheme.generateSecret(), "admin", "png"), not(sameInstance(qrCode)));
+	}
+
+	@Test
+	public void shouldWriteQrCodeToResponseInConfiguredFormat() throws Exception {
+		AuthenticationConfig.setProperty("authentication.scheme.totp.config.qrCodeFormat", "svg");
+		authenticationScheme = (MockTotpAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		MockHttpServletResponse response = newResponse();
+		authenticationScheme.writeQrCode(secret, "admin", response);
+		assertThat(response.getContentType(), equalTo("image/svg+xml"));
+		assertThat(response.getContentAsString(), equalTo(authenticationScheme.generateQrCodeSvg(secret, "admin")));
+		assertThat(authenticationScheme.generateQrCodeUriForSecret(secret, "admin"), startsWith("data:image/svg+xml;base64,"));
+	}
+}
@@ -0,0 +1,152 @@
+package org.openmrs.module.authentication.web;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.User;
+import org.openmrs.module.authentication.AuthenticationConfig;
+import org.openmrs.module.authentication.web.mocks.MockTotpAuthenticationScheme;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TotpBulkEnrollmentTest extends BaseWebAuthenticationTest {
+
+	MockTotpAuthenticationScheme scheme;
+	List<List<User>> savedBatches;
+
+	@BeforeEach
+	@Override
+	public void setup() {
+		super.setup();
+		AuthenticationConfig.setProperty("authentication.scheme.totp.type", MockTotpAuthenticationScheme.class.getName());
+		setRuntimeProperties(AuthenticationConfig.getConfig());
+		scheme = (MockTotpAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme("totp");
+		savedBatches = new ArrayList<>();
+	}
+
+	protected TotpBulkEnrollment newEnrollment(int batchSize) {
+		return new TotpBulkEnrollment(scheme, batchSize, new ForkJoinPool(4)) {
+			@Override
+			protected void saveSecrets(List<Enrollment> batch) {
+				List<User> saved = new ArrayList<>();
+				for (Enrollment enrollment : batch) {
+					enrollment.user.setUserProperty(scheme.getSecretUserPropertyName(), enrollment.encryptedSecret);
+					saved.add(enrollment.user);
+				}
+				savedBatches.add(saved);
+			}
+		};
+	}
+
+	protected List<User> newUsers(int count) {
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			User user = new User(i + 1);
+			user.setUsername("user" + i);
+			users.add(user);
+		}
+		return users;
+	}
+
+	protected Map<String, byte[]> readZip(byte[] zip) throws Exception {
+		Map<String, byte[]> entries = new HashMap<>();
+		try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+					content.write(buffer, 0, read);
+				}
+				entries.put(entry.getName(), content.toByteArray());
+			}
+		}
+		return entries;
+	}
+
+	@Test
+	public void shouldEnrollUsersInBatchesAndWriteQrCodesToZip() throws Exception {
+		List<User> users = newUsers(25);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int enrolled = newEnrollment(10).enroll(users.stream(), out);
+		assertThat(enrolled, equalTo(25));
+		assertThat(savedBatches.size(), equalTo(3));
+		assertThat(savedBatches.get(2).size(), equalTo(5));
+		Map<String, byte[]> entries = readZip(out.toByteArray());
+		assertThat(entries.size(), equalTo(26));
+		for (User user : users) {
+			String secret = user.getUserProperty(scheme.getSecretUserPropertyName());
+			assertThat(secret, startsWith(MockTotpAuthenticationScheme.ENCRYPTED_PREFIX));
+			byte[] png = entries.get(user.getUserId() + ".png");
+			assertThat(png.length, greaterThan(0));
+			assertThat(png[1], equalTo((byte) 'P'));
+		}
+	}
+
+	@Test
+	public void shouldSkipUsersWhoAlreadyHaveSecret() throws Exception {
+		List<User> users = newUsers(3);
+		users.get(1).setUserProperty(scheme.getSecretUserPropertyName(), "existing");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int enrolled = newEnrollment(10).enroll(users.stream(), out);
+		assertThat(enrolled, equalTo(2));
+		assertThat(users.get(1).getUserProperty(scheme.getSecretUserPropertyName()), equalTo("existing"));
+		Map<String, byte[]> entries = readZip(out.toByteArray());
+		assertThat(entries.containsKey("2.png"), equalTo(false));
+		String manifest = new String(entries.get(TotpBulkEnrollment.MANIFEST), StandardCharsets.UTF_8);
+		assertThat(manifest, equalTo("userId,username,status\n1,user0,enrolled\n2,user1,skipped\n3,user2,enrolled\n"));
+	}
+
+	@Test
+	public void shouldSkipUsersWithoutUserIdOrLabel() throws Exception {
+		List<User> users = newUsers(3);
+		users.get(0).setUsername(null);
+		users.add(new User());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int enrolled = newEnrollment(10).enroll(users.stream(), out);
+		assertThat(enrolled, equalTo(2));
+		assertThat(users.get(0).getUserProperty(scheme.getSecretUserPropertyName()), equalTo(""));
+		Map<String, byte[]> entries = readZip(out.toByteArray());
+		assertThat(entries.size(), equalTo(3));
+		String manifest = new String(entries.get(TotpBulkEnrollment.MANIFEST), StandardCharsets.UTF_8);
+		assertThat(manifest, equalTo("userId,username,status\n1,,skipped\n2,user1,enrolled\n3,user2,enrolled\n,,skipped\n"));
+	}
+
+	@Test
+	public void shouldQuoteManifestFields() throws Exception {
+		List<User> users = newUsers(2);
+		users.get(0).setUsername("smith, \"jo\"");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		newEnrollment(10).enroll(users.stream(), out);
+		Map<String, byte[]> entries = readZip(out.toByteArray());
+		String manifest = new String(entries.get(TotpBulkEnrollment.MANIFEST), StandardCharsets.UTF_8);
+		assertThat(manifest, equalTo("userId,username,status\n1,\"smith, \"\"jo\"\"\",enrolled\n2,user1,enrolled\n"));
+	}
+
+	@Test
+	public void shouldNotSaveSecretsIfQrCodesCannotBeRendered() {
+		List<User> users = newUsers(3);
+		users.get(1).setUsername(StringUtils.repeat("x", 5000));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertThrows(IOException.class, () -> newEnrollment(10).enroll(users.stream(), out));
+		assertThat(savedBatches.size(), equalTo(0));
+		for (User user : users) {
+			assertThat(user.getUserProperty(scheme.getSecretUserPropertyName()), equalTo(""));
+		}
+	}
+}
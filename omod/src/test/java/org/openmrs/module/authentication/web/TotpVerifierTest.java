@@ -0,0 +1,100 @@
+package org.openmrs.module.authentication.web;
+
+import dev.samstevens.totp.code.DefaultCodeGenerator;
+import dev.samstevens.totp.code.HashingAlgorithm;
+import dev.samstevens.totp.secret.DefaultSecretGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class TotpVerifierTest {
+
+	static final long TIME = 1700000000L;
+
+	String secret = new DefaultSecretGenerator(32).generate();
+
+	protected String generate(HashingAlgorithm algorithm, int digits, String secret, long step) throws Exception {
+		return new DefaultCodeGenerator(algorithm, digits).generate(secret, step);
+	}
+
+	@Test
+	public void shouldAcceptCodesGeneratedByTotpLibraryWithinAllowedDiscrepancy() throws Exception {
+		for (HashingAlgorithm algorithm : HashingAlgorithm.values()) {
+			for (int digits : new int[] {6, 8}) {
+				TotpVerifier verifier = new TotpVerifier(algorithm, digits, 30, 2);
+				byte[] key = TotpVerifier.decodeSecret(secret);
+				long currentStep = TIME / 30;
+				for (long step = currentStep - 2; step <= currentStep + 2; step++) {
+					assertThat(verifier.verify(key, generate(algorithm, digits, secret, step), TIME), equalTo(step));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shouldRejectCodesOutsideOfAllowedDiscrepancy() throws Exception {
+		TotpVerifier verifier = new TotpVerifier(HashingAlgorithm.SHA1, 6, 30, 1);
+		byte[] key = TotpVerifier.decodeSecret(secret);
+		long currentStep = TIME / 30;
+		String early = generate(HashingAlgorithm.SHA1, 6, secret, currentStep - 2);
+		String late = generate(HashingAlgorithm.SHA1, 6, secret, currentStep + 2);
+		String current = generate(HashingAlgorithm.SHA1, 6, secret, currentStep);
+		if (!early.equals(current)) {
+			assertThat(verifier.verify(key, early, TIME), equalTo(TotpVerifier.NO_MATCH));
+		}
+		if (!late.equals(current)) {
+			assertThat(verifier.verify(key, late, TIME), equalTo(TotpVerifier.NO_MATCH));
+		}
+	}
+
+	@Test
+	public void shouldRejectMalformedCodes() {
+		TotpVerifier verifier = new TotpVerifier(HashingAlgorithm.SHA1, 6, 30, 2);
+		byte[] key = TotpVerifier.decodeSecret(secret);
+		assertThat(verifier.verify(key, null, TIME), equalTo(TotpVerifier.NO_MATCH));
+		assertThat(verifier.verify(key, "", TIME), equalTo(TotpVerifier.NO_MATCH));
+		assertThat(verifier.verify(key, "12345", TIME), equalTo(TotpVerifier.NO_MATCH));
+		assertThat(verifier.verify(key, "1234567", TIME), equalTo(TotpVerifier.NO_MATCH));
+		assertThat(verifier.verify(key, "12a456", TIME), equalTo(TotpVerifier.NO_MATCH));
+		assertThat(verifier.verify(key, "-12345", TIME), equalTo(TotpVerifier.NO_MATCH));
+		assertThat(verifier.verify(new byte[0], "123456", TIME), equalTo(TotpVerifier.NO_MATCH));
+	}
+
+	@Test
+	public void shouldShareInstancesWithTheSameConfiguration() {
+		TotpVerifier v1 = TotpVerifier.getInstance(HashingAlgorithm.SHA1, 6, 30, 2);
+		TotpVerifier v2 = TotpVerifier.getInstance(HashingAlgorithm.SHA1, 6, 30, 2);
+		assertThat(v1, sameInstance(v2));
+		TotpVerifier v3 = TotpVerifier.getInstance(HashingAlgorithm.SHA256, 6, 30, 2);
+		assertThat(v1 == v3, equalTo(false));
+	}
+
+	@Test
+	public void shouldVerifyCodesConcurrently() throws Exception {
+		TotpVerifier verifier = new TotpVerifier(HashingAlgorithm.SHA1, 6, 30, 2);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				final String s = new DefaultSecretGenerator(32).generate();
+				final long step = TIME / 30 + (i % 5) - 2;
+				final String code = generate(HashingAlgorithm.SHA1, 6, s, step);
+				results.add(executor.submit(() -> verifier.verify(TotpVerifier.decodeSecret(s), code, TIME) == step));
+			}
+			for (Future<Boolean> result : results) {
+				assertThat(result.get(), equalTo(true));
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+}
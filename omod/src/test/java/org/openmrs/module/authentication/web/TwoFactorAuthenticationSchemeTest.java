@@ -3,6 +3,7 @@ package org.openmrs.module.authentication.web;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.openmrs.Role;
 import org.openmrs.User;
 import org.openmrs.api.context.Authenticated;
 import org.openmrs.api.context.AuthenticationScheme;
@@ -10,20 +11,27 @@ import org.openmrs.api.context.ContextAuthenticationException;
 import org.openmrs.api.context.UsernamePasswordCredentials;
 import org.openmrs.module.authentication.AuthenticationConfig;
 import org.openmrs.module.authentication.AuthenticationCredentials;
+import org.openmrs.module.authentication.AuthenticationEvent;
 import org.openmrs.module.authentication.UserLogin;
 import org.openmrs.module.authentication.UserLoginTracker;
 import org.openmrs.module.authentication.web.mocks.MockAuthenticationSession;
 import org.openmrs.module.authentication.web.mocks.MockBasicWebAuthenticationScheme;
+import org.openmrs.module.authentication.web.mocks.MockTwoFactorAuthenticationScheme;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockHttpSession;
 
+import javax.servlet.http.Cookie;
+import java.time.LocalTime;
+import java.util.Properties;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.openmrs.module.authentication.AuthenticationEvent.AUTHENTICATION_FAILED;
 
@@ -35,6 +43,7 @@ public class TwoFactorAuthenticationSchemeTest extends BaseWebAuthenticationTest
 	MockHttpServletResponse response;
 	TwoFactorAuthenticationScheme authenticationScheme;
 	UserLogin userLogin;
+	Cookie trustedDeviceCookie;
 
 	@BeforeEach
 	@Override
@@ -75,6 +84,7 @@ public class TwoFactorAuthenticationSchemeTest extends BaseWebAuthenticationTest
 	@Override
 	public void teardown() {
 		UserLoginTracker.removeLoginFromThread();
+		UserLoginTracker.removeFailedAuthentications("tester");
 		super.teardown();
 	}
 
@@ -86,6 +96,9 @@ public class TwoFactorAuthenticationSchemeTest extends BaseWebAuthenticationTest
 		if (password != null) {
 			request.setParameter("pw", password);
 		}
+		if (trustedDeviceCookie != null) {
+			request.setCookies(trustedDeviceCookie);
+		}
 		request.setSession(session);
 		response = newResponse();
 		authenticationSession = new MockAuthenticationSession(request, response);
@@ -257,6 +270,256 @@ public class TwoFactorAuthenticationSchemeTest extends BaseWebAuthenticationTest
 		assertThat(secondaryScheme.getSchemeId(), equalTo("secondary"));
 	}
 
+	@Test
+	public void shouldReuseFactorPlanAcrossRequestsUntilLoginSucceeds() {
+		primaryAuth("tester", "primaryPw");
+		TwoFactorAuthenticationScheme.FactorPlan plan = authenticationScheme.getFactorPlan(userLogin, userLogin.getUser());
+		assertThat(plan.getPrimaryScheme().getSchemeId(), equalTo("primary"));
+		assertThat(plan.getSecondaryScheme().getSchemeId(), equalTo("secondary"));
+		assertThat(userLogin.getAttribute("authentication.factorPlan.2fa"), sameInstance(plan));
+		authenticationScheme.getChallengeUrl(authenticationSession);
+		secondaryAuth("tester", "secondaryPw");
+		assertThat(userLogin.getAttribute("authentication.factorPlan.2fa"), sameInstance(plan));
+		userLogin.loginSuccessful();
+		assertThat(userLogin.getAttribute("authentication.factorPlan.2fa"), nullValue());
+		userLogin.logoutSucceeded();
+	}
+
+	@Test
+	public void shouldRecomputeFactorPlanIfCandidateUserChanges() {
+		primaryAuth("tester", "test");
+		TwoFactorAuthenticationScheme.FactorPlan plan = authenticationScheme.getFactorPlan(userLogin, null);
+		assertThat(plan.getUser(), nullValue());
+		assertThat(plan.getSecondaryScheme(), nullValue());
+		primaryAuth("tester", "primaryPw");
+		TwoFactorAuthenticationScheme.FactorPlan userPlan = authenticationScheme.getFactorPlan(userLogin, userLogin.getUser());
+		assertThat(userPlan.getUser().getUsername(), equalTo("tester"));
+		assertThat(userPlan.getPrimaryScheme(), sameInstance(plan.getPrimaryScheme()));
+		assertThat(userPlan.getSecondaryScheme().getSchemeId(), equalTo("secondary"));
+	}
+
+	@Test
+	public void shouldNotRequireSecondaryAuthenticationOnTrustedDevice() {
+		enableTrustedDevices();
+		primaryAuth("tester", "primaryPw");
+		assertThat(secondaryAuth("tester", "secondaryPw", true), notNullValue());
+		Cookie cookie = response.getCookie("authentication.trustedDevice");
+		assertThat(cookie, notNullValue());
+		assertThat(cookie.isHttpOnly(), equalTo(true));
+		assertThat(cookie.getMaxAge(), equalTo(30 * 24 * 60 * 60));
+
+		newLogin(cookie);
+		AuthenticationCredentials credentials = primaryAuth("tester", "primaryPw");
+		assertThat(credentials, notNullValue());
+		assertValidatedCredentials("primary", "secondary");
+		assertThat(userLogin.containsEvent(AuthenticationEvent.AUTHENTICATION_TRUSTED_DEVICE), equalTo(true));
+		Authenticated authenticated = authenticationScheme.authenticate(credentials);
+		assertThat(authenticated.getUser().getUsername(), equalTo("tester"));
+	}
+
+	@Test
+	public void shouldRequireSecondaryAuthenticationIfDeviceNotRemembered() {
+		enableTrustedDevices();
+		primaryAuth("tester", "primaryPw");
+		assertThat(secondaryAuth("tester", "secondaryPw", false), notNullValue());
+		assertThat(response.getCookie("authentication.trustedDevice"), nullValue());
+	}
+
+	@Test
+	public void shouldRequireSecondaryAuthenticationIfTrustedDeviceTokenIsRevoked() {
+		enableTrustedDevices();
+		primaryAuth("tester", "primaryPw");
+		User user = userLogin.getUser();
+		TrustedDeviceStore store = authenticationScheme.getTrustedDeviceStore();
+		store.revokeAll(user);
+		secondaryAuth("tester", "secondaryPw", true);
+		Cookie cookie = response.getCookie("authentication.trustedDevice");
+		assertThat(store.getTrustedDevices(user).size(), equalTo(1));
+		store.revokeAll(user);
+
+		newLogin(cookie);
+		assertThat(primaryAuth("tester", "primaryPw"), nullValue());
+		assertValidatedCredentials("primary");
+	}
+
+	@Test
+	public void shouldRequireSecondaryAuthenticationIfTrustedDeviceTokenIsModified() {
+		enableTrustedDevices();
+		primaryAuth("tester", "primaryPw");
+		secondaryAuth("tester", "secondaryPw", true);
+		String[] token = response.getCookie("authentication.trustedDevice").getValue().split("\\.");
+		long extendedExpiry = Long.parseLong(token[1]) + 1000000;
+
+		newLogin(new Cookie("authentication.trustedDevice", token[0] + "." + extendedExpiry + "." + token[2]));
+		assertThat(primaryAuth("tester", "primaryPw"), nullValue());
+		assertValidatedCredentials("primary");
+	}
+
+	@Test
+	public void shouldRequireSecondaryAuthenticationIfTrustedDeviceSecretIsChanged() {
+		enableTrustedDevices();
+		primaryAuth("tester", "primaryPw");
+		secondaryAuth("tester", "secondaryPw", true);
+		Cookie cookie = response.getCookie("authentication.trustedDevice");
+
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.trustedDeviceSecret", "anotherSecret");
+		authenticationScheme = (TwoFactorAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		newLogin(cookie);
+		assertThat(primaryAuth("tester", "primaryPw"), nullValue());
+		assertValidatedCredentials("primary");
+	}
+
+	@Test
+	public void shouldLimitNumberOfTrustedDevicesPerUser() {
+		enableTrustedDevices();
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.maxTrustedDevices", "2");
+		authenticationScheme = (TwoFactorAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		TrustedDeviceStore store = authenticationScheme.getTrustedDeviceStore();
+		User user = new User();
+		user.setUsername("tester");
+		long expiry = System.currentTimeMillis() + 100000;
+		String token1 = store.issueToken(user, expiry);
+		String token2 = store.issueToken(user, expiry);
+		String token3 = store.issueToken(user, expiry);
+		assertThat(store.isTrusted(user, token1), equalTo(false));
+		assertThat(store.isTrusted(user, token2), equalTo(true));
+		assertThat(store.isTrusted(user, token3), equalTo(true));
+		User otherUser = new User();
+		otherUser.setUsername("admin");
+		assertThat(store.isTrusted(otherUser, token3), equalTo(false));
+	}
+
+	@Test
+	public void shouldNotRequireSecondaryAuthenticationFromTrustedNetwork() {
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.policy.trustedNetworks", "10.0.0.0/8,192.168.1.0/24");
+		authenticationScheme = (TwoFactorAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		AuthenticationCredentials credentials = primaryAuth("tester", "primaryPw");
+		assertThat(credentials, notNullValue());
+		assertValidatedCredentials("primary");
+		Authenticated authenticated = authenticationScheme.authenticate(credentials);
+		assertThat(authenticated.getUser().getUsername(), equalTo("tester"));
+	}
+
+	@Test
+	public void shouldRequireSecondaryAuthenticationFromUntrustedNetwork() {
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.policy.trustedNetworks", "10.0.0.0/8");
+		authenticationScheme = (TwoFactorAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		assertThat(primaryAuth("tester", "primaryPw"), nullValue());
+		assertThat(secondaryAuth("tester", "secondaryPw"), notNullValue());
+		assertValidatedCredentials("primary", "secondary");
+	}
+
+	@Test
+	public void shouldRequireSecondaryAuthenticationFromTrustedNetworkAfterRecentFailures() {
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.policy.trustedNetworks", "192.168.1.0/24");
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.policy.maxRecentFailures", "2");
+		authenticationScheme = (TwoFactorAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		primaryAuth("tester", "test1");
+		newLogin(null);
+		primaryAuth("tester", "test2");
+		newLogin(null);
+		assertThat(primaryAuth("tester", "primaryPw"), nullValue());
+		assertValidatedCredentials("primary");
+		assertThat(userLogin.getFailedAuthentications(), equalTo(0));
+	}
+
+	@Test
+	public void shouldClearRecentFailuresOnSuccessfulLogin() {
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.policy.trustedNetworks", "192.168.1.0/24");
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.policy.maxRecentFailures", "2");
+		authenticationScheme = (TwoFactorAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+		primaryAuth("tester", "test1");
+		primaryAuth("tester", "test2");
+		assertThat(UserLoginTracker.getFailedAuthentications("tester", 0), equalTo(2));
+		assertThat(primaryAuth("tester", "primaryPw"), nullValue());
+		assertThat(secondaryAuth("tester", "secondaryPw"), notNullValue());
+		userLogin.loginSuccessful();
+		userLogin.logoutSucceeded();
+		assertThat(UserLoginTracker.getFailedAuthentications("tester", 0), equalTo(0));
+		newLogin(null);
+		assertThat(primaryAuth("tester", "primaryPw"), notNullValue());
+		assertValidatedCredentials("primary");
+	}
+
+	@Test
+	public void shouldRequireSecondaryAuthenticationOutsideTrustedHours() {
+		Properties config = new Properties();
+		config.setProperty("trustedNetworks", "192.168.1.0/24");
+		config.setProperty("trustedHours", "22:00-06:00");
+		LocalTime[] now = new LocalTime[1];
+		SecondaryAuthenticationPolicy policy = new SecondaryAuthenticationPolicy(config) {
+			@Override
+			protected LocalTime getCurrentTime() {
+				return now[0];
+			}
+		};
+		User user = new User();
+		UserLogin login = new UserLogin();
+		login.setIpAddress("192.168.1.10");
+		now[0] = LocalTime.of(23, 30);
+		assertThat(policy.isSecondaryAuthenticationRequired(login, user), equalTo(false));
+		now[0] = LocalTime.of(5, 59);
+		assertThat(policy.isSecondaryAuthenticationRequired(login, user), equalTo(false));
+		now[0] = LocalTime.of(6, 0);
+		assertThat(policy.isSecondaryAuthenticationRequired(login, user), equalTo(true));
+		now[0] = LocalTime.of(12, 0);
+		assertThat(policy.isSecondaryAuthenticationRequired(login, user), equalTo(true));
+	}
+
+	@Test
+	public void shouldAlwaysRequireSecondaryAuthenticationForConfiguredRoles() {
+		Properties config = new Properties();
+		config.setProperty("trustedNetworks", "192.168.1.0/24");
+		config.setProperty("alwaysRequireForRoles", "System Developer");
+		SecondaryAuthenticationPolicy policy = new SecondaryAuthenticationPolicy(config);
+		UserLogin login = new UserLogin();
+		login.setIpAddress("192.168.1.10");
+		User user = new User();
+		assertThat(policy.isSecondaryAuthenticationRequired(login, user), equalTo(false));
+		user.addRole(new Role("System Developer"));
+		assertThat(policy.isSecondaryAuthenticationRequired(login, user), equalTo(true));
+	}
+
+	@Test
+	public void shouldRequireSecondaryAuthenticationIfNoTrustedNetworksConfigured() {
+		SecondaryAuthenticationPolicy policy = new SecondaryAuthenticationPolicy(new Properties());
+		UserLogin login = new UserLogin();
+		login.setIpAddress("192.168.1.10");
+		assertThat(policy.isSecondaryAuthenticationRequired(login, new User()), equalTo(true));
+	}
+
+	protected void enableTrustedDevices() {
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.type", MockTwoFactorAuthenticationScheme.class.getName());
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.trustedDeviceDays", "30");
+		AuthenticationConfig.setProperty("authentication.scheme.2fa.config.trustedDeviceSecret", "testSecret");
+		authenticationScheme = (TwoFactorAuthenticationScheme) AuthenticationConfig.getAuthenticationScheme();
+	}
+
+	protected void newLogin(Cookie cookie) {
+		UserLoginTracker.removeLoginFromThread();
+		session = newSession();
+		request = newPostRequest("192.168.1.1", "/login");
+		request.setSession(session);
+		response = newResponse();
+		authenticationSession = new MockAuthenticationSession(request, response);
+		userLogin = authenticationSession.getUserLogin();
+		UserLoginTracker.setLoginOnThread(userLogin);
+		trustedDeviceCookie = cookie;
+	}
+
+	protected AuthenticationCredentials secondaryAuth(String username, String password, boolean rememberDevice) {
+		request = newPostRequest("192.168.1.1", "/login");
+		request.setParameter("uname2", username);
+		request.setParameter("pw2", password);
+		if (rememberDevice) {
+			request.setParameter("rememberDevice", "true");
+		}
+		request.setSession(session);
+		response = newResponse();
+		authenticationSession = new MockAuthenticationSession(request, response);
+		return authenticationScheme.getCredentials(authenticationSession);
+	}
+
 	protected void assertValidatedCredentials(String... schemeIds) {
 		assertThat(userLogin.getValidatedCredentials().size(), equalTo(schemeIds.length));
 		for (String credential : schemeIds) {
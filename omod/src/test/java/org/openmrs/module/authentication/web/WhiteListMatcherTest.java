@@ -0,0 +1,80 @@
+package org.openmrs.module.authentication.web;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class WhiteListMatcherTest {
+
+	static final List<String> PATTERNS = Arrays.asList(
+			"/login.htm", "/LOGIN.htm", "login.htm", "/ms/legacyui/loginServlet", "/csrfguard", "*.js", "*.CSS",
+			"*.min.js", "*", "*.", "/**", "/**/*.gif", "/module/**", "/module/**/*.png", "/openmrs/login.htm",
+			"/openmrs/**", "/resources/*.js", "/pages/?ogin.htm", "/api/{version}/**", "/module/", "//double.htm",
+			"/spaced .htm", "/café.htm", "/a/**/b/**", "/a/**/**", "", "/"
+	);
+
+	static final List<String> PATHS = Arrays.asList(
+			null, "", "/", "/login.htm", "/Login.HTM", "/login.html", "/loginXhtm", "/ms/legacyui/loginServlet",
+			"/csrfguard", "/csrfguard/", "/csrfguard/token", "/app.js", "/scripts/jquery.min.js", "/JQUERY.JS",
+			"/styles/site.css", "/.js", "/js", "/x.gif", "/a/b/c.gif", "/module", "/module/", "/module/x",
+			"/modules/x", "/module/img/logo.png", "/moduleX/logo.png", "/resources/app.js", "/resources/a/app.js",
+			"/pages/login.htm", "/api/v1/patient", "//double.htm", "/double.htm", "/spaced .htm", "/café.htm",
+			"/CAFÉ.htm", "/a/x/b/y", "login.htm", "/openmrs", "/openmrs/login.htm", "/openmrs/app.js",
+			"/openmrs/module/x", "/openmrs.js", "/openmrsfoo/x.js", "/openmrs/x/", "/a//b.js"
+	);
+
+	static final List<String> CONTEXT_PATHS = Arrays.asList("", "/", "/openmrs");
+
+	protected MockHttpServletRequest newRequest(String contextPath, String path) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setContextPath(contextPath);
+		request.setServletPath(path);
+		request.setRequestURI(path == null ? null : contextPath.equals("/") ? path : contextPath + path);
+		return request;
+	}
+
+	protected void assertEquivalent(List<String> whiteList, MockHttpServletRequest request) {
+		boolean expected = WebUtil.isWhiteListed(request, whiteList);
+		boolean actual = new WhiteListMatcher(whiteList).matches(request);
+		String message = whiteList + " " + request.getContextPath() + " " + request.getServletPath() + " " + request.getRequestURI();
+		assertThat(message, actual, equalTo(expected));
+	}
+
+	@Test
+	public void shouldMatchEachPatternAsAntPathMatcherDoes() {
+		for (String pattern : PATTERNS) {
+			for (String contextPath : CONTEXT_PATHS) {
+				for (String path : PATHS) {
+					assertEquivalent(Collections.singletonList(pattern), newRequest(contextPath, path));
+					MockHttpServletRequest uriOnly = newRequest(contextPath, path);
+					uriOnly.setServletPath("");
+					assertEquivalent(Collections.singletonList(pattern), uriOnly);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shouldMatchRandomWhiteListsAsAntPathMatcherDoes() {
+		Random random = new Random(42);
+		for (int i = 0; i < 200; i++) {
+			List<String> whiteList = new ArrayList<>();
+			int size = 1 + random.nextInt(6);
+			for (int j = 0; j < size; j++) {
+				whiteList.add(PATTERNS.get(random.nextInt(PATTERNS.size())));
+			}
+			String contextPath = CONTEXT_PATHS.get(random.nextInt(CONTEXT_PATHS.size()));
+			for (String path : PATHS) {
+				assertEquivalent(whiteList, newRequest(contextPath, path));
+			}
+		}
+	}
+}
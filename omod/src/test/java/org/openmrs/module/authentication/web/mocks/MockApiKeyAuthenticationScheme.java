@@ -0,0 +1,99 @@
+package org.openmrs.module.authentication.web.mocks;
+
+import org.openmrs.User;
+import org.openmrs.module.authentication.web.ApiKeyAuthenticationScheme;
+import org.openmrs.module.authentication.web.ApiKeyStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mock API key scheme, which returns a new User for any username, and stores keys in memory
+ */
+public class MockApiKeyAuthenticationScheme extends ApiKeyAuthenticationScheme {
+
+    private static final Map<String, User> users = new HashMap<>();
+
+    public static MockApiKeyStore store = new MockApiKeyStore("apikey");
+
+    public MockApiKeyAuthenticationScheme() {
+    }
+
+    @Override
+    protected ApiKeyStore getApiKeyStore() {
+        return store;
+    }
+
+    @Override
+    protected User getUserByUsername(String username) {
+        if ("unknown".equals(username)) {
+            return null;
+        }
+        return users.computeIfAbsent(username, u -> {
+            User user = new User();
+            user.setUsername(u);
+            return user;
+        });
+    }
+
+    /**
+     * Mock store, which persists global properties in memory and counts the number of writes
+     */
+    public static class MockApiKeyStore extends ApiKeyStore {
+
+        public final Map<String, String> globalProperties = new ConcurrentHashMap<>();
+        public int writes = 0;
+
+        public MockApiKeyStore(String schemeId) {
+            super(schemeId);
+        }
+
+        @Override
+        protected Map<String, String> loadAll(String prefix) {
+            return new HashMap<>(globalProperties);
+        }
+
+        @Override
+        protected void persistAll(Map<String, String> values) {
+            globalProperties.putAll(values);
+            writes++;
+        }
+
+        @Override
+        protected List<String> updateExisting(Map<String, String> values) {
+            List<String> missing = new ArrayList<>();
+            for (Map.Entry<String, String> e : values.entrySet()) {
+                if (globalProperties.containsKey(e.getKey())) {
+                    globalProperties.put(e.getKey(), e.getValue());
+                }
+                else {
+                    missing.add(e.getKey());
+                }
+            }
+            writes++;
+            return missing;
+        }
+
+        @Override
+        protected void flushLastUsedInSession() {
+            flushLastUsed();
+        }
+
+        @Override
+        protected void delete(String propertyName) {
+            globalProperties.remove(propertyName);
+            writes++;
+        }
+
+        @Override
+        protected void registerListener() {
+        }
+
+        @Override
+        protected void unregisterListener() {
+        }
+    }
+}
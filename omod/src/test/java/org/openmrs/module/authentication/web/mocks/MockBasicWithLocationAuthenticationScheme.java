@@ -0,0 +1,34 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web.mocks;
+
+import org.openmrs.Location;
+import org.openmrs.module.authentication.web.BasicWithLocationAuthenticationScheme;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mock location scheme, which returns the locations in the static validLocations list, and counts how often they load
+ */
+public class MockBasicWithLocationAuthenticationScheme extends BasicWithLocationAuthenticationScheme {
+
+    public static final List<Location> validLocations = new ArrayList<>();
+    public static int loads = 0;
+
+    public MockBasicWithLocationAuthenticationScheme() {
+    }
+
+    @Override
+    protected List<Location> getValidLocations() {
+        loads++;
+        return new ArrayList<>(validLocations);
+    }
+}
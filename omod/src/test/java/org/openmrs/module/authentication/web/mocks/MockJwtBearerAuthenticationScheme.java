@@ -0,0 +1,48 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.authentication.web.mocks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openmrs.User;
+import org.openmrs.module.authentication.web.JwtBearerAuthenticationScheme;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Mock JWT scheme, which returns a new User for any username, and counts the number of token verifications
+ */
+public class MockJwtBearerAuthenticationScheme extends JwtBearerAuthenticationScheme {
+
+    private static final Map<String, User> users = new HashMap<>();
+
+    public static int verifications = 0;
+
+    public MockJwtBearerAuthenticationScheme() {
+    }
+
+    @Override
+    protected JsonNode verifyToken(String token) {
+        verifications++;
+        return super.verifyToken(token);
+    }
+
+    @Override
+    protected User getUserByUsername(String username) {
+        if ("unknown".equals(username)) {
+            return null;
+        }
+        return users.computeIfAbsent(username, u -> {
+            User user = new User();
+            user.setUsername(u);
+            return user;
+        });
+    }
+}
@@ -20,13 +20,18 @@ public class MockSecretQuestionAuthenticationScheme extends SecretQuestionAuthen
     public MockSecretQuestionAuthenticationScheme() {
     }
 
+    public static int questionLookups = 0;
+    public static int answerChecks = 0;
+
     @Override
     protected String getSecretQuestion(User user) {
+        questionLookups++;
         return user.getUsername() + " question";
     }
 
     @Override
     protected boolean isSecretAnswer(User user, String answer) {
+        answerChecks++;
         return answer != null && answer.equals(user.getUsername() + " answer");
     }
 }
@@ -0,0 +1,27 @@
+package org.openmrs.module.authentication.web.mocks;
+
+import org.openmrs.module.authentication.web.TotpAuthenticationScheme;
+
+/**
+ * Mock TOTP scheme, which "encrypts" secrets by prefixing them with "encrypted:", and counts decryptions
+ */
+public class MockTotpAuthenticationScheme extends TotpAuthenticationScheme {
+
+    public static final String ENCRYPTED_PREFIX = "encrypted:";
+
+    public static int decryptions = 0;
+
+    public MockTotpAuthenticationScheme() {
+    }
+
+    @Override
+    protected String decryptSecret(String encryptedSecret) {
+        decryptions++;
+        return encryptedSecret.substring(ENCRYPTED_PREFIX.length());
+    }
+
+    @Override
+    protected String encryptSecret(String secret) {
+        return ENCRYPTED_PREFIX + secret;
+    }
+}
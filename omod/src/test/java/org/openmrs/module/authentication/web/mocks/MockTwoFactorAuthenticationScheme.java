@@ -0,0 +1,30 @@
+package org.openmrs.module.authentication.web.mocks;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.User;
+import org.openmrs.module.authentication.web.TrustedDeviceStore;
+import org.openmrs.module.authentication.web.TwoFactorAuthenticationScheme;
+
+/**
+ * Mock two-factor scheme, which stores trusted devices directly on the user rather than saving to the database
+ */
+public class MockTwoFactorAuthenticationScheme extends TwoFactorAuthenticationScheme {
+
+	public MockTwoFactorAuthenticationScheme() {
+	}
+
+	@Override
+	protected TrustedDeviceStore getTrustedDeviceStore() {
+		return new TrustedDeviceStore(trustedDeviceSecret, maxTrustedDevices) {
+			@Override
+			protected void saveUserProperty(User user, String key, String value) {
+				if (StringUtils.isBlank(value)) {
+					user.removeUserProperty(key);
+				}
+				else {
+					user.setUserProperty(key, value);
+				}
+			}
+		};
+	}
+}